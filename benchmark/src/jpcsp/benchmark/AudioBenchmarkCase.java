@@ -0,0 +1,89 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+import jpcsp.MemoryMap;
+import jpcsp.media.codec.CodecFactory;
+import jpcsp.media.codec.ICodec;
+import jpcsp.memory.ByteArrayMemory;
+
+/**
+ * Benchmark of an audio codec decoding one frame at a time
+ * from a ByteArrayMemory, as done by sceAudiocodec.
+ */
+public class AudioBenchmarkCase extends BenchmarkCase {
+	// Large enough for 2048 stereo samples (ATRAC3+) or AAC with SBR
+	private static final int OUTPUT_BUFFER_SIZE = 4096 * 2 * 2;
+	private static final int inputAddr = MemoryMap.START_USERSPACE;
+	private static final int outputAddr = MemoryMap.START_USERSPACE;
+	private final int codecType;
+	private final int channels;
+	private final int bytesPerFrame;
+	private final int codingMode;
+	private final int[] frameOffsets;
+	private final int[] frameLengths;
+	private final byte[] data;
+	private ICodec codec;
+	private ByteArrayMemory input;
+	private ByteArrayMemory output;
+
+	public AudioBenchmarkCase(String name, int codecType, int channels, int bytesPerFrame, int codingMode, byte[][] frames) {
+		super(name);
+		this.codecType = codecType;
+		this.channels = channels;
+		this.bytesPerFrame = bytesPerFrame;
+		this.codingMode = codingMode;
+
+		frameOffsets = new int[frames.length];
+		frameLengths = new int[frames.length];
+		int length = 0;
+		for (int i = 0; i < frames.length; i++) {
+			frameOffsets[i] = length;
+			frameLengths[i] = frames[i].length;
+			length += frames[i].length;
+		}
+
+		data = new byte[length];
+		for (int i = 0; i < frames.length; i++) {
+			System.arraycopy(frames[i], 0, data, frameOffsets[i], frameLengths[i]);
+		}
+	}
+
+	@Override
+	public void setup() {
+		codec = CodecFactory.getCodec(codecType);
+		int result = codec.init(bytesPerFrame, channels, channels, codingMode);
+		if (result < 0) {
+			throw new IllegalStateException(String.format("%s: codec init returned 0x%08X", getName(), result));
+		}
+		input = new ByteArrayMemory(data, 0, inputAddr);
+		output = new ByteArrayMemory(new byte[OUTPUT_BUFFER_SIZE], 0, outputAddr);
+	}
+
+	@Override
+	public int getNumberFrames() {
+		return frameOffsets.length;
+	}
+
+	@Override
+	public void decodeFrame(int frame) {
+		int result = codec.decode(input, inputAddr + frameOffsets[frame], frameLengths[frame], output, outputAddr);
+		if (result < 0) {
+			throw new IllegalStateException(String.format("%s: frame #%d, decode returned 0x%08X", getName(), frame, result));
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+/**
+ * One codec benchmark: a codec in a given configuration
+ * decoding a stream held completely in memory.
+ */
+public abstract class BenchmarkCase {
+	private final String name;
+
+	protected BenchmarkCase(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Create and initialize the codec.
+	 * Called once before the warmup iterations.
+	 */
+	public abstract void setup();
+
+	public abstract int getNumberFrames();
+
+	/**
+	 * Decode one frame of the stream.
+	 *
+	 * @param frame  the frame number, from 0 to getNumberFrames() - 1
+	 */
+	public abstract void decodeFrame(int frame);
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Simple MSB-first bit writer used to build the synthetic codec streams.
+ */
+public class BitWriter {
+	private byte[] buffer = new byte[1024];
+	private int bitPosition;
+
+	public void write(int n, int value) {
+		for (int i = n - 1; i >= 0; i--) {
+			write1((value >> i) & 1);
+		}
+	}
+
+	public void write1(int bit) {
+		int index = bitPosition >> 3;
+		if (index >= buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		if (bit != 0) {
+			buffer[index] |= 0x80 >> (bitPosition & 7);
+		}
+		bitPosition++;
+	}
+
+	/**
+	 * Write an unsigned Exp-Golomb code, as used by H.264.
+	 */
+	public void writeUe(int value) {
+		int code = value + 1;
+		int length = 32 - Integer.numberOfLeadingZeros(code);
+		write(length - 1, 0);
+		write(length, code);
+	}
+
+	/**
+	 * Write a signed Exp-Golomb code, as used by H.264.
+	 */
+	public void writeSe(int value) {
+		writeUe(value > 0 ? 2 * value - 1 : -2 * value);
+	}
+
+	public void alignZero() {
+		while ((bitPosition & 7) != 0) {
+			write1(0);
+		}
+	}
+
+	public void padZero(int length) {
+		while (bitPosition < length * 8) {
+			write1(0);
+		}
+	}
+
+	public int getBitPosition() {
+		return bitPosition;
+	}
+
+	public int getLength() {
+		return (bitPosition + 7) >> 3;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, getLength());
+	}
+}
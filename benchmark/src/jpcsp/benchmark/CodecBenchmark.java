@@ -0,0 +1,406 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+import static jpcsp.HLE.modules.sceAudiocodec.PSP_CODEC_AAC;
+import static jpcsp.HLE.modules.sceAudiocodec.PSP_CODEC_AT3;
+import static jpcsp.HLE.modules.sceAudiocodec.PSP_CODEC_AT3PLUS;
+import static jpcsp.HLE.modules.sceAudiocodec.PSP_CODEC_MP3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import jpcsp.HLE.modules.sceAtrac3plus;
+
+/**
+ * Throughput and allocation benchmark of the audio and video codecs.
+ *
+ * Each benchmark case decodes a stream held in memory, frame after frame,
+ * during a number of timed warmup and measurement iterations.
+ * For each case, the decoded frames per second and the number
+ * of bytes allocated per decoded frame are reported.
+ *
+ * The results are checked against a baseline file: the process exits
+ * with a non-zero status when a case allocates more per frame than the baseline,
+ * outside of a given tolerance. The allocations do not depend on the machine
+ * running the benchmark, the throughput does: the frames per second are only
+ * compared when requested, against a baseline generated on the same machine.
+ *
+ * Options (system properties):
+ * <ul>
+ * <li>benchmark.warmup: number of warmup iterations (default 3)</li>
+ * <li>benchmark.iterations: number of measurement iterations (default 5)</li>
+ * <li>benchmark.time: duration of one iteration in milliseconds (default 1000)</li>
+ * <li>benchmark.cases: comma-separated list of case name prefixes to run (default all)</li>
+ * <li>benchmark.files: comma-separated list of additional RIFF .at3 files to decode</li>
+ * <li>benchmark.resources: directory containing the bundled streams (default testresources)</li>
+ * <li>benchmark.baseline: baseline file (default benchmark/baseline.properties)</li>
+ * <li>benchmark.tolerance: allowed regression in percent (default 20)</li>
+ * <li>benchmark.compare: also fail when a case is slower than the baseline (default false)</li>
+ * <li>benchmark.updateBaseline: write the results into the baseline file instead of comparing</li>
+ * </ul>
+ */
+public class CodecBenchmark {
+	private static final String FRAMES_PER_SECOND = ".framesPerSecond";
+	private static final String BYTES_PER_FRAME = ".allocatedBytesPerFrame";
+	// Allocations below this size per frame are considered as noise
+	private static final long ALLOCATION_SLACK = 64;
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 272;
+	private static final int ATRAC3_BYTES_PER_FRAME = 384;
+	private final int warmupIterations = Integer.getInteger("benchmark.warmup", 3);
+	private final int iterations = Integer.getInteger("benchmark.iterations", 5);
+	private final long iterationTime = Long.getLong("benchmark.time", 1000L) * 1000000L;
+	private final double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "20")) / 100.0;
+	private final File baselineFile = new File(System.getProperty("benchmark.baseline", "benchmark/baseline.properties"));
+	private final boolean updateBaseline = Boolean.getBoolean("benchmark.updateBaseline");
+	private final boolean compareFramesPerSecond = Boolean.getBoolean("benchmark.compare");
+	private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+	private static class Result {
+		public double framesPerSecond;
+		public double framesPerSecondError;
+		public long allocatedBytesPerFrame;
+	}
+
+	private static int read16(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+	}
+
+	private static int read32(byte[] buffer, int offset) {
+		return read16(buffer, offset) | (read16(buffer, offset + 2) << 16);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] buffer = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int length = 0;
+			while (length < buffer.length) {
+				int n = in.read(buffer, length, buffer.length - length);
+				if (n < 0) {
+					break;
+				}
+				length += n;
+			}
+		} finally {
+			in.close();
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Create a benchmark case from a RIFF file containing ATRAC3 or ATRAC3+ data.
+	 */
+	private static BenchmarkCase readRiff(String name, File file) throws IOException {
+		byte[] buffer = readFile(file);
+		if (read32(buffer, 0) != sceAtrac3plus.RIFF_MAGIC) {
+			throw new IOException(String.format("File '%s' not in RIFF format", file));
+		}
+
+		int codecType = -1;
+		int channels = 2;
+		int bytesPerFrame = 0;
+		int codingMode = 0;
+		int dataOffset = 0;
+		int dataLength = 0;
+		int scanOffset = 12;
+		while (dataOffset <= 0 && scanOffset + 8 <= buffer.length) {
+			int chunkMagic = read32(buffer, scanOffset);
+			int chunkLength = read32(buffer, scanOffset + 4);
+			scanOffset += 8;
+			switch (chunkMagic) {
+				case sceAtrac3plus.FMT_CHUNK_MAGIC:
+					switch (read16(buffer, scanOffset)) {
+						case sceAtrac3plus.AT3_PLUS_MAGIC: codecType = PSP_CODEC_AT3PLUS; break;
+						case sceAtrac3plus.AT3_MAGIC     : codecType = PSP_CODEC_AT3;     break;
+					}
+					channels = read16(buffer, scanOffset + 2);
+					bytesPerFrame = read16(buffer, scanOffset + 12);
+					if (read16(buffer, scanOffset + 16) == 14) {
+						codingMode = read16(buffer, scanOffset + 18 + 6);
+					}
+					break;
+				case sceAtrac3plus.DATA_CHUNK_MAGIC:
+					dataOffset = scanOffset;
+					dataLength = Math.min(chunkLength, buffer.length - dataOffset);
+					break;
+			}
+			scanOffset += chunkLength;
+		}
+
+		if (codecType < 0 || bytesPerFrame <= 0 || dataOffset <= 0) {
+			throw new IOException(String.format("File '%s' has no ATRAC3 or ATRAC3+ data", file));
+		}
+
+		byte[][] frames = new byte[dataLength / bytesPerFrame][bytesPerFrame];
+		for (int i = 0; i < frames.length; i++) {
+			System.arraycopy(buffer, dataOffset + i * bytesPerFrame, frames[i], 0, bytesPerFrame);
+		}
+
+		return new AudioBenchmarkCase(name, codecType, channels, bytesPerFrame, codingMode, frames);
+	}
+
+	private static String getFileCaseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+
+		return "file-" + name;
+	}
+
+	private List<BenchmarkCase> getCases() throws IOException {
+		List<BenchmarkCase> cases = new ArrayList<BenchmarkCase>();
+
+		File resources = new File(System.getProperty("benchmark.resources", "testresources"));
+		cases.add(readRiff("atrac3plus-stereo", new File(resources, "sample.at3")));
+		cases.add(new AudioBenchmarkCase("atrac3-stereo", PSP_CODEC_AT3, 2, ATRAC3_BYTES_PER_FRAME, 0, SyntheticStreams.atrac3(2, ATRAC3_BYTES_PER_FRAME, 256)));
+		cases.add(new AudioBenchmarkCase("mp3-mono", PSP_CODEC_MP3, 1, 0, 0, SyntheticStreams.mp3(1, 256)));
+		cases.add(new AudioBenchmarkCase("mp3-stereo", PSP_CODEC_MP3, 2, 0, 0, SyntheticStreams.mp3(2, 256)));
+		cases.add(new AudioBenchmarkCase("aac-mono", PSP_CODEC_AAC, 1, 0, 0, SyntheticStreams.aac(1, 256)));
+		cases.add(new AudioBenchmarkCase("aac-stereo", PSP_CODEC_AAC, 2, 0, 0, SyntheticStreams.aac(2, 256)));
+		cases.add(new VideoBenchmarkCase("h264-480x272", WIDTH, HEIGHT, SyntheticStreams.h264(WIDTH, HEIGHT, 30)));
+
+		String files = System.getProperty("benchmark.files");
+		if (files != null && files.length() > 0) {
+			for (String fileName : files.split(",")) {
+				File file = new File(fileName.trim());
+				cases.add(readRiff(getFileCaseName(file), file));
+			}
+		}
+
+		String filter = System.getProperty("benchmark.cases");
+		if (filter != null && filter.length() > 0) {
+			List<BenchmarkCase> filteredCases = new ArrayList<BenchmarkCase>();
+			for (BenchmarkCase c : cases) {
+				for (String prefix : filter.split(",")) {
+					if (c.getName().startsWith(prefix.trim())) {
+						filteredCases.add(c);
+						break;
+					}
+				}
+			}
+			cases = filteredCases;
+		}
+
+		return cases;
+	}
+
+	private long getAllocatedBytes() {
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1L;
+	}
+
+	private Result run(BenchmarkCase c) {
+		c.setup();
+
+		int numberFrames = c.getNumberFrames();
+		int frame = 0;
+		double[] framesPerSecond = new double[iterations];
+		long totalFrames = 0;
+		long totalAllocatedBytes = 0;
+		boolean allocationSupported = true;
+
+		for (int i = 0; i < warmupIterations + iterations; i++) {
+			long frames = 0;
+			long allocatedBytesStart = getAllocatedBytes();
+			long start = System.nanoTime();
+			long end = start + iterationTime;
+			long now;
+			do {
+				c.decodeFrame(frame);
+				frame++;
+				if (frame >= numberFrames) {
+					frame = 0;
+				}
+				frames++;
+				now = System.nanoTime();
+			} while (now < end);
+			long allocatedBytesEnd = getAllocatedBytes();
+
+			if (i >= warmupIterations) {
+				framesPerSecond[i - warmupIterations] = frames * 1000000000.0 / (now - start);
+				totalFrames += frames;
+				if (allocatedBytesStart < 0L || allocatedBytesEnd < 0L) {
+					allocationSupported = false;
+				} else {
+					totalAllocatedBytes += allocatedBytesEnd - allocatedBytesStart;
+				}
+			}
+		}
+
+		Result result = new Result();
+		double sum = 0.0;
+		for (int i = 0; i < iterations; i++) {
+			sum += framesPerSecond[i];
+		}
+		result.framesPerSecond = sum / iterations;
+		double variance = 0.0;
+		for (int i = 0; i < iterations; i++) {
+			double delta = framesPerSecond[i] - result.framesPerSecond;
+			variance += delta * delta;
+		}
+		result.framesPerSecondError = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0.0;
+		result.allocatedBytesPerFrame = allocationSupported && totalFrames > 0 ? totalAllocatedBytes / totalFrames : -1L;
+
+		return result;
+	}
+
+	private Properties loadBaseline() throws IOException {
+		Properties baseline = new Properties();
+		if (baselineFile.canRead()) {
+			InputStream in = new FileInputStream(baselineFile);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		return baseline;
+	}
+
+	private void saveBaseline(Properties baseline) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(baselineFile));
+		try {
+			out.println(String.format("# Codec benchmark baseline, %s %s, %s %s, %d processors", System.getProperty("java.vm.name"), System.getProperty("java.version"), System.getProperty("os.name"), System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors()));
+			out.println(String.format("# Generated with: ant -f benchmark/build.xml baseline"));
+			for (String key : new TreeSet<String>(baseline.stringPropertyNames())) {
+				out.println(String.format("%s=%s", key, baseline.getProperty(key)));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static double getDouble(Properties properties, String key) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return -1.0;
+		}
+
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * Compare a result against the baseline.
+	 *
+	 * @return a description of the regression, or null if there is no regression
+	 */
+	private String checkRegression(String name, Result result, Properties baseline) {
+		double baselineFramesPerSecond = getDouble(baseline, name + FRAMES_PER_SECOND);
+		if (compareFramesPerSecond && baselineFramesPerSecond > 0.0 && result.framesPerSecond < baselineFramesPerSecond * (1.0 - tolerance)) {
+			return String.format(Locale.ENGLISH, "%s: %.1f frames/s, baseline %.1f frames/s", name, result.framesPerSecond, baselineFramesPerSecond);
+		}
+
+		double baselineBytesPerFrame = getDouble(baseline, name + BYTES_PER_FRAME);
+		if (baselineBytesPerFrame >= 0.0 && result.allocatedBytesPerFrame >= 0L && result.allocatedBytesPerFrame > baselineBytesPerFrame * (1.0 + tolerance) + ALLOCATION_SLACK) {
+			return String.format(Locale.ENGLISH, "%s: %d allocated bytes/frame, baseline %.0f bytes/frame", name, result.allocatedBytesPerFrame, baselineBytesPerFrame);
+		}
+
+		return null;
+	}
+
+	private static String formatChange(double value, double baselineValue) {
+		if (baselineValue <= 0.0) {
+			return "";
+		}
+
+		return String.format(Locale.ENGLISH, "%+.1f%%", (value - baselineValue) * 100.0 / baselineValue);
+	}
+
+	public int run() throws IOException {
+		List<BenchmarkCase> cases = getCases();
+		Properties baseline = loadBaseline();
+		List<String> regressions = new ArrayList<String>();
+
+		System.out.println(String.format(Locale.ENGLISH, "%d warmup and %d measurement iterations of %d ms, tolerance %.0f%%%s", warmupIterations, iterations, iterationTime / 1000000L, tolerance * 100.0, compareFramesPerSecond ? "" : ", frames/s not compared"));
+		System.out.println(String.format("%-20s %12s %8s %10s %12s %12s %10s", "Case", "frames/s", "error", "us/frame", "bytes/frame", "MB/s alloc", "baseline"));
+		for (BenchmarkCase c : cases) {
+			System.gc();
+			Result result = run(c);
+			String name = c.getName();
+
+			double allocationRate = result.allocatedBytesPerFrame >= 0L ? result.allocatedBytesPerFrame * result.framesPerSecond / (1024.0 * 1024.0) : -1.0;
+			System.out.println(String.format(Locale.ENGLISH, "%-20s %12.1f %7.1f%% %10.1f %12d %12.1f %10s",
+					name,
+					result.framesPerSecond,
+					result.framesPerSecondError * 100.0 / result.framesPerSecond,
+					1000000.0 / result.framesPerSecond,
+					result.allocatedBytesPerFrame,
+					allocationRate,
+					formatChange(result.framesPerSecond, getDouble(baseline, name + FRAMES_PER_SECOND))));
+
+			if (updateBaseline) {
+				baseline.setProperty(name + FRAMES_PER_SECOND, String.format(Locale.ENGLISH, "%.1f", result.framesPerSecond));
+				if (result.allocatedBytesPerFrame >= 0L) {
+					baseline.setProperty(name + BYTES_PER_FRAME, Long.toString(result.allocatedBytesPerFrame));
+				}
+			} else {
+				String regression = checkRegression(name, result, baseline);
+				if (regression != null) {
+					regressions.add(regression);
+				}
+			}
+		}
+
+		if (updateBaseline) {
+			saveBaseline(baseline);
+			System.out.println(String.format("Baseline written to %s", baselineFile));
+		} else if (!regressions.isEmpty()) {
+			System.out.println(String.format("%d regression(s) compared to %s:", regressions.size(), baselineFile));
+			for (String regression : regressions) {
+				System.out.println("  " + regression);
+			}
+			return 1;
+		}
+
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		DOMConfigurator.configure("LogSettings.xml");
+
+		int status;
+		try {
+			status = new CodecBenchmark().run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			status = 2;
+		}
+
+		System.exit(status);
+	}
+}
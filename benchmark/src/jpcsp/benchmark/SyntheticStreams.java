@@ -0,0 +1,454 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+import static jpcsp.media.codec.aac.AacTab.ff_aac_scalefactor_bits;
+import static jpcsp.media.codec.aac.AacTab.ff_aac_scalefactor_code;
+import static jpcsp.media.codec.aac.AacTab.ff_aac_spectral_bits;
+import static jpcsp.media.codec.aac.AacTab.ff_aac_spectral_codes;
+import static jpcsp.media.codec.aac.AacTab.ff_swb_offset_1024;
+import static jpcsp.media.codec.atrac3.Atrac3Data.clc_length_tab;
+import static jpcsp.media.codec.atrac3.Atrac3Data.subband_tab;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Generators for the synthetic streams decoded by the codec benchmarks.
+ *
+ * The streams are built from random but syntactically valid frames,
+ * so that they can be bundled without any licensing issue while still
+ * exercising the complete decoding path of each codec
+ * (bitstream parsing, dequantization, inverse transforms and output).
+ * A fixed seed is used so that every run decodes exactly the same data.
+ */
+public class SyntheticStreams {
+	private static final long SEED = 0x4A504353L;
+
+	// MPEG-1 Layer III, 44100Hz
+	private static final int MP3_SAMPLING_INDEX_44100 = 0;
+	private static final int MP3_BITRATE_INDEX_64 = 5;
+	private static final int MP3_BITRATE_INDEX_128 = 9;
+	private static final int MP3_PART2_3_LENGTH = 740;
+	private static final int MP3_GLOBAL_GAIN = 180;
+
+	// AAC-LC in ADTS, 44100Hz
+	private static final int AAC_SAMPLING_INDEX_44100 = 4;
+	private static final int AAC_TYPE_SCE = 0;
+	private static final int AAC_TYPE_CPE = 1;
+	private static final int AAC_TYPE_END = 7;
+	private static final int AAC_MAX_SFB = 36;
+	private static final int AAC_LOW_BANDS = 16;
+	private static final int AAC_GLOBAL_GAIN = 160;
+
+	// ATRAC3
+	private static final int ATRAC3_SOUND_UNIT_ID = 0x28;
+
+	// H.264 NAL unit headers
+	private static final int NAL_SLICE = 0x41;
+	private static final int NAL_IDR_SLICE = 0x65;
+	private static final int NAL_SPS = 0x67;
+	private static final int NAL_PPS = 0x68;
+	private static final int H264_SLICE_TYPE_P = 5;
+	private static final int H264_SLICE_TYPE_I = 7;
+	private static final int H264_MB_TYPE_I16x16_DC = 3;
+
+	private static Random newRandom() {
+		return new Random(SEED);
+	}
+
+	/**
+	 * MPEG-1 Layer III frames (64kbps mono or 128kbps stereo),
+	 * using only the count1 region with the quadruple table B.
+	 */
+	public static byte[][] mp3(int channels, int numberFrames) {
+		Random random = newRandom();
+		int bitrateIndex = channels == 1 ? MP3_BITRATE_INDEX_64 : MP3_BITRATE_INDEX_128;
+		int bitrate = channels == 1 ? 64000 : 128000;
+		int frameSize = 144 * bitrate / 44100;
+		byte[][] frames = new byte[numberFrames][];
+
+		for (int frame = 0; frame < numberFrames; frame++) {
+			BitWriter w = new BitWriter();
+			// Frame header
+			w.write(11, 0x7FF);                 // sync
+			w.write(2, 3);                      // MPEG-1
+			w.write(2, 1);                      // Layer III
+			w.write(1, 1);                      // no CRC
+			w.write(4, bitrateIndex);
+			w.write(2, MP3_SAMPLING_INDEX_44100);
+			w.write(1, 0);                      // no padding
+			w.write(1, 0);                      // private bit
+			w.write(2, channels == 1 ? 3 : 0);  // mono or stereo
+			w.write(2, 0);                      // mode extension
+			w.write(1, 0);                      // copyright
+			w.write(1, 1);                      // original
+			w.write(2, 0);                      // emphasis
+
+			// Side information
+			w.write(9, 0);                      // main_data_begin
+			w.write(channels == 1 ? 5 : 3, 0);  // private bits
+			for (int ch = 0; ch < channels; ch++) {
+				w.write(4, 0);                  // scfsi
+			}
+			for (int gr = 0; gr < 2; gr++) {
+				for (int ch = 0; ch < channels; ch++) {
+					w.write(12, MP3_PART2_3_LENGTH);
+					w.write(9, 0);              // big_values
+					w.write(8, MP3_GLOBAL_GAIN);
+					w.write(4, 0);              // scalefac_compress: no scale factors
+					w.write(1, 0);              // window_switching_flag
+					w.write(15, 0);             // table_select[3]
+					w.write(4, 0);              // region0_count
+					w.write(3, 0);              // region1_count
+					w.write(1, 0);              // preflag
+					w.write(1, 0);              // scalefac_scale
+					w.write(1, 1);              // count1table_select: table B
+				}
+			}
+
+			// Main data: every 4-bit code of the table B is valid,
+			// followed by the sign bits of the non-zero values.
+			for (int gr = 0; gr < 2; gr++) {
+				for (int ch = 0; ch < channels; ch++) {
+					int start = w.getBitPosition();
+					while (w.getBitPosition() - start < MP3_PART2_3_LENGTH) {
+						w.write1(random.nextInt(2));
+					}
+				}
+			}
+
+			w.padZero(frameSize);
+			frames[frame] = w.toByteArray();
+		}
+
+		return frames;
+	}
+
+	private static void writeAacIcs(BitWriter w, Random random) {
+		int[] swbOffset = ff_swb_offset_1024[AAC_SAMPLING_INDEX_44100];
+
+		w.write(8, AAC_GLOBAL_GAIN);
+
+		// ics_info
+		w.write(1, 0);                          // reserved
+		w.write(2, 0);                          // ONLY_LONG_SEQUENCE
+		w.write(1, 0);                          // window shape
+		w.write(6, AAC_MAX_SFB);
+		w.write(1, 0);                          // no predictor
+
+		// section_data: codebook 5 (signed pairs) for the low bands,
+		// codebook 1 (signed quadruples) for the high bands
+		w.write(4, 5);
+		w.write(5, AAC_LOW_BANDS);
+		w.write(4, 1);
+		w.write(5, AAC_MAX_SFB - AAC_LOW_BANDS);
+
+		// scale_factor_data: all equal to the global gain
+		for (int i = 0; i < AAC_MAX_SFB; i++) {
+			w.write(ff_aac_scalefactor_bits[60], ff_aac_scalefactor_code[60]);
+		}
+
+		w.write(1, 0);                          // pulse_data_present
+		w.write(1, 0);                          // tns_data_present
+		w.write(1, 0);                          // gain_control_data_present
+
+		// spectral_data
+		for (int i = 0; i < AAC_MAX_SFB; i++) {
+			int codebook = i < AAC_LOW_BANDS ? 5 : 1;
+			int dimension = codebook < 5 ? 4 : 2;
+			int[] codes = ff_aac_spectral_codes[codebook - 1];
+			int[] bits = ff_aac_spectral_bits[codebook - 1];
+			for (int k = swbOffset[i]; k < swbOffset[i + 1]; k += dimension) {
+				int index = random.nextInt(codes.length);
+				w.write(bits[index], codes[index]);
+			}
+		}
+	}
+
+	/**
+	 * AAC-LC frames in ADTS format (mono or stereo, 44100Hz, long windows).
+	 */
+	public static byte[][] aac(int channels, int numberFrames) {
+		Random random = newRandom();
+		byte[][] frames = new byte[numberFrames][];
+
+		for (int frame = 0; frame < numberFrames; frame++) {
+			BitWriter raw = new BitWriter();
+			if (channels == 1) {
+				raw.write(3, AAC_TYPE_SCE);
+				raw.write(4, 0);                // element tag
+				writeAacIcs(raw, random);
+			} else {
+				raw.write(3, AAC_TYPE_CPE);
+				raw.write(4, 0);                // element tag
+				raw.write(1, 0);                // common_window
+				writeAacIcs(raw, random);
+				writeAacIcs(raw, random);
+			}
+			raw.write(3, AAC_TYPE_END);
+			raw.alignZero();
+			byte[] rawData = raw.toByteArray();
+
+			BitWriter w = new BitWriter();
+			w.write(12, 0xFFF);                 // syncword
+			w.write(1, 0);                      // MPEG-4
+			w.write(2, 0);                      // layer
+			w.write(1, 1);                      // protection absent
+			w.write(2, 1);                      // profile: AAC-LC
+			w.write(4, AAC_SAMPLING_INDEX_44100);
+			w.write(1, 0);                      // private bit
+			w.write(3, channels);               // channel configuration
+			w.write(1, 0);                      // original/copy
+			w.write(1, 0);                      // home
+			w.write(1, 0);                      // copyright id bit
+			w.write(1, 0);                      // copyright id start
+			w.write(13, 7 + rawData.length);    // frame length
+			w.write(11, 0x7FF);                 // buffer fullness: VBR
+			w.write(2, 0);                      // one raw data block
+			for (int i = 0; i < rawData.length; i++) {
+				w.write(8, rawData[i] & 0xFF);
+			}
+			frames[frame] = w.toByteArray();
+		}
+
+		return frames;
+	}
+
+	private static void writeAtrac3SoundUnit(BitWriter w, Random random, int length) {
+		int start = w.getBitPosition();
+		int endBits = start + length * 8;
+
+		w.write(6, ATRAC3_SOUND_UNIT_ID);
+		w.write(2, 3);                          // all 4 QMF bands coded
+		for (int band = 0; band < 4; band++) {
+			w.write(3, 0);                      // no gain control points
+		}
+		w.write(5, 0);                          // no tonal components
+
+		// Code as many subbands as fit into the sound unit,
+		// using constant length coding (CLC)
+		int[] selectors = new int[32];
+		int numberSubbands = 0;
+		int bits = w.getBitPosition() + 5 + 1;
+		while (numberSubbands < 32) {
+			int selector = 1 + random.nextInt(3);
+			int size = subband_tab[numberSubbands + 1] - subband_tab[numberSubbands];
+			int subbandBits = 3 + 6 + (selector == 1 ? size / 2 : size) * clc_length_tab[selector];
+			if (bits + subbandBits > endBits) {
+				break;
+			}
+			selectors[numberSubbands++] = selector;
+			bits += subbandBits;
+		}
+
+		w.write(5, numberSubbands - 1);
+		w.write(1, 1);                          // CLC
+		for (int i = 0; i < numberSubbands; i++) {
+			w.write(3, selectors[i]);
+		}
+		for (int i = 0; i < numberSubbands; i++) {
+			w.write(6, 20 + random.nextInt(16)); // scale factor index
+		}
+		for (int i = 0; i < numberSubbands; i++) {
+			int size = subband_tab[i + 1] - subband_tab[i];
+			int numberCodes = selectors[i] == 1 ? size / 2 : size;
+			for (int j = 0; j < numberCodes; j++) {
+				w.write(clc_length_tab[selectors[i]], random.nextInt(1 << clc_length_tab[selectors[i]]));
+			}
+		}
+
+		while (w.getBitPosition() < endBits) {
+			w.write1(0);
+		}
+	}
+
+	/**
+	 * ATRAC3 frames in regular (not joint) stereo mode.
+	 */
+	public static byte[][] atrac3(int channels, int bytesPerFrame, int numberFrames) {
+		Random random = newRandom();
+		byte[][] frames = new byte[numberFrames][];
+
+		for (int frame = 0; frame < numberFrames; frame++) {
+			BitWriter w = new BitWriter();
+			for (int ch = 0; ch < channels; ch++) {
+				writeAtrac3SoundUnit(w, random, bytesPerFrame / channels);
+			}
+			frames[frame] = w.toByteArray();
+		}
+
+		return frames;
+	}
+
+	private static void writeRbspTrailingBits(BitWriter w) {
+		w.write1(1);
+		w.alignZero();
+	}
+
+	private static void writeNalUnit(ByteArrayOutputStream out, int nalHeader, BitWriter rbsp) {
+		// Annex B start code
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(1);
+		out.write(nalHeader);
+
+		// Emulation prevention
+		byte[] data = rbsp.toByteArray();
+		int zeros = 0;
+		for (int i = 0; i < data.length; i++) {
+			int b = data[i] & 0xFF;
+			if (zeros >= 2 && b <= 3) {
+				out.write(3);
+				zeros = 0;
+			}
+			out.write(b);
+			zeros = b == 0 ? zeros + 1 : 0;
+		}
+	}
+
+	private static void writeH264SliceHeader(BitWriter w, int sliceType, int frameNum, boolean idr) {
+		w.writeUe(0);                           // first_mb_in_slice
+		w.writeUe(sliceType);
+		w.writeUe(0);                           // pic_parameter_set_id
+		w.write(4, frameNum);
+		if (idr) {
+			w.writeUe(0);                       // idr_pic_id
+		} else {
+			w.write1(0);                        // num_ref_idx_active_override_flag
+			w.write1(0);                        // ref_pic_list_modification_flag_l0
+		}
+		// dec_ref_pic_marking
+		if (idr) {
+			w.write1(0);                        // no_output_of_prior_pics_flag
+			w.write1(0);                        // long_term_reference_flag
+		} else {
+			w.write1(0);                        // adaptive_ref_pic_marking_mode_flag
+		}
+		w.writeSe(0);                           // slice_qp_delta
+		w.writeUe(0);                           // disable_deblocking_filter_idc
+		w.writeSe(0);                           // slice_alpha_c0_offset_div2
+		w.writeSe(0);                           // slice_beta_offset_div2
+	}
+
+	/**
+	 * H.264 baseline profile access units in Annex B format:
+	 * one IDR frame made of intra 16x16 macroblocks, followed by
+	 * P frames with random small motion and no residual.
+	 * The first access unit also contains the SPS and PPS.
+	 */
+	public static int[][] h264(int width, int height, int numberFrames) {
+		Random random = newRandom();
+		int widthMbs = width / 16;
+		int heightMbs = height / 16;
+		int numberMbs = widthMbs * heightMbs;
+		int[][] accessUnits = new int[numberFrames][];
+
+		for (int frame = 0; frame < numberFrames; frame++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			if (frame == 0) {
+				BitWriter sps = new BitWriter();
+				sps.write(8, 66);               // profile_idc: baseline
+				sps.write(8, 0xC0);             // constraint_set0_flag, constraint_set1_flag
+				sps.write(8, 30);               // level_idc
+				sps.writeUe(0);                 // seq_parameter_set_id
+				sps.writeUe(0);                 // log2_max_frame_num_minus4
+				sps.writeUe(2);                 // pic_order_cnt_type
+				sps.writeUe(1);                 // max_num_ref_frames
+				sps.write1(0);                  // gaps_in_frame_num_value_allowed_flag
+				sps.writeUe(widthMbs - 1);
+				sps.writeUe(heightMbs - 1);
+				sps.write1(1);                  // frame_mbs_only_flag
+				sps.write1(1);                  // direct_8x8_inference_flag
+				sps.write1(0);                  // frame_cropping_flag
+				sps.write1(0);                  // vui_parameters_present_flag
+				writeRbspTrailingBits(sps);
+				writeNalUnit(out, NAL_SPS, sps);
+
+				BitWriter pps = new BitWriter();
+				pps.writeUe(0);                 // pic_parameter_set_id
+				pps.writeUe(0);                 // seq_parameter_set_id
+				pps.write1(0);                  // entropy_coding_mode_flag: CAVLC
+				pps.write1(0);                  // bottom_field_pic_order_in_frame_present_flag
+				pps.writeUe(0);                 // num_slice_groups_minus1
+				pps.writeUe(0);                 // num_ref_idx_l0_default_active_minus1
+				pps.writeUe(0);                 // num_ref_idx_l1_default_active_minus1
+				pps.write1(0);                  // weighted_pred_flag
+				pps.write(2, 0);                // weighted_bipred_idc
+				pps.writeSe(0);                 // pic_init_qp_minus26
+				pps.writeSe(0);                 // pic_init_qs_minus26
+				pps.writeSe(0);                 // chroma_qp_index_offset
+				pps.write1(1);                  // deblocking_filter_control_present_flag
+				pps.write1(0);                  // constrained_intra_pred_flag
+				pps.write1(0);                  // redundant_pic_cnt_present_flag
+				writeRbspTrailingBits(pps);
+				writeNalUnit(out, NAL_PPS, pps);
+
+				BitWriter slice = new BitWriter();
+				writeH264SliceHeader(slice, H264_SLICE_TYPE_I, 0, true);
+				for (int mb = 0; mb < numberMbs; mb++) {
+					slice.writeUe(H264_MB_TYPE_I16x16_DC);
+					slice.writeUe(0);           // intra_chroma_pred_mode: DC
+					slice.writeSe(random.nextInt(9) - 4); // mb_qp_delta
+					// Intra16x16DCLevel: either no coefficient,
+					// or a single trailing one with a random sign
+					if (random.nextBoolean()) {
+						slice.write1(1);        // coeff_token: TotalCoeff=0
+					} else {
+						slice.write(2, 1);      // coeff_token: TotalCoeff=1, TrailingOnes=1
+						slice.write1(random.nextInt(2)); // trailing_ones_sign_flag
+						slice.write1(1);        // total_zeros: 0
+					}
+				}
+				writeRbspTrailingBits(slice);
+				writeNalUnit(out, NAL_IDR_SLICE, slice);
+			} else {
+				BitWriter slice = new BitWriter();
+				writeH264SliceHeader(slice, H264_SLICE_TYPE_P, frame & 0xF, false);
+				int skipRun = 0;
+				for (int mb = 0; mb < numberMbs; mb++) {
+					if (random.nextInt(4) == 0) {
+						skipRun++;
+					} else {
+						slice.writeUe(skipRun); // mb_skip_run
+						skipRun = 0;
+						slice.writeUe(0);       // mb_type: P_L0_16x16
+						slice.writeSe(random.nextInt(9) - 4); // mvd_l0 x
+						slice.writeSe(random.nextInt(9) - 4); // mvd_l0 y
+						slice.writeUe(0);       // coded_block_pattern: 0
+					}
+				}
+				if (skipRun > 0) {
+					slice.writeUe(skipRun);
+				}
+				writeRbspTrailingBits(slice);
+				writeNalUnit(out, NAL_SLICE, slice);
+			}
+
+			byte[] data = out.toByteArray();
+			int[] accessUnit = new int[data.length];
+			for (int i = 0; i < data.length; i++) {
+				accessUnit[i] = data[i] & 0xFF;
+			}
+			accessUnits[frame] = accessUnit;
+		}
+
+		return accessUnits;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.benchmark;
+
+import jpcsp.media.codec.CodecFactory;
+import jpcsp.media.codec.IVideoCodec;
+
+/**
+ * Benchmark of the H.264 decoder decoding one access unit at a time
+ * and retrieving the decoded YCbCr image, as done for the PSMF videos.
+ */
+public class VideoBenchmarkCase extends BenchmarkCase {
+	// Padding after each access unit, the decoder may read a few values ahead
+	private static final int INPUT_PADDING = 64;
+	private final int width;
+	private final int height;
+	private final int[][] accessUnits;
+	private final int[] accessUnitLengths;
+	private IVideoCodec codec;
+	private int[] luma;
+	private int[] cb;
+	private int[] cr;
+
+	public VideoBenchmarkCase(String name, int width, int height, int[][] accessUnits) {
+		super(name);
+		this.width = width;
+		this.height = height;
+
+		this.accessUnits = new int[accessUnits.length][];
+		accessUnitLengths = new int[accessUnits.length];
+		for (int i = 0; i < accessUnits.length; i++) {
+			accessUnitLengths[i] = accessUnits[i].length;
+			this.accessUnits[i] = new int[accessUnits[i].length + INPUT_PADDING];
+			System.arraycopy(accessUnits[i], 0, this.accessUnits[i], 0, accessUnits[i].length);
+		}
+	}
+
+	@Override
+	public void setup() {
+		codec = CodecFactory.getVideoCodec();
+		int result = codec.init(null);
+		if (result < 0) {
+			throw new IllegalStateException(String.format("%s: codec init returned 0x%08X", getName(), result));
+		}
+		luma = new int[width * height];
+		cb = new int[(width >> 1) * (height >> 1)];
+		cr = new int[(width >> 1) * (height >> 1)];
+	}
+
+	@Override
+	public int getNumberFrames() {
+		return accessUnits.length;
+	}
+
+	@Override
+	public void decodeFrame(int frame) {
+		int result = codec.decode(accessUnits[frame], 0, accessUnitLengths[frame]);
+		if (result < 0) {
+			throw new IllegalStateException(String.format("%s: frame #%d, decode returned 0x%08X", getName(), frame, result));
+		}
+		if (codec.hasImage()) {
+			if (codec.getImageWidth() != width || codec.getImageHeight() != height) {
+				throw new IllegalStateException(String.format("%s: frame #%d, unexpected image size %dx%d", getName(), frame, codec.getImageWidth(), codec.getImageHeight()));
+			}
+			codec.getImage(luma, cb, cr);
+		}
+	}
+}
@@ -69,10 +69,15 @@ public class CodeBlock {
 	private Instruction[] interpretedInstructions;
 	private int[] interpretedOpcodes;
 	private MemoryRanges memoryRanges = new MemoryRanges();
+	private List<Integer> inlinedAddresses;
 	private int flags;
 	private HLEModuleFunction hleFunction;
 	private IAction updateOpcodesAction;
 	private final boolean debuggerEnabled;
+	// Memory accesses of the compiled code, checked against the watchpoints
+	private boolean hasUnknownMemoryAccess;
+	private int lowestMemoryAccess = Integer.MAX_VALUE;
+	private int highestMemoryAccess = Integer.MIN_VALUE;
 
 	public CodeBlock(int startAddress, int instanceIndex) {
 		this.startAddress = startAddress;
@@ -546,6 +551,7 @@ public class CodeBlock {
     	addNonStaticMethods(context, cv);
 
     	MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, context.getStaticExecMethodName(), context.getStaticExecMethodDesc(), null, exceptions);
+    	mv = context.getRegisterCacheMethodVisitor(mv, codeInstructions);
         mv.visitCode();
         context.setMethodVisitor(mv);
         context.startMethod();
@@ -568,6 +574,7 @@ public class CodeBlock {
             }
             currentSequence = sequenceCodeInstruction;
             mv = cv.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, sequenceCodeInstruction.getMethodName(context), "()V", null, exceptions);
+            mv = context.getRegisterCacheMethodVisitor(mv, sequenceCodeInstruction.getCodeSequence().getInstructions());
             mv.visitCode();
             context.setMethodVisitor(mv);
             context.startSequenceMethod();
@@ -592,9 +599,48 @@ public class CodeBlock {
     		log.error("Error while compiling " + className + ": " + e);
     	}
 
+    	addInlinedMemoryRanges();
+
     	return compiledClass;
 	}
 
+    /**
+     * Record the instructions of a function inlined into this code block.
+     * Their addresses are added to the code block memory ranges
+     * once the compilation is completed.
+     *
+     * @param inlinedCodeInstructions  the inlined instructions
+     */
+    public void addInlinedInstructions(List<CodeInstruction> inlinedCodeInstructions) {
+    	if (inlinedAddresses == null) {
+    		inlinedAddresses = new ArrayList<Integer>();
+    	}
+    	for (CodeInstruction codeInstruction : inlinedCodeInstructions) {
+    		inlinedAddresses.add(codeInstruction.getAddress());
+    	}
+    }
+
+    private void addInlinedMemoryRanges() {
+    	if (inlinedAddresses == null) {
+    		return;
+    	}
+
+    	for (int address : inlinedAddresses) {
+    		if (address < lowestAddress) {
+    			lowestAddress = address;
+    		}
+    		if (address > highestAddress) {
+    			highestAddress = address;
+    		}
+    		memoryRanges.addAddress(address);
+    	}
+    	memoryRanges.updateValues();
+    	inlinedAddresses = null;
+
+    	// Register again the code block with its extended memory ranges
+    	addCodeBlock();
+    }
+
     public IExecutable getExecutable() {
         return executable;
     }
@@ -677,6 +723,11 @@ public class CodeBlock {
 	}
 
 	public boolean isInternal() {
+		// No internal threads without the HLE modules
+		if (RuntimeContext.isStandalone()) {
+			return false;
+		}
+
     	int addr = getStartAddress();
     	return addr < INTERNAL_THREAD_ADDRESS_END && addr >= INTERNAL_THREAD_ADDRESS_START;
 	}
@@ -751,6 +802,36 @@ public class CodeBlock {
 		return isDebuggerChanged() || areOpcodesChanged();
 	}
 
+	/**
+	 * Record a memory access whose address is not known at compile time.
+	 */
+	public void addUnknownMemoryAccess() {
+		hasUnknownMemoryAccess = true;
+	}
+
+	/**
+	 * Record a memory access to an address known at compile time.
+	 *
+	 * @param start   the first address accessed
+	 * @param end     the last address accessed (included)
+	 */
+	public void addMemoryAccess(int start, int end) {
+		lowestMemoryAccess = Math.min(lowestMemoryAccess, start);
+		highestMemoryAccess = Math.max(highestMemoryAccess, end);
+	}
+
+	/**
+	 * Check if the code block has to be recompiled
+	 * after adding or removing a watchpoint.
+	 *
+	 * @param start   the first address of the watchpoint
+	 * @param end     the last address of the watchpoint (included)
+	 * @return true if the code block could access the watchpoint addresses
+	 */
+	public boolean isAffectedByWatchpoint(int start, int end) {
+		return hasUnknownMemoryAccess || (start <= highestMemoryAccess && end >= lowestMemoryAccess);
+	}
+
 	@Override
 	public String toString() {
 		return String.format("CodeBlock 0x%08X[0x%08X-0x%08X]", getStartAddress(), getLowestAddress(), getHighestAddress());
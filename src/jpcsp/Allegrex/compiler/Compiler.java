@@ -16,16 +16,28 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
  */
 package jpcsp.Allegrex.compiler;
 
+import static jpcsp.Allegrex.Common.Instruction.FLAG_COMPILED_PFX;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_CONSUMES_VFPU_PFXT;
 import static jpcsp.Allegrex.Common.Instruction.FLAG_ENDS_BLOCK;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_HAS_DELAY_SLOT;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_INTERPRETED;
 import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_BRANCHING;
 import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_JUMPING;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_MODIFIES_INTERRUPT_STATE;
 import static jpcsp.Allegrex.Common.Instruction.FLAG_STARTS_NEW_BLOCK;
 import static jpcsp.Allegrex.Common.Instruction.FLAG_SYSCALL;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_TRIGGERS_EXCEPTION;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXD;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXS;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXT;
 import static jpcsp.util.HLEUtilities.BREAK;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 
@@ -155,6 +167,14 @@ public class Compiler implements ICompiler {
     private CompilerTypeManager compilerTypeManager;
     private HashSet<Integer> interpretedAddresses = new HashSet<Integer>();
     private Set<Integer> useMMIOAddresses = new HashSet<Integer>();
+    // Inlining of small leaf functions called from hot call sites
+    public static boolean enableInlining = true;
+    public static final int hotCallThreshold = 1000;
+    public static final int maxInliningInstanceIndex = 10;
+    private static final int maxInlinedInstructions = 32;
+    // Replace known code sequences by their Java implementation, see Compiler.xml
+    public static boolean enableNativeCodeSequences = true;
+    private Set<Integer> hotCallTargets = Collections.synchronizedSet(new HashSet<Integer>());
 
 	private class IgnoreInvalidMemoryAccessSettingsListerner extends AbstractBoolSettingsListener {
 		@Override
@@ -192,6 +212,7 @@ public class Compiler implements ICompiler {
 
 	public static void exit() {
 	    if (instance != null) {
+	    	instance.nativeCodeManager.logCoverage();
 	    	if (DurationStatistics.collectStatistics) {
 	    		log.info(compileDuration);
 	    	}
@@ -202,8 +223,10 @@ public class Compiler implements ICompiler {
 		resetCount++;
 		classLoader = new CompilerClassLoader(this);
 		compileDuration.reset();
+		nativeCodeManager.logCoverage();
 		nativeCodeManager.reset();
         interpretedAddresses.clear();
+        hotCallTargets.clear();
 	}
 
     public boolean checkSimpleInterpretedCodeBlock(CodeBlock codeBlock) {
@@ -270,6 +293,83 @@ public class Compiler implements ICompiler {
     	return isSimple;
     }
 
+    /**
+     * Check if the function at the given address can be inlined
+     * into its callers, i.e. if it is a small leaf function
+     * without any branch, ending with "jr $ra".
+     *
+     * @param address  the function address
+     * @return         the function instructions, including the delay slot
+     *                 of the "jr $ra" but not the "jr $ra" itself,
+     *                 or null if the function cannot be inlined.
+     */
+    public List<CodeInstruction> getInlinableFunction(int address) {
+    	if (!Memory.isAddressGood(address)) {
+    		return null;
+    	}
+
+    	int opcodeJrRa = AllegrexOpcodes.JR | (Common._ra << 21); // jr $ra
+    	int notInlinableFlags = FLAG_IS_BRANCHING | FLAG_IS_JUMPING | FLAG_STARTS_NEW_BLOCK | FLAG_ENDS_BLOCK | FLAG_HAS_DELAY_SLOT | FLAG_SYSCALL | FLAG_INTERPRETED | FLAG_MODIFIES_INTERRUPT_STATE | FLAG_TRIGGERS_EXCEPTION | FLAG_USES_VFPU_PFXS | FLAG_USES_VFPU_PFXT | FLAG_USES_VFPU_PFXD | FLAG_CONSUMES_VFPU_PFXT | FLAG_COMPILED_PFX;
+    	List<CodeInstruction> codeInstructions = new ArrayList<CodeInstruction>();
+    	IMemoryReader memoryReader = MemoryReader.getMemoryReader(address, 4);
+    	boolean isDelaySlot = false;
+    	for (int pc = address; codeInstructions.size() < maxInlinedInstructions; pc += 4) {
+    		int opcode = memoryReader.readNext();
+
+    		if (!isDelaySlot && opcode == opcodeJrRa) {
+    			isDelaySlot = true;
+    			continue;
+    		}
+
+    		Instruction insn = Decoder.instruction(opcode);
+    		if ((insn.getFlags() & notInlinableFlags) != 0 || isUsingMMIO(pc)) {
+    			return null;
+    		}
+    		if (insn == Instructions.JR || insn == Instructions.JALR || insn == Instructions.ERET || insn == Instructions.VPFXS || insn == Instructions.VPFXT || insn == Instructions.VPFXD) {
+    			return null;
+    		}
+
+    		CodeInstruction codeInstruction = new CodeInstruction(pc, opcode, insn, false, false, 0);
+    		if (!isDelaySlot && codeInstruction.isWritingRegister(Common._ra)) {
+    			// The "jr $ra" would no longer return to the caller
+    			return null;
+    		}
+    		codeInstructions.add(codeInstruction);
+
+    		if (isDelaySlot) {
+    			return codeInstructions;
+    		}
+    	}
+
+    	// Too large to be inlined
+    	return null;
+    }
+
+    public boolean isHotCallTarget(int address) {
+    	return hotCallTargets.contains(address);
+    }
+
+    /**
+     * Called by the compiled code when a call site has been executed
+     * hotCallThreshold times: the called function is marked as hot
+     * and the calling code block is recompiled with the function inlined.
+     *
+     * @param codeBlockAddress  the start address of the calling code block
+     * @param calleeAddress     the address of the called function
+     */
+    public void hotCall(int codeBlockAddress, int calleeAddress) {
+    	if (hotCallTargets.add(calleeAddress)) {
+    		if (log.isDebugEnabled()) {
+    			log.debug(String.format("Hot call to 0x%08X from CodeBlock 0x%08X", calleeAddress, codeBlockAddress));
+    		}
+    	}
+
+    	CodeBlock codeBlock = RuntimeContext.getCodeBlock(codeBlockAddress);
+    	if (codeBlock != null && codeBlock.getInstanceIndex() < maxInliningInstanceIndex) {
+    		invalidateCodeBlock(codeBlock);
+    	}
+    }
+
     public void invalidateCodeBlock(CodeBlock codeBlock) {
     	IExecutable executable = codeBlock.getExecutable();
     	if (executable != null) {
@@ -332,7 +432,7 @@ public class Compiler implements ICompiler {
 			log.error(e);
 		}
 
-		if (configuration != null) {
+		if (configuration != null && enableNativeCodeSequences) {
 			nativeCodeManager = new NativeCodeManager(configuration.getDocumentElement());
 		} else {
 			nativeCodeManager = new NativeCodeManager(null);
@@ -692,6 +792,17 @@ public class Compiler implements ICompiler {
         return executable;
     }
 
+    /**
+     * Check if the compilation of the code at the given address has failed,
+     * the code being then always interpreted until the next reset.
+     *
+     * @param address   the code address
+     * @return          true if the code at the address is always interpreted
+     */
+    public boolean isInterpretedAddress(int address) {
+    	return interpretedAddresses.contains(address);
+    }
+
     public CompilerClassLoader getClassLoader() {
         return classLoader;
     }
@@ -44,7 +44,10 @@ import static jpcsp.HLE.SyscallHandler.syscallLoadCoreUnmappedImport;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -130,6 +133,22 @@ public class CompilerContext implements ICompilerContext {
 	private CodeInstruction codeInstruction;
 	private static final boolean storeCpuLocal = true;
 	private static final boolean storeMemoryIntLocal = false;
+	// Keep the most used GPRs of the compiled loops in local variables, see RegisterCacheMethodVisitor
+	public static boolean enableRegisterCache = false;
+	// Minimum number of references to a GPR in a method to keep it in a local variable
+	private static final int registerCacheMinReferences = 3;
+	private static final int registerCacheMaxRegisters = 12;
+	// Keep the VFPU registers used by a run of VFPU instructions in local variables
+	private static final boolean enableVprCache = true;
+	private static final int vprCacheMaxRegisters = 48;
+	private static Set<Instruction> vprCacheInstructions;
+	private final int[] vprCacheLocals = new int[128];
+	private int vprCacheNumberLocals;
+	private int vprCacheMaxLocals;
+	private boolean vprCacheActive;
+	private boolean vprCacheSuspended;
+	// Maximum number of preceding instructions searched for the value of a base register
+	private static final int knownRegisterValueMaxInstructions = 8;
     private static final int LOCAL_CPU = 0;
     private static final int LOCAL_INSTRUCTION_COUNT = 1;
     private static final int LOCAL_MEMORY_INT = 2;
@@ -144,6 +163,7 @@ public class CompilerContext implements ICompilerContext {
     private static final int LOCAL_FIRST_SAVED_PARAMETER = LOCAL_MAX;
     private static final int LOCAL_NUMBER_SAVED_PARAMETERS = 8;
     private static final int LOCAL_MAX_WITH_SAVED_PARAMETERS = LOCAL_FIRST_SAVED_PARAMETER + LOCAL_NUMBER_SAVED_PARAMETERS;
+    private static final int LOCAL_FIRST_VPR_CACHE = LOCAL_MAX_WITH_SAVED_PARAMETERS + registerCacheMaxRegisters;
     private static final int DEFAULT_MAX_STACK_SIZE = 11;
     private static final int SYSCALL_MAX_STACK_SIZE = 100;
     private static final int LOCAL_ERROR_POINTER = LOCAL_TMP3;
@@ -180,9 +200,14 @@ public class CompilerContext implements ICompilerContext {
 	public  static final String arraycopyDescriptor = "(" + Type.getDescriptor(Object.class) + "I" + Type.getDescriptor(Object.class) + "II)V";
 	private static Set<Integer> fastSyscalls;
 	private int instanceIndex;
+	private ClassVisitor cv;
+	private int numberHotCallCounters;
+	private int preparedVprIndex = -1;
+	private List<CodeInstruction> inlinedCodeInstructions;
 	private NativeCodeSequence preparedCallNativeCodeBlock = null;
 	private int maxStackSize = DEFAULT_MAX_STACK_SIZE;
 	private int maxLocalSize = LOCAL_MAX;
+	private RegisterCacheMethodVisitor registerCacheMethodVisitor;
 	private boolean parametersSavedToLocals;
 	private CompilerTypeManager compilerTypeManager;
 
@@ -193,37 +218,19 @@ public class CompilerContext implements ICompilerContext {
         nativeCodeManager = compiler.getNativeCodeManager();
         methodMaxInstructions = compiler.getDefaultMethodMaxInstructions();
         compilerTypeManager = compiler.getCompilerTypeManager();
+        Arrays.fill(vprCacheLocals, -1);
 
         // Count instructions only when the profile is enabled or
         // when the statistics are enabled
         if (Profiler.isProfilerEnabled() || DurationStatistics.collectStatistics) {
         	enableIntructionCounting = true;
         }
-
-        if (fastSyscalls == null) {
-	        fastSyscalls = new TreeSet<Integer>();
-	        addFastSyscall(0x3AD58B8C); // sceKernelSuspendDispatchThread
-	        addFastSyscall(0x110DEC9A); // sceKernelUSec2SysClock
-	        addFastSyscall(0xC8CD158C); // sceKernelUSec2SysClockWide
-	        addFastSyscall(0xBA6B92E2); // sceKernelSysClock2USec 
-	        addFastSyscall(0xE1619D7C); // sceKernelSysClock2USecWide 
-	        addFastSyscall(0xDB738F35); // sceKernelGetSystemTime
-	        addFastSyscall(0x82BC5777); // sceKernelGetSystemTimeWide
-	        addFastSyscall(0x369ED59D); // sceKernelGetSystemTimeLow
-	        addFastSyscall(0xB5F6DC87); // sceMpegRingbufferAvailableSize
-	        addFastSyscall(0xE0D68148); // sceGeListUpdateStallAddr
-	        addFastSyscall(0x34B9FA9E); // sceKernelDcacheWritebackInvalidateRange
-	        addFastSyscall(0xE47E40E4); // sceGeEdramGetAddr
-	        addFastSyscall(0x1F6752AD); // sceGeEdramGetSize
-	        addFastSyscall(0x74AE582A); // __sceSasGetEnvelopeHeight
-	        addFastSyscall(0x68A46B95); // __sceSasGetEndFlag
-        }
     }
 
-    private void addFastSyscall(int nid) {
+    private static void addFastSyscall(Set<Integer> syscalls, int nid) {
     	int syscallCode = NIDMapper.getInstance().getSyscallByNid(nid);
     	if (syscallCode >= 0) {
-    		fastSyscalls.add(syscallCode);
+    		syscalls.add(syscallCode);
     	}
     }
 
@@ -295,7 +302,7 @@ public class CompilerContext implements ICompilerContext {
     public void loadRegister(int reg) {
     	if (reg == _zr) {
     		loadImm(0);
-    	} else {
+    	} else if (registerCacheMethodVisitor == null || !registerCacheMethodVisitor.loadRegister(getGprFieldName(reg))) {
 	    	loadCpu();
 	        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, getGprFieldName(reg), "I");
     	}
@@ -401,9 +408,20 @@ public class CompilerContext implements ICompilerContext {
     private void loadVRegister(int m, int c, int r, boolean isFloat) {
     	int index = VfpuState.getVprIndex(m, c, r);
     	if (isFloat) {
+    		if (isVprCacheUsable() && vprCacheLocals[index] >= 0) {
+    			mv.visitVarInsn(Opcodes.FLOAD, vprCacheLocals[index]);
+    			return;
+    		}
     		loadVprFloat();
     		loadImm(index);
             mv.visitInsn(Opcodes.FALOAD);
+            if (isVprCacheUsable()) {
+            	int localIndex = allocateVprCacheLocal(index);
+            	if (localIndex >= 0) {
+            		mv.visitInsn(Opcodes.DUP);
+            		mv.visitVarInsn(Opcodes.FSTORE, localIndex);
+            	}
+            }
     	} else {
     		loadVprInt();
     		loadImm(index);
@@ -612,6 +630,7 @@ public class CompilerContext implements ICompilerContext {
 
     private void prepareVRegisterForStore(int m, int c, int r, boolean isFloat) {
     	int index = VfpuState.getVprIndex(m, c, r);
+    	preparedVprIndex = index;
     	if (isFloat) {
     		// Prepare the array and index for the int value
     		loadVprInt();
@@ -676,6 +695,102 @@ public class CompilerContext implements ICompilerContext {
     	}
     }
 
+    private static boolean isVprCacheInstruction(CodeInstruction codeInstruction) {
+    	if (vprCacheInstructions == null) {
+    		// VFPU instructions compiled without any branch in the generated code
+    		// (apart from the check for unknown prefixes, see startPfxCompiled()).
+    		Set<Instruction> instructions = new HashSet<Instruction>();
+    		Collections.addAll(instructions,
+    				Instructions.VADD, Instructions.VSUB, Instructions.VMUL, Instructions.VMIN, Instructions.VMAX,
+    				Instructions.VMOV, Instructions.VABS, Instructions.VNEG, Instructions.VRCP, Instructions.VRSQ, Instructions.VSQRT,
+    				Instructions.VDOT, Instructions.VSCL, Instructions.VHDP, Instructions.VCRSP,
+    				Instructions.VIDT, Instructions.VZERO, Instructions.VONE, Instructions.VCST,
+    				Instructions.VI2F, Instructions.VIIM, Instructions.VFIM,
+    				Instructions.VMMUL, Instructions.VMSCL, Instructions.VMIDT, Instructions.VMZERO, Instructions.VMONE,
+    				Instructions.VTFM2, Instructions.VTFM3, Instructions.VTFM4,
+    				Instructions.VHTFM2, Instructions.VHTFM3, Instructions.VHTFM4,
+    				Instructions.VNOP);
+    		vprCacheInstructions = instructions;
+    	}
+
+    	return vprCacheInstructions.contains(codeInstruction.getInsn());
+    }
+
+    private boolean isVprCacheUsable() {
+    	return vprCacheActive && !vprCacheSuspended;
+    }
+
+    private void clearVprCache() {
+    	if (vprCacheNumberLocals > 0) {
+    		Arrays.fill(vprCacheLocals, -1);
+    		vprCacheNumberLocals = 0;
+    	}
+    }
+
+    private int allocateVprCacheLocal(int index) {
+    	int localIndex = vprCacheLocals[index];
+    	if (localIndex < 0 && vprCacheNumberLocals < vprCacheMaxRegisters) {
+    		localIndex = LOCAL_FIRST_VPR_CACHE + vprCacheNumberLocals;
+    		vprCacheNumberLocals++;
+    		vprCacheMaxLocals = Math.max(vprCacheMaxLocals, localIndex + 1);
+    		vprCacheLocals[index] = localIndex;
+    	}
+
+    	return localIndex;
+    }
+
+    /**
+     * Start or continue a run of VFPU instructions
+     * keeping their registers in local variables.
+     * The cache is only valid inside a run of straight-line instructions:
+     * the VprFloat/vprInt arrays are always written through,
+     * so that the cache can simply be forgotten at the end of the run.
+     */
+    private void startVprCacheInstruction(CodeInstruction codeInstruction) {
+    	vprCacheSuspended = false;
+    	vprCacheActive = enableVprCache &&
+    	                 isVprCacheInstruction(codeInstruction) &&
+    	                 !codeInstruction.isBranchTarget() &&
+    	                 !codeInstruction.isDelaySlot() &&
+    	                 !RuntimeContext.enableDebugger &&
+    	                 !RuntimeContextLLE.isLLEActive();
+    	if (!vprCacheActive) {
+    		clearVprCache();
+    	}
+    }
+
+    private void endVprCacheInstruction() {
+    	if (!vprCacheActive || vprCacheSuspended) {
+    		clearVprCache();
+    	}
+    	vprCacheActive = false;
+    	vprCacheSuspended = false;
+    }
+
+    /**
+     * The VFPU registers might be modified by code not visible to the cache
+     * (e.g. by the interpreter) or the generated code is branching.
+     * Forget the cache and do not use it until the end of the current instruction.
+     */
+    private void suspendVprCache() {
+    	clearVprCache();
+    	vprCacheSuspended = true;
+    }
+
+    private void storeVprCache() {
+    	// The float value to be stored is on the stack
+    	if (isVprCacheUsable() && preparedVprIndex >= 0) {
+    		int localIndex = allocateVprCacheLocal(preparedVprIndex);
+    		if (localIndex >= 0) {
+    			mv.visitInsn(Opcodes.DUP);
+    			mv.visitVarInsn(Opcodes.FSTORE, localIndex);
+    		}
+    	} else if (preparedVprIndex >= 0 && vprCacheLocals[preparedVprIndex] >= 0) {
+    		vprCacheLocals[preparedVprIndex] = -1;
+    	}
+    	preparedVprIndex = -1;
+    }
+
     private void storeVRegister(int vsize, int reg, int n, VfpuPfxDstState pfxDstState, boolean isFloat) {
 		if (log.isTraceEnabled() && pfxDstState != null && pfxDstState.isKnown() && pfxDstState.pfxDst.enabled) {
 			log.trace(String.format("PFX    %08X - storeVRegister %d, %d, %d", getCodeInstruction().getAddress(), vsize, reg, n));
@@ -691,6 +806,7 @@ public class CompilerContext implements ICompilerContext {
             } else {
                 applyPfxDstPostfix(pfxDstState, n, isFloat);
                 if (isFloat) {
+                	storeVprCache();
                 	// Keep a copy of the value for the int value
                 	mv.visitInsn(Opcodes.DUP_X2);
                 	mv.visitInsn(Opcodes.FASTORE); // First store the float value
@@ -701,6 +817,7 @@ public class CompilerContext implements ICompilerContext {
                 	mv.visitInsn(Opcodes.DUP_X2);
                 	mv.visitInsn(Opcodes.IASTORE); // First store the int value
                 	convertVIntToFloat();
+                	storeVprCache();
                 	mv.visitInsn(Opcodes.FASTORE); // Second store the float value
                 }
             }
@@ -898,7 +1015,8 @@ public class CompilerContext implements ICompilerContext {
 
     			visitNativeCodeSequence(preparedCallNativeCodeBlock, address, null);
     		}
-    	} else {
+    	} else if (!visitInlinedCall(address)) {
+    		visitHotCallCounter(address);
 	        invokeStaticMethod(getClassName(address, instanceIndex), getStaticExecMethodName(), getStaticExecMethodDesc());
 	        visitContinueToAddress(returnAddress, returnOnUnknownAddress);
     	}
@@ -906,6 +1024,110 @@ public class CompilerContext implements ICompilerContext {
         preparedCallNativeCodeBlock = null;
     }
 
+    private boolean isInliningPossible() {
+    	if (!Compiler.enableInlining || cv == null || inlinedCodeInstructions != null) {
+    		return false;
+    	}
+    	// Keep the exact call structure when profiling or debugging
+    	if (Profiler.isProfilerEnabled() || RuntimeContext.enableDebugger || Memory.getInstance() instanceof DebuggerMemory || RuntimeContextLLE.isLLEActive()) {
+    		return false;
+    	}
+    	// Do not recompile again and again code blocks being often invalidated
+    	return getCodeBlock().getInstanceIndex() < Compiler.maxInliningInstanceIndex;
+    }
+
+    /**
+     * Count the executions of a call site to a small leaf function:
+     *     if (++hotCallN == Compiler.hotCallThreshold) {
+     *         RuntimeContext.hotCall(codeBlockStartAddress, address);
+     *     }
+     * The code block will then be recompiled with the function inlined.
+     *
+     * @param address  the called function
+     */
+    private void visitHotCallCounter(int address) {
+    	if (!isInliningPossible() || getCodeBlock().isInternal()) {
+    		return;
+    	}
+    	if (compiler().isHotCallTarget(address) || compiler().getInlinableFunction(address) == null) {
+    		return;
+    	}
+
+    	String className = getCodeBlock().getClassName();
+    	String fieldName = String.format("hotCall%d", numberHotCallCounters++);
+    	cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, fieldName, "I", null, null).visitEnd();
+
+    	Label notHot = new Label();
+    	mv.visitFieldInsn(Opcodes.GETSTATIC, className, fieldName, "I");
+    	loadImm(1);
+    	mv.visitInsn(Opcodes.IADD);
+    	mv.visitInsn(Opcodes.DUP);
+    	mv.visitFieldInsn(Opcodes.PUTSTATIC, className, fieldName, "I");
+    	loadImm(Compiler.hotCallThreshold);
+    	mv.visitJumpInsn(Opcodes.IF_ICMPNE, notHot);
+    	loadImm(getCodeBlock().getStartAddress());
+    	loadImm(address);
+    	invokeStaticMethod(runtimeContextInternalName, "hotCall", "(II)V");
+    	mv.visitLabel(notHot);
+    }
+
+    /**
+     * Compile the instructions of a hot leaf function directly
+     * at the call site, instead of calling its code block.
+     * The return address register has already been set by prepareCall().
+     *
+     * @param address  the called function
+     * @return         true if the function has been inlined
+     *                 false if a normal call has to be generated
+     */
+    private boolean visitInlinedCall(int address) {
+    	if (!isInliningPossible() || !compiler().isHotCallTarget(address)) {
+    		return false;
+    	}
+    	List<CodeInstruction> codeInstructions = compiler().getInlinableFunction(address);
+    	if (codeInstructions == null) {
+    		return false;
+    	}
+
+    	CodeInstruction callCodeInstruction = getCodeInstruction();
+    	if (log.isDebugEnabled()) {
+    		log.debug(String.format("Inlining call at 0x%08X to 0x%08X (%d instructions)", callCodeInstruction.getAddress(), address, codeInstructions.size()));
+    	}
+
+    	// The delay slot of the call has already been compiled and
+    	// has to be skipped by the caller after the inlined instructions
+    	int callerNumberInstructionsToBeSkipped = getNumberInstructionsToBeSkipped();
+    	boolean callerSkipDelaySlot = isSkipDelaySlot();
+    	skipInstructions(0, false);
+
+    	inlinedCodeInstructions = codeInstructions;
+    	int numberInstructionsToBeSkipped = 0;
+    	for (CodeInstruction inlinedCodeInstruction : codeInstructions) {
+    		if (numberInstructionsToBeSkipped > 0) {
+    			numberInstructionsToBeSkipped--;
+
+    			if (numberInstructionsToBeSkipped <= 0) {
+    				skipInstructions(0, false);
+    			}
+    		} else {
+    			inlinedCodeInstruction.compile(this, mv);
+    			numberInstructionsToBeSkipped = getNumberInstructionsToBeSkipped();
+    		}
+    	}
+    	skipInstructions(callerNumberInstructionsToBeSkipped, callerSkipDelaySlot);
+    	inlinedCodeInstructions = null;
+    	setCodeInstruction(callCodeInstruction);
+
+    	// The code block has now to be invalidated when the inlined function is modified
+    	getCodeBlock().addInlinedInstructions(codeInstructions);
+
+    	return true;
+    }
+
+    private static Compiler compiler() {
+    	return Compiler.getInstance();
+    }
+
     public void visitCall(int returnAddress, int returnRegister) {
     	flushInstructionCount(false, false);
         if (returnRegister != _zr) {
@@ -921,6 +1143,7 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void visitIntepreterCall(int opcode, Instruction insn) {
+    	suspendVprCache();
     	loadInstruction(insn);
         loadProcessor();
         loadImm(opcode);
@@ -928,6 +1151,28 @@ public class CompilerContext implements ICompilerContext {
     }
 
     private boolean isFastSyscall(int code) {
+    	// Initialized only when compiling a syscall:
+    	// the NIDMapper is not available when running the compiled code standalone.
+    	if (fastSyscalls == null) {
+	        Set<Integer> syscalls = new TreeSet<Integer>();
+	        addFastSyscall(syscalls, 0x3AD58B8C); // sceKernelSuspendDispatchThread
+	        addFastSyscall(syscalls, 0x110DEC9A); // sceKernelUSec2SysClock
+	        addFastSyscall(syscalls, 0xC8CD158C); // sceKernelUSec2SysClockWide
+	        addFastSyscall(syscalls, 0xBA6B92E2); // sceKernelSysClock2USec 
+	        addFastSyscall(syscalls, 0xE1619D7C); // sceKernelSysClock2USecWide 
+	        addFastSyscall(syscalls, 0xDB738F35); // sceKernelGetSystemTime
+	        addFastSyscall(syscalls, 0x82BC5777); // sceKernelGetSystemTimeWide
+	        addFastSyscall(syscalls, 0x369ED59D); // sceKernelGetSystemTimeLow
+	        addFastSyscall(syscalls, 0xB5F6DC87); // sceMpegRingbufferAvailableSize
+	        addFastSyscall(syscalls, 0xE0D68148); // sceGeListUpdateStallAddr
+	        addFastSyscall(syscalls, 0x34B9FA9E); // sceKernelDcacheWritebackInvalidateRange
+	        addFastSyscall(syscalls, 0xE47E40E4); // sceGeEdramGetAddr
+	        addFastSyscall(syscalls, 0x1F6752AD); // sceGeEdramGetSize
+	        addFastSyscall(syscalls, 0x74AE582A); // __sceSasGetEnvelopeHeight
+	        addFastSyscall(syscalls, 0x68A46B95); // __sceSasGetEndFlag
+	        fastSyscalls = syscalls;
+    	}
+
 		return fastSyscalls.contains(code);
 	}
 
@@ -2159,15 +2404,24 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void startClass(ClassVisitor cv) {
+    	this.cv = cv;
+    	numberHotCallCounters = 0;
+
     	if (RuntimeContext.enableLineNumbers) {
     		cv.visitSource(getCodeBlock().getClassName() + ".java", null);
     	}
     }
 
     public void startSequenceMethod() {
+    	clearVprCache();
+
         if (storeCpuLocal) {
             mv.visitFieldInsn(Opcodes.GETSTATIC, runtimeContextInternalName, "cpu", cpuDescriptor);
             mv.visitVarInsn(Opcodes.ASTORE, LOCAL_CPU);
+
+            if (registerCacheMethodVisitor != null) {
+            	registerCacheMethodVisitor.start();
+            }
         }
 
         if (storeMemoryIntLocal) {
@@ -2212,7 +2466,8 @@ public class CompilerContext implements ICompilerContext {
     }
 
     private void startHLEMethod() {
-        HLEModuleFunction func = Utilities.getHLEFunctionByAddress(codeBlock.getStartAddress());
+        // No HLE functions without the HLE modules
+        HLEModuleFunction func = RuntimeContext.isStandalone() ? null : Utilities.getHLEFunctionByAddress(codeBlock.getStartAddress());
         codeBlock.setHLEFunction(func);
 
         if (codeBlock.isHLEFunction()) {
@@ -2363,6 +2618,8 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void startInstruction(CodeInstruction codeInstruction) {
+    	startVprCacheInstruction(codeInstruction);
+
     	if (RuntimeContext.enableLineNumbers) {
     		int lineNumber = codeInstruction.getAddress() - getCodeBlock().getLowestAddress();
     		// Java line number is unsigned 16bits
@@ -2441,6 +2698,8 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public void endInstruction() {
+    	endVprCacheInstruction();
+
         if (codeInstruction != null) {
             if (codeInstruction.hasFlags(Instruction.FLAG_USES_VFPU_PFXS)) {
                 disablePfxSrc(vfpuPfxsState);
@@ -2556,7 +2815,92 @@ public class CompilerContext implements ICompilerContext {
     }
 
     public int getMaxLocals() {
-    	return maxLocalSize;
+    	int maxLocals = Math.max(maxLocalSize, vprCacheMaxLocals);
+    	if (registerCacheMethodVisitor != null) {
+    		return Math.max(maxLocals, registerCacheMethodVisitor.getMaxLocals());
+    	}
+    	return maxLocals;
+    }
+
+    private static boolean isLoopingBack(List<CodeInstruction> codeInstructions) {
+    	Set<Integer> addresses = new HashSet<Integer>();
+    	for (CodeInstruction codeInstruction : codeInstructions) {
+    		addresses.add(codeInstruction.getAddress());
+    	}
+
+    	for (CodeInstruction codeInstruction : codeInstructions) {
+    		if (codeInstruction.isBranching()) {
+    			int branchingTo = codeInstruction.getBranchingTo();
+    			if (branchingTo <= codeInstruction.getAddress() && addresses.contains(branchingTo)) {
+    				return true;
+    			}
+    		}
+    	}
+
+    	return false;
+    }
+
+    /**
+     * Wrap the method visitor to keep the most used GPRs in local variables.
+     * Only methods containing a loop are using the register cache:
+     * the registers have to be loaded at the method start and
+     * this is only paying off when the same registers are accessed repeatedly.
+     *
+     * @param mv                the method visitor for the method to be compiled
+     * @param codeInstructions  the instructions of the method
+     * @return                  the method visitor to be used for the method
+     */
+    public MethodVisitor getRegisterCacheMethodVisitor(MethodVisitor mv, List<CodeInstruction> codeInstructions) {
+    	registerCacheMethodVisitor = null;
+
+    	// The DebuggerMemory and the LLE are accessing the registers from the memory accesses
+    	if (!enableRegisterCache || !storeCpuLocal || Memory.getInstance() instanceof DebuggerMemory || RuntimeContextLLE.isLLEActive()) {
+    		return mv;
+    	}
+
+    	if (!isLoopingBack(codeInstructions)) {
+    		return mv;
+    	}
+
+    	final int[] references = new int[32];
+    	for (CodeInstruction codeInstruction : codeInstructions) {
+    		if (codeInstruction instanceof SequenceCodeInstruction || codeInstruction instanceof NativeCodeInstruction) {
+    			continue;
+    		}
+    		references[codeInstruction.getRsRegisterIndex()]++;
+    		references[codeInstruction.getRtRegisterIndex()]++;
+    		references[codeInstruction.getRdRegisterIndex()]++;
+    	}
+
+    	List<Integer> registers = new ArrayList<Integer>();
+    	for (int reg = 1; reg < references.length; reg++) {
+    		if (references[reg] >= registerCacheMinReferences) {
+    			registers.add(reg);
+    		}
+    	}
+    	if (registers.isEmpty()) {
+    		return mv;
+    	}
+
+    	Collections.sort(registers, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer reg1, Integer reg2) {
+				return references[reg2] - references[reg1];
+			}
+		});
+
+    	String[] fieldNames = new String[Math.min(registers.size(), registerCacheMaxRegisters)];
+    	for (int i = 0; i < fieldNames.length; i++) {
+    		fieldNames[i] = getGprFieldName(registers.get(i));
+    	}
+
+    	if (log.isDebugEnabled()) {
+    		log.debug(String.format("Register cache for %s: %s", getCodeBlock().getClassName(), Arrays.toString(fieldNames)));
+    	}
+
+    	registerCacheMethodVisitor = new RegisterCacheMethodVisitor(mv, cpuInternalName, memoryInternalName, LOCAL_CPU, fieldNames, LOCAL_MAX_WITH_SAVED_PARAMETERS);
+
+    	return registerCacheMethodVisitor;
     }
 
     public boolean isAutomaticMaxStack() {
@@ -2584,6 +2928,9 @@ public class CompilerContext implements ICompilerContext {
 
 	public void setMethodVisitor(MethodVisitor mv) {
 		this.mv = mv;
+		if (mv != registerCacheMethodVisitor) {
+			registerCacheMethodVisitor = null;
+		}
 	}
 
 	@Override
@@ -2593,6 +2940,15 @@ public class CompilerContext implements ICompilerContext {
 
 	@Override
 	public CodeInstruction getCodeInstruction(int address) {
+		// While compiling an inlined function, only its own instructions are visible
+		if (inlinedCodeInstructions != null) {
+			for (CodeInstruction inlinedCodeInstruction : inlinedCodeInstructions) {
+				if (inlinedCodeInstruction.getAddress() == address) {
+					return inlinedCodeInstruction;
+				}
+			}
+			return null;
+		}
 		return getCodeBlock().getCodeInstruction(address);
 	}
 
@@ -2848,6 +3204,8 @@ public class CompilerContext implements ICompilerContext {
             invokeStaticMethod(runtimeContextInternalName, "debugMemoryReadWrite", "(IIIZI)V");
 		}
 
+		checkWatchpoint(registerIndex, offset, true, 2);
+
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
 	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read16", "(I)I", false);
 		} else {
@@ -2904,6 +3262,8 @@ public class CompilerContext implements ICompilerContext {
             invokeStaticMethod(runtimeContextInternalName, "debugMemoryReadWrite", "(IIIZI)V");
 		}
 
+		checkWatchpoint(registerIndex, offset, true, 1);
+
 		if (useMMIO() || !RuntimeContext.hasMemoryInt()) {
 	        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, memoryInternalName, "read8", "(I)I", false);
 		} else {
@@ -2951,6 +3311,8 @@ public class CompilerContext implements ICompilerContext {
 			}
 		}
 
+		checkWatchpoint(registerIndex, offset, isRead, align32 ? 4 : width >> 3);
+
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (registerIndex == _sp) {
 				if (isCodeInstructionInKernelMemory()) {
@@ -3020,6 +3382,7 @@ public class CompilerContext implements ICompilerContext {
 				loadImm(~0x3);
 				mv.visitInsn(Opcodes.IAND);
 			}
+			checkWatchpoint(registerIndex, offset, false, 4);
             if (checkMemoryAccess()) {
                 loadImm(codeInstruction.getAddress());
                 invokeStaticMethod(runtimeContextInternalName, "checkMemoryWrite32", "(II)I");
@@ -3066,6 +3429,8 @@ public class CompilerContext implements ICompilerContext {
 			mv.visitInsn(Opcodes.IADD);
 		}
 
+		checkWatchpoint(registerIndex, offset, false, 2);
+
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
@@ -3094,6 +3459,8 @@ public class CompilerContext implements ICompilerContext {
 				mv.visitInsn(Opcodes.IADD);
 			}
 
+			checkWatchpoint(registerIndex, offset, false, 2);
+
 			if (RuntimeContext.hasMemoryInt()) {
 				if (checkMemoryAccess()) {
 					loadImm(codeInstruction.getAddress());
@@ -3161,6 +3528,8 @@ public class CompilerContext implements ICompilerContext {
 			mv.visitInsn(Opcodes.IADD);
 		}
 
+		checkWatchpoint(registerIndex, offset, false, 1);
+
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
@@ -3189,6 +3558,8 @@ public class CompilerContext implements ICompilerContext {
 				mv.visitInsn(Opcodes.IADD);
 			}
 
+			checkWatchpoint(registerIndex, offset, false, 1);
+
 			if (RuntimeContext.hasMemoryInt()) {
 				if (checkMemoryAccess()) {
 					loadImm(codeInstruction.getAddress());
@@ -3256,6 +3627,8 @@ public class CompilerContext implements ICompilerContext {
 			mv.visitInsn(Opcodes.IADD);
 		}
 
+		checkWatchpoint(registerIndex, offset, false, 1);
+
 		if (!useMMIO() && RuntimeContext.hasMemoryInt()) {
 			if (checkMemoryAccess()) {
 				loadImm(codeInstruction.getAddress());
@@ -3316,6 +3689,145 @@ public class CompilerContext implements ICompilerContext {
         this.methodMaxInstructions = methodMaxInstructions;
     }
 
+	/**
+	 * Emit a check for the memory watchpoints.
+	 * The address being accessed is expected on the stack and is left unchanged.
+	 * The slow path is only called when the address is inside the range
+	 * covered by all the watchpoints.
+	 * When the base register is set by the preceding instructions (e.g. "lui"),
+	 * the address is known at compile time and the check is only emitted
+	 * if it is covered by a watchpoint.
+	 *
+	 * @param registerIndex the base register of the load or store instruction
+	 * @param offset        the offset added to the base register
+	 * @param isRead        read or write access
+	 * @param length        the number of bytes accessed
+	 */
+	private void checkWatchpoint(int registerIndex, int offset, boolean isRead, int length) {
+		if (Watchpoints.ignoreStackPointer && registerIndex == _sp) {
+			return;
+		}
+		if (!Watchpoints.isWatching(isRead)) {
+			// The code block will have to be recompiled for any new watchpoint
+			getCodeBlock().addUnknownMemoryAccess();
+			return;
+		}
+
+		Integer baseValue = getKnownRegisterValue(registerIndex, codeInstruction, knownRegisterValueMaxInstructions);
+		if (baseValue != null) {
+			// Unaligned accesses (lwl, lwr, swl, swr) are accessing the aligned word
+			int address = (baseValue.intValue() + offset) & Memory.addressMask;
+			int start = address & ~3;
+			int end = address + length - 1;
+			getCodeBlock().addMemoryAccess(start, end);
+			if (Watchpoints.isWatching(start, end, isRead)) {
+				mv.visitInsn(Opcodes.DUP);
+				loadImm(codeInstruction.getAddress());
+				loadImm(length);
+				loadImm(isRead);
+				invokeStaticMethod(Type.getInternalName(Watchpoints.class), "checkWatchpoint", "(IIIZ)V");
+			}
+			return;
+		}
+		getCodeBlock().addUnknownMemoryAccess();
+
+		// Unsigned range check:
+		//     if ((address & addressMask) - low <= high - low) Watchpoints.checkWatchpoint(...)
+		int low = Watchpoints.getLowestAddress(isRead) - (length - 1);
+		int size = Watchpoints.getHighestAddress(isRead) - low;
+		Label noWatchpoint = new Label();
+		mv.visitInsn(Opcodes.DUP);
+		loadImm(Memory.addressMask);
+		mv.visitInsn(Opcodes.IAND);
+		loadImm(low);
+		mv.visitInsn(Opcodes.ISUB);
+		loadImm(Integer.MIN_VALUE);
+		mv.visitInsn(Opcodes.IXOR);
+		loadImm(size ^ Integer.MIN_VALUE);
+		mv.visitJumpInsn(Opcodes.IF_ICMPGT, noWatchpoint);
+		mv.visitInsn(Opcodes.DUP);
+		loadImm(codeInstruction.getAddress());
+		loadImm(length);
+		loadImm(isRead);
+		invokeStaticMethod(Type.getInternalName(Watchpoints.class), "checkWatchpoint", "(IIIZ)V");
+		mv.visitLabel(noWatchpoint);
+	}
+
+	/**
+	 * Search the value of a register at compile time, e.g. loaded by "lui" or "li",
+	 * in the instructions preceding the given one.
+	 * Only straight-line code is followed: the search stops at branch targets,
+	 * at instructions having a delay slot and at syscalls.
+	 *
+	 * @param registerIndex    the register
+	 * @param codeInstruction  the instruction using the register
+	 * @param maxInstructions  the maximum number of preceding instructions to be searched
+	 * @return the register value, or null if it is not known at compile time
+	 */
+	private Integer getKnownRegisterValue(int registerIndex, CodeInstruction codeInstruction, int maxInstructions) {
+		if (registerIndex == _zr) {
+			return 0;
+		}
+		// The preceding addresses of inlined instructions are not the preceding instructions executed
+		if (inlinedCodeInstructions != null || codeInstruction.isBranchTarget()) {
+			return null;
+		}
+
+		int address = codeInstruction.getAddress();
+		for (int i = 0; i < maxInstructions; i++) {
+			address -= 4;
+			CodeInstruction previousInstruction = getCodeBlock().getCodeInstruction(address);
+			if (previousInstruction == null || isKnownRegisterValueBarrier(previousInstruction)) {
+				return null;
+			}
+
+			if (previousInstruction.isWritingRegister(registerIndex)) {
+				// An instruction in a delay slot is not always executed
+				CodeInstruction branchInstruction = getCodeBlock().getCodeInstruction(address - 4);
+				if (branchInstruction != null && isKnownRegisterValueBarrier(branchInstruction)) {
+					return null;
+				}
+
+				Instruction insn = previousInstruction.getInsn();
+				if (insn == Instructions.LUI) {
+					return previousInstruction.getImm16(false) << 16;
+				}
+				if (insn == Instructions.ADDIU || insn == Instructions.ORI) {
+					Integer value = getKnownRegisterValue(previousInstruction.getRsRegisterIndex(), previousInstruction, maxInstructions - i - 1);
+					if (value == null) {
+						return null;
+					}
+					if (insn == Instructions.ADDIU) {
+						return value.intValue() + previousInstruction.getImm16(true);
+					}
+					return value.intValue() | previousInstruction.getImm16(false);
+				}
+				return null;
+			}
+
+			// Instructions like "mfic" or "ll" are writing a register without declaring it
+			if (!previousInstruction.hasFlags(Instruction.FLAG_WRITES_RT) && !previousInstruction.hasFlags(Instruction.FLAG_WRITES_RD)) {
+				if (previousInstruction.getRtRegisterIndex() == registerIndex || previousInstruction.getRdRegisterIndex() == registerIndex) {
+					return null;
+				}
+			}
+
+			if (previousInstruction.isBranchTarget()) {
+				return null;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isKnownRegisterValueBarrier(CodeInstruction codeInstruction) {
+		return codeInstruction.isBranching() ||
+		       codeInstruction.hasFlags(Instruction.FLAG_HAS_DELAY_SLOT) ||
+		       codeInstruction.hasFlags(Instruction.FLAG_SYSCALL) ||
+		       codeInstruction.hasFlags(Instruction.FLAG_ENDS_BLOCK) ||
+		       codeInstruction.hasFlags(Instruction.FLAG_TRIGGERS_EXCEPTION);
+	}
+
     private boolean checkMemoryAccess() {
         if (!RuntimeContext.hasMemoryInt()) {
             return false;
@@ -3913,6 +4425,7 @@ public class CompilerContext implements ICompilerContext {
             if (interpretPfxLabel == null) {
                 interpretPfxLabel = new Label();
             }
+            suspendVprCache();
 
             loadVcr();
             mv.visitFieldInsn(Opcodes.GETFIELD, Type.getInternalName(Vcr.class), name, descriptor);
@@ -4247,6 +4760,7 @@ public class CompilerContext implements ICompilerContext {
 			loadImm(offset);
 			mv.visitInsn(Opcodes.IADD);
 		}
+    	checkWatchpoint(registerIndex, offset, true, count * 4);
     	if (checkMemoryAccess()) {
     		loadImm(getCodeInstruction().getAddress());
             invokeStaticMethod(Type.getInternalName(RuntimeContext.class), "checkMemoryRead32", "(II)I");
@@ -4309,6 +4823,7 @@ public class CompilerContext implements ICompilerContext {
 			loadImm(offset);
 			mv.visitInsn(Opcodes.IADD);
 		}
+    	checkWatchpoint(registerIndex, offset, false, count * 4);
     	if (checkMemoryAccess()) {
     		loadImm(getCodeInstruction().getAddress());
             invokeStaticMethod(Type.getInternalName(RuntimeContext.class), "checkMemoryWrite32", "(II)I");
@@ -4373,7 +4888,7 @@ public class CompilerContext implements ICompilerContext {
 			return;
 		}
 		// Disable optimizations when the debugger is open
-		if (State.debugger != null) {
+		if (!RuntimeContext.isStandalone() && State.debugger != null) {
 			return;
 		}
 
@@ -4581,7 +5096,7 @@ public class CompilerContext implements ICompilerContext {
 			return false;
 		}
 		// Disable optimizations when the debugger is open
-		if (State.debugger != null) {
+		if (!RuntimeContext.isStandalone() && State.debugger != null) {
 			return false;
 		}
 
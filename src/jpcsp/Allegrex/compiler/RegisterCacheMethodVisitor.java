@@ -0,0 +1,186 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Keep the most used GPRs of a compiled method in JVM local variables.
+ *
+ * The registers are loaded into the local variables at the method start.
+ * Every GETFIELD of a cached register on the CpuState is replaced
+ * by a load of the local variable and every PUTFIELD is written
+ * to both the CpuState and the local variable (write-through).
+ * The CpuState is thus always up-to-date for any code outside of the method
+ * (syscalls, HLE, other code blocks, native code sequences, interpreter)
+ * and for any exception (e.g. StopThreadException) leaving the method.
+ *
+ * After any call that could modify the registers, and at the start
+ * of an exception handler, the local variables are reloaded
+ * from the CpuState. Calls known to not modify the registers
+ * (Math, Float, memory accesses...) do not require a reload.
+ */
+public class RegisterCacheMethodVisitor extends MethodVisitor {
+	private final String cpuInternalName;
+	private final String memoryInternalName;
+	private final int localCpu;
+	private final String[] fieldNames;
+	private final int[] localIndexes;
+	private final Set<Label> handlers = new HashSet<Label>();
+	private boolean active;
+
+	/**
+	 * @param mv                 the method visitor to be wrapped
+	 * @param cpuInternalName    the internal name of the CpuState class
+	 * @param memoryInternalName the internal name of the Memory class
+	 * @param localCpu           the local variable holding the CpuState
+	 * @param fieldNames         the field names of the cached registers
+	 * @param firstLocalIndex    the first local variable available for the cache
+	 */
+	public RegisterCacheMethodVisitor(MethodVisitor mv, String cpuInternalName, String memoryInternalName, int localCpu, String[] fieldNames, int firstLocalIndex) {
+		super(Opcodes.ASM9, mv);
+		this.cpuInternalName = cpuInternalName;
+		this.memoryInternalName = memoryInternalName;
+		this.localCpu = localCpu;
+		this.fieldNames = fieldNames;
+		localIndexes = new int[fieldNames.length];
+		for (int i = 0; i < fieldNames.length; i++) {
+			localIndexes[i] = firstLocalIndex + i;
+		}
+	}
+
+	/**
+	 * @return the first local variable not used by the cache
+	 */
+	public int getMaxLocals() {
+		return localIndexes.length == 0 ? 0 : localIndexes[localIndexes.length - 1] + 1;
+	}
+
+	/**
+	 * Load all the cached registers from the CpuState and start using them.
+	 * To be called once the CpuState local variable has been initialized.
+	 */
+	public void start() {
+		active = true;
+		reload();
+	}
+
+	private void reload() {
+		for (int i = 0; i < fieldNames.length; i++) {
+			super.visitVarInsn(Opcodes.ALOAD, localCpu);
+			super.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, fieldNames[i], "I");
+			super.visitVarInsn(Opcodes.ISTORE, localIndexes[i]);
+		}
+	}
+
+	/**
+	 * Load a register from its local variable, if it is cached.
+	 *
+	 * @param fieldName  the field name of the register
+	 * @return           true if the register has been loaded
+	 *                   false if the register is not cached
+	 */
+	public boolean loadRegister(String fieldName) {
+		int cacheIndex = getCacheIndex(cpuInternalName, fieldName);
+		if (cacheIndex < 0) {
+			return false;
+		}
+
+		super.visitVarInsn(Opcodes.ILOAD, localIndexes[cacheIndex]);
+		return true;
+	}
+
+	private int getCacheIndex(String owner, String name) {
+		if (active && cpuInternalName.equals(owner)) {
+			for (int i = 0; i < fieldNames.length; i++) {
+				if (fieldNames[i].equals(name)) {
+					return i;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean isPreservingRegisters(String owner, String name) {
+		if (owner.startsWith("java/lang/")) {
+			// Math, Float, Integer, System.arraycopy...
+			return true;
+		}
+		if (memoryInternalName.equals(owner)) {
+			return name.startsWith("read") || name.startsWith("write");
+		}
+		if (CompilerContext.runtimeContextInternalName.equals(owner)) {
+			return name.startsWith("checkMemoryRead") || name.startsWith("checkMemoryWrite");
+		}
+
+		return false;
+	}
+
+	@Override
+	public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+		int cacheIndex = getCacheIndex(owner, name);
+		if (cacheIndex >= 0 && opcode == Opcodes.GETFIELD) {
+			// Replace
+			//     cpu._xx
+			// by
+			//     local_xx
+			super.visitInsn(Opcodes.POP);
+			super.visitVarInsn(Opcodes.ILOAD, localIndexes[cacheIndex]);
+		} else if (cacheIndex >= 0 && opcode == Opcodes.PUTFIELD) {
+			// Replace
+			//     cpu._xx = value
+			// by
+			//     local_xx = cpu._xx = value
+			super.visitInsn(Opcodes.DUP_X1);
+			super.visitFieldInsn(opcode, owner, name, descriptor);
+			super.visitVarInsn(Opcodes.ISTORE, localIndexes[cacheIndex]);
+		} else {
+			super.visitFieldInsn(opcode, owner, name, descriptor);
+		}
+	}
+
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+		super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+
+		if (active && !isPreservingRegisters(owner, name)) {
+			reload();
+		}
+	}
+
+	@Override
+	public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+		super.visitTryCatchBlock(start, end, handler, type);
+		handlers.add(handler);
+	}
+
+	@Override
+	public void visitLabel(Label label) {
+		super.visitLabel(label);
+
+		// The registers could have been modified before the exception was raised
+		if (active && handlers.contains(label)) {
+			reload();
+		}
+	}
+}
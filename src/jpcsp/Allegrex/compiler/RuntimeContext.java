@@ -22,7 +22,6 @@ import static jpcsp.util.Utilities.addAddressHex;
 import static jpcsp.util.Utilities.addHex;
 import static jpcsp.util.Utilities.sleep;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -30,6 +29,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jpcsp.Emulator;
 import jpcsp.Memory;
@@ -109,11 +110,12 @@ public class RuntimeContext {
 	private static CodeBlockList[] fastCodeBlockLookup;
 	private static final int fastCodeBlockLookupShift = 8;
 	private static final int fastCodeBlockSize = 64; // Matching the size used by the Allegrex instruction ICACHE HIT INVALIDATE
-	private static final Map<SceKernelThreadInfo, RuntimeThread> threads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
-	private static final Map<SceKernelThreadInfo, RuntimeThread> toBeStoppedThreads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
-	private static final Map<SceKernelThreadInfo, RuntimeThread> alreadyStoppedThreads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
-	private static final List<Thread> alreadySwitchedStoppedThreads = Collections.synchronizedList(new ArrayList<Thread>());
-	private static final Map<SceKernelThreadInfo, RuntimeThread> toBeDeletedThreads = Collections.synchronizedMap(new HashMap<SceKernelThreadInfo, RuntimeThread>());
+	// Concurrent collections: these are checked at each thread switch and should not require a lock
+	private static final Map<SceKernelThreadInfo, RuntimeThread> threads = new ConcurrentHashMap<SceKernelThreadInfo, RuntimeThread>();
+	private static final Map<SceKernelThreadInfo, RuntimeThread> toBeStoppedThreads = new ConcurrentHashMap<SceKernelThreadInfo, RuntimeThread>();
+	private static final Map<SceKernelThreadInfo, RuntimeThread> alreadyStoppedThreads = new ConcurrentHashMap<SceKernelThreadInfo, RuntimeThread>();
+	private static final List<Thread> alreadySwitchedStoppedThreads = new CopyOnWriteArrayList<Thread>();
+	private static final Map<SceKernelThreadInfo, RuntimeThread> toBeDeletedThreads = new ConcurrentHashMap<SceKernelThreadInfo, RuntimeThread>();
 	public  static volatile SceKernelThreadInfo currentThread = null;
 	private static volatile RuntimeThread currentRuntimeThread = null;
 	private static final Object waitForEnd = new Object();
@@ -128,6 +130,8 @@ public class RuntimeContext {
 	private static RuntimeSyncThread runtimeSyncThread = null;
 	private static RuntimeThread syscallRuntimeThread;
 	private static sceDisplay sceDisplayModule;
+	// Running the compiled code without the HLE modules, see initialiseStandalone()
+	private static boolean standalone = false;
 	private static final Object idleSyncObject = new Object();
 	public static int firmwareVersion;
 	private static boolean isHomebrew = false;
@@ -156,6 +160,10 @@ public class RuntimeContext {
 		insn.interpret(processor, opcode);
 	}
 
+	public static void hotCall(int codeBlockAddress, int calleeAddress) {
+		Compiler.getInstance().hotCall(codeBlockAddress, calleeAddress);
+	}
+
 	private static int jumpCall(int address) throws Exception {
         IExecutable executable = getExecutable(address);
         if (executable == null) {
@@ -422,8 +430,10 @@ public class RuntimeContext {
         initialiseDebugger();
 
         Profiler.initialise();
+        SamplingProfiler.initialise();
 
         sceDisplayModule = Modules.sceDisplayModule;
+        standalone = false;
 
         fastExecutableLookup = new IExecutable[MemoryMap.SIZE_RAM >> 2];
         fastCodeBlockLookup = new CodeBlockList[MemoryMap.SIZE_RAM >> fastCodeBlockLookupShift];
@@ -431,6 +441,27 @@ public class RuntimeContext {
 		return true;
     }
 
+    /**
+     * Initialise the runtime to execute compiled code outside of a running
+     * emulator, e.g. from a test harness.
+     * The sync daemon is not started and no PSP thread is required:
+     * the compiled code is called directly through IExecutable.exec().
+     * The HLE modules are not loaded: they require a display.
+     * Emulator.setProcessor() has to be called before.
+     */
+    public static void initialiseStandalone() {
+    	updateStaticVariables();
+        updateMemory();
+        // The debugger is not available outside of the emulator
+        enableDebugger = false;
+        // No display to be notified about the memory writes
+        sceDisplayModule = null;
+        standalone = true;
+
+        fastExecutableLookup = new IExecutable[MemoryMap.SIZE_RAM >> 2];
+        fastCodeBlockLookup = new CodeBlockList[MemoryMap.SIZE_RAM >> fastCodeBlockLookupShift];
+    }
+
     public static boolean canExecuteCallback(SceKernelThreadInfo callbackThread) {
     	if (!compilerEnabled) {
     		return true;
@@ -647,12 +678,12 @@ public class RuntimeContext {
     private static void syncThreadImmediately() throws StopThreadException {
         Thread currentThread = Thread.currentThread();
     	if (currentRuntimeThread != null &&
-                currentThread != currentRuntimeThread && !alreadySwitchedStoppedThreads.contains(currentThread)) {
+                currentThread != currentRuntimeThread && (alreadySwitchedStoppedThreads.isEmpty() || !alreadySwitchedStoppedThreads.contains(currentThread))) {
     		currentRuntimeThread.continueRuntimeExecution();
 
     		if (currentThread instanceof RuntimeThread) {
     			RuntimeThread runtimeThread = (RuntimeThread) currentThread;
-    			if (!alreadyStoppedThreads.containsValue(runtimeThread)) {
+    			if (alreadyStoppedThreads.isEmpty() || !alreadyStoppedThreads.containsValue(runtimeThread)) {
 	    			log.debug("Waiting to be scheduled...");
 					runtimeThread.suspendRuntimeExecution();
 	    			log.debug("Scheduled, restarting...");
@@ -671,7 +702,8 @@ public class RuntimeContext {
     private static void syncThread() throws StopThreadException {
         syncIdle();
 
-        if (toBeDeletedThreads.containsValue(getRuntimeThread())) {
+        RuntimeThread runtimeThread = getRuntimeThread();
+        if (runtimeThread != null && !toBeDeletedThreads.isEmpty() && toBeDeletedThreads.containsValue(runtimeThread)) {
         	return;
         }
 
@@ -682,6 +714,10 @@ public class RuntimeContext {
     	syncThreadImmediately();
     }
 
+    public static RuntimeThread getCurrentRuntimeThread() {
+    	return currentRuntimeThread;
+    }
+
     public static RuntimeThread getRuntimeThread() {
     	Thread currentThread = Thread.currentThread();
 		if (currentThread instanceof RuntimeThread) {
@@ -1191,10 +1227,8 @@ public class RuntimeContext {
 
     private static List<RuntimeThread> wakeupToBeStoppedThreads() {
 		List<RuntimeThread> threadList = new LinkedList<RuntimeThread>();
-		synchronized (toBeStoppedThreads) {
-    		for (Entry<SceKernelThreadInfo, RuntimeThread> entry : toBeStoppedThreads.entrySet()) {
-    			threadList.add(entry.getValue());
-    		}
+		for (Entry<SceKernelThreadInfo, RuntimeThread> entry : toBeStoppedThreads.entrySet()) {
+			threadList.add(entry.getValue());
 		}
 
 		// Trigger the threads to start execution again.
@@ -1204,7 +1238,7 @@ public class RuntimeContext {
 			log.debug("Thread " + runtimeThread.getName() + ", State=" + threadState);
 			if (threadState == Thread.State.TERMINATED) {
 				toBeStoppedThreads.remove(runtimeThread.getThreadInfo());
-			} else if (threadState == Thread.State.WAITING) {
+			} else if (threadState == Thread.State.WAITING || runtimeThread.isSuspended()) {
 				runtimeThread.continueRuntimeExecution();
 			}
 		}
@@ -1249,9 +1283,11 @@ public class RuntimeContext {
     }
 
     private static void stopAllThreads() {
-		synchronized (threads) {
-			toBeStoppedThreads.putAll(threads);
-    		threads.clear();
+		for (SceKernelThreadInfo threadInfo : threads.keySet()) {
+			RuntimeThread runtimeThread = threads.remove(threadInfo);
+			if (runtimeThread != null) {
+				toBeStoppedThreads.put(threadInfo, runtimeThread);
+			}
 		}
 
 		List<RuntimeThread> threadList = wakeupToBeStoppedThreads();
@@ -1281,6 +1317,7 @@ public class RuntimeContext {
         	stopAllThreads();
         	if (DurationStatistics.collectStatistics) {
         		log.info(idleDuration);
+        		log.info(RuntimeThread.getSwitchStatistics());
         	}
 
             if (enableInstructionTypeCounting) {
@@ -1556,7 +1593,9 @@ public class RuntimeContext {
             }
         }
 
-        sceDisplayModule.write32(rawAddress);
+        if (sceDisplayModule != null) {
+        	sceDisplayModule.write32(rawAddress);
+        }
 
         return rawAddress;
     }
@@ -1575,7 +1614,9 @@ public class RuntimeContext {
             }
         }
 
-        sceDisplayModule.write16(rawAddress);
+        if (sceDisplayModule != null) {
+        	sceDisplayModule.write16(rawAddress);
+        }
 
         return rawAddress;
     }
@@ -1594,7 +1635,9 @@ public class RuntimeContext {
             }
         }
 
-        sceDisplayModule.write8(rawAddress);
+        if (sceDisplayModule != null) {
+        	sceDisplayModule.write8(rawAddress);
+        }
 
         return rawAddress;
     }
@@ -1726,6 +1769,8 @@ public class RuntimeContext {
     	if (memory instanceof DebuggerMemory) {
     		DebuggerMemory debuggerMemory = (DebuggerMemory) memory;
     		debuggerMemory.addRangeReadWriteBreakpoint(address, address + length - 1);
+    	} else {
+    		Watchpoints.addWatchpoint(address, address + length - 1, true, true);
     	}
     }
 
@@ -1739,6 +1784,10 @@ public class RuntimeContext {
     	RuntimeContext.firmwareVersion = firmwareVersion;
     }
 
+    public static boolean isStandalone() {
+    	return standalone;
+    }
+
     public static boolean hasMemoryInt() {
     	return memoryInt != null;
     }
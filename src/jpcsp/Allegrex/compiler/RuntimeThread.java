@@ -18,16 +18,30 @@ package jpcsp.Allegrex.compiler;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
+import jpcsp.util.DurationStatistics;
 
 /**
  * @author gid15
  *
  */
 public class RuntimeThread extends Thread {
-	private Semaphore semaphore = new Semaphore(1);
+	// Number of times to check for the permit before parking the thread:
+	// a PSP thread switch is often followed very quickly by a switch back,
+	// spinning a little avoids the cost of the OS scheduling in this case.
+	private static final int spinIterations = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+	private static final int yieldIterations = 50;
+	private final AtomicInteger permits = new AtomicInteger(1);
+	private volatile Thread waitingThread;
+	private volatile boolean suspended;
+	// Context switch statistics
+	private volatile long continueNanos;
+	private static long numberSwitches;
+	private static long cumulatedSwitchNanos;
+	private static long maxSwitchNanos;
 	private SceKernelThreadInfo threadInfo;
 	private boolean isInSyscall;
 	private int stackSize;
@@ -56,20 +70,80 @@ public class RuntimeThread extends Thread {
 		}
 	}
 
-	public void suspendRuntimeExecution() {
-		boolean acquired = false;
+	private boolean tryAcquire() {
+		int currentPermits = permits.get();
+		return currentPermits > 0 && permits.compareAndSet(currentPermits, currentPermits - 1);
+	}
 
-		while (!acquired) {
-			try {
-				semaphore.acquire();
-				acquired = true;
-			} catch (InterruptedException e) {
+	/**
+	 * Wait until this thread is allowed to continue its execution.
+	 * The permit is first polled for a short time, then the thread is parked
+	 * until continueRuntimeExecution() is unparking it.
+	 */
+	public void suspendRuntimeExecution() {
+		suspended = true;
+		for (int i = 0; !tryAcquire(); i++) {
+			if (i < spinIterations) {
+				// Spin
+			} else if (i < spinIterations + yieldIterations) {
+				Thread.yield();
+			} else {
+				waitingThread = Thread.currentThread();
+				// Check again for a permit released before waitingThread was set
+				if (!tryAcquire()) {
+					LockSupport.park(this);
+					waitingThread = null;
+					continue;
+				}
+				waitingThread = null;
+				break;
 			}
 		}
+		suspended = false;
+
+		if (DurationStatistics.collectStatistics) {
+			addSwitchStatistics();
+		}
 	}
 
+	/**
+	 * Allow this thread to continue its execution.
+	 * Only the waiting thread is woken up, no global lock is involved.
+	 */
 	public void continueRuntimeExecution() {
-		semaphore.release();
+		if (DurationStatistics.collectStatistics) {
+			continueNanos = System.nanoTime();
+		}
+
+		permits.incrementAndGet();
+		Thread thread = waitingThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @return true if the thread is waiting in suspendRuntimeExecution()
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	private void addSwitchStatistics() {
+		if (continueNanos != 0L) {
+			long switchNanos = System.nanoTime() - continueNanos;
+			continueNanos = 0L;
+			synchronized (RuntimeThread.class) {
+				numberSwitches++;
+				cumulatedSwitchNanos += switchNanos;
+				maxSwitchNanos = Math.max(maxSwitchNanos, switchNanos);
+			}
+		}
+	}
+
+	public static synchronized String getSwitchStatistics() {
+		double averageMicros = numberSwitches == 0 ? 0.0 : cumulatedSwitchNanos / 1000.0 / numberSwitches;
+		return String.format("Thread switches: %d, average %.1f us, max %.1f us", numberSwitches, averageMicros, maxSwitchNanos / 1000.0);
 	}
 
 	public SceKernelThreadInfo getThreadInfo() {
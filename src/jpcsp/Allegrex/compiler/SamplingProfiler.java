@@ -0,0 +1,300 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.NIDMapper;
+import jpcsp.Allegrex.compiler.nativeCode.NativeCodeManager;
+import jpcsp.Allegrex.compiler.nativeCode.NativeCodeSequence;
+import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
+import jpcsp.settings.AbstractBoolSettingsListener;
+import jpcsp.settings.Settings;
+
+/**
+ * Sampling profiler for the emulated code.
+ *
+ * Unlike the Profiler, the compiled code is not instrumented.
+ * A timer thread is periodically sampling the Java stack of the running
+ * RuntimeThread. As each "jal" is compiled into a Java method call,
+ * the Java stack is reflecting the emulated $ra chain: each frame
+ * of a CodeBlock class is mapped back to the CodeBlock start address
+ * and named from the native code sequences or the module exports.
+ * HLE functions called from the emulated code appear as leaf frames.
+ *
+ * The aggregated stacks are exported in the collapsed format
+ * used by the flame graph tools (one line per stack, frames separated
+ * by ';', followed by the number of samples).
+ */
+public class SamplingProfiler {
+	public static Logger log = Profiler.log;
+	private static final String codeBlockClassPrefix = "_S1_";
+	private static final String hleModulesPackage = "jpcsp.HLE.modules.";
+	private static final int samplingIntervalMillis = 2;
+	private static final int topLeafFunctions = 30;
+	private static boolean samplingProfilerEnabled = false;
+	private static SamplingProfilerEnabledSettingsListerner samplingProfilerEnabledSettingsListerner;
+	private static SamplingThread samplingThread;
+	// Collapsed stack -> number of samples
+	private static final Map<String, long[]> stacks = new HashMap<String, long[]>();
+	// CodeBlock start address -> function name
+	private static final Map<Integer, String> functionNames = new HashMap<Integer, String>();
+	private static long totalSamples;
+	private static long idleSamples;
+
+	private static class SamplingProfilerEnabledSettingsListerner extends AbstractBoolSettingsListener {
+		@Override
+		protected void settingsValueChanged(boolean value) {
+			setSamplingProfilerEnabled(value);
+		}
+	}
+
+	private static class SamplingThread extends Thread {
+		private volatile boolean exit;
+
+		@Override
+		public void run() {
+			while (!exit) {
+				try {
+					Thread.sleep(samplingIntervalMillis);
+				} catch (InterruptedException e) {
+					// Ignore exception
+				}
+
+				if (!exit) {
+					sample();
+				}
+			}
+		}
+	}
+
+	public static void initialise() {
+		if (samplingProfilerEnabledSettingsListerner == null) {
+			samplingProfilerEnabledSettingsListerner = new SamplingProfilerEnabledSettingsListerner();
+			Settings.getInstance().registerSettingsListener("SamplingProfiler", "emu.samplingProfiler", samplingProfilerEnabledSettingsListerner);
+		}
+
+		reset();
+	}
+
+	private static synchronized void setSamplingProfilerEnabled(boolean enabled) {
+		samplingProfilerEnabled = enabled;
+
+		if (enabled) {
+			if (samplingThread == null) {
+				samplingThread = new SamplingThread();
+				samplingThread.setName("Sampling Profiler");
+				samplingThread.setDaemon(true);
+				samplingThread.start();
+			}
+		} else if (samplingThread != null) {
+			samplingThread.exit = true;
+			samplingThread = null;
+		}
+	}
+
+	public static boolean isSamplingProfilerEnabled() {
+		return samplingProfilerEnabled;
+	}
+
+	public static synchronized void reset() {
+		stacks.clear();
+		synchronized (functionNames) {
+			functionNames.clear();
+		}
+		totalSamples = 0;
+		idleSamples = 0;
+	}
+
+	private static void sample() {
+		RuntimeThread runtimeThread = RuntimeContext.getCurrentRuntimeThread();
+		if (runtimeThread == null) {
+			synchronized (SamplingProfiler.class) {
+				totalSamples++;
+				idleSamples++;
+			}
+			return;
+		}
+
+		StackTraceElement[] stackTrace = runtimeThread.getStackTrace();
+		SceKernelThreadInfo threadInfo = runtimeThread.getThreadInfo();
+		String stack = getCollapsedStack(threadInfo == null ? runtimeThread.getName() : threadInfo.name, stackTrace);
+
+		synchronized (SamplingProfiler.class) {
+			totalSamples++;
+			long[] count = stacks.get(stack);
+			if (count == null) {
+				count = new long[1];
+				stacks.put(stack, count);
+			}
+			count[0]++;
+		}
+	}
+
+	private static String getCollapsedStack(String threadName, StackTraceElement[] stackTrace) {
+		StringBuilder stack = new StringBuilder(sanitize(threadName));
+
+		// The Java stack trace is starting with the innermost frame.
+		// The HLE function (if any) being the leaf of the emulated stack.
+		String hleFunction = null;
+		for (StackTraceElement element : stackTrace) {
+			String className = element.getClassName();
+			if (className.startsWith(codeBlockClassPrefix)) {
+				break;
+			}
+			if (className.startsWith(hleModulesPackage)) {
+				hleFunction = String.format("[HLE] %s.%s", className.substring(hleModulesPackage.length()), element.getMethodName());
+			}
+		}
+
+		String previousClassName = null;
+		for (int i = stackTrace.length - 1; i >= 0; i--) {
+			String className = stackTrace[i].getClassName();
+			if (!className.startsWith(codeBlockClassPrefix)) {
+				continue;
+			}
+			// A large CodeBlock is split into several methods of the same class
+			if (className.equals(previousClassName)) {
+				continue;
+			}
+			previousClassName = className;
+
+			stack.append(';');
+			stack.append(getFunctionName(CompilerContext.getClassAddress(className)));
+		}
+
+		if (hleFunction != null) {
+			stack.append(';');
+			stack.append(hleFunction);
+		}
+
+		return stack.toString();
+	}
+
+	private static String getFunctionName(int address) {
+		synchronized (functionNames) {
+			String name = functionNames.get(address);
+			if (name == null) {
+				name = resolveFunctionName(address);
+				functionNames.put(address, name);
+			}
+			return name;
+		}
+	}
+
+	private static String resolveFunctionName(int address) {
+		NativeCodeManager nativeCodeManager = Compiler.getInstance().getNativeCodeManager();
+		if (nativeCodeManager != null) {
+			NativeCodeSequence nativeCodeSequence = nativeCodeManager.getCompiledNativeCodeBlock(address);
+			if (nativeCodeSequence != null) {
+				return String.format("%s [native]", nativeCodeSequence.getName());
+			}
+		}
+
+		NIDMapper nidMapper = NIDMapper.getInstance();
+		int nid = nidMapper.getNidByAddress(address);
+		if (nid != 0) {
+			String moduleName = nidMapper.getModuleNameByAddress(address);
+			return sanitize(String.format("%s_%08X", moduleName, nid));
+		}
+
+		return String.format("sub_%08X", address);
+	}
+
+	private static String sanitize(String name) {
+		// ';' is the frame separator and the count is following the last space
+		return name.replace(';', '_').replace(' ', '_');
+	}
+
+	/**
+	 * Write the collected samples in the collapsed stack format.
+	 *
+	 * @param fileName   the output file
+	 * @throws IOException
+	 */
+	public static synchronized void writeCollapsedStacks(String fileName) throws IOException {
+		PrintWriter writer = new PrintWriter(fileName);
+		try {
+			for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+				writer.print(entry.getKey());
+				writer.print(' ');
+				writer.println(entry.getValue()[0]);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static synchronized void logLeafFunctions() {
+		final Map<String, long[]> leafs = new HashMap<String, long[]>();
+		for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+			String stack = entry.getKey();
+			String leaf = stack.substring(stack.lastIndexOf(';') + 1);
+			long[] count = leafs.get(leaf);
+			if (count == null) {
+				count = new long[1];
+				leafs.put(leaf, count);
+			}
+			count[0] += entry.getValue()[0];
+		}
+
+		List<String> sortedLeafs = new ArrayList<String>(leafs.keySet());
+		Collections.sort(sortedLeafs, new Comparator<String>() {
+			@Override
+			public int compare(String leaf1, String leaf2) {
+				return Long.compare(leafs.get(leaf2)[0], leafs.get(leaf1)[0]);
+			}
+		});
+
+		log.info(String.format("Sampling profiler: %,d samples, %2.1f%% idle", totalSamples, totalSamples == 0 ? 0.0 : idleSamples * 100.0 / totalSamples));
+		for (int i = 0; i < sortedLeafs.size() && i < topLeafFunctions; i++) {
+			String leaf = sortedLeafs.get(i);
+			long count = leafs.get(leaf)[0];
+			log.info(String.format("  %s: %,d samples (%2.1f%%)", leaf, count, count * 100.0 / totalSamples));
+		}
+	}
+
+	public static void exit() {
+		if (!samplingProfilerEnabled) {
+			return;
+		}
+
+		setSamplingProfilerEnabled(false);
+
+		logLeafFunctions();
+
+		String directory = Settings.getInstance().getDiscTmpDirectory();
+		new File(directory).mkdirs();
+		String fileName = directory + "profile.folded";
+		try {
+			writeCollapsedStacks(fileName);
+			log.info(String.format("Sampling profiler: collapsed stacks written to %s", fileName));
+		} catch (IOException e) {
+			log.error("Sampling profiler", e);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+
+/**
+ * Memory watchpoints compiled into the code blocks.
+ *
+ * Instead of wrapping the whole Memory instance like the DebuggerMemory,
+ * the compiler is emitting a quick range check only on the load and store
+ * instructions. The slow path (exact check, logging and pausing the emulator)
+ * is only called when the accessed address is inside the range
+ * covered by all the watchpoints. Accesses to addresses known at compile time
+ * are only checked when they are covered by a watchpoint.
+ *
+ * Adding or removing a watchpoint is recompiling the code blocks
+ * which could access the watchpoint addresses.
+ * Instructions executed by the interpreter are not checked.
+ */
+public class Watchpoints {
+	private static Logger log = RuntimeContext.log;
+	// Same as RuntimeContext.debugMemoryReadWriteNoSP: accesses relative to $sp are not checked
+	public static boolean ignoreStackPointer = true;
+	public static boolean pauseEmulatorOnWatchpoint = false;
+	private static final List<Watchpoint> watchpoints = new ArrayList<Watchpoint>();
+	private static volatile Watchpoint[] activeWatchpoints = new Watchpoint[0];
+	private static int lowestReadAddress = Integer.MAX_VALUE;
+	private static int highestReadAddress = Integer.MIN_VALUE;
+	private static int lowestWriteAddress = Integer.MAX_VALUE;
+	private static int highestWriteAddress = Integer.MIN_VALUE;
+
+	private static class Watchpoint {
+		public final int start;
+		public final int end;
+		public final boolean read;
+		public final boolean write;
+
+		public Watchpoint(int start, int end, boolean read, boolean write) {
+			this.start = start;
+			this.end = end;
+			this.read = read;
+			this.write = write;
+		}
+
+		public boolean matches(int start, int end, boolean read, boolean write) {
+			return this.start == start && this.end == end && this.read == read && this.write == write;
+		}
+
+		public boolean isOverlapping(int address, int length) {
+			return address <= end && address + length - 1 >= start;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("0x%08X-0x%08X %s%s", start, end, read ? "R" : "", write ? "W" : "");
+		}
+	}
+
+	/**
+	 * Add a watchpoint.
+	 *
+	 * @param start   the first address to be watched
+	 * @param end     the last address to be watched (included)
+	 * @param read    watch the read accesses
+	 * @param write   watch the write accesses
+	 */
+	public static void addWatchpoint(int start, int end, boolean read, boolean write) {
+		start &= Memory.addressMask;
+		end &= Memory.addressMask;
+		synchronized (watchpoints) {
+			watchpoints.add(new Watchpoint(start, end, read, write));
+			update(start, end);
+		}
+	}
+
+	public static void removeWatchpoint(int start, int end, boolean read, boolean write) {
+		start &= Memory.addressMask;
+		end &= Memory.addressMask;
+		synchronized (watchpoints) {
+			for (int i = 0; i < watchpoints.size(); i++) {
+				if (watchpoints.get(i).matches(start, end, read, write)) {
+					watchpoints.remove(i);
+					update(start, end);
+					break;
+				}
+			}
+		}
+	}
+
+	public static void clear() {
+		synchronized (watchpoints) {
+			if (!watchpoints.isEmpty()) {
+				int start = Integer.MAX_VALUE;
+				int end = Integer.MIN_VALUE;
+				for (Watchpoint watchpoint : watchpoints) {
+					start = Math.min(start, watchpoint.start);
+					end = Math.max(end, watchpoint.end);
+				}
+				watchpoints.clear();
+				update(start, end);
+			}
+		}
+	}
+
+	private static void update(int start, int end) {
+		int lowestRead = Integer.MAX_VALUE;
+		int highestRead = Integer.MIN_VALUE;
+		int lowestWrite = Integer.MAX_VALUE;
+		int highestWrite = Integer.MIN_VALUE;
+		for (Watchpoint watchpoint : watchpoints) {
+			if (watchpoint.read) {
+				lowestRead = Math.min(lowestRead, watchpoint.start);
+				highestRead = Math.max(highestRead, watchpoint.end);
+			}
+			if (watchpoint.write) {
+				lowestWrite = Math.min(lowestWrite, watchpoint.start);
+				highestWrite = Math.max(highestWrite, watchpoint.end);
+			}
+		}
+		lowestReadAddress = lowestRead;
+		highestReadAddress = highestRead;
+		lowestWriteAddress = lowestWrite;
+		highestWriteAddress = highestWrite;
+		activeWatchpoints = watchpoints.toArray(new Watchpoint[watchpoints.size()]);
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Watchpoints updated: %s", watchpoints));
+		}
+
+		// The code blocks accessing the changed addresses have to be recompiled to add or remove the checks
+		Compiler compiler = Compiler.getInstance();
+		for (CodeBlock codeBlock : RuntimeContext.getCodeBlocks().values()) {
+			if (codeBlock.isAffectedByWatchpoint(start, end)) {
+				compiler.invalidateCodeBlock(codeBlock);
+			}
+		}
+	}
+
+	public static boolean isWatching(boolean isRead) {
+		return isRead ? lowestReadAddress <= highestReadAddress : lowestWriteAddress <= highestWriteAddress;
+	}
+
+	public static int getLowestAddress(boolean isRead) {
+		return isRead ? lowestReadAddress : lowestWriteAddress;
+	}
+
+	public static int getHighestAddress(boolean isRead) {
+		return isRead ? highestReadAddress : highestWriteAddress;
+	}
+
+	/**
+	 * Check if an address range is covered by a watchpoint.
+	 *
+	 * @param start   the first address
+	 * @param end     the last address (included)
+	 * @param isRead  read or write access
+	 * @return true if a watchpoint is overlapping with the address range
+	 */
+	public static boolean isWatching(int start, int end, boolean isRead) {
+		Watchpoint[] watchpoints = activeWatchpoints;
+		for (int i = 0; i < watchpoints.length; i++) {
+			Watchpoint watchpoint = watchpoints[i];
+			if ((isRead ? watchpoint.read : watchpoint.write) && watchpoint.isOverlapping(start, end - start + 1)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Slow path called by the compiled code when an access
+	 * is inside the range covered by the watchpoints.
+	 *
+	 * @param address   the accessed address
+	 * @param pc        the address of the load or store instruction
+	 * @param length    the number of bytes accessed
+	 * @param isRead    read or write access
+	 */
+	public static void checkWatchpoint(int address, int pc, int length, boolean isRead) {
+		address &= Memory.addressMask;
+		Watchpoint[] watchpoints = activeWatchpoints;
+		for (int i = 0; i < watchpoints.length; i++) {
+			Watchpoint watchpoint = watchpoints[i];
+			if ((isRead ? watchpoint.read : watchpoint.write) && watchpoint.isOverlapping(address, length)) {
+				Memory mem = Memory.getInstance();
+				String value;
+				if (length == 1) {
+					value = String.format("0x%02X", mem.read8(address));
+				} else if (length == 2) {
+					value = String.format("0x%04X", mem.read16(address));
+				} else {
+					value = String.format("0x%08X", mem.read32(address));
+				}
+				if (isRead) {
+					log.info(String.format("0x%08X - watchpoint read%d(0x%08X)=%s", pc, length * 8, address, value));
+				} else {
+					log.info(String.format("0x%08X - watchpoint write%d(0x%08X), previous value %s", pc, length * 8, address, value));
+				}
+
+				if (pauseEmulatorOnWatchpoint) {
+					Emulator.PauseEmuWithStatus(Emulator.EMU_STATUS_BREAKPOINT);
+				}
+				break;
+			}
+		}
+	}
+}
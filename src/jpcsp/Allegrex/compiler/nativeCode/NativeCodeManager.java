@@ -20,12 +20,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jpcsp.State;
 import jpcsp.Allegrex.Common;
 import jpcsp.Allegrex.Decoder;
 import jpcsp.Allegrex.compiler.CodeBlock;
@@ -43,20 +45,26 @@ import org.w3c.dom.NodeList;
  */
 public class NativeCodeManager {
 	private static int defaultOpcodeMask = 0xFFFFFFFF;
-	private HashMap<Integer, List<NativeCodeSequence>> nativeCodeSequencesByFirstOpcode;
-	private List<NativeCodeSequence> nativeCodeSequenceWithMaskInFirstOpcode;
+	private NativeCodeSequenceIndex nativeCodeSequenceIndex;
 	private HashMap<Integer, NativeCodeSequence> compiledNativeCodeBlocks;
+	// Addresses where a native code sequence has been recognized, for the coverage report
+	private HashMap<Integer, NativeCodeSequence> recognizedNativeCodeSequences;
 
 	public NativeCodeManager(Element configuration) {
 		compiledNativeCodeBlocks = new HashMap<Integer, NativeCodeSequence>();
-		nativeCodeSequencesByFirstOpcode = new HashMap<Integer, List<NativeCodeSequence>>();
-		nativeCodeSequenceWithMaskInFirstOpcode = new LinkedList<NativeCodeSequence>();
+		nativeCodeSequenceIndex = new NativeCodeSequenceIndex();
+		recognizedNativeCodeSequences = new HashMap<Integer, NativeCodeSequence>();
 
 		load(configuration);
+
+		if (Compiler.log.isDebugEnabled()) {
+			Compiler.log.debug(String.format("Loaded %d native code sequences in %d signature groups", nativeCodeSequenceIndex.size(), nativeCodeSequenceIndex.getNumberGroups()));
+		}
 	}
 
 	public void reset() {
 		compiledNativeCodeBlocks.clear();
+		recognizedNativeCodeSequences.clear();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -307,21 +315,7 @@ public class NativeCodeManager {
 	}
 
 	private void addNativeCodeSequence(NativeCodeSequence nativeCodeSequence) {
-		if (nativeCodeSequence.getNumOpcodes() > 0) {
-			int firstOpcodeMask = nativeCodeSequence.getFirstOpcodeMask();
-			if (firstOpcodeMask == defaultOpcodeMask) {
-				// First opcode has not mask: fast lookup allowed
-				int firstOpcode = nativeCodeSequence.getFirstOpcode();
-
-				if (!nativeCodeSequencesByFirstOpcode.containsKey(firstOpcode)) {
-					nativeCodeSequencesByFirstOpcode.put(firstOpcode, new LinkedList<NativeCodeSequence>());
-				}
-				nativeCodeSequencesByFirstOpcode.get(firstOpcode).add(nativeCodeSequence);
-			} else {
-				// First opcode has not mask: only slow lookup possible
-				nativeCodeSequenceWithMaskInFirstOpcode.add(nativeCodeSequence);
-			}
-		}
+		nativeCodeSequenceIndex.add(nativeCodeSequence);
 	}
 
 	public void setCompiledNativeCodeBlock(int address, NativeCodeSequence nativeCodeBlock) {
@@ -387,24 +381,44 @@ public class NativeCodeManager {
 
 	public NativeCodeSequence getNativeCodeSequence(CodeInstruction codeInstruction, CodeBlock codeBlock) {
 		int firstOpcode = codeInstruction.getOpcode();
+		int secondOpcode = codeBlock.getCodeInstructionOpcode(codeInstruction.getAddress() + 4);
 
-		// Fast lookup using the first opcode
-		if (nativeCodeSequencesByFirstOpcode.containsKey(firstOpcode)) {
-			for (Iterator<NativeCodeSequence> it = nativeCodeSequencesByFirstOpcode.get(firstOpcode).iterator(); it.hasNext(); ) {
-				NativeCodeSequence nativeCodeSequence = it.next();
-				if (isNativeCodeSequence(nativeCodeSequence, codeInstruction, codeBlock)) {
-					return nativeCodeSequence;
-				}
-			}
-		}
-
-		// Slow lookup for sequences having an opcode mask in the first opcode
-		for (NativeCodeSequence nativeCodeSequence : nativeCodeSequenceWithMaskInFirstOpcode) {
+		// Lookup using the first two opcodes, the other opcodes are checked on the candidates
+		NativeCodeSequence[] candidates = nativeCodeSequenceIndex.getCandidates(firstOpcode, secondOpcode);
+		for (int i = 0; i < candidates.length; i++) {
+			NativeCodeSequence nativeCodeSequence = candidates[i];
 			if (isNativeCodeSequence(nativeCodeSequence, codeInstruction, codeBlock)) {
+				recognizedNativeCodeSequences.put(codeInstruction.getAddress(), nativeCodeSequence);
 				return nativeCodeSequence;
 			}
 		}
 
 		return null;
 	}
+
+	/**
+	 * Log which native code sequences (libc or SDK routines)
+	 * have been recognized in the code compiled for the current application.
+	 */
+	public void logCoverage() {
+		if (recognizedNativeCodeSequences.isEmpty() || !Compiler.log.isInfoEnabled()) {
+			return;
+		}
+
+		Map<String, Integer> countByName = new TreeMap<String, Integer>();
+		for (NativeCodeSequence nativeCodeSequence : recognizedNativeCodeSequences.values()) {
+			Integer count = countByName.get(nativeCodeSequence.getName());
+			countByName.put(nativeCodeSequence.getName(), count == null ? 1 : count.intValue() + 1);
+		}
+
+		StringBuilder names = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : countByName.entrySet()) {
+			if (names.length() > 0) {
+				names.append(", ");
+			}
+			names.append(String.format("%s(%d)", entry.getKey(), entry.getValue()));
+		}
+
+		Compiler.log.info(String.format("Native code sequences recognized for %s (%s): %d locations, %d different routines: %s", State.discId, State.title, recognizedNativeCodeSequences.size(), countByName.size(), names));
+	}
 }
\ No newline at end of file
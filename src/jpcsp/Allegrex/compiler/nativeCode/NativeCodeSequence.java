@@ -133,6 +133,14 @@ public class NativeCodeSequence {
 		return opcodes.length;
 	}
 
+	public int getOpcode(int opcodeIndex) {
+		return opcodes[opcodeIndex].getOpcode();
+	}
+
+	public int getOpcodeMask(int opcodeIndex) {
+		return opcodes[opcodeIndex].getMask();
+	}
+
 	public Class<INativeCodeSequence> getNativeCodeSequenceClass() {
 		return nativeCodeSequenceClass;
 	}
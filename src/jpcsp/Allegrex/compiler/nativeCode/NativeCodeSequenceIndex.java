@@ -0,0 +1,170 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.Allegrex.compiler.nativeCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of the native code sequences based on their first two opcodes.
+ *
+ * The sequences are grouped by the masks used for their first two opcodes
+ * (usually only a few different masks are used). For each group,
+ * a hash table is mapping the two masked opcodes to the candidate sequences.
+ * A lookup is thus only requiring one hash lookup per group,
+ * instead of testing every sequence having a mask in its first opcode.
+ *
+ * The candidates are returned in the order of their priority:
+ * the sequences having no mask in their first opcode come first,
+ * then in the order they have been added to the index.
+ */
+public class NativeCodeSequenceIndex {
+	private static final NativeCodeSequence[] emptyCandidates = new NativeCodeSequence[0];
+	private static final int maskedFirstOpcodePriority = 0x1000000;
+	private final List<Group> groups = new ArrayList<Group>();
+	private final HashMap<NativeCodeSequence, Integer> priorities = new HashMap<NativeCodeSequence, Integer>();
+	private final Comparator<NativeCodeSequence> priorityComparator = new Comparator<NativeCodeSequence>() {
+		@Override
+		public int compare(NativeCodeSequence s1, NativeCodeSequence s2) {
+			return priorities.get(s1).compareTo(priorities.get(s2));
+		}
+	};
+
+	private static class Group {
+		private final int mask0;
+		private final int mask1;
+		private final HashMap<Long, NativeCodeSequence[]> sequences = new HashMap<Long, NativeCodeSequence[]>();
+
+		public Group(int mask0, int mask1) {
+			this.mask0 = mask0;
+			this.mask1 = mask1;
+		}
+
+		public long getKey(int opcode0, int opcode1) {
+			return (((long) (opcode0 & mask0)) << 32) | ((opcode1 & mask1) & 0xFFFFFFFFL);
+		}
+	}
+
+	private static int getMask(NativeCodeSequence nativeCodeSequence, int opcodeIndex) {
+		if (opcodeIndex >= nativeCodeSequence.getNumOpcodes()) {
+			// Any opcode is matching
+			return 0;
+		}
+		return nativeCodeSequence.getOpcodeMask(opcodeIndex);
+	}
+
+	private static int getOpcode(NativeCodeSequence nativeCodeSequence, int opcodeIndex) {
+		if (opcodeIndex >= nativeCodeSequence.getNumOpcodes()) {
+			return 0;
+		}
+		return nativeCodeSequence.getOpcode(opcodeIndex);
+	}
+
+	private Group getGroup(int mask0, int mask1) {
+		for (Group group : groups) {
+			if (group.mask0 == mask0 && group.mask1 == mask1) {
+				return group;
+			}
+		}
+
+		Group group = new Group(mask0, mask1);
+		groups.add(group);
+
+		return group;
+	}
+
+	/**
+	 * Add a sequence to the index.
+	 * The sequences added first will have the highest priority.
+	 * A sequence cannot be added twice.
+	 *
+	 * @param nativeCodeSequence  the sequence to be added
+	 */
+	public void add(NativeCodeSequence nativeCodeSequence) {
+		if (nativeCodeSequence.getNumOpcodes() <= 0) {
+			return;
+		}
+
+		int mask0 = getMask(nativeCodeSequence, 0);
+		int priority = priorities.size();
+		if (mask0 != 0xFFFFFFFF) {
+			priority += maskedFirstOpcodePriority;
+		}
+		priorities.put(nativeCodeSequence, priority);
+
+		Group group = getGroup(mask0, getMask(nativeCodeSequence, 1));
+		long key = group.getKey(getOpcode(nativeCodeSequence, 0), getOpcode(nativeCodeSequence, 1));
+		NativeCodeSequence[] candidates = group.sequences.get(key);
+		if (candidates == null) {
+			candidates = new NativeCodeSequence[] { nativeCodeSequence };
+		} else {
+			candidates = Arrays.copyOf(candidates, candidates.length + 1);
+			candidates[candidates.length - 1] = nativeCodeSequence;
+		}
+		group.sequences.put(key, candidates);
+	}
+
+	/**
+	 * Retrieve the sequences possibly matching the given first two opcodes.
+	 * Only the first two opcodes are checked, the caller has to check
+	 * the other opcodes of each candidate.
+	 *
+	 * @param opcode0   the first opcode
+	 * @param opcode1   the second opcode
+	 * @return          the candidates, ordered by priority
+	 */
+	public NativeCodeSequence[] getCandidates(int opcode0, int opcode1) {
+		NativeCodeSequence[] result = null;
+		int numberGroupsFound = 0;
+		for (int i = 0; i < groups.size(); i++) {
+			Group group = groups.get(i);
+			NativeCodeSequence[] candidates = group.sequences.get(group.getKey(opcode0, opcode1));
+			if (candidates != null) {
+				if (result == null) {
+					result = candidates;
+				} else {
+					NativeCodeSequence[] merged = Arrays.copyOf(result, result.length + candidates.length);
+					System.arraycopy(candidates, 0, merged, result.length, candidates.length);
+					result = merged;
+				}
+				numberGroupsFound++;
+			}
+		}
+
+		if (result == null) {
+			return emptyCandidates;
+		}
+
+		if (numberGroupsFound > 1) {
+			// The candidates are coming from different groups, restore the priority order
+			Arrays.sort(result, priorityComparator);
+		}
+
+		return result;
+	}
+
+	public int getNumberGroups() {
+		return groups.size();
+	}
+
+	public int size() {
+		return priorities.size();
+	}
+}
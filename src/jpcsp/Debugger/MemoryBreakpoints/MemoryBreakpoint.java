@@ -16,6 +16,7 @@
  */
 package jpcsp.Debugger.MemoryBreakpoints;
 
+import jpcsp.Allegrex.compiler.Watchpoints;
 import jpcsp.Memory;
 import jpcsp.memory.DebuggerMemory;
 
@@ -111,6 +112,10 @@ public class MemoryBreakpoint {
 	                break;
 	        }
 	        installed = true;
+    	} else {
+    		// Without DebuggerMemory, use the watchpoints compiled into the code blocks
+    		Watchpoints.addWatchpoint(start_address, end_address, access != AccessType.WRITE, access != AccessType.READ);
+    		installed = true;
     	}
     }
 
@@ -128,6 +133,9 @@ public class MemoryBreakpoint {
 	                break;
 	        }
 	        installed = false;
+    	} else {
+    		Watchpoints.removeWatchpoint(start_address, end_address, access != AccessType.WRITE, access != AccessType.READ);
+    		installed = false;
     	}
     }
 }
@@ -28,6 +28,7 @@ import jpcsp.Allegrex.compiler.Compiler;
 import jpcsp.Allegrex.compiler.Profiler;
 import jpcsp.Allegrex.compiler.RuntimeContext;
 import jpcsp.Allegrex.compiler.RuntimeContextLLE;
+import jpcsp.Allegrex.compiler.SamplingProfiler;
 import jpcsp.Debugger.InstructionCounter;
 import jpcsp.Debugger.StepLogger;
 import jpcsp.GUI.IMainGUI;
@@ -37,6 +38,8 @@ import jpcsp.HLE.Modules;
 import jpcsp.HLE.TPointer;
 import jpcsp.HLE.kernel.Managers;
 import jpcsp.HLE.kernel.managers.SceUidManager;
+import jpcsp.HLE.kernel.types.SavedataCommit;
+import jpcsp.HLE.kernel.types.SavedataIndex;
 import jpcsp.HLE.kernel.types.SceModule;
 import jpcsp.HLE.modules.SysMemUserForUser;
 import jpcsp.HLE.modules.reboot;
@@ -118,6 +121,8 @@ public class Emulator implements Runnable {
         Modules.ThreadManForUserModule.exit();
         Modules.sceDisplayModule.exit();
         Modules.IoFileMgrForUserModule.exit();
+        SavedataCommit.exit();
+        SavedataIndex.exit();
         VideoEngine.exit();
         Screen.exit();
         if (DurationStatistics.collectStatistics) {
@@ -129,6 +134,7 @@ public class Emulator implements Runnable {
         RuntimeContextLLE.exit();
         RuntimeContext.exit();
         Profiler.exit();
+        SamplingProfiler.exit();
         GEProfiler.exit();
         BaseRenderer.exit();
         BasePrimitiveRenderer.exit();
@@ -308,6 +314,7 @@ public class Emulator implements Runnable {
         if (!fromSyscall) {
             // Do not reset the profiler if we have been called from sceKernelLoadExec
             Profiler.reset();
+            SamplingProfiler.reset();
             GEProfiler.reset();
             // Do not reset the clock if we have been called from sceKernelLoadExec
             getClock().reset();
@@ -62,9 +62,11 @@ import jpcsp.HLE.modules.SysMemUserForUser.SysMemInfo;
 import jpcsp.hardware.Model;
 import jpcsp.memory.IMemoryWriter;
 import jpcsp.memory.MemoryWriter;
+import jpcsp.state.StateContainer;
 import jpcsp.state.StateInputStream;
 import jpcsp.state.StateOutputStream;
 import jpcsp.util.HLEUtilities;
+import jpcsp.util.IntMap;
 import jpcsp.util.Utilities;
 
 /**
@@ -90,8 +92,8 @@ public class HLEModuleManager {
 
     private HashMap<String, List<HLEModule>> flash0prxMap;
     private Set<HLEModule> installedModules = new HashSet<HLEModule>();
-    private Map<Integer, HLEModuleFunction> syscallToFunction;
-    private Map<Integer, HLEModuleFunction> nidToFunction;
+    private IntMap<HLEModuleFunction> syscallToFunction;
+    private IntMap<HLEModuleFunction> nidToFunction;
     private Map<HLEModule, ModuleInfo> moduleInfos;
 
     private HLELogging defaultHLEFunctionLogging;
@@ -394,26 +396,57 @@ public class HLEModuleManager {
     private HLEModuleManager() {
 		defaultHLEFunctionLogging = HLEModuleManager.class.getAnnotation(HLELogging.class);
 		nidMapper = NIDMapper.getInstance();
-		syscallToFunction = new HashMap<>();
-		nidToFunction = new HashMap<>();
+		syscallToFunction = new IntMap<>();
+		nidToFunction = new IntMap<>();
     }
 
+	/**
+	 * Read the state of the HLE modules from a single stream
+	 * written by a previous version.
+	 */
 	public void read(StateInputStream stream) throws IOException {
-    	stream.readVersion(STATE_VERSION);
+		read(null, stream);
+	}
+
+    /**
+     * Read the state of the HLE modules from a sectioned state file,
+     * each module being stored in its own section.
+     */
+    public void read(StateContainer container) throws IOException {
+    	read(container, null);
+    }
+
+    private void read(StateContainer container, StateInputStream stream) throws IOException {
+    	getStateInputStream(container, stream, null).readVersion(STATE_VERSION);
     	for (ModuleInfo moduleInfo : ModuleInfo.values()) {
         	HLEModule hleModule = moduleInfo.getModule();
-        	hleModule.read(stream);
+        	hleModule.read(getStateInputStream(container, stream, moduleInfo));
         }
     }
 
-    public void write(StateOutputStream stream) throws IOException {
+    private static StateInputStream getStateInputStream(StateContainer container, StateInputStream stream, ModuleInfo moduleInfo) throws IOException {
+    	if (container == null) {
+    		return stream;
+    	}
+    	return container.getSectionInputStream(getStateSectionName(moduleInfo));
+    }
+
+    public void write(StateContainer container) throws IOException {
+    	StateOutputStream stream = container.addSection(getStateSectionName(null));
     	stream.writeVersion(STATE_VERSION);
     	for (ModuleInfo moduleInfo : ModuleInfo.values()) {
         	HLEModule hleModule = moduleInfo.getModule();
-        	hleModule.write(stream);
+        	hleModule.write(container.addSection(getStateSectionName(moduleInfo)));
         }
     }
 
+    private static String getStateSectionName(ModuleInfo moduleInfo) {
+    	if (moduleInfo == null) {
+    		return "modules";
+    	}
+    	return "modules." + moduleInfo.name();
+    }
+
     /** (String)"2.71" to (int)271 */
     public static int psfFirmwareVersionToInt(String firmwareVersion) {
         int version = Emulator.getInstance().getFirmwareVersion();
@@ -460,6 +493,9 @@ public class HLEModuleManager {
         		uninstallModuleWithAnnotations(defaultModule.getModule());
         	}
         }
+
+    	// All the module classes have now been analyzed
+    	HLEModuleRegistry.writeCacheFile(defaultHLEFunctionLogging);
     }
 
     private void addToFlash0PRXMap(String prxName, HLEModule module) {
@@ -717,31 +753,11 @@ public class HLEModuleManager {
 		return startFromSyscall;
 	}
 
-	private void installFunctionWithAnnotations(HLEFunction hleFunction, Method method, HLEModule hleModule) {
-		HLEUnimplemented hleUnimplemented = method.getAnnotation(HLEUnimplemented.class);
-		HLELogging hleLogging = method.getAnnotation(HLELogging.class);
-
-		// Take the module default logging if no HLELogging has been
-		// defined at the function level and if the function is not
-		// unimplemented (which will produce it's own logging).
-		if (hleLogging == null) {
-			if (hleUnimplemented != null) {
-				// Take the logging level of the HLEUnimplemented class
-				// as default value for unimplemented functions
-				hleLogging = HLEUnimplemented.class.getAnnotation(HLELogging.class);
-			} else {
-				HLELogging hleModuleLogging = method.getDeclaringClass().getAnnotation(HLELogging.class);
-				if (hleModuleLogging != null) {
-					// Take the module default logging
-					hleLogging = hleModuleLogging;
-				} else {
-					hleLogging = defaultHLEFunctionLogging;
-				}
-			}
-		}
+	private void installFunctionWithAnnotations(HLEModuleRegistry.Entry entry, HLEModule hleModule) {
+		Method method = entry.getMethod();
 
-		String moduleName = hleFunction.moduleName();
-		String functionName = hleFunction.functionName();
+		String moduleName = entry.getModuleName();
+		String functionName = entry.getFunctionName();
 
 		if (moduleName.length() == 0) {
 			moduleName = hleModule.getName();
@@ -751,23 +767,25 @@ public class HLEModuleManager {
 			functionName = method.getName();
 		}
 
-		HLEModuleFunction hleModuleFunction = new HLEModuleFunction(moduleName, functionName, hleFunction.nid(), hleModule, method, hleFunction.checkInsideInterrupt(), hleFunction.checkDispatchThreadEnabled(), hleFunction.stackUsage(), hleFunction.version(), hleFunction.jumpCall(), hleFunction.canModifyCode());
+		HLEModuleFunction hleModuleFunction = new HLEModuleFunction(moduleName, functionName, entry.getNid(), hleModule, method, entry.isCheckInsideInterrupt(), entry.isCheckDispatchThreadEnabled(), entry.getStackUsage(), entry.getVersion(), entry.isJumpCall(), entry.isCanModifyCode());
 
-		if (hleUnimplemented != null) {
+		if (entry.isUnimplemented()) {
 			hleModuleFunction.setUnimplemented(true);
 		}
 
-		if (hleLogging != null) {
-			hleModuleFunction.setLoggingLevel(hleLogging.level());
+		if (entry.getLoggingLevel() != null) {
+			hleModuleFunction.setLoggingLevel(entry.getLoggingLevel());
 		}
 
 		hleModule.installedHLEModuleFunctions.put(functionName, hleModuleFunction);
 
-		addFunction(hleFunction.nid(), hleModuleFunction);
+		addFunction(entry.getNid(), hleModuleFunction);
 	}
 
 	/**
-	 * Iterates over an object fields searching for HLEFunction annotations and install them.
+	 * Install the HLEFunction annotated methods of a module.
+	 * The annotations are retrieved from the HLEModuleRegistry,
+	 * they are only analyzed when installing the module for the first time.
 	 * 
 	 * @param hleModule
 	 */
@@ -777,11 +795,8 @@ public class HLEModuleManager {
 		}
 
 		try {
-			for (Method method : hleModule.getClass().getMethods()) {
-				HLEFunction[] hleFunctions = method.getAnnotationsByType(HLEFunction.class);
-				for (HLEFunction hleFunction : hleFunctions) {
-					installFunctionWithAnnotations(hleFunction, method, hleModule);
-				}
+			for (HLEModuleRegistry.Entry entry : HLEModuleRegistry.getEntries(hleModule.getClass(), defaultHLEFunctionLogging)) {
+				installFunctionWithAnnotations(entry, hleModule);
 			}
 		} catch (Exception e) {
 			log.error("installModuleWithAnnotations", e);
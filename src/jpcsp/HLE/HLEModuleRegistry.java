@@ -0,0 +1,460 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.HLE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.settings.Settings;
+
+/**
+ * Registry of the HLE functions defined by each HLE module class.
+ *
+ * The HLEFunction, HLEUnimplemented and HLELogging annotations of a module
+ * class are only analyzed once per emulator session, when the module
+ * is installed for the first time. Later installations of the same module
+ * (e.g. after a reset or a reboot) reuse the registered entries
+ * without reflecting again over all the module methods.
+ *
+ * The analyzed entries are also persisted in a cache file, so that
+ * the next emulator sessions can skip the analysis of the annotations:
+ * only the methods of the HLE functions are then looked up.
+ * The cache of a module class is only used when the class files
+ * of the module (including its super classes) have not been modified.
+ */
+public class HLEModuleRegistry {
+	private static Logger log = Modules.log;
+	private static final int CACHE_FILE_MAGIC = 0x47524D48; // "HMRG"
+	private static final int CACHE_FILE_VERSION = 1;
+	private static final String cacheFileName = "HLEModuleRegistry.dat";
+	private static final Map<Class<?>, Entry[]> registry = new HashMap<Class<?>, Entry[]>();
+	private static final Map<String, CachedModule> cachedModules = new HashMap<String, CachedModule>();
+	private static final Map<String, Class<?>> primitiveTypes = new HashMap<String, Class<?>>();
+	private static String cachedDefaultLoggingLevel;
+	private static boolean cacheRead;
+	private static boolean dirty;
+
+	static {
+		Class<?>[] types = { boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class };
+		for (Class<?> type : types) {
+			primitiveTypes.put(type.getName(), type);
+		}
+	}
+
+	/**
+	 * One HLE function defined by a module class.
+	 * A method can define multiple HLE functions (e.g. using different NIDs).
+	 * The values of the HLEFunction annotation are copied so that they
+	 * can be restored from the cache file without reading the annotation.
+	 */
+	public static class Entry {
+		private Method method;
+		private String methodName;
+		private String[] parameterTypes;
+		private int nid;
+		private boolean checkInsideInterrupt;
+		private boolean checkDispatchThreadEnabled;
+		private int version;
+		private String moduleName;
+		private String functionName;
+		private int stackUsage;
+		private boolean jumpCall;
+		private boolean canModifyCode;
+		private boolean unimplemented;
+		private String loggingLevel;
+
+		private Entry() {
+		}
+
+		private Entry(HLEFunction hleFunction, Method method, boolean unimplemented, HLELogging hleLogging) {
+			this.method = method;
+			methodName = method.getName();
+			Class<?>[] types = method.getParameterTypes();
+			parameterTypes = new String[types.length];
+			for (int i = 0; i < types.length; i++) {
+				parameterTypes[i] = types[i].getName();
+			}
+			nid = hleFunction.nid();
+			checkInsideInterrupt = hleFunction.checkInsideInterrupt();
+			checkDispatchThreadEnabled = hleFunction.checkDispatchThreadEnabled();
+			version = hleFunction.version();
+			moduleName = hleFunction.moduleName();
+			functionName = hleFunction.functionName();
+			stackUsage = hleFunction.stackUsage();
+			jumpCall = hleFunction.jumpCall();
+			canModifyCode = hleFunction.canModifyCode();
+			this.unimplemented = unimplemented;
+			loggingLevel = hleLogging != null ? hleLogging.level() : null;
+		}
+
+		public Method getMethod() {
+			return method;
+		}
+
+		public int getNid() {
+			return nid;
+		}
+
+		public boolean isCheckInsideInterrupt() {
+			return checkInsideInterrupt;
+		}
+
+		public boolean isCheckDispatchThreadEnabled() {
+			return checkDispatchThreadEnabled;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the module name, or an empty string for the default module name.
+		 */
+		public String getModuleName() {
+			return moduleName;
+		}
+
+		/**
+		 * @return the function name, or an empty string for the method name.
+		 */
+		public String getFunctionName() {
+			return functionName;
+		}
+
+		public int getStackUsage() {
+			return stackUsage;
+		}
+
+		public boolean isJumpCall() {
+			return jumpCall;
+		}
+
+		public boolean isCanModifyCode() {
+			return canModifyCode;
+		}
+
+		public boolean isUnimplemented() {
+			return unimplemented;
+		}
+
+		/**
+		 * @return the logging level to be used for this function, already resolved
+		 *         from the function, the module or the default logging,
+		 *         or null if no logging is defined.
+		 */
+		public String getLoggingLevel() {
+			return loggingLevel;
+		}
+
+		private void write(DataOutputStream os) throws IOException {
+			os.writeUTF(methodName);
+			os.writeByte(parameterTypes.length);
+			for (String parameterType : parameterTypes) {
+				os.writeUTF(parameterType);
+			}
+			os.writeInt(nid);
+			os.writeBoolean(checkInsideInterrupt);
+			os.writeBoolean(checkDispatchThreadEnabled);
+			os.writeInt(version);
+			os.writeUTF(moduleName);
+			os.writeUTF(functionName);
+			os.writeInt(stackUsage);
+			os.writeBoolean(jumpCall);
+			os.writeBoolean(canModifyCode);
+			os.writeBoolean(unimplemented);
+			os.writeBoolean(loggingLevel != null);
+			if (loggingLevel != null) {
+				os.writeUTF(loggingLevel);
+			}
+		}
+
+		private void read(DataInputStream is) throws IOException {
+			methodName = is.readUTF();
+			parameterTypes = new String[is.readUnsignedByte()];
+			for (int i = 0; i < parameterTypes.length; i++) {
+				parameterTypes[i] = is.readUTF();
+			}
+			nid = is.readInt();
+			checkInsideInterrupt = is.readBoolean();
+			checkDispatchThreadEnabled = is.readBoolean();
+			version = is.readInt();
+			moduleName = is.readUTF();
+			functionName = is.readUTF();
+			stackUsage = is.readInt();
+			jumpCall = is.readBoolean();
+			canModifyCode = is.readBoolean();
+			unimplemented = is.readBoolean();
+			loggingLevel = is.readBoolean() ? is.readUTF() : null;
+		}
+	}
+
+	private static class CachedModule {
+		public long classHash;
+		public Entry[] entries;
+	}
+
+	/**
+	 * Retrieve the HLE functions defined by a module class.
+	 *
+	 * @param moduleClass     the HLE module class
+	 * @param defaultLogging  the logging to be used when none is defined by the function or module
+	 * @return                the HLE functions defined by the module class
+	 */
+	public static synchronized Entry[] getEntries(Class<? extends HLEModule> moduleClass, HLELogging defaultLogging) {
+		Entry[] entries = registry.get(moduleClass);
+		if (entries == null) {
+			long classHash = getClassHash(moduleClass);
+			entries = getCachedEntries(moduleClass, classHash, defaultLogging);
+			if (entries == null) {
+				entries = analyze(moduleClass, defaultLogging);
+				if (classHash != 0L) {
+					CachedModule cachedModule = new CachedModule();
+					cachedModule.classHash = classHash;
+					cachedModule.entries = entries;
+					cachedModules.put(moduleClass.getName(), cachedModule);
+					dirty = true;
+				}
+			}
+			registry.put(moduleClass, entries);
+		}
+
+		return entries;
+	}
+
+	private static Entry[] analyze(Class<? extends HLEModule> moduleClass, HLELogging defaultLogging) {
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for (Method method : moduleClass.getMethods()) {
+			HLEFunction[] hleFunctions = method.getAnnotationsByType(HLEFunction.class);
+			if (hleFunctions.length == 0) {
+				continue;
+			}
+
+			HLEUnimplemented hleUnimplemented = method.getAnnotation(HLEUnimplemented.class);
+			HLELogging hleLogging = method.getAnnotation(HLELogging.class);
+
+			// Take the module default logging if no HLELogging has been
+			// defined at the function level and if the function is not
+			// unimplemented (which will produce it's own logging).
+			if (hleLogging == null) {
+				if (hleUnimplemented != null) {
+					// Take the logging level of the HLEUnimplemented class
+					// as default value for unimplemented functions
+					hleLogging = HLEUnimplemented.class.getAnnotation(HLELogging.class);
+				} else {
+					HLELogging hleModuleLogging = method.getDeclaringClass().getAnnotation(HLELogging.class);
+					if (hleModuleLogging != null) {
+						// Take the module default logging
+						hleLogging = hleModuleLogging;
+					} else {
+						hleLogging = defaultLogging;
+					}
+				}
+			}
+
+			for (HLEFunction hleFunction : hleFunctions) {
+				entries.add(new Entry(hleFunction, method, hleUnimplemented != null, hleLogging));
+			}
+		}
+
+		return entries.toArray(new Entry[entries.size()]);
+	}
+
+	/**
+	 * Compute a hash identifying the version of the class files of a module class
+	 * and of its super classes, based on the size and the modification time of
+	 * each class file, or of the jar file containing the classes.
+	 * This is much faster than reading the class files.
+	 *
+	 * @param moduleClass the HLE module class
+	 * @return            the hash value, or 0 if a class file cannot be found.
+	 */
+	private static long getClassHash(Class<?> moduleClass) {
+		long hash = 0L;
+		for (Class<?> c = moduleClass; c != null && c != Object.class; c = c.getSuperclass()) {
+			CodeSource codeSource = c.getProtectionDomain().getCodeSource();
+			if (codeSource == null || codeSource.getLocation() == null) {
+				return 0L;
+			}
+
+			File file;
+			try {
+				file = new File(codeSource.getLocation().toURI());
+			} catch (URISyntaxException e) {
+				return 0L;
+			} catch (IllegalArgumentException e) {
+				return 0L;
+			}
+			if (file.isDirectory()) {
+				file = new File(file, c.getName().replace('.', File.separatorChar) + ".class");
+			}
+
+			long lastModified = file.lastModified();
+			if (lastModified == 0L) {
+				return 0L;
+			}
+
+			hash = hash * 31L + c.getName().hashCode();
+			hash = hash * 31L + lastModified;
+			hash = hash * 31L + file.length();
+		}
+
+		// Never return 0 for a valid hash
+		return hash == 0L ? 1L : hash;
+	}
+
+	private static Class<?> getType(String typeName, ClassLoader classLoader) throws ClassNotFoundException {
+		Class<?> type = primitiveTypes.get(typeName);
+		if (type == null) {
+			type = Class.forName(typeName, false, classLoader);
+		}
+
+		return type;
+	}
+
+	private static Entry[] getCachedEntries(Class<?> moduleClass, long classHash, HLELogging defaultLogging) {
+		if (classHash == 0L) {
+			return null;
+		}
+
+		if (!cacheRead) {
+			cacheRead = true;
+			readCacheFile();
+		}
+
+		String defaultLoggingLevel = defaultLogging != null ? defaultLogging.level() : null;
+		if (defaultLoggingLevel == null ? cachedDefaultLoggingLevel != null : !defaultLoggingLevel.equals(cachedDefaultLoggingLevel)) {
+			return null;
+		}
+
+		CachedModule cachedModule = cachedModules.get(moduleClass.getName());
+		if (cachedModule == null || cachedModule.classHash != classHash) {
+			return null;
+		}
+
+		try {
+			ClassLoader classLoader = moduleClass.getClassLoader();
+			for (Entry entry : cachedModule.entries) {
+				Class<?>[] parameterTypes = new Class<?>[entry.parameterTypes.length];
+				for (int i = 0; i < parameterTypes.length; i++) {
+					parameterTypes[i] = getType(entry.parameterTypes[i], classLoader);
+				}
+				entry.method = moduleClass.getMethod(entry.methodName, parameterTypes);
+			}
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+
+		return cachedModule.entries;
+	}
+
+	private static File getCacheFile() {
+		return new File(Settings.getInstance().getTmpDirectory() + cacheFileName);
+	}
+
+	private static void readCacheFile() {
+		File cacheFile = getCacheFile();
+		if (!cacheFile.canRead()) {
+			return;
+		}
+
+		try {
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			try {
+				if (is.readInt() != CACHE_FILE_MAGIC || is.readInt() != CACHE_FILE_VERSION) {
+					return;
+				}
+
+				cachedDefaultLoggingLevel = is.readBoolean() ? is.readUTF() : null;
+				int numberModules = is.readInt();
+				for (int i = 0; i < numberModules; i++) {
+					String className = is.readUTF();
+					CachedModule cachedModule = new CachedModule();
+					cachedModule.classHash = is.readLong();
+					cachedModule.entries = new Entry[is.readInt()];
+					for (int j = 0; j < cachedModule.entries.length; j++) {
+						cachedModule.entries[j] = new Entry();
+						cachedModule.entries[j].read(is);
+					}
+					cachedModules.put(className, cachedModule);
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			log.warn(String.format("Cannot read the HLE module registry cache %s: %s", cacheFile, e));
+			cachedModules.clear();
+		}
+	}
+
+	/**
+	 * Write the cache file if new module classes have been analyzed.
+	 * To be called after the installation of the default modules.
+	 *
+	 * @param defaultLogging  the default logging used when analyzing the module classes
+	 */
+	public static synchronized void writeCacheFile(HLELogging defaultLogging) {
+		if (!dirty) {
+			return;
+		}
+
+		File cacheFile = getCacheFile();
+		try {
+			cacheFile.getParentFile().mkdirs();
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+			try {
+				os.writeInt(CACHE_FILE_MAGIC);
+				os.writeInt(CACHE_FILE_VERSION);
+				os.writeBoolean(defaultLogging != null);
+				if (defaultLogging != null) {
+					os.writeUTF(defaultLogging.level());
+				}
+				os.writeInt(cachedModules.size());
+				for (Map.Entry<String, CachedModule> cachedModule : cachedModules.entrySet()) {
+					os.writeUTF(cachedModule.getKey());
+					os.writeLong(cachedModule.getValue().classHash);
+					os.writeInt(cachedModule.getValue().entries.length);
+					for (Entry entry : cachedModule.getValue().entries) {
+						entry.write(os);
+					}
+				}
+			} finally {
+				os.close();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			log.warn(String.format("Cannot write the HLE module registry cache %s: %s", cacheFile, e));
+		}
+	}
+}
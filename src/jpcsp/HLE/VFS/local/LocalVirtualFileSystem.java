@@ -143,6 +143,17 @@ public class LocalVirtualFileSystem extends AbstractVirtualFileSystem {
 		return getFile(new File(localPath), fileName);
 	}
 
+	/**
+	 * Retrieve the local file for a file name of this file system,
+	 * matching the case of the existing local files.
+	 *
+	 * @param fileName  the file name, relative to this file system
+	 * @return          the local file
+	 */
+	public File getLocalFile(String fileName) {
+		return getFile(fileName);
+	}
+
 	protected static String getMode(int mode) {
 		return modeStrings[mode & PSP_O_RDWR];
 	}
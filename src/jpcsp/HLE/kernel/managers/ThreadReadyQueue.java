@@ -0,0 +1,169 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.HLE.kernel.managers;
+
+import java.util.ArrayDeque;
+
+import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
+
+/**
+ * Ready queue of the threads, organized like on the PSP kernel:
+ * one FIFO queue per priority and a bitmap of the non-empty priorities.
+ * The thread having the highest priority (i.e. the lowest priority value)
+ * can be found in constant time, without scanning all the ready threads.
+ *
+ * The current thread is not present in the ready queue.
+ */
+public class ThreadReadyQueue {
+	public static final int NUMBER_PRIORITIES = 128;
+	private final ArrayDeque<SceKernelThreadInfo>[] queues;
+	// Bit n is set when the queue for priority n is not empty
+	private final long[] priorityBitmap = new long[NUMBER_PRIORITIES / 64];
+	private int size;
+
+	public ThreadReadyQueue() {
+		// Generic arrays cannot be created, the cast is safe as the array is never exposed
+		@SuppressWarnings("unchecked")
+		ArrayDeque<SceKernelThreadInfo>[] queues = (ArrayDeque<SceKernelThreadInfo>[]) new ArrayDeque<?>[NUMBER_PRIORITIES];
+		this.queues = queues;
+		for (int i = 0; i < NUMBER_PRIORITIES; i++) {
+			queues[i] = new ArrayDeque<SceKernelThreadInfo>();
+		}
+	}
+
+	private static int getQueueIndex(int priority) {
+		if (priority < 0) {
+			return 0;
+		}
+		if (priority >= NUMBER_PRIORITIES) {
+			return NUMBER_PRIORITIES - 1;
+		}
+		return priority;
+	}
+
+	private void setBit(int index) {
+		priorityBitmap[index >> 6] |= 1L << (index & 63);
+	}
+
+	private void clearBit(int index) {
+		priorityBitmap[index >> 6] &= ~(1L << (index & 63));
+	}
+
+	public synchronized void addFirst(SceKernelThreadInfo thread) {
+		int index = getQueueIndex(thread.currentPriority);
+		queues[index].addFirst(thread);
+		setBit(index);
+		size++;
+	}
+
+	public synchronized void addLast(SceKernelThreadInfo thread) {
+		int index = getQueueIndex(thread.currentPriority);
+		queues[index].addLast(thread);
+		setBit(index);
+		size++;
+	}
+
+	private boolean remove(SceKernelThreadInfo thread, int index) {
+		ArrayDeque<SceKernelThreadInfo> queue = queues[index];
+		if (!queue.remove(thread)) {
+			return false;
+		}
+
+		if (queue.isEmpty()) {
+			clearBit(index);
+		}
+		size--;
+
+		return true;
+	}
+
+	public synchronized boolean remove(SceKernelThreadInfo thread) {
+		if (remove(thread, getQueueIndex(thread.currentPriority))) {
+			return true;
+		}
+
+		// The thread priority has been changed without using changePriority()
+		// while the thread was in the ready queue, search it in the other queues.
+		for (int i = 0; i < priorityBitmap.length; i++) {
+			for (long bits = priorityBitmap[i]; bits != 0L; bits &= bits - 1) {
+				if (remove(thread, (i << 6) + Long.numberOfTrailingZeros(bits))) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Change the priority of a thread.
+	 * When the thread is in the ready queue, it is moved to the end
+	 * of the queue for its new priority.
+	 *
+	 * @param thread      the thread
+	 * @param newPriority the new thread priority
+	 */
+	public synchronized void changePriority(SceKernelThreadInfo thread, int newPriority) {
+		boolean isQueued = remove(thread);
+		thread.currentPriority = newPriority;
+		if (isQueued) {
+			addLast(thread);
+		}
+	}
+
+	/**
+	 * @return the first thread having the highest priority
+	 *         or null if the ready queue is empty.
+	 */
+	public synchronized SceKernelThreadInfo getFirst() {
+		for (int i = 0; i < priorityBitmap.length; i++) {
+			long bits = priorityBitmap[i];
+			if (bits != 0L) {
+				return queues[(i << 6) + Long.numberOfTrailingZeros(bits)].peekFirst();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param priority the thread priority
+	 * @return the first thread having the given priority
+	 *         or null if no thread having this priority is ready.
+	 */
+	public synchronized SceKernelThreadInfo getFirst(int priority) {
+		return queues[getQueueIndex(priority)].peekFirst();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < NUMBER_PRIORITIES; i++) {
+			queues[i].clear();
+		}
+		for (int i = 0; i < priorityBitmap.length; i++) {
+			priorityBitmap[i] = 0L;
+		}
+		size = 0;
+	}
+}
@@ -19,7 +19,6 @@ package jpcsp.HLE.kernel.managers;
 import java.util.LinkedList;
 import java.util.List;
 
-import jpcsp.HLE.Modules;
 import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
 
 /**
@@ -31,7 +30,7 @@ import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
  *
  */
 public abstract class ThreadWaitingList {
-	protected List<Integer> waitingThreads = new LinkedList<Integer>();
+	protected List<SceKernelThreadInfo> waitingThreads = new LinkedList<SceKernelThreadInfo>();
 	protected int waitType;
 	protected int waitId;
 
@@ -54,7 +53,7 @@ public abstract class ThreadWaitingList {
 	public abstract void addWaitingThread(SceKernelThreadInfo thread);
 
 	public void removeWaitingThread(SceKernelThreadInfo thread) {
-		waitingThreads.remove(Integer.valueOf(thread.uid));
+		waitingThreads.remove(thread);
 	}
 
 	public SceKernelThreadInfo getNextWaitingThread(SceKernelThreadInfo baseThread) {
@@ -62,22 +61,15 @@ public abstract class ThreadWaitingList {
 			return getFirstWaitingThread();
 		}
 
-		int index = waitingThreads.indexOf(baseThread.uid);
+		int index = waitingThreads.indexOf(baseThread);
 		if (index < 0 || (index + 1) >= getNumWaitingThreads()) {
 			return null;
 		}
 
-		int uid = waitingThreads.get(index + 1);
-		SceKernelThreadInfo thread = Modules.ThreadManForUserModule.getThreadById(uid);
-
-		// Is the thread still existing
-		if (thread == null) {
-			// Thread is no longer existing, delete it from the waiting list and retry
-			waitingThreads.remove(index + 1);
-			return getNextWaitingThread(baseThread);
-		}
+		SceKernelThreadInfo thread = waitingThreads.get(index + 1);
 
 		// Is the thread still waiting on this ID?
+		// (a deleted thread is no longer waiting)
 		if (!thread.isWaitingForType(waitType) || thread.waitId != waitId) {
 			// The thread is no longer waiting on this object, remove it from the waiting list and retry
 			waitingThreads.remove(index + 1);
@@ -93,17 +85,10 @@ public abstract class ThreadWaitingList {
 			return null;
 		}
 
-		int uid = waitingThreads.get(0);
-		SceKernelThreadInfo thread = Modules.ThreadManForUserModule.getThreadById(uid);
-
-		// Is the thread still existing
-		if (thread == null) {
-			// Thread is no longer existing, delete it from the waiting list and retry
-			waitingThreads.remove(0);
-			return getFirstWaitingThread();
-		}
+		SceKernelThreadInfo thread = waitingThreads.get(0);
 
 		// Is the thread still waiting on this ID?
+		// (a deleted thread is no longer waiting)
 		if (!thread.isWaitingForType(waitType) || thread.waitId != waitId) {
 			// The thread is no longer waiting on this object, remove it from the waiting list and retry
 			waitingThreads.remove(0);
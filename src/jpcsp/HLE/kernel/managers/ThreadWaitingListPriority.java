@@ -18,7 +18,6 @@ package jpcsp.HLE.kernel.managers;
 
 import java.util.ListIterator;
 
-import jpcsp.HLE.Modules;
 import jpcsp.HLE.kernel.types.SceKernelThreadInfo;
 
 /**
@@ -37,22 +36,19 @@ public class ThreadWaitingListPriority extends ThreadWaitingList {
 		boolean added = false;
 
 		if (!waitingThreads.isEmpty()) {
-			for (ListIterator<Integer> lit = waitingThreads.listIterator(); lit.hasNext(); ) {
-				int uid = lit.next().intValue();
-				SceKernelThreadInfo waitingThread = Modules.ThreadManForUserModule.getThreadById(uid);
-				if (waitingThread != null) {
-					if (thread.currentPriority < waitingThread.currentPriority) {
-						lit.previous();
-						lit.add(thread.uid);
-						added = true;
-						break;
-					}
+			for (ListIterator<SceKernelThreadInfo> lit = waitingThreads.listIterator(); lit.hasNext(); ) {
+				SceKernelThreadInfo waitingThread = lit.next();
+				if (thread.currentPriority < waitingThread.currentPriority) {
+					lit.previous();
+					lit.add(thread);
+					added = true;
+					break;
 				}
 			}
 		}
 
 		if (!added) {
-			waitingThreads.add(thread.uid);
+			waitingThreads.add(thread);
 		}
 	}
 }
@@ -0,0 +1,267 @@
+/*
+ This file is part of jpcsp.
+
+ Jpcsp is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Jpcsp is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.HLE.kernel.types;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.Emulator;
+import jpcsp.HLE.Modules;
+import jpcsp.HLE.VFS.IVirtualFileSystem;
+import jpcsp.HLE.VFS.local.LocalVirtualFileSystem;
+import jpcsp.HLE.modules.sceUtility;
+
+/**
+ * The set of files written by one savedata save.
+ *
+ * The file contents are snapshotted from the emulated memory
+ * (and encrypted when required) when the save is requested.
+ * The files are then written either immediately or, in write-behind mode,
+ * by a background thread while the application continues.
+ * Each file is first written to a hidden temporary file in the same
+ * directory and then atomically renamed,
+ * so that an interrupted save never leaves a partially written file.
+ *
+ * While a commit is pending, the savedata reads are served
+ * from its snapshot.
+ */
+public class SavedataCommit {
+    private static Logger log = sceUtility.log;
+    // Approximate duration of a save on a real PSP Memory Stick
+    private static final int COMMIT_BASE_DURATION_MICROS = 100000;
+    private static final int MEMORY_STICK_WRITE_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    private static final String tmpFilePrefix = ".";
+    private static final String tmpFileSuffix = ".tmp";
+    private static final LinkedBlockingQueue<SavedataCommit> commits = new LinkedBlockingQueue<SavedataCommit>();
+    // The latest pending commit for each savedata path
+    private static final Map<String, SavedataCommit> pendingCommits = new ConcurrentHashMap<String, SavedataCommit>();
+    private static CommitThread commitThread;
+    private final String path;
+    private final String directoryName;
+    private final LocalVirtualFileSystem vfs;
+    private final String localDirectoryName;
+    // The files to be written, in order. The PARAM.SFO is added last.
+    private final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private long deadlineMicros;
+    private volatile IOException error;
+
+    private static class CommitThread extends Thread {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    SavedataCommit commit = commits.take();
+                    commit.commit();
+                } catch (InterruptedException e) {
+                    // Ignore exception
+                }
+            }
+        }
+    }
+
+    /**
+     * @param path           the savedata path, e.g. "ms0:/PSP/SAVEDATA/GAME00001/"
+     * @param directoryName  the savedata directory name, e.g. "GAME00001"
+     */
+    public SavedataCommit(String path, String directoryName) {
+        this.path = path;
+        this.directoryName = directoryName;
+
+        // The file system is resolved on the emulator thread,
+        // the IoFileMgr is not thread-safe.
+        StringBuilder localFileName = new StringBuilder();
+        IVirtualFileSystem vfs = Modules.IoFileMgrForUserModule.getVirtualFileSystem(path, localFileName);
+        if (vfs instanceof LocalVirtualFileSystem) {
+            this.vfs = (LocalVirtualFileSystem) vfs;
+            localDirectoryName = localFileName.toString();
+        } else {
+            this.vfs = null;
+            localDirectoryName = null;
+        }
+    }
+
+    public void addFile(String fileName, byte[] data) {
+        files.put(fileName, data);
+    }
+
+    private int getTotalLength() {
+        int totalLength = 0;
+        for (byte[] data : files.values()) {
+            totalLength += data.length;
+        }
+
+        return totalLength;
+    }
+
+    /**
+     * Write all the files now.
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        if (vfs == null) {
+            throw new IOException(String.format("Savedata path %s is not on a local file system", path));
+        }
+
+        // Use the case of the existing directory and files
+        File directory = vfs.getLocalFile(localDirectoryName);
+        directory.mkdirs();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String fileName = file.getKey();
+            File localFile = vfs.getLocalFile(localDirectoryName + "/" + fileName);
+            // Keep the temporary file on the same file system as the target file,
+            // so that it can always be renamed atomically
+            File tmpFile = new File(localFile.getParentFile(), tmpFilePrefix + localFile.getName() + tmpFileSuffix);
+            writeFile(localFile, tmpFile, file.getValue());
+        }
+
+        // Do not wait for the directory watcher to notice the new files
+        SavedataIndex.getInstance().invalidate(directoryName);
+    }
+
+    private static void writeFile(File file, File tmpFile, byte[] data) throws IOException {
+        try {
+            FileOutputStream os = new FileOutputStream(tmpFile);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+
+            Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Do not leave the temporary file on the Memory Stick
+            tmpFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the files in the background.
+     * The commit is reported as completed at the earliest when
+     * the same save would have completed on a PSP.
+     */
+    public void submit() {
+        int totalLength = getTotalLength();
+        deadlineMicros = Emulator.getClock().microTime() + COMMIT_BASE_DURATION_MICROS + totalLength * 1000000L / MEMORY_STICK_WRITE_BYTES_PER_SECOND;
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("SavedataCommit submit %s, %d files, %d bytes", path, files.size(), totalLength));
+        }
+
+        synchronized (commits) {
+            if (commitThread == null) {
+                commitThread = new CommitThread();
+                commitThread.setName("Savedata Commit Thread");
+                commitThread.setDaemon(true);
+                commitThread.start();
+            }
+        }
+
+        pendingCommits.put(path, this);
+        commits.add(this);
+    }
+
+    private void commit() {
+        try {
+            write();
+        } catch (IOException e) {
+            log.error(String.format("SavedataCommit %s", path), e);
+            error = e;
+        } finally {
+            pendingCommits.remove(path, this);
+            done.countDown();
+        }
+    }
+
+    /**
+     * @return true if the files have been written and
+     *         the emulated save duration has elapsed.
+     */
+    public boolean isCompleted() {
+        return done.getCount() == 0 && Emulator.getClock().microTime() >= deadlineMicros;
+    }
+
+    /**
+     * @return the error raised while writing the files, or null if the commit was successful
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    public void waitForCompletion() {
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                // Ignore exception
+            }
+        }
+    }
+
+    /**
+     * Retrieve the content of a file that is still being written.
+     *
+     * @param path      the savedata path
+     * @param fileName  the file name
+     * @return          the file content or null if the file is not part of a pending commit
+     */
+    public static byte[] getPendingFileData(String path, String fileName) {
+        SavedataCommit commit = pendingCommits.get(path);
+        if (commit == null || fileName == null) {
+            return null;
+        }
+
+        for (Map.Entry<String, byte[]> file : commit.files.entrySet()) {
+            if (file.getKey().equalsIgnoreCase(fileName)) {
+                return file.getValue();
+            }
+        }
+
+        // The file is not part of the latest commit but could be written by a previous one
+        commit.waitForCompletion();
+
+        return null;
+    }
+
+    /**
+     * Wait for the pending commits, e.g. before listing or deleting savedata directories.
+     */
+    public static void waitForPendingCommits() {
+        for (SavedataCommit commit : pendingCommits.values()) {
+            commit.waitForCompletion();
+        }
+    }
+
+    public static void exit() {
+        // Do not lose a save when exiting
+        waitForPendingCommits();
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ This file is part of jpcsp.
+
+ Jpcsp is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Jpcsp is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.HLE.kernel.types;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.HLE.modules.sceUtility;
+import jpcsp.format.PSF;
+import jpcsp.settings.Settings;
+import jpcsp.util.Utilities;
+
+/**
+ * Index of the savedata directories present on the Memory Stick.
+ *
+ * The savedata dialogs and the MODE_SIZES/MODE_LIST... requests need
+ * the list of the savedata directories, their size and their PARAM.SFO
+ * values. Without this index, these were retrieved again from the files
+ * each time they were needed, i.e. once per frame while a savedata
+ * list dialog is displayed.
+ *
+ * The entries are kept in memory and invalidated by a directory watcher
+ * when the savedata files are changed. The PARAM.SFO values are also
+ * persisted between runs: they are only parsed again when the
+ * directory content has changed.
+ * The icons are only read and decoded when they are first displayed.
+ */
+public class SavedataIndex {
+    private static Logger log = sceUtility.log;
+    private static final int INDEX_FILE_MAGIC = 0x58444953; // "SIDX"
+    private static final int INDEX_FILE_VERSION = 1;
+    private static final String indexFileName = "SavedataIndex.dat";
+    private static SavedataIndex instance;
+    private final File savedataDirectory;
+    // The current entries, indexed by directory name (gameName + saveName)
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // The entries read from the index file, not yet verified
+    private final Map<String, Entry> persistedEntries = new ConcurrentHashMap<String, Entry>();
+    private volatile String[] directoryNames;
+    private WatchService watchService;
+    private final Map<WatchKey, String> watchKeys = new ConcurrentHashMap<WatchKey, String>();
+    private volatile boolean dirty;
+
+    public static class Entry {
+        private final File directory;
+        private final String directoryName;
+        private final boolean present;
+        // Signature of the directory content (file names, sizes and modification times)
+        private long signature;
+        private boolean hasPsf;
+        private String title;
+        private String detail;
+        private String savedataTitle;
+        private int parentalLevel;
+        private int sizeKb;
+        private long sfoLastModified;
+        private String icon0FileName;
+        private SoftReference<byte[]> icon0Data;
+        private SoftReference<BufferedImage> icon0Image;
+
+        private Entry(File directory, String directoryName, boolean present) {
+            this.directory = directory;
+            this.directoryName = directoryName;
+            this.present = present;
+        }
+
+        public String getDirectoryName() {
+            return directoryName;
+        }
+
+        public boolean isPresent() {
+            return present;
+        }
+
+        public boolean hasPsf() {
+            return hasPsf;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public String getSavedataTitle() {
+            return savedataTitle;
+        }
+
+        public int getParentalLevel() {
+            return parentalLevel;
+        }
+
+        public int getSizeKb() {
+            return sizeKb;
+        }
+
+        /**
+         * @return the modification time of the PARAM.SFO file in milliseconds,
+         *         or 0 when there is no PARAM.SFO file.
+         */
+        public long getSfoLastModified() {
+            return sfoLastModified;
+        }
+
+        public Calendar getSavedTime() {
+            if (sfoLastModified == 0L) {
+                return null;
+            }
+
+            Calendar savedTime = Calendar.getInstance();
+            // The PSP file times have a resolution of 1 second
+            savedTime.setTimeInMillis(sfoLastModified - sfoLastModified % 1000L);
+
+            return savedTime;
+        }
+
+        /**
+         * Read the ICON0.PNG file, only when it is first needed.
+         *
+         * @return the content of the ICON0.PNG file or null if there is none.
+         */
+        public synchronized byte[] getIcon0Data() {
+            if (icon0FileName == null) {
+                return null;
+            }
+
+            byte[] data = icon0Data == null ? null : icon0Data.get();
+            if (data == null) {
+                File file = new File(directory, icon0FileName);
+                data = new byte[(int) file.length()];
+                try {
+                    DataInputStream is = new DataInputStream(new FileInputStream(file));
+                    try {
+                        is.readFully(data);
+                    } finally {
+                        is.close();
+                    }
+                } catch (IOException e) {
+                    log.debug("SavedataIndex getIcon0Data", e);
+                    return null;
+                }
+                icon0Data = new SoftReference<byte[]>(data);
+            }
+
+            return data;
+        }
+
+        /**
+         * Decode the ICON0.PNG file, only when it is first displayed.
+         *
+         * @return the decoded ICON0.PNG or null if there is none or it is corrupted.
+         */
+        public synchronized BufferedImage getIcon0Image() {
+            BufferedImage image = icon0Image == null ? null : icon0Image.get();
+            if (image == null) {
+                byte[] data = getIcon0Data();
+                if (data == null) {
+                    return null;
+                }
+
+                try {
+                    image = ImageIO.read(new ByteArrayInputStream(data));
+                } catch (Exception e) {
+                    // Corrupted data, just ignore.
+                }
+
+                if (image == null) {
+                    return null;
+                }
+                icon0Image = new SoftReference<BufferedImage>(image);
+            }
+
+            return image;
+        }
+
+        private void copyPsfValues(Entry entry) {
+            hasPsf = entry.hasPsf;
+            title = entry.title;
+            detail = entry.detail;
+            savedataTitle = entry.savedataTitle;
+            parentalLevel = entry.parentalLevel;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SavedataIndex.Entry[%s, present=%b, sizeKb=%d, title='%s']", directoryName, present, sizeKb, title);
+        }
+    }
+
+    public static SavedataIndex getInstance() {
+        if (instance == null) {
+            instance = new SavedataIndex();
+        }
+        return instance;
+    }
+
+    private SavedataIndex() {
+        savedataDirectory = new File(SceUtilitySavedataParam.savedataFilePath);
+        readIndexFile();
+        startWatcher();
+    }
+
+    public static void exit() {
+        if (instance != null) {
+            instance.writeIndexFile();
+        }
+    }
+
+    /**
+     * Retrieve the index entry of a savedata directory.
+     *
+     * @param directoryName  the directory name, i.e. gameName + saveName
+     * @return               the index entry, never null.
+     *                       Entry.isPresent() returns false when the directory does not exist.
+     */
+    public Entry getEntry(String directoryName) {
+        Entry entry = entries.get(directoryName);
+        if (entry != null && watchService != null) {
+            return entry;
+        }
+
+        entry = scanDirectory(directoryName, entry);
+        entries.put(directoryName, entry);
+
+        return entry;
+    }
+
+    /**
+     * @return the names of all the savedata directories, in the order returned by the file system.
+     */
+    public String[] getDirectoryNames() {
+        String[] names = directoryNames;
+        if (names == null || watchService == null) {
+            names = savedataDirectory.list();
+            if (names == null) {
+                names = new String[0];
+            }
+            directoryNames = names;
+        }
+
+        return names;
+    }
+
+    /**
+     * Force a refresh of a savedata directory, e.g. after it has been written or deleted.
+     *
+     * @param directoryName  the directory name, i.e. gameName + saveName
+     */
+    public void invalidate(String directoryName) {
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("SavedataIndex invalidate '%s'", directoryName));
+        }
+        entries.remove(directoryName);
+        directoryNames = null;
+    }
+
+    private static long computeSignature(File[] files) {
+        long signature = files.length;
+        for (File file : files) {
+            signature = signature * 31 + file.getName().hashCode();
+            signature = signature * 31 + file.length();
+            signature = signature * 31 + file.lastModified();
+        }
+
+        return signature;
+    }
+
+    private Entry scanDirectory(String directoryName, Entry previousEntry) {
+        File directory = new File(savedataDirectory, directoryName);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new Entry(directory, directoryName, false);
+        }
+        Arrays.sort(files);
+
+        long signature = computeSignature(files);
+        if (previousEntry != null && previousEntry.present && previousEntry.signature == signature) {
+            // Nothing has changed since the last scan
+            return previousEntry;
+        }
+
+        Entry entry = new Entry(directory, directoryName, true);
+        entry.signature = signature;
+        File sfoFile = null;
+        for (File file : files) {
+            if (file.isFile()) {
+                entry.sizeKb += Utilities.getSizeKb((int) file.length());
+                if (SceUtilitySavedataParam.paramSfoFileName.equalsIgnoreCase(file.getName())) {
+                    sfoFile = file;
+                } else if (SceUtilitySavedataParam.icon0FileName.equalsIgnoreCase(file.getName())) {
+                    entry.icon0FileName = file.getName();
+                }
+            }
+        }
+
+        if (sfoFile != null) {
+            entry.sfoLastModified = sfoFile.lastModified();
+
+            Entry persistedEntry = persistedEntries.remove(directoryName);
+            if (persistedEntry != null && persistedEntry.signature == signature) {
+                // The PARAM.SFO values from the index file are still valid
+                entry.copyPsfValues(persistedEntry);
+            } else {
+                readPsf(entry, sfoFile);
+                dirty = true;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("SavedataIndex scanned %s", entry));
+        }
+
+        return entry;
+    }
+
+    private static void readPsf(Entry entry, File sfoFile) {
+        byte[] buffer = new byte[(int) sfoFile.length()];
+        try {
+            DataInputStream is = new DataInputStream(new FileInputStream(sfoFile));
+            try {
+                is.readFully(buffer);
+            } finally {
+                is.close();
+            }
+
+            PSF psf = new PSF();
+            psf.read(ByteBuffer.wrap(buffer));
+            entry.hasPsf = true;
+            entry.title = psf.getString("TITLE");
+            entry.detail = psf.getString("SAVEDATA_DETAIL");
+            entry.savedataTitle = psf.getString("SAVEDATA_TITLE");
+            entry.parentalLevel = psf.getNumeric("PARENTAL_LEVEL");
+        } catch (IOException e) {
+            log.debug("SavedataIndex readPsf", e);
+        }
+    }
+
+    private static File getIndexFile() {
+        return new File(Settings.getInstance().getTmpDirectory() + indexFileName);
+    }
+
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    private void readIndexFile() {
+        File indexFile = getIndexFile();
+        if (!indexFile.canRead()) {
+            return;
+        }
+
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (is.readInt() != INDEX_FILE_MAGIC || is.readInt() != INDEX_FILE_VERSION) {
+                    return;
+                }
+
+                int count = is.readInt();
+                for (int i = 0; i < count; i++) {
+                    String directoryName = is.readUTF();
+                    Entry entry = new Entry(new File(savedataDirectory, directoryName), directoryName, true);
+                    entry.signature = is.readLong();
+                    entry.hasPsf = is.readBoolean();
+                    entry.title = readString(is);
+                    entry.detail = readString(is);
+                    entry.savedataTitle = readString(is);
+                    entry.parentalLevel = is.readInt();
+                    persistedEntries.put(directoryName, entry);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Cannot read the savedata index %s: %s", indexFile, e));
+            persistedEntries.clear();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("SavedataIndex read %d entries from %s", persistedEntries.size(), indexFile));
+        }
+    }
+
+    private void writeIndexFile() {
+        if (!dirty) {
+            return;
+        }
+
+        // Keep the persisted entries that have not been verified during this run
+        Map<String, Entry> allEntries = new HashMap<String, Entry>(persistedEntries);
+        for (Entry entry : entries.values()) {
+            if (entry.present && entry.hasPsf) {
+                allEntries.put(entry.directoryName, entry);
+            }
+        }
+
+        File indexFile = getIndexFile();
+        try {
+            indexFile.getParentFile().mkdirs();
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            try {
+                os.writeInt(INDEX_FILE_MAGIC);
+                os.writeInt(INDEX_FILE_VERSION);
+                os.writeInt(allEntries.size());
+                for (Entry entry : allEntries.values()) {
+                    os.writeUTF(entry.directoryName);
+                    os.writeLong(entry.signature);
+                    os.writeBoolean(entry.hasPsf);
+                    writeString(os, entry.title);
+                    writeString(os, entry.detail);
+                    writeString(os, entry.savedataTitle);
+                    os.writeInt(entry.parentalLevel);
+                }
+            } finally {
+                os.close();
+            }
+            dirty = false;
+        } catch (IOException e) {
+            log.warn(String.format("Cannot write the savedata index %s: %s", indexFile, e));
+        }
+    }
+
+    private void startWatcher() {
+        try {
+            savedataDirectory.mkdirs();
+            watchService = FileSystems.getDefault().newWatchService();
+            register(savedataDirectory.toPath(), null);
+            String[] names = savedataDirectory.list();
+            if (names != null) {
+                for (String name : names) {
+                    register(new File(savedataDirectory, name).toPath(), name);
+                }
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Cannot watch the savedata directory %s, the savedata index will verify each access: %s", savedataDirectory, e));
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e1) {
+                    // Ignore exception
+                }
+                watchService = null;
+            }
+            return;
+        }
+
+        Thread watcherThread = new WatcherThread();
+        watcherThread.setName("Savedata Index Watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void register(Path path, String directoryName) throws IOException {
+        if (!path.toFile().isDirectory()) {
+            return;
+        }
+
+        WatchKey watchKey = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        // The savedata directory itself is registered with an empty name
+        watchKeys.put(watchKey, directoryName == null ? "" : directoryName);
+    }
+
+    private class WatcherThread extends Thread {
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey watchKey;
+                try {
+                    watchKey = watchService.take();
+                } catch (InterruptedException e) {
+                    continue;
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+
+                String directoryName = watchKeys.get(watchKey);
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // Some events have been lost, invalidate everything
+                        entries.clear();
+                        directoryNames = null;
+                    } else if (directoryName == null) {
+                        // Unknown key
+                    } else if (directoryName.length() == 0) {
+                        // A savedata directory has been created or deleted
+                        String name = event.context().toString();
+                        invalidate(name);
+                        if (event.kind() == ENTRY_CREATE) {
+                            try {
+                                register(new File(savedataDirectory, name).toPath(), name);
+                            } catch (IOException e) {
+                                log.debug("SavedataIndex register", e);
+                            }
+                        }
+                    } else {
+                        // A file has been changed inside a savedata directory
+                        invalidate(directoryName);
+                    }
+                }
+
+                if (!watchKey.reset()) {
+                    watchKeys.remove(watchKey);
+                }
+            }
+        }
+    }
+}
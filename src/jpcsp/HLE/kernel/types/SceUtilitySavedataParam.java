@@ -33,7 +33,6 @@ import jpcsp.memory.IMemoryWriter;
 import jpcsp.memory.MemoryWriter;
 import jpcsp.HLE.Modules;
 import jpcsp.HLE.TPointer;
-import jpcsp.HLE.VFS.IVirtualFileSystem;
 import jpcsp.crypto.CryptoEngine;
 import jpcsp.filesystems.SeekableDataInput;
 import jpcsp.filesystems.SeekableRandomFile;
@@ -157,6 +156,9 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     public int idListAddr;      // Address of a buffer to hold the file IDs generated by MODE_LIST.
     public int fileListAddr;    // Address of a buffer to hold the file names generated by MODE_FILES.
     public int sizeAddr;        // Address of a buffer to hold the sizes generated by MODE_GETSIZE.
+    public SavedataCommit pendingCommit; // Files of the last save, still being written in the background.
+    // Write the savedata files in the background, see SavedataCommit
+    public static boolean enableWriteBehind = true;
 
     public static class PspUtilitySavedataSFOParam extends pspAbstractMemoryMappedStructure {
 
@@ -472,12 +474,19 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     }
 
     public String getBasePath(String gameName, String saveName) {
-        String path = savedataPath + gameName;
+        return savedataPath + getDirectoryName(gameName, saveName) + "/";
+    }
+
+    public static String getDirectoryName(String gameName, String saveName) {
         if (saveName != null && !anyFileName.equals(saveName)) {
-            path += saveName;
+            return gameName + saveName;
         }
-        path += "/";
-        return path;
+        return gameName;
+    }
+
+    private static SavedataIndex.Entry getIndexEntry(String gameName, String saveName) {
+        SavedataCommit.waitForPendingCommits();
+        return SavedataIndex.getInstance().getEntry(getDirectoryName(gameName, saveName));
     }
 
     public String getFileName(String saveName, String fileName) {
@@ -512,29 +521,7 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     }
 
     public int getSizeKb(String gameName, String saveName) {
-        int sizeKb = 0;
-
-        String path = getBasePath(gameName, saveName);
-        StringBuilder localFileName = new StringBuilder();
-        IVirtualFileSystem vfs = Modules.IoFileMgrForUserModule.getVirtualFileSystem(path, localFileName);
-        if (vfs != null) {
-            String[] fileNames = vfs.ioDopen(localFileName.toString());
-            if (fileNames != null) {
-                for (int i = 0; i < fileNames.length; i++) {
-                	if (!".".equals(fileNames[i]) && !"..".equals(fileNames[i]) ) {
-	                    SceIoStat stat = new SceIoStat();
-	                    SceIoDirent dirent = new SceIoDirent(stat, fileNames[i]);
-	                    int result = vfs.ioDread(localFileName.toString(), dirent);
-	                    if (result > 0) {
-	                        sizeKb += Utilities.getSizeKb((int) stat.size);
-	                    }
-                	}
-                }
-                vfs.ioDclose(localFileName.toString());
-            }
-        }
-
-        return sizeKb;
+        return getIndexEntry(gameName, saveName).getSizeKb();
     }
 
     private SeekableDataInput getDataInput(String path, String name) {
@@ -543,25 +530,27 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         return fileInput;
     }
 
-    private SeekableRandomFile getDataOutput(String path, String name) {
-        SeekableDataInput fileInput = Modules.IoFileMgrForUserModule.getFile(path + name, jpcsp.HLE.modules.IoFileMgrForUser.PSP_O_RDWR | jpcsp.HLE.modules.IoFileMgrForUser.PSP_O_CREAT);
-
-        if (fileInput instanceof SeekableRandomFile) {
-            return (SeekableRandomFile) fileInput;
-        }
-
-        return null;
-    }
     
     public boolean deleteDir(String path) {
-        return Modules.IoFileMgrForUserModule.rmdir(path, true);
+        SavedataCommit.waitForPendingCommits();
+        boolean success = Modules.IoFileMgrForUserModule.rmdir(path, true);
+        if (path.startsWith(savedataPath)) {
+            String directoryName = path.substring(savedataPath.length());
+            if (directoryName.endsWith("/")) {
+                directoryName = directoryName.substring(0, directoryName.length() - 1);
+            }
+            SavedataIndex.getInstance().invalidate(directoryName);
+        }
+        return success;
     }
     
     public boolean deleteFile(String filename) {
         boolean success = false;
         if (filename != null && filename.length() > 0) {
+            SavedataCommit.waitForPendingCommits();
             File f = new File(getBasePath().replace(":", "/") + filename);
             success = f.delete();
+            SavedataIndex.getInstance().invalidate(getDirectoryName(gameName, saveName));
         }
         return success;
     }
@@ -626,10 +615,11 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     public void save(Memory mem, boolean secure) throws IOException {
         String path = getBasePath();
 
-        Modules.IoFileMgrForUserModule.mkdirs(path);
-
         base.result = 0;
 
+        // Snapshot all the files from memory
+        SavedataCommit commit = new SavedataCommit(path, getDirectoryName(gameName, saveName));
+
         // Copy the original SAVEDATA key.
         byte[] sdkey = key;
 
@@ -642,27 +632,35 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
                 keyFileOutput.write(sdkey, 0, sdkey.length);
                 keyFileOutput.close();
             }
-            writeEncryptedFile(mem, path, fileName, dataBuf, dataSize, key);
+            addEncryptedFile(commit, mem, fileName, dataBuf, dataSize, key);
         } else {
-            writeFile(mem, path, fileName, dataBuf, dataSize);
+            addFile(commit, mem, fileName, dataBuf, dataSize);
         }
 
         // Write ICON0.PNG
-        writePNG(mem, path, icon0FileName, icon0FileData.buf, icon0FileData.size);
+        addPNG(commit, mem, icon0FileName, icon0FileData.buf, icon0FileData.size);
 
         // Check and write ICON1.PMF or ICON1.PNG
         if (icon1FileData.buf != 0) {
-	        writePNG(mem, path, getIcon1FileName(icon1FileData.buf), icon1FileData.buf, icon1FileData.size);
+	        addPNG(commit, mem, getIcon1FileName(icon1FileData.buf), icon1FileData.buf, icon1FileData.size);
         }
 
         // Write PIC1.PNG
-        writePNG(mem, path, pic1FileName, pic1FileData.buf, pic1FileData.size);
+        addPNG(commit, mem, pic1FileName, pic1FileData.buf, pic1FileData.size);
 
         // Write SND0.AT3
-        writeFile(mem, path, snd0FileName, snd0FileData.buf, snd0FileData.size);
+        addFile(commit, mem, snd0FileName, snd0FileData.buf, snd0FileData.size);
 
         // Write PARAM.SFO
-        writePsf(mem, path, paramSfoFileName, sfoParam, CryptoEngine.getSavedataCryptoStatus(), fileName, sdkey, key);
+        addPsf(commit, path, paramSfoFileName, sfoParam, CryptoEngine.getSavedataCryptoStatus(), fileName, sdkey, key);
+
+        if (enableWriteBehind) {
+            // The files will be written in the background
+            pendingCommit = commit;
+            commit.submit();
+        } else {
+            commit.write();
+        }
     }
 
     private int loadFile(Memory mem, String path, String name, int address, int maxLength) throws IOException {
@@ -670,6 +668,21 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
             return 0;
         }
 
+        byte[] pendingData = SavedataCommit.getPendingFileData(path, name);
+        if (pendingData != null) {
+            // The file is still being written, read it from the snapshot
+            int fileSize = pendingData.length;
+            if (fileSize > maxLength && maxLength > 0) {
+                fileSize = maxLength;
+                base.result = SceKernelErrors.ERROR_SAVEDATA_LOAD_DATA_BROKEN;
+            } else if (address == 0) {
+                fileSize = 0;
+            }
+            new TPointer(mem, address).setArray(pendingData, fileSize);
+
+            return fileSize;
+        }
+
         int fileSize = 0;
         SeekableDataInput fileInput = null;
         try {
@@ -698,34 +711,25 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         return fileSize;
     }
 
-    private void writeEncryptedFile(Memory mem, String path, String name, int address, int length, byte[] key) throws IOException {
+    private void addEncryptedFile(SavedataCommit commit, Memory mem, String name, int address, int length, byte[] key) {
         if (name == null || name.length() <= 0 || address == 0) {
             return;
         }
 
-        SeekableRandomFile fileOutput = null;
-        try {
-	        fileOutput = getDataOutput(path, name);
-	        if (fileOutput != null) {
-	        	byte[] inBuf = new byte[length + 0x10];
+    	byte[] inBuf = new byte[length + 0x10];
 
-		        IMemoryReader memoryReader = MemoryReader.getMemoryReader(address, 1);
-		        for (int i = 0; i < length; i++) {
-		            inBuf[i] = (byte) memoryReader.readNext();
-		        }
+        IMemoryReader memoryReader = MemoryReader.getMemoryReader(address, 1);
+        for (int i = 0; i < length; i++) {
+            inBuf[i] = (byte) memoryReader.readNext();
+        }
 
-		        // Replace the key with the generated hash.
-		        CryptoEngine crypto = new CryptoEngine();
-		        this.key = crypto.getSAVEDATAEngine().EncryptSavedata(inBuf, length, key);
+        // Replace the key with the generated hash.
+        // The encryption is not deferred to the commit thread:
+        // the CryptoEngine is not thread-safe.
+        CryptoEngine crypto = new CryptoEngine();
+        this.key = crypto.getSAVEDATAEngine().EncryptSavedata(inBuf, length, key);
 
-		        fileOutput.getChannel().truncate(inBuf.length);  // Avoid writing leftover bytes from previous encryption.
-		        fileOutput.write(inBuf, 0, inBuf.length);
-	        }
-        } finally {
-        	if (fileOutput != null) {
-        		fileOutput.close();
-        	}
-        }
+        commit.addFile(name, inBuf);
     }
 
     private int loadEncryptedFile(Memory mem, String path, String name, int address, int maxLength, byte[] key) throws IOException {
@@ -736,14 +740,17 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         int length = 0;
         SeekableDataInput fileInput = null;
         try {
-	        fileInput = getDataInput(path, name);
-	        if (fileInput == null) {
-	            throw new FileNotFoundException("File not found '" + path + "' '" + name + "'");
-	        }
+	        byte[] inBuf = SavedataCommit.getPendingFileData(path, name);
+	        if (inBuf == null) {
+		        fileInput = getDataInput(path, name);
+		        if (fileInput == null) {
+		            throw new FileNotFoundException("File not found '" + path + "' '" + name + "'");
+		        }
 
-	        int fileSize = (int) fileInput.length();
-	        byte[] inBuf = new byte[fileSize];
-	        fileInput.readFully(inBuf);
+		        inBuf = new byte[(int) fileInput.length()];
+		        fileInput.readFully(inBuf);
+	        }
+	        int fileSize = inBuf.length;
 
 	        CryptoEngine crypto = new CryptoEngine();
 	        byte[] outBuf = crypto.getSAVEDATAEngine().DecryptSavedata(inBuf, fileSize, key);
@@ -767,43 +774,37 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         return length;
     }
 
-    private void writeFile(Memory mem, String path, String name, int address, int length) throws IOException {
+    private void addFile(SavedataCommit commit, Memory mem, String name, int address, int length) {
         if (name == null || name.length() <= 0 || address == 0) {
             return;
         }
 
-        SeekableRandomFile fileOutput = null;
-        try {
-        	fileOutput = getDataOutput(path, name);
-	        if (fileOutput != null) {
-	        	fileOutput.getChannel().truncate(length);  // Avoid writing leftover bytes from previous encryption.
-	        	Utilities.write(fileOutput, new TPointer(mem, address), length);
-	        }
-        } finally {
-        	if (fileOutput != null) {
-        		fileOutput.close();
-        	}
-        }
+        commit.addFile(name, new TPointer(mem, address).getArray8(length));
     }
 
-    private void writePNG(Memory mem, String path, String name, int address, int length) throws IOException {
+    private void addPNG(SavedataCommit commit, Memory mem, String name, int address, int length) {
 		// The PSP is saving only the real size of the PNG file,
     	// which could be smaller than the buffer size
 		length = PNG.getEndOfPNG(mem, address, length);
 
-    	writeFile(mem, path, name, address, length);
+    	addFile(commit, mem, name, address, length);
     }
 
     private boolean checkParamSFOEncryption(String path, String name) throws IOException {
         boolean isEncrypted = false;
     	SeekableDataInput fileInput = null;
     	try {
-	        fileInput = getDataInput(path, name);
-	        if (fileInput != null && fileInput.length() > 0) {
-	            byte[] buffer = new byte[(int) fileInput.length()];
-	            fileInput.readFully(buffer);
-	            fileInput.close();
-	
+    		byte[] buffer = SavedataCommit.getPendingFileData(path, name);
+    		if (buffer == null) {
+		        fileInput = getDataInput(path, name);
+		        if (fileInput != null && fileInput.length() > 0) {
+		            buffer = new byte[(int) fileInput.length()];
+		            fileInput.readFully(buffer);
+		            fileInput.close();
+		        }
+    		}
+
+	        if (buffer != null) {
 	            // SAVEDATA PARAM.SFO has a fixed size of 0x1330 bytes.
 	            // In order to determine if the SAVEDATA is encrypted or not,
 	            // we must check if the check bit at 0x11B0 is set (an identical check
@@ -827,12 +828,17 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         PSF psf = null;
         SeekableDataInput fileInput = null;
         try {
-	        fileInput = getDataInput(path, name);
-	        if (fileInput != null && fileInput.length() > 0) {
-	            byte[] buffer = new byte[(int) fileInput.length()];
-	            fileInput.readFully(buffer);
-	            fileInput.close();
+    		byte[] buffer = SavedataCommit.getPendingFileData(path, name);
+    		if (buffer == null) {
+		        fileInput = getDataInput(path, name);
+		        if (fileInput != null && fileInput.length() > 0) {
+		            buffer = new byte[(int) fileInput.length()];
+		            fileInput.readFully(buffer);
+		            fileInput.close();
+		        }
+    		}
 
+	        if (buffer != null) {
 	            psf = new PSF();
 	            psf.read(ByteBuffer.wrap(buffer));
 	        }
@@ -855,108 +861,102 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         }
     }
 
-    private void writePsf(Memory mem, String path, String psfName, PspUtilitySavedataSFOParam sfoParam, boolean cryptoMode, String dataName, byte[] key, byte[] hash) throws IOException {
-    	SeekableRandomFile psfOutput = null;
-    	try {
-	        psfOutput = getDataOutput(path, psfName);
-	        if (psfOutput == null) {
-	            return;
-	        }
+    private static byte[] getBytes(PSF psf) {
+    	byte[] buffer = new byte[psf.size()];
+    	psf.write(ByteBuffer.wrap(buffer));
 
-	        // Generate different PSF instances for plain PSF and encrypted PSF (with hashes).
-	        PSF psf = new PSF();
-	        PSF encryptedPsf = new PSF();
+    	return buffer;
+    }
 
-	        // Test if a PARAM.SFO already exists and save it's SAVEDATA_PARAMS.
-	        byte[] savedata_params_old = new byte[128];
-	        PSF oldPsf = readPsf(path, psfName);
-	        if (oldPsf != null) {
-	            savedata_params_old = (byte[]) oldPsf.get("SAVEDATA_PARAMS");
-	        }
+    private void addPsf(SavedataCommit commit, String path, String psfName, PspUtilitySavedataSFOParam sfoParam, boolean cryptoMode, String dataName, byte[] key, byte[] hash) throws IOException {
+        // Generate different PSF instances for plain PSF and encrypted PSF (with hashes).
+        PSF psf = new PSF();
+        PSF encryptedPsf = new PSF();
 
-	        // Insert CATEGORY.
-	        psf.put("CATEGORY", "MS", 4);
-	        encryptedPsf.put("CATEGORY", "MS", 4);
-
-	        // Insert PARENTAL_LEVEL.
-	        psf.put("PARENTAL_LEVEL", sfoParam.parentalLevel);
-	        encryptedPsf.put("PARENTAL_LEVEL", sfoParam.parentalLevel);
-
-	        // Insert SAVEDATA_DETAIL.
-	        psf.put("SAVEDATA_DETAIL", sfoParam.detail, 1024);
-	        encryptedPsf.put("SAVEDATA_DETAIL", sfoParam.detail, 1024);
-
-	        // Insert SAVEDATA_DIRECTORY.
-	        if (saveName.equals("<>")) {
-	            // Do not write the saveName if it's "<>".
-	            psf.put("SAVEDATA_DIRECTORY", gameName, 64);
-	            encryptedPsf.put("SAVEDATA_DIRECTORY", gameName, 64);
-	        } else {
-	            psf.put("SAVEDATA_DIRECTORY", gameName + saveName, 64);
-	            encryptedPsf.put("SAVEDATA_DIRECTORY", gameName + saveName, 64);
-	        }
+        // Test if a PARAM.SFO already exists and save it's SAVEDATA_PARAMS.
+        byte[] savedata_params_old = new byte[128];
+        PSF oldPsf = readPsf(path, psfName);
+        if (oldPsf != null) {
+            savedata_params_old = (byte[]) oldPsf.get("SAVEDATA_PARAMS");
+        }
 
-	        // Insert SAVEDATA_FILE_LIST.
-	        PspUtilitySavedataSecureFileList secureFileList = getSecureFileList(null);
-	        // Even if the main data file is not being saved by a secure method, if the
-	        // hash is not null then the file is saved in the file list.
-	        if (hash != null) {
-	            // Add the current dataName as a secure file name
-	            if (secureFileList == null) {
-	                secureFileList = new PspUtilitySavedataSecureFileList();
-	            }
-	            // Only add the file hash if using encryption.
-	            if (cryptoMode) {
-	                secureFileList.update(dataName, hash);
-	            } else {
-	                byte[] clearHash = new byte[0x10];
-	                secureFileList.update(dataName, clearHash);
-	            }
-	        }
-	        if (secureFileList != null) {
-	            psf.put("SAVEDATA_FILE_LIST", secureFileList.getBytes());
-	            encryptedPsf.put("SAVEDATA_FILE_LIST", secureFileList.getBytes());
-	        }
+        // Insert CATEGORY.
+        psf.put("CATEGORY", "MS", 4);
+        encryptedPsf.put("CATEGORY", "MS", 4);
 
-	        // Generate blank SAVEDATA_PARAMS for plain PSF.
-	        byte[] savedata_params = new byte[128];
-	        psf.put("SAVEDATA_PARAMS", savedata_params);
+        // Insert PARENTAL_LEVEL.
+        psf.put("PARENTAL_LEVEL", sfoParam.parentalLevel);
+        encryptedPsf.put("PARENTAL_LEVEL", sfoParam.parentalLevel);
 
-	        // Insert the remaining params for plain PSF.
-	        psf.put("SAVEDATA_TITLE", sfoParam.savedataTitle, 128);
-	        psf.put("TITLE", sfoParam.title, 128);
+        // Insert SAVEDATA_DETAIL.
+        psf.put("SAVEDATA_DETAIL", sfoParam.detail, 1024);
+        encryptedPsf.put("SAVEDATA_DETAIL", sfoParam.detail, 1024);
 
-	        // Setup a temporary buffer for encryption (PARAM.SFO size is 0x1330).
-	        ByteBuffer buf = ByteBuffer.allocate(0x1330);
+        // Insert SAVEDATA_DIRECTORY.
+        if (saveName.equals("<>")) {
+            // Do not write the saveName if it's "<>".
+            psf.put("SAVEDATA_DIRECTORY", gameName, 64);
+            encryptedPsf.put("SAVEDATA_DIRECTORY", gameName, 64);
+        } else {
+            psf.put("SAVEDATA_DIRECTORY", gameName + saveName, 64);
+            encryptedPsf.put("SAVEDATA_DIRECTORY", gameName + saveName, 64);
+        }
 
-	        // Save back the PARAM.SFO data to be encrypted.
-	        psf.write(buf);
+        // Insert SAVEDATA_FILE_LIST.
+        PspUtilitySavedataSecureFileList secureFileList = getSecureFileList(null);
+        // Even if the main data file is not being saved by a secure method, if the
+        // hash is not null then the file is saved in the file list.
+        if (hash != null) {
+            // Add the current dataName as a secure file name
+            if (secureFileList == null) {
+                secureFileList = new PspUtilitySavedataSecureFileList();
+            }
+            // Only add the file hash if using encryption.
+            if (cryptoMode) {
+                secureFileList.update(dataName, hash);
+            } else {
+                byte[] clearHash = new byte[0x10];
+                secureFileList.update(dataName, clearHash);
+            }
+        }
+        if (secureFileList != null) {
+            psf.put("SAVEDATA_FILE_LIST", secureFileList.getBytes());
+            encryptedPsf.put("SAVEDATA_FILE_LIST", secureFileList.getBytes());
+        }
 
-	        // Generate a new PARAM.SFO and update file hashes.
-	        if (cryptoMode) {
-	            CryptoEngine crypto = new CryptoEngine();
-	            int sfoSize = buf.array().length;
-	            byte[] sfoData = buf.array();
+        // Generate blank SAVEDATA_PARAMS for plain PSF.
+        byte[] savedata_params = new byte[128];
+        psf.put("SAVEDATA_PARAMS", savedata_params);
 
-	            // Generate the final SAVEDATA_PARAMS (encrypted).
-	            crypto.getSAVEDATAEngine().UpdateSavedataHashes(encryptedPsf, sfoData, sfoSize, savedata_params_old, key);
+        // Insert the remaining params for plain PSF.
+        psf.put("SAVEDATA_TITLE", sfoParam.savedataTitle, 128);
+        psf.put("TITLE", sfoParam.title, 128);
 
-	            // Insert the remaining params for encrypted PSF.
-	            encryptedPsf.put("SAVEDATA_TITLE", sfoParam.savedataTitle, 128);
-	            encryptedPsf.put("TITLE", sfoParam.title, 128);
+        // Setup a temporary buffer for encryption (PARAM.SFO size is 0x1330).
+        ByteBuffer buf = ByteBuffer.allocate(0x1330);
 
-	            // Write the new encrypted PARAM.SFO (with hashes) from the encrypted PSF.
-	            encryptedPsf.write(psfOutput);
-	        } else {
-	            // Write the new PARAM.SFO (without hashes) from the plain PSF.
-	            psf.write(psfOutput);
-	        }
-    	} finally {
-    		if (psfOutput != null) {
-    	        // Close the PARAM.SFO file stream.
-    	        psfOutput.close();
-    		}
-    	}
+        // Save back the PARAM.SFO data to be encrypted.
+        psf.write(buf);
+
+        // Generate a new PARAM.SFO and update file hashes.
+        if (cryptoMode) {
+            CryptoEngine crypto = new CryptoEngine();
+            int sfoSize = buf.array().length;
+            byte[] sfoData = buf.array();
+
+            // Generate the final SAVEDATA_PARAMS (encrypted).
+            crypto.getSAVEDATAEngine().UpdateSavedataHashes(encryptedPsf, sfoData, sfoSize, savedata_params_old, key);
+
+            // Insert the remaining params for encrypted PSF.
+            encryptedPsf.put("SAVEDATA_TITLE", sfoParam.savedataTitle, 128);
+            encryptedPsf.put("TITLE", sfoParam.title, 128);
+
+            // Write the new encrypted PARAM.SFO (with hashes) from the encrypted PSF.
+            commit.addFile(psfName, getBytes(encryptedPsf));
+        } else {
+            // Write the new PARAM.SFO (without hashes) from the plain PSF.
+            commit.addFile(psfName, getBytes(psf));
+        }
     }
 
     public boolean test(Memory mem) throws IOException {
@@ -972,6 +972,10 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
             return false;
         }
 
+        if (SavedataCommit.getPendingFileData(path, name) != null) {
+            return true;
+        }
+
         SeekableDataInput fileInput = null;
         try {
 	        fileInput = getDataInput(path, name);
@@ -992,14 +996,12 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
         // It means any save from the current game, since all saves share a common
         // save data file.
         if (saveName == null || saveName.length() <= 0 || anyFileName.equals(saveName)) {
-            File f = new File(savedataFilePath);
-            String[] entries = f.list();
-            if (entries != null) {
-                for (int i = 0; i < f.list().length; i++) {
-                    if (entries[i].startsWith(gameName)) {
-                        saveName = entries[i].replace(gameName, "");
-                        break;
-                    }
+            SavedataCommit.waitForPendingCommits();
+            String[] entries = SavedataIndex.getInstance().getDirectoryNames();
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].startsWith(gameName)) {
+                    saveName = entries[i].replace(gameName, "");
+                    break;
                 }
             }
         }
@@ -1009,6 +1011,7 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
 
     public boolean isDirectoryPresent(String gameName, String saveName) {
         saveName = getAnySaveName(gameName, saveName);
+        SavedataCommit.waitForPendingCommits();
         String path = getBasePath(gameName, saveName);
         SceIoStat stat = Modules.IoFileMgrForUserModule.statFile(path);
         if (stat != null && (stat.attr & 0x20) == 0) {
@@ -1023,14 +1026,14 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
 
         // When NULL is sent in fileName, it means any file inside the savedata folder.
         if (fileName == null || fileName.length() <= 0) {
-            File f = new File(savedataFilePath + gameName + saveName);
-            if (f.list() == null) {
-                return false;
-            }
-            return true;
+            return getIndexEntry(gameName, saveName).isPresent();
         }
 
         String path = getBasePath(gameName, saveName);
+        if (SavedataCommit.getPendingFileData(path, fileName) != null) {
+            return true;
+        }
+
         try {
             SeekableDataInput fileInput = getDataInput(path, fileName);
             if (fileInput != null) {
@@ -1048,6 +1051,7 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     }
 
     public boolean isGameDirectoryPresent() {
+        SavedataCommit.waitForPendingCommits();
         String path = getBasePath();
         SceIoStat gameDirectoryStat = Modules.IoFileMgrForUserModule.statFile(path);
 
@@ -1055,16 +1059,7 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     }
 
     public long getTimestamp(String gameName, String saveName) {
-        String sfoFileName = getFileName(gameName, saveName, paramSfoFileName);
-        SceIoStat sfoStat = Modules.IoFileMgrForUserModule.statFile(sfoFileName);
-        if (sfoStat != null) {
-            Calendar cal = Calendar.getInstance();
-            ScePspDateTime pspTime = sfoStat.mtime;
-            cal.set(pspTime.year, pspTime.month, pspTime.day, pspTime.hour, pspTime.minute, pspTime.second);
-            return cal.getTimeInMillis();
-        }
-
-        return 0;
+        return getIndexEntry(gameName, saveName).getSfoLastModified();
     }
 
     public Calendar getSavedTime() {
@@ -1072,19 +1067,7 @@ public class SceUtilitySavedataParam extends pspUtilityBaseDialog {
     }
 
     public Calendar getSavedTime(String saveName) {
-        String sfoFileName = getFileName(saveName, SceUtilitySavedataParam.paramSfoFileName);
-        SceIoStat sfoStat = Modules.IoFileMgrForUserModule.statFile(sfoFileName);
-        if (sfoStat == null) {
-            return null;
-        }
-
-        ScePspDateTime pspTime = sfoStat.mtime;
-
-        Calendar savedTime = Calendar.getInstance();
-        // pspTime.month has a value in range [1..12], Calendar requires a value in range [0..11]
-        savedTime.set(pspTime.year, pspTime.month - 1, pspTime.day, pspTime.hour, pspTime.minute, pspTime.second);
-
-        return savedTime;
+        return getIndexEntry(gameName, saveName).getSavedTime();
     }
 
     @Override
@@ -88,6 +88,32 @@ public class pspFileBuffer {
 		return addr + readPosition;
 	}
 
+	/**
+	 * Retrieve the address of data available after the current read position.
+	 *
+	 * @param offset  the offset from the current read position
+	 * @param length  the length of the data
+	 * @return        the address of the data, or 0 if the data is not
+	 *                available or is not contiguous in the buffer
+	 */
+	public synchronized int getReadAddr(int offset, int length) {
+		if (offset < 0 || offset + length > currentSize) {
+			return 0;
+		}
+
+		int position = readPosition + offset;
+		int limit = maxSize;
+		if (position >= maxSize) {
+			position -= maxSize;
+			limit = maxSizeAfterFirstWrap;
+		}
+		if (position + length > limit) {
+			return 0;
+		}
+
+		return addr + position;
+	}
+
 	public int getReadSize() {
 		return min(currentSize, maxSize - readPosition);
 	}
@@ -65,7 +65,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -73,6 +77,7 @@ import jpcsp.Emulator;
 import jpcsp.Memory;
 import jpcsp.MemoryMap;
 import jpcsp.Processor;
+import jpcsp.State;
 import jpcsp.Allegrex.CpuState;
 import jpcsp.Allegrex.compiler.RuntimeContext;
 import jpcsp.HLE.Modules;
@@ -84,6 +89,7 @@ import jpcsp.HLE.VFS.crypto.PGDVirtualFile;
 import jpcsp.HLE.VFS.emulator.EmulatorVirtualFileSystem;
 import jpcsp.HLE.VFS.iso.UmdIsoVirtualFile;
 import jpcsp.HLE.VFS.iso.UmdIsoVirtualFileSystem;
+import jpcsp.HLE.VFS.local.LocalVirtualFile;
 import jpcsp.HLE.VFS.local.LocalVirtualFileSystem;
 import jpcsp.HLE.VFS.memoryStick.MemoryStickStorageVirtualFileSystem;
 import jpcsp.HLE.VFS.memoryStick.MemoryStickVirtualFileSystem;
@@ -257,6 +263,13 @@ public class IoFileMgrForUser extends HLEModule {
 
     private boolean allowExtractPGD;
 
+    // The host reads for sceIoReadAsync are executed by worker threads
+    public static boolean enableHostAsyncRead = true;
+    private static final int numberAsyncIoWorkers = 2;
+    private final LinkedBlockingQueue<IOAsyncReadAction> asyncIoRequests = new LinkedBlockingQueue<IOAsyncReadAction>();
+    private AsyncIoWorker[] asyncIoWorkers;
+    private volatile boolean asyncIoWorkersExit;
+
     // Implement the list of IIoListener as an array to improve the performance
     // when iterating over all the entries (most common action).
     private IIoListener[] ioListeners;
@@ -600,6 +613,10 @@ public class IoFileMgrForUser extends HLEModule {
     	private int address;
     	private int size;
     	private int requestedSize;
+    	// The host read performed by an async IO worker thread
+    	private byte[] stagingBuffer;
+    	private int stagingResult;
+    	private CountDownLatch stagingDone;
 
     	public IOAsyncReadAction(IoInfo info, int address, int requestedSize, int size) {
     		this.info = info;
@@ -608,13 +625,83 @@ public class IoFileMgrForUser extends HLEModule {
     		this.size = size;
     	}
 
+    	/**
+    	 * Start reading the file on an async IO worker thread, so that the host IO
+    	 * is overlapping with the CPU emulation.
+    	 * The data is only copied into the PSP memory when the async operation
+    	 * is completed, at its emulated time.
+    	 */
+    	public void start() {
+    		if (enableHostAsyncRead && size > 0 && isHostAsyncReadPossible(info)) {
+    			stagingBuffer = new byte[size];
+    			stagingDone = new CountDownLatch(1);
+    			startAsyncIoWorkers();
+    			asyncIoRequests.add(this);
+    		}
+    	}
+
+    	/**
+    	 * Executed by an async IO worker thread.
+    	 */
+    	public void hostRead() {
+    		try {
+	    		if (info.vFile != null) {
+	    			stagingResult = info.vFile.ioRead(stagingBuffer, 0, size);
+	    		} else {
+	    			info.readOnlyFile.readFully(stagingBuffer, 0, size);
+	    			stagingResult = size;
+	    		}
+    		} catch (Exception e) {
+    			log.error("IOAsyncReadAction", e);
+    			stagingResult = ERROR_KERNEL_FILE_READ_ERROR;
+    		} finally {
+    			stagingDone.countDown();
+    		}
+    	}
+
+    	/**
+    	 * The request has been discarded before being read by a worker thread.
+    	 */
+    	public void cancelHostRead() {
+    		stagingResult = ERROR_KERNEL_FILE_READ_ERROR;
+    		stagingDone.countDown();
+    	}
+
+    	public void waitForHostRead() {
+    		if (stagingDone != null) {
+    			while (true) {
+    				try {
+    					stagingDone.await();
+    					break;
+    				} catch (InterruptedException e) {
+    					// Ignore exception and retry
+    				}
+    			}
+    		}
+    	}
+
         @Override
         public void execute() {
             long position = info.position;
             int result = 0;
 
             TPointer ptr = new TPointer(Memory.getInstance(), address);
-            if (info.vFile != null) {
+            if (stagingBuffer != null) {
+            	// Wait for the host read, if not yet completed
+            	waitForHostRead();
+            	result = stagingResult;
+            	if (result >= 0) {
+            		ptr.setArray(stagingBuffer, result);
+            		info.position += result;
+            		size = result;
+	            	if (info.sectorBlockMode) {
+	            		result /= UmdIsoFile.sectorLength;
+	            	}
+            	} else {
+            		size = 0;
+            	}
+            	stagingBuffer = null;
+            } else if (info.vFile != null) {
             	result = info.vFile.ioRead(ptr, size);
             	if (result >= 0) {
             		info.position += result;
@@ -650,6 +737,64 @@ public class IoFileMgrForUser extends HLEModule {
         }
     }
 
+    private class AsyncIoWorker extends Thread {
+    	@Override
+    	public void run() {
+    		while (!asyncIoWorkersExit) {
+    			try {
+    				IOAsyncReadAction action = asyncIoRequests.take();
+    				action.hostRead();
+    			} catch (InterruptedException e) {
+    				// Ignore exception
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Only the file types known to be accessed from a single thread at a time
+     * can be read by the async IO worker threads.
+     * The UMD files are sharing the UmdIsoReader, which is synchronized.
+     */
+    private static boolean isHostAsyncReadPossible(IoInfo info) {
+    	if (info.vFile != null) {
+    		return info.vFile instanceof UmdIsoVirtualFile || info.vFile instanceof LocalVirtualFile;
+    	}
+
+    	return info.readOnlyFile instanceof UmdIsoFile || info.readOnlyFile instanceof SeekableRandomFile;
+    }
+
+    private synchronized void startAsyncIoWorkers() {
+    	if (asyncIoWorkers == null) {
+    		asyncIoWorkersExit = false;
+    		asyncIoWorkers = new AsyncIoWorker[numberAsyncIoWorkers];
+    		for (int i = 0; i < asyncIoWorkers.length; i++) {
+    			asyncIoWorkers[i] = new AsyncIoWorker();
+    			asyncIoWorkers[i].setName(String.format("Async IO Worker #%d", i + 1));
+    			asyncIoWorkers[i].setDaemon(true);
+    			asyncIoWorkers[i].start();
+    		}
+    	}
+    }
+
+    private synchronized void stopAsyncIoWorkers() {
+    	if (asyncIoWorkers != null) {
+    		asyncIoWorkersExit = true;
+    		for (int i = 0; i < asyncIoWorkers.length; i++) {
+    			asyncIoWorkers[i].interrupt();
+    		}
+    		asyncIoWorkers = null;
+    	}
+
+    	// Do not keep the pending requests for the next session:
+    	// their file IDs are no longer valid.
+    	List<IOAsyncReadAction> pendingRequests = new LinkedList<IOAsyncReadAction>();
+    	asyncIoRequests.drainTo(pendingRequests);
+    	for (IOAsyncReadAction pendingRequest : pendingRequests) {
+    		pendingRequest.cancelHostRead();
+    	}
+    }
+
 	private class ExtractPGDSettingsListerner extends AbstractBoolSettingsListener {
 		@Override
 		protected void settingsValueChanged(boolean value) {
@@ -1291,6 +1436,7 @@ public class IoFileMgrForUser extends HLEModule {
     }
 
     public void exit() {
+    	stopAsyncIoWorkers();
     	closeIsoReader();
     }
 
@@ -1310,6 +1456,11 @@ public class IoFileMgrForUser extends HLEModule {
 
     	this.iso = iso;
 
+    	if (iso != null && !State.discId.equals(State.DISCID_UNKNOWN_UMD) && !State.discId.equals(State.DISCID_UNKNOWN_FILE) && !State.discId.equals(State.DISCID_UNKNOWN_NOTHING_LOADED)) {
+    		// Record and replay the UMD accesses of this game
+    		iso.startAccessProfile(Settings.getInstance().getDiscTmpDirectory() + "umdaccess.profile");
+    	}
+
         registerUmdIso();
     }
 
@@ -1995,6 +2146,11 @@ public class IoFileMgrForUser extends HLEModule {
                 		log.debug(String.format("sceIoClose id=0x%X returning ERROR_KERNEL_ASYNC_BUSY(0x%08X)", id, result));
                 	}
                 } else {
+                	if (info.asyncAction instanceof IOAsyncReadAction) {
+                		// An async read has been abandoned, wait for the host read before closing the file
+                		((IOAsyncReadAction) info.asyncAction).waitForHostRead();
+                		info.asyncAction = null;
+                	}
                 	if (info.vFile != null) {
                 		timings = info.vFile.getTimings();
                 		info.vFile.ioClose();
@@ -2191,7 +2347,9 @@ public class IoFileMgrForUser extends HLEModule {
 
                     if (async) {
                     	// Execute the read operation in the IO async thread
-                    	asyncAction = new IOAsyncReadAction(info, data_addr, requestedSize, size);
+                    	IOAsyncReadAction asyncReadAction = new IOAsyncReadAction(info, data_addr, requestedSize, size);
+                    	asyncReadAction.start();
+                    	asyncAction = asyncReadAction;
                     	result = 0;
                     } else {
                     	position = info.position;
@@ -2242,7 +2400,9 @@ public class IoFileMgrForUser extends HLEModule {
 
                     if (async) {
                     	// Execute the read operation in the IO async thread
-                    	asyncAction = new IOAsyncReadAction(info, data_addr, requestedSize, size);
+                    	IOAsyncReadAction asyncReadAction = new IOAsyncReadAction(info, data_addr, requestedSize, size);
+                    	asyncReadAction.start();
+                    	asyncAction = asyncReadAction;
                     	result = 0;
                     } else {
                     	position = info.position;
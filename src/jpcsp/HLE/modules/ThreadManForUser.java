@@ -130,6 +130,7 @@ import jpcsp.HLE.kernel.Managers;
 import jpcsp.HLE.kernel.managers.IntrManager;
 import jpcsp.HLE.kernel.managers.SceUidManager;
 import jpcsp.HLE.kernel.managers.SystemTimeManager;
+import jpcsp.HLE.kernel.managers.ThreadReadyQueue;
 import jpcsp.HLE.kernel.types.IAction;
 import jpcsp.HLE.kernel.types.IWaitStateChecker;
 import jpcsp.HLE.kernel.types.SceKernelAlarmInfo;
@@ -197,7 +198,7 @@ public class ThreadManForUser extends HLEModule {
 
     private HashMap<Integer, SceKernelThreadInfo> threadMap;
     private HashMap<Integer, SceKernelThreadEventHandlerInfo> threadEventHandlers;
-    private LinkedList<SceKernelThreadInfo> readyThreads;
+    private ThreadReadyQueue readyThreads;
     private SceKernelThreadInfo currentThread;
     private SceKernelThreadInfo idle0, idle1;
     public Statistics statistics;
@@ -656,7 +657,7 @@ public class ThreadManForUser extends HLEModule {
     	currentThread = null;
         threadMap = new HashMap<Integer, SceKernelThreadInfo>();
         threadEventHandlers = new HashMap<Integer, SceKernelThreadEventHandlerInfo>();
-        readyThreads = new LinkedList<SceKernelThreadInfo>();
+        readyThreads = new ThreadReadyQueue();
         statistics = new Statistics();
 
         callbackMap = new HashMap<Integer, pspBaseCallback>();
@@ -1084,16 +1085,8 @@ public class ThreadManForUser extends HLEModule {
     private SceKernelThreadInfo nextThread() {
         // Find the thread with status PSP_THREAD_READY and the highest priority.
         // In this implementation low priority threads can get starved.
-        // Remark: the currentThread is not present in the readyThreads List.
-        SceKernelThreadInfo found = null;
-        synchronized (readyThreads) {
-            for (SceKernelThreadInfo thread : readyThreads) {
-                if (found == null || thread.currentPriority < found.currentPriority) {
-                    found = thread;
-                }
-            }
-        }
-        return found;
+        // Remark: the currentThread is not present in the readyThreads queue.
+        return readyThreads.getFirst();
     }
 
     /**
@@ -1548,21 +1541,17 @@ public class ThreadManForUser extends HLEModule {
     }
 
     private void removeFromReadyThreads(SceKernelThreadInfo thread) {
-        synchronized (readyThreads) {
-            readyThreads.remove(thread);
-        	needThreadReschedule = true;
-        }
+        readyThreads.remove(thread);
+        needThreadReschedule = true;
     }
 
     private void addToReadyThreads(SceKernelThreadInfo thread, boolean addFirst) {
-        synchronized (readyThreads) {
-        	if (addFirst) {
-        		readyThreads.addFirst(thread);
-        	} else {
-        		readyThreads.addLast(thread);
-        	}
-        	needThreadReschedule = true;
+        if (addFirst) {
+        	readyThreads.addFirst(thread);
+        } else {
+        	readyThreads.addLast(thread);
         }
+        needThreadReschedule = true;
     }
 
     private void setToBeDeletedThread(SceKernelThreadInfo thread) {
@@ -1589,12 +1578,24 @@ public class ThreadManForUser extends HLEModule {
     	}
     }
 
+    /**
+     * Change the priority of a thread without rescheduling.
+     * The priority of a thread must always be changed through this method
+     * so that a ready thread is kept in the ready queue of its priority.
+     *
+     * @param thread      the thread
+     * @param newPriority the new thread priority
+     */
+    public void setThreadPriority(SceKernelThreadInfo thread, int newPriority) {
+    	readyThreads.changePriority(thread, newPriority);
+    }
+
     public void hleKernelChangeThreadPriority(SceKernelThreadInfo thread, int newPriority) {
     	if (thread == null) {
     		return;
     	}
 
-        thread.currentPriority = newPriority;
+        setThreadPriority(thread, newPriority);
         if (thread.isRunning()) {
     		// The current thread will be moved to the front of the ready queue
     		hleChangeThreadState(thread, PSP_THREAD_READY);
@@ -4113,7 +4114,7 @@ public class ThreadManForUser extends HLEModule {
         if (thread.isStopped()) {
             // Tested on PSP:
             // If the thread is stopped, it's current priority is replaced by it's initial priority.
-            thread.currentPriority = thread.initPriority;
+            setThreadPriority(thread, thread.initPriority);
             return ERROR_KERNEL_THREAD_ALREADY_DORMANT;
         }
 
@@ -4171,24 +4172,20 @@ public class ThreadManForUser extends HLEModule {
      */
     @HLEFunction(nid = 0x912354A7, version = 150)
     public int sceKernelRotateThreadReadyQueue(@CheckArgument("checkThreadPriority") int priority) {
-        synchronized (readyThreads) {
-            for (SceKernelThreadInfo thread : readyThreads) {
-                if (thread.currentPriority == priority) {
-                	// When rotating the ready queue of the current thread,
-                	// the current thread yields and is moved to the end of its
-                	// ready queue.
-                	if (priority == currentThread.currentPriority) {
-                		thread = currentThread;
-                		// The current thread will be moved to the front of the ready queue
-                		hleChangeThreadState(thread, PSP_THREAD_READY);
-                	}
-                    // Move the thread to the end of the ready queue
-                	removeFromReadyThreads(thread);
-                    addToReadyThreads(thread, false);
-                    hleRescheduleCurrentThread();
-                    break;
-                }
-            }
+        SceKernelThreadInfo thread = readyThreads.getFirst(priority);
+        if (thread != null) {
+        	// When rotating the ready queue of the current thread,
+        	// the current thread yields and is moved to the end of its
+        	// ready queue.
+        	if (priority == currentThread.currentPriority) {
+        		thread = currentThread;
+        		// The current thread will be moved to the front of the ready queue
+        		hleChangeThreadState(thread, PSP_THREAD_READY);
+        	}
+            // Move the thread to the end of the ready queue
+        	removeFromReadyThreads(thread);
+            addToReadyThreads(thread, false);
+            hleRescheduleCurrentThread();
         }
         
         return 0;
@@ -53,9 +53,12 @@ import jpcsp.HLE.kernel.types.SceKernelErrors;
 import jpcsp.HLE.kernel.types.pspFileBuffer;
 import jpcsp.HLE.modules.SysMemUserForUser.SysMemInfo;
 import jpcsp.HLE.modules.sceAudiocodec.AudiocodecInfo;
+import jpcsp.media.codec.CodecFactory;
 import jpcsp.media.codec.ICodec;
 import jpcsp.media.codec.atrac3.Atrac3Decoder;
 import jpcsp.media.codec.atrac3plus.Atrac3plusDecoder;
+import jpcsp.media.codec.util.DecodeAhead;
+import jpcsp.media.codec.util.PcmCache;
 import jpcsp.util.Utilities;
 
 import org.apache.log4j.Logger;
@@ -79,6 +82,13 @@ public class sceAtrac3plus extends HLEModule {
 
     @Override
     public void stop() {
+    	for (int i = 0; i < atracIDs.length; i++) {
+    		if (atracIDs[i] != null) {
+    			atracIDs[i].stopDecodeAhead();
+    		}
+    	}
+    	PcmCache.exit();
+
     	if (temporaryDecodeArea != null) {
     		Modules.SysMemUserForUserModule.free(temporaryDecodeArea);
     		temporaryDecodeArea = null;
@@ -123,6 +133,8 @@ public class sceAtrac3plus extends HLEModule {
     public static final int ATRAC_HEADER_HASH_LENGTH = 512;
 
     public static final int atracDecodeDelay = 2300; // Microseconds, based on PSP tests
+    // Decode the next frames in a separate thread while the application is consuming the current one
+    public static boolean enableDecodeAhead = true;
 
     protected AtracID atracIDs[] = new AtracID[6];
 
@@ -193,6 +205,8 @@ public class sceAtrac3plus extends HLEModule {
         protected int sourceBufferLength;
         // AddStreamData
         protected int getStreamDataInfoCurrentSample;
+        // Decode-ahead
+        protected DecodeAhead decodeAhead;
 
         public AtracID(int id) {
         	super(id);
@@ -202,6 +216,7 @@ public class sceAtrac3plus extends HLEModule {
         @Override
 		public void release() {
         	super.release();
+        	stopDecodeAhead();
         	setInUse(false);
         	releaseContext();
         	releaseInternalBuffer();
@@ -239,9 +254,68 @@ public class sceAtrac3plus extends HLEModule {
 
         	setCodecInitialized();
 
+        	startDecodeAhead();
+
         	return 0;
         }
 
+        private void startDecodeAhead() {
+        	stopDecodeAhead();
+
+        	if (!enableDecodeAhead) {
+        		return;
+        	}
+
+        	// The decode-ahead is using its own codec instance,
+        	// initialized here as the codec initialization is not thread-safe.
+        	ICodec decodeAheadCodec = CodecFactory.getCodec(getCodecType());
+        	if (decodeAheadCodec == null || decodeAheadCodec.init(info.atracBytesPerFrame, channels, outputChannels, info.atracCodingMode) < 0) {
+        		return;
+        	}
+
+        	// Looping tracks completely stored in memory are caching their decoded frames
+        	long contentHash = 0L;
+        	if (hasLoop() && inputBufferContainsAllData()) {
+        		contentHash = PcmCache.getContentHash(inputBuffer.getAddr(), info.inputFileSize, getCodecType(), info.atracBytesPerFrame, info.atracCodingMode, outputChannels);
+        	}
+
+        	decodeAhead = new DecodeAhead(decodeAheadCodec, info.atracBytesPerFrame, info.inputFileDataOffset, outputChannels, contentHash);
+        }
+
+        public void stopDecodeAhead() {
+        	if (decodeAhead != null) {
+        		decodeAhead.release();
+        		decodeAhead = null;
+        	}
+        }
+
+        private int getPreviousFrameAddr(int position) {
+        	// The previous frame is only known when all the data is in memory.
+        	// In that case, the file position is also the offset in the input buffer.
+        	if (position - info.atracBytesPerFrame < info.inputFileDataOffset || !inputBufferContainsAllData()) {
+        		return 0;
+        	}
+
+        	return inputBuffer.getAddr() + position - info.atracBytesPerFrame;
+        }
+
+        private void decodeAhead() {
+        	while (true) {
+        		int position = decodeAhead.getNextPosition(currentReadPosition);
+        		if (position < 0 || position + info.atracBytesPerFrame > info.inputFileSize) {
+        			break;
+        		}
+
+        		int inputAddr = inputBuffer.getReadAddr(position - currentReadPosition, info.atracBytesPerFrame);
+        		if (inputAddr == 0) {
+        			// The frame is not yet available or is wrapping around the buffer end
+        			break;
+        		}
+
+        		decodeAhead.submit(inputAddr, position, getPreviousFrameAddr(position));
+        	}
+        }
+
         public int decodeData(int samplesAddr, TPointer32 outEndAddr) {
         	skippedEndSamples = 0;
         	Memory mem = Memory.getInstance();
@@ -324,7 +398,12 @@ public class sceAtrac3plus extends HLEModule {
         		}
         	}
 
-        	int result = codec.decode(mem, readAddr, info.atracBytesPerFrame, mem, decodedSamplesAddr);
+        	int result;
+        	if (decodeAhead != null) {
+        		result = decodeAhead.decode(readAddr, currentReadPosition, getPreviousFrameAddr(currentReadPosition), decodedSamplesAddr);
+        	} else {
+        		result = codec.decode(mem, readAddr, info.atracBytesPerFrame, mem, decodedSamplesAddr);
+        	}
         	if (result < 0) {
         		if (log.isDebugEnabled()) {
         			log.debug(String.format("decodeData received codec decode error 0x%08X", result));
@@ -386,6 +465,10 @@ public class sceAtrac3plus extends HLEModule {
         		}
         	}
 
+        	if (decodeAhead != null) {
+        		decodeAhead();
+        	}
+
         	return 0;
         }
 
@@ -122,6 +122,8 @@ import jpcsp.HLE.VFS.IVirtualFile;
 import jpcsp.HLE.VFS.IVirtualFileSystem;
 import jpcsp.HLE.kernel.Managers;
 import jpcsp.HLE.kernel.managers.SystemTimeManager;
+import jpcsp.HLE.kernel.types.SavedataCommit;
+import jpcsp.HLE.kernel.types.SavedataIndex;
 import jpcsp.HLE.kernel.types.SceFontInfo;
 import jpcsp.HLE.kernel.types.SceIoStat;
 import jpcsp.HLE.kernel.types.SceKernelErrors;
@@ -147,7 +149,6 @@ import jpcsp.HLE.modules.SysMemUserForUser.SysMemInfo;
 import jpcsp.crypto.CryptoEngine;
 import jpcsp.filesystems.SeekableDataInput;
 import jpcsp.format.PNG;
-import jpcsp.format.PSF;
 import jpcsp.graphics.RE.IRenderingEngine;
 import jpcsp.graphics.capture.CaptureImage;
 import jpcsp.hardware.MemoryStick;
@@ -1093,10 +1094,55 @@ public class sceUtility extends HLEModule {
             return SceKernelErrors.ERROR_SAVEDATA_RW_BAD_STATUS;
         }
 
+        private int getSaveErrorResult() {
+            switch (savedataParams.mode) {
+                case SceUtilitySavedataParam.MODE_AUTOSAVE:
+                case SceUtilitySavedataParam.MODE_SAVE:
+                case SceUtilitySavedataParam.MODE_LISTSAVE:
+                    return SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
+            }
+
+            return SceKernelErrors.ERROR_SAVEDATA_RW_ACCESS_ERROR;
+        }
+
+        /**
+         * Check if the files of the last save have been written.
+         * A write error is reported in the result.
+         *
+         * @param mem  the memory
+         * @return     true if the save is completed or if there is no pending save,
+         *             false if the save is still in progress
+         */
+        private boolean isSaveCommitted(Memory mem) {
+            SavedataCommit pendingCommit = savedataParams.pendingCommit;
+            if (pendingCommit == null) {
+                return true;
+            }
+
+            if (!pendingCommit.isCompleted()) {
+                return false;
+            }
+
+            if (pendingCommit.getError() != null) {
+                savedataParams.base.result = getSaveErrorResult();
+                savedataParams.base.writeResult(mem);
+            }
+
+            return true;
+        }
+
         @Override
         protected boolean executeUpdateVisible() {
             Memory mem = Processor.memory;
 
+            // The last save is still being written in the background:
+            // stay visible until it would have completed on a PSP.
+            // The modes with a dialog wait in their inProgress state.
+            if (savedataParams.pendingCommit != null && !hasDialog()) {
+                // The silent modes must not save again
+                return !isSaveCommitted(mem);
+            }
+
             switch (savedataParams.mode) {
                 case SceUtilitySavedataParam.MODE_AUTOLOAD: {
                     if (savedataParams.saveName == null
@@ -1332,16 +1378,20 @@ public class sceUtility extends HLEModule {
                             break;
                         }
                         case inProgress: {
-                            try {
-                                savedataParams.save(mem, true);
-                            } catch (IOException e) {
-                                savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
-                            } catch (Exception e) {
-                                savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
-                                log.error(e);
+                            if (savedataParams.pendingCommit == null) {
+                                try {
+                                    savedataParams.save(mem, true);
+                                } catch (IOException e) {
+                                    savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
+                                } catch (Exception e) {
+                                    savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
+                                    log.error(e);
+                                }
                             }
 
-                            if (isReadyForVisible()) {
+                            // Display the completed dialog only once the files have been written
+                            if (isSaveCommitted(mem) && isReadyForVisible()) {
+                                savedataParams.pendingCommit = null;
                                 GuSavedataDialogCompleted gu = new GuSavedataDialogCompleted(savedataParams, this, saveListSelectionIcon0);
                                 openDialog(gu);
                                 dialogState = DialogState.completed;
@@ -1415,19 +1465,23 @@ public class sceUtility extends HLEModule {
                             break;
                         }
                         case inProgress: {
-                            try {
-                                if (log.isDebugEnabled()) {
-                                    log.debug(String.format("Saving savedata %s", savedataParams.saveName));
+                            if (savedataParams.pendingCommit == null) {
+                                try {
+                                    if (log.isDebugEnabled()) {
+                                        log.debug(String.format("Saving savedata %s", savedataParams.saveName));
+                                    }
+                                    savedataParams.save(mem, true);
+                                } catch (IOException e) {
+                                    savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
+                                } catch (Exception e) {
+                                    savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
+                                    log.error(e);
                                 }
-                                savedataParams.save(mem, true);
-                            } catch (IOException e) {
-                                savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
-                            } catch (Exception e) {
-                                savedataParams.base.result = SceKernelErrors.ERROR_SAVEDATA_SAVE_ACCESS_ERROR;
-                                log.error(e);
                             }
 
-                            if (isReadyForVisible()) {
+                            // Display the completed dialog only once the files have been written
+                            if (isSaveCommitted(mem) && isReadyForVisible()) {
+                                savedataParams.pendingCommit = null;
                                 GuSavedataDialogCompleted gu = new GuSavedataDialogCompleted(savedataParams, this, saveListSelectionIcon0);
                                 openDialog(gu);
                                 dialogState = DialogState.completed;
@@ -2905,6 +2959,7 @@ public class sceUtility extends HLEModule {
     }
 
     protected static abstract class GuUtilityDialog {
+        private static BufferedImage defaultIcon0;
 
         protected long pressedTimestamp;
         protected static final int repeatDelay = 100000;
@@ -3593,13 +3648,20 @@ public class sceUtility extends HLEModule {
                 }
             }
 
+            return readIcon(image);
+        }
+
+        protected int readIcon(BufferedImage image) {
             // Default icon
             if (image == null) {
-                try {
-                    image = ImageIO.read(getClass().getResource("/jpcsp/images/icon0.png"));
-                } catch (IOException e) {
-                    log.error("Cannot read default icon0.png", e);
+                if (defaultIcon0 == null) {
+                    try {
+                        defaultIcon0 = ImageIO.read(getClass().getResource("/jpcsp/images/icon0.png"));
+                    } catch (IOException e) {
+                        log.error("Cannot read default icon0.png", e);
+                    }
                 }
+                image = defaultIcon0;
             }
 
             if (image == null) {
@@ -3819,6 +3881,13 @@ public class sceUtility extends HLEModule {
             	// Ignore exception and provide a default
             	strCompleted = "Completed";
             }
+            if (savedataParams.base.result != 0) {
+                try {
+                	strCompleted = ResourceBundle.getBundle("jpcsp/languages/jpcsp", utilityLocale).getString(String.format("sceUtilitySavedata.%s.strError.text", savedataParams.getModeName()));
+                } catch (MissingResourceException e) {
+                	// Ignore exception, not all the modes have an error message
+                }
+            }
 
             createDialog(savedataDialogState);
         }
@@ -3957,26 +4026,26 @@ public class sceUtility extends HLEModule {
             return savedataParams.getTimestamp(savedataParams.gameName, saveName);
         }
 
+        private SavedataIndex.Entry getIndexEntry(int index) {
+            if (index < 0 || index >= saveNames.length) {
+                return null;
+            }
+
+            return SavedataIndex.getInstance().getEntry(SceUtilitySavedataParam.getDirectoryName(savedataParams.gameName, saveNames[index]));
+        }
+
         private InputStream getIcon0InputStream(int index) {
             InputStream iconStream = null;
 
-            if (index < 0 || index >= saveNames.length) {
+            SavedataIndex.Entry entry = getIndexEntry(index);
+            if (entry == null) {
                 return iconStream;
             }
 
             // Get icon0 file
-            String iconFileName = savedataParams.getFileName(saveNames[index], SceUtilitySavedataParam.icon0FileName);
-            SeekableDataInput iconDataInput = Modules.IoFileMgrForUserModule.getFile(iconFileName, IoFileMgrForUser.PSP_O_RDONLY);
-            if (iconDataInput != null) {
-                try {
-                    int length = (int) iconDataInput.length();
-                    byte[] iconBuffer = new byte[length];
-                    iconDataInput.readFully(iconBuffer);
-                    iconDataInput.close();
-                    iconStream = new ByteArrayInputStream(iconBuffer);
-                } catch (IOException e) {
-                    log.debug("getIcon0", e);
-                }
+            byte[] icon0Data = entry.getIcon0Data();
+            if (icon0Data != null) {
+                iconStream = new ByteArrayInputStream(icon0Data);
             } else if (savedataParams.newData != null && savedataParams.newData.icon0 != null) {
             	// the PspUtilitySavedataListSaveNewData structure contains the default
             	// icon to be used for new data.
@@ -3999,33 +4068,16 @@ public class sceUtility extends HLEModule {
         }
 
         private int getIcon0(int index) {
-        	InputStream iconStream = getIcon0InputStream(index);
-
-            return readIcon(iconStream);
-        }
-
-        private PSF getPsf(int index) {
-            PSF psf = null;
-            if (index < 0 || index >= saveNames.length) {
-                return psf;
+            // The icon is only decoded once, when it is first displayed
+            SavedataIndex.Entry entry = getIndexEntry(index);
+            BufferedImage image = entry == null ? null : entry.getIcon0Image();
+            if (image != null) {
+                return readIcon(image);
             }
 
-            String sfoFileName = savedataParams.getFileName(saveNames[index], SceUtilitySavedataParam.paramSfoFileName);
-            SeekableDataInput sfoDataInput = Modules.IoFileMgrForUserModule.getFile(sfoFileName, IoFileMgrForUser.PSP_O_RDONLY);
-            if (sfoDataInput != null) {
-                try {
-                    int length = (int) sfoDataInput.length();
-                    byte[] sfoBuffer = new byte[length];
-                    sfoDataInput.readFully(sfoBuffer);
-                    sfoDataInput.close();
-
-                    psf = new PSF();
-                    psf.read(ByteBuffer.wrap(sfoBuffer));
-                } catch (IOException e) {
-                }
-            }
+        	InputStream iconStream = getIcon0InputStream(index);
 
-            return psf;
+            return readIcon(iconStream);
         }
 
         private void drawIconByRow(int row, int iconX, int iconY, int iconWidth, int iconHeight) {
@@ -4038,11 +4090,11 @@ public class sceUtility extends HLEModule {
                 drawIconByRow(selectedRow, 26, 96, icon0Width, icon0Height);
 
                 // Get values (title, detail...) from SFO file
-                PSF psf = getPsf(selectedRow);
-                if (psf != null) {
-                    String title = psf.getString("TITLE");
-                    String detail = psf.getString("SAVEDATA_DETAIL");
-                    String savedataTitle = psf.getString("SAVEDATA_TITLE");
+                SavedataIndex.Entry entry = getIndexEntry(selectedRow);
+                if (entry != null && entry.hasPsf()) {
+                    String title = entry.getTitle();
+                    String detail = entry.getDetail();
+                    String savedataTitle = entry.getSavedataTitle();
                     Calendar savedTime = savedataParams.getSavedTime(saveNames[selectedRow]);
 
                     int textX = 180;
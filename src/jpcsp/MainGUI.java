@@ -53,6 +53,7 @@ import javax.swing.event.HyperlinkEvent;
 
 import jpcsp.Allegrex.compiler.Profiler;
 import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.Allegrex.compiler.SamplingProfiler;
 import jpcsp.autotests.AutoTestsRunner;
 import jpcsp.crypto.AES128;
 import jpcsp.crypto.PreDecrypt;
@@ -2559,6 +2560,7 @@ private void DumpIsoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST
 
 private void ResetProfilerActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_ResetProfilerActionPerformed
         Profiler.reset();
+        SamplingProfiler.reset();
         GEProfiler.reset();
 }//GEN-LAST:event_ResetProfilerActionPerformed
 
@@ -3119,7 +3121,7 @@ private void threeTimesResizeActionPerformed(java.awt.event.ActionEvent evt) {//
             	// The VSH root thread is running in KERNEL mode.
             	SceKernelThreadInfo rootThread = Modules.ThreadManForUserModule.getRootThread(null);
             	if (rootThread != null) {
-            		rootThread.currentPriority = 0x7E;
+            		Modules.ThreadManForUserModule.setThreadPriority(rootThread, 0x7E);
             		rootThread.attr |= SceKernelThreadInfo.PSP_THREAD_ATTR_KERNEL;
             		rootThread.attr &= ~SceKernelThreadInfo.PSP_THREAD_ATTR_USER;
             	}
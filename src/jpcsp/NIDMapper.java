@@ -25,14 +25,15 @@ import org.apache.log4j.Logger;
 
 import jpcsp.HLE.Modules;
 import jpcsp.HLE.kernel.types.SceModule;
+import jpcsp.util.IntMap;
 
 public class NIDMapper {
 	private static Logger log = Modules.log;
     private static NIDMapper instance;
-    private final Map<Integer, NIDInfo> syscallMap;
-    private final Map<String, Map<Integer, NIDInfo>> moduleNidMap;
-    private final Map<Integer, NIDInfo> nidMap;
-    private final Map<Integer, NIDInfo> addressMap;
+    private final IntMap<NIDInfo> syscallMap;
+    private final Map<String, IntMap<NIDInfo>> moduleNidMap;
+    private final IntMap<NIDInfo> nidMap;
+    private final IntMap<NIDInfo> addressMap;
     private final Map<String, NIDInfo> nameMap;
     private int freeSyscallNumber;
     private boolean hideAllSyscalls;
@@ -228,9 +229,9 @@ public class NIDMapper {
 
     private NIDMapper() {
     	moduleNidMap = new HashMap<>();
-    	nidMap = new HashMap<>();
-    	syscallMap = new HashMap<>();
-    	addressMap = new HashMap<>();
+    	nidMap = new IntMap<>();
+    	syscallMap = new IntMap<>();
+    	addressMap = new IntMap<>();
     	nameMap = new HashMap<>();
 		// Official syscalls start at 0x2000,
 		// so we'll put the HLE syscalls far away at 0x4000.
@@ -238,9 +239,9 @@ public class NIDMapper {
     }
 
     private void addModuleNIDInfo(NIDInfo info) {
-    	Map<Integer, NIDInfo> moduleMap = moduleNidMap.get(info.getModuleName());
+    	IntMap<NIDInfo> moduleMap = moduleNidMap.get(info.getModuleName());
     	if (moduleMap == null) {
-    		moduleMap = new HashMap<Integer, NIDInfo>();
+    		moduleMap = new IntMap<NIDInfo>();
     		moduleNidMap.put(info.getModuleName(), moduleMap);
     	}
     	moduleMap.put(info.getNid(), info);
@@ -268,7 +269,7 @@ public class NIDMapper {
     }
 
     private void removeNIDInfo(NIDInfo info) {
-    	Map<Integer, NIDInfo> moduleMap = moduleNidMap.get(info.getModuleName());
+    	IntMap<NIDInfo> moduleMap = moduleNidMap.get(info.getModuleName());
     	if (moduleMap != null) {
     		moduleMap.remove(info.getNid());
     		if (moduleMap.isEmpty()) {
@@ -297,7 +298,7 @@ public class NIDMapper {
     private NIDInfo getNIDInfoByNid(String moduleName, int nid) {
     	NIDInfo info = null;
 
-    	Map<Integer, NIDInfo> moduleMap = moduleNidMap.get(moduleName);
+    	IntMap<NIDInfo> moduleMap = moduleNidMap.get(moduleName);
     	if (moduleMap != null) {
         	info = moduleMap.get(nid);
     	}
@@ -587,7 +588,7 @@ public class NIDMapper {
     }
 
     public void unloadAll() {
-    	for (Map<Integer, NIDInfo> moduleMap : moduleNidMap.values()) {
+    	for (IntMap<NIDInfo> moduleMap : moduleNidMap.values()) {
         	for (NIDInfo info : moduleMap.values()) {
         		if (info.isOverwritten()) {
         			info.undoOverwrite();
@@ -598,22 +599,12 @@ public class NIDMapper {
     }
 
     public int[] getModuleNids(String moduleName) {
-    	Map<Integer, NIDInfo> moduleMap = moduleNidMap.get(moduleName);
+    	IntMap<NIDInfo> moduleMap = moduleNidMap.get(moduleName);
     	if (moduleMap == null) {
     		return null;
     	}
 
-    	Integer[] nids = moduleMap.keySet().toArray(new Integer[moduleMap.size()]);
-    	if (nids == null) {
-    		return null;
-    	}
-
-    	int[] result = new int[nids.length];
-    	for (int i = 0; i < nids.length; i++) {
-    		result[i] = nids[i].intValue();
-    	}
-
-    	return result;
+    	return moduleMap.keys();
     }
 
     public String[] getModuleNames() {
@@ -29,6 +29,7 @@ import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class CSOFileSectorDevice extends AbstractFileSectorDevice {
+	protected int version;
 	protected int offsetShift;
 	protected int numSectors;
 	protected long[] sectorOffsets;
@@ -48,11 +49,16 @@ public class CSOFileSectorDevice extends AbstractFileSectorDevice {
 	        u8  unused
 	        u8  unused
 	        u32[] sector offsets (as many as image size / sector size, I guess)
+
+	        The highest bit of a sector offset has a different meaning depending on the version:
+	        - version 0 or 1: the sector is stored uncompressed
+	        - version 2: the sector is compressed with LZ4 instead of deflate.
+	          A sector is stored uncompressed when its stored length is at least the sector size.
          */
 		long lengthInBytes = byteBuffer.getLong(8);
 		int sectorSize = byteBuffer.getInt(16);
-		int version = byteBuffer.get(20) & 0xFF;
-		if (version > 1) {
+		version = byteBuffer.get(20) & 0xFF;
+		if (version > 2) {
 			log.warn(String.format("Unsupported CSO version number 0x%02X", version));
 		}
 		offsetShift = byteBuffer.get(21) & 0xFF;
@@ -84,16 +90,22 @@ public class CSOFileSectorDevice extends AbstractFileSectorDevice {
 		long sectorOffset = sectorOffsets[sectorNumber];
         long sectorEnd = sectorOffsets[sectorNumber + 1];
 
-        if ((sectorOffset & 0x80000000) != 0) {
+        if ((sectorOffset & 0x80000000) != 0 && version < 2) {
             long realOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
             fileAccess.seek(realOffset);
             fileAccess.read(buffer, offset, sectorLength);
         } else {
+	        boolean isLZ4 = (sectorOffset & 0x80000000) != 0;
 	        sectorEnd = (sectorEnd & sectorOffsetMask) << offsetShift;
 	        sectorOffset = (sectorOffset & sectorOffsetMask) << offsetShift;
 
 	        int compressedLength = (int) (sectorEnd - sectorOffset);
-	        if (compressedLength < 0) {
+	        if (version >= 2 && compressedLength >= sectorLength) {
+	        	fileAccess.seek(sectorOffset);
+	        	fileAccess.read(buffer, offset, sectorLength);
+	        } else if (isLZ4) {
+	        	throw new IOException(String.format("Unsupported LZ4 compression of sector %d", sectorNumber));
+	        } else if (compressedLength < 0) {
 	        	Arrays.fill(buffer, offset, offset + sectorLength, (byte) 0);
 	        } else {
 		        byte[] compressedData = new byte[compressedLength];
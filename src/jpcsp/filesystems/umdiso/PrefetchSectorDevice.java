@@ -0,0 +1,230 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.filesystems.umdiso;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.Emulator;
+
+/**
+ * Sector device reading ahead of the game, based on the UmdAccessProfile
+ * recorded during a previous run.
+ *
+ * Each time the game is reading a range of sectors which is part of the profile,
+ * the next ranges of the profile (up to a given emulated time and
+ * number of sectors) are read by a background thread:
+ * - for a compressed device (CSO, CHD), the decompressed sectors are kept in a cache;
+ * - for an uncompressed device, reading the sectors is only warming the OS file cache.
+ */
+public class PrefetchSectorDevice implements ISectorDevice {
+	private static Logger log = Emulator.log;
+	// Maximum number of sectors kept in the cache (16MB)
+	private static final int MAX_CACHED_SECTORS = 8192;
+	// How far to read ahead, in sectors and in emulated time
+	private static final int MAX_PREFETCH_SECTORS = 4096;
+	private static final long MAX_PREFETCH_MICROS = 3000000L;
+	private final ISectorDevice sectorDevice;
+	private final UmdAccessProfile profile;
+	private final boolean cacheSectors;
+	private final Map<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(MAX_CACHED_SECTORS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > MAX_CACHED_SECTORS;
+		}
+	};
+	private final LinkedBlockingQueue<int[]> prefetchRanges = new LinkedBlockingQueue<int[]>();
+	private int lastMatchedIndex = -1;
+	private int lastScheduledIndex = -1;
+	private PrefetchThread thread;
+	private volatile boolean exit;
+	private int cacheHits;
+	private int cacheMisses;
+
+	private class PrefetchThread extends Thread {
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[sectorLength];
+			while (!exit) {
+				try {
+					int[] range = prefetchRanges.take();
+					for (int i = 0; i < range[1] && !exit; i++) {
+						prefetchSector(range[0] + i, buffer);
+					}
+				} catch (InterruptedException e) {
+					// Ignore exception
+				} catch (IOException e) {
+					log.debug("PrefetchSectorDevice", e);
+				}
+			}
+		}
+	}
+
+	public PrefetchSectorDevice(ISectorDevice sectorDevice, UmdAccessProfile profile) {
+		this.sectorDevice = sectorDevice;
+		this.profile = profile;
+		cacheSectors = sectorDevice instanceof CSOFileSectorDevice || sectorDevice instanceof CHDFileSectorDevice;
+
+		thread = new PrefetchThread();
+		thread.setName("UMD Prefetch");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void prefetchSector(int sectorNumber, byte[] buffer) throws IOException {
+		if (cacheSectors) {
+			synchronized (cache) {
+				if (cache.containsKey(sectorNumber)) {
+					return;
+				}
+			}
+			buffer = new byte[sectorLength];
+		}
+
+		synchronized (sectorDevice) {
+			sectorDevice.readSector(sectorNumber, buffer, 0);
+		}
+
+		if (cacheSectors) {
+			synchronized (cache) {
+				cache.put(sectorNumber, buffer);
+			}
+		}
+	}
+
+	private boolean readCachedSector(int sectorNumber, byte[] buffer, int offset) {
+		byte[] data;
+		synchronized (cache) {
+			data = cache.get(sectorNumber);
+		}
+
+		if (data == null) {
+			cacheMisses++;
+			return false;
+		}
+
+		cacheHits++;
+		System.arraycopy(data, 0, buffer, offset, sectorLength);
+		return true;
+	}
+
+	/**
+	 * Schedule the reading of the profile ranges following the current read.
+	 */
+	private void schedulePrefetch(int sectorNumber) {
+		int index = profile.match(sectorNumber);
+		if (index < 0) {
+			return;
+		}
+
+		if (index < lastMatchedIndex) {
+			// Going back in the profile, e.g. reloading a level
+			lastScheduledIndex = index;
+		}
+		lastMatchedIndex = index;
+
+		long maxTimestamp = profile.getProfileTimestamp(index) + MAX_PREFETCH_MICROS;
+		int numberSectors = 0;
+		int size = profile.getProfileSize();
+		for (int i = index + 1; i < size && numberSectors < MAX_PREFETCH_SECTORS; i++) {
+			if (profile.getProfileTimestamp(i) > maxTimestamp) {
+				break;
+			}
+			int count = Math.min(profile.getProfileCount(i), MAX_PREFETCH_SECTORS - numberSectors);
+			if (i > lastScheduledIndex) {
+				prefetchRanges.offer(new int[] { profile.getProfileSector(i), count });
+				lastScheduledIndex = i;
+			}
+			numberSectors += count;
+		}
+	}
+
+	@Override
+	public int getNumSectors() throws IOException {
+		return sectorDevice.getNumSectors();
+	}
+
+	@Override
+	public void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
+		schedulePrefetch(sectorNumber);
+
+		if (!cacheSectors || !readCachedSector(sectorNumber, buffer, offset)) {
+			synchronized (sectorDevice) {
+				sectorDevice.readSector(sectorNumber, buffer, offset);
+			}
+		}
+	}
+
+	@Override
+	public int readSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
+		schedulePrefetch(sectorNumber);
+
+		if (!cacheSectors) {
+			synchronized (sectorDevice) {
+				return sectorDevice.readSectors(sectorNumber, numberSectors, buffer, offset);
+			}
+		}
+
+		for (int i = 0; i < numberSectors; i++) {
+			int sectorOffset = offset + i * sectorLength;
+			if (!readCachedSector(sectorNumber + i, buffer, sectorOffset)) {
+				synchronized (sectorDevice) {
+					sectorDevice.readSector(sectorNumber + i, buffer, sectorOffset);
+				}
+			}
+		}
+
+		return numberSectors;
+	}
+
+	@Override
+	public void writeSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
+		throw new IOException("Device is read-only");
+	}
+
+	@Override
+	public void writeSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
+		throw new IOException("Device is read-only");
+	}
+
+	@Override
+	public void close() throws IOException {
+		exit = true;
+		prefetchRanges.clear();
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+
+		if (cacheSectors && log.isDebugEnabled()) {
+			log.debug(String.format("UMD prefetch: %d cache hits, %d cache misses", cacheHits, cacheMisses));
+		}
+
+		synchronized (sectorDevice) {
+			sectorDevice.close();
+		}
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.filesystems.umdiso;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.Clock;
+import jpcsp.Emulator;
+import jpcsp.util.Utilities;
+
+/**
+ * Record of the sector ranges read from a UMD, in the order
+ * they have been read, together with the emulated time of the read.
+ *
+ * Games are reading the UMD in very repeatable patterns (at boot time
+ * and for each level load). The profile recorded during a previous run
+ * is used by the PrefetchSectorDevice to read the next sectors ahead of the game.
+ *
+ * The profile is stored in a compact form: for each range, the time delta,
+ * the sector delta from the end of the previous range and the number of sectors,
+ * all stored as variable-length integers.
+ */
+public class UmdAccessProfile {
+	private static Logger log = Emulator.log;
+	private static final int MAGIC = 0x50414D55; // "UMAP"
+	private static final int VERSION = 1;
+	// Limit the size of a recording
+	private static final int MAX_RANGES = 0x40000;
+	// Number of profile entries searched after the current position
+	private static final int MATCH_WINDOW = 64;
+	private String fileName;
+	// The ranges recorded during this run
+	private int numberRecorded;
+	private int[] recordedSectors = new int[256];
+	private int[] recordedCounts = new int[256];
+	private long[] recordedTimestamps = new long[256];
+	// The profile loaded from a previous run
+	private int profileSize;
+	private int[] profileSectors = new int[0];
+	private int[] profileCounts = new int[0];
+	private long[] profileTimestamps = new long[0];
+	private final HashMap<Integer, int[]> profileIndexes = new HashMap<Integer, int[]>();
+	private int profilePosition;
+
+	/**
+	 * Record a read of sectors.
+	 * Sequential reads are merged into one range.
+	 *
+	 * @param sectorNumber  the first sector read
+	 * @param numberSectors the number of sectors read
+	 */
+	public synchronized void record(int sectorNumber, int numberSectors) {
+		if (numberSectors <= 0) {
+			return;
+		}
+
+		if (numberRecorded > 0) {
+			int last = numberRecorded - 1;
+			int end = recordedSectors[last] + recordedCounts[last];
+			if (sectorNumber == end) {
+				recordedCounts[last] += numberSectors;
+				return;
+			}
+			if (sectorNumber >= recordedSectors[last] && sectorNumber + numberSectors <= end) {
+				// Re-reading sectors of the last range
+				return;
+			}
+		}
+
+		if (numberRecorded >= MAX_RANGES) {
+			return;
+		}
+
+		if (numberRecorded >= recordedSectors.length) {
+			int newLength = recordedSectors.length * 2;
+			recordedSectors = Arrays.copyOf(recordedSectors, newLength);
+			recordedCounts = Arrays.copyOf(recordedCounts, newLength);
+			recordedTimestamps = Arrays.copyOf(recordedTimestamps, newLength);
+		}
+
+		recordedSectors[numberRecorded] = sectorNumber;
+		recordedCounts[numberRecorded] = numberSectors;
+		Clock clock = Emulator.getClock();
+		recordedTimestamps[numberRecorded] = clock != null ? clock.microTime() : 0L;
+		numberRecorded++;
+	}
+
+	/**
+	 * Find the entry of the profile corresponding to the given read.
+	 * The search is first performed around the current position in the profile,
+	 * then for the whole profile.
+	 *
+	 * @param sectorNumber  the first sector being read
+	 * @return              the index of the matching profile entry,
+	 *                      or -1 if the read is not part of the profile
+	 */
+	public synchronized int match(int sectorNumber) {
+		int end = Math.min(profilePosition + MATCH_WINDOW, profileSize);
+		for (int i = profilePosition; i < end; i++) {
+			if (sectorNumber >= profileSectors[i] && sectorNumber < profileSectors[i] + profileCounts[i]) {
+				profilePosition = i;
+				return i;
+			}
+		}
+
+		int[] indexes = profileIndexes.get(sectorNumber);
+		if (indexes == null) {
+			return -1;
+		}
+
+		// Prefer the first occurrence after the current position
+		int index = indexes[0];
+		for (int i = 0; i < indexes.length; i++) {
+			if (indexes[i] >= profilePosition) {
+				index = indexes[i];
+				break;
+			}
+		}
+		profilePosition = index;
+
+		return index;
+	}
+
+	public int getProfileSize() {
+		return profileSize;
+	}
+
+	public int getProfileSector(int index) {
+		return profileSectors[index];
+	}
+
+	public int getProfileCount(int index) {
+		return profileCounts[index];
+	}
+
+	public long getProfileTimestamp(int index) {
+		return profileTimestamps[index];
+	}
+
+	public synchronized int getNumberRecorded() {
+		return numberRecorded;
+	}
+
+	/**
+	 * Load the profile from a previous run and remember the file name
+	 * for saving the recording of this run.
+	 *
+	 * @param fileName  the profile file name
+	 */
+	public synchronized void load(String fileName) {
+		this.fileName = fileName;
+		profileSize = 0;
+		profilePosition = 0;
+		profileIndexes.clear();
+
+		File file = new File(fileName);
+		if (!file.canRead()) {
+			return;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn(String.format("Ignoring UMD access profile '%s' with an unknown format", fileName));
+				return;
+			}
+
+			int size = readVarInt(in);
+			int[] sectors = new int[size];
+			int[] counts = new int[size];
+			long[] timestamps = new long[size];
+			int sectorNumber = 0;
+			long timestamp = 0L;
+			for (int i = 0; i < size; i++) {
+				timestamp += readVarInt(in) & 0xFFFFFFFFL;
+				sectorNumber += decodeZigZag(readVarInt(in));
+				sectors[i] = sectorNumber;
+				counts[i] = readVarInt(in);
+				timestamps[i] = timestamp;
+				sectorNumber += counts[i];
+			}
+
+			profileSectors = sectors;
+			profileCounts = counts;
+			profileTimestamps = timestamps;
+			profileSize = size;
+			for (int i = 0; i < size; i++) {
+				profileIndexes.put(sectors[i], Utilities.add(profileIndexes.get(sectors[i]), i));
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Loaded UMD access profile '%s' with %d ranges", fileName, size));
+			}
+		} catch (IOException e) {
+			log.warn(String.format("Cannot read UMD access profile '%s'", fileName), e);
+			profileSize = 0;
+		} finally {
+			Utilities.close(in);
+		}
+	}
+
+	/**
+	 * Save the recording of this run, when it covers more ranges
+	 * than the profile loaded from a previous run
+	 * (e.g. a run stopped at the title screen does not replace the profile
+	 * of a run having loaded several levels).
+	 */
+	public synchronized void save() {
+		if (fileName == null || numberRecorded == 0 || numberRecorded <= profileSize) {
+			return;
+		}
+
+		File file = new File(fileName);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeVarInt(out, numberRecorded);
+			int sectorNumber = 0;
+			long timestamp = recordedTimestamps[0];
+			for (int i = 0; i < numberRecorded; i++) {
+				// The timestamps are read back as unsigned deltas,
+				// do not let them go backwards (e.g. after a clock adjustment)
+				long timestampDelta = Math.max(0L, Math.min(recordedTimestamps[i] - timestamp, 0xFFFFFFFFL));
+				writeVarInt(out, (int) timestampDelta);
+				writeVarInt(out, encodeZigZag(recordedSectors[i] - sectorNumber));
+				writeVarInt(out, recordedCounts[i]);
+				timestamp += timestampDelta;
+				sectorNumber = recordedSectors[i] + recordedCounts[i];
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Saved UMD access profile '%s' with %d ranges", fileName, numberRecorded));
+			}
+		} catch (FileNotFoundException e) {
+			log.warn(String.format("Cannot write UMD access profile '%s'", fileName), e);
+		} catch (IOException e) {
+			log.warn(String.format("Cannot write UMD access profile '%s'", fileName), e);
+		} finally {
+			Utilities.close(out);
+		}
+	}
+
+	private static int encodeZigZag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int decodeZigZag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int n) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+
+		throw new IOException("Invalid variable-length integer");
+	}
+}
@@ -51,6 +51,8 @@ public class UmdIsoReader implements IBrowser {
     private static boolean doIsoBuffering = false;
     private boolean hasJolietExtension;
     private boolean isPBP;
+    private static boolean doUmdPrefetch = true;
+    private final UmdAccessProfile accessProfile = new UmdAccessProfile();
 
     public UmdIsoReader(String umdFilename) throws IOException, FileNotFoundException {
     	init(umdFilename, doIsoBuffering);
@@ -65,23 +67,8 @@ public class UmdIsoReader implements IBrowser {
     	if (umdFilename == null && doIsoBuffering) {
     		sectorDevice = null;
     	} else {
-    		RandomAccessFile fileReader = new RandomAccessFile(umdFilename, "r");
-
-	        byte[] header = new byte[headerLength];
-	        fileReader.seek(0);
-	        fileReader.read(header);
-	        fileReader.seek(0);
-
-	        if (header[0] == 'C' && header[1] == 'I' && header[2] == 'S' && header[3] == 'O') {
-	            sectorDevice = new CSOFileSectorDevice(fileReader, header);
-	        } else if (header[0] == 0 && header[1] == 'P' && header[2] == 'B' && header[3] == 'P') {
-	        	sectorDevice = new PBPFileSectorDevice(fileReader);
-	        	isPBP = true;
-	        } else if ("MComprHD".equals(new String(header, 0, 8))) {
-	        	sectorDevice = new CHDFileSectorDevice(fileReader, umdFilename);
-	        } else {
-	            sectorDevice = new ISOFileSectorDevice(fileReader);
-	        }
+    		sectorDevice = openSectorDevice(umdFilename);
+    		isPBP = sectorDevice instanceof PBPFileSectorDevice;
     	}
 
     	if (doIsoBuffering) {
@@ -97,6 +84,37 @@ public class UmdIsoReader implements IBrowser {
         }
     }
 
+    /**
+     * Open the sector device matching the format of an UMD image file
+     * (ISO, CSO, PBP or CHD), without checking its content.
+     *
+     * @param umdFilename - the UMD image file name
+     * @return the sector device reading the file
+     * @throws IOException
+     * @throws FileNotFoundException
+     */
+    public static ISectorDevice openSectorDevice(String umdFilename) throws IOException, FileNotFoundException {
+		RandomAccessFile fileReader = new RandomAccessFile(umdFilename, "r");
+
+        byte[] header = new byte[headerLength];
+        fileReader.seek(0);
+        fileReader.read(header);
+        fileReader.seek(0);
+
+        ISectorDevice sectorDevice;
+        if (header[0] == 'C' && header[1] == 'I' && header[2] == 'S' && header[3] == 'O') {
+            sectorDevice = new CSOFileSectorDevice(fileReader, header);
+        } else if (header[0] == 0 && header[1] == 'P' && header[2] == 'B' && header[3] == 'P') {
+        	sectorDevice = new PBPFileSectorDevice(fileReader);
+        } else if ("MComprHD".equals(new String(header, 0, 8))) {
+        	sectorDevice = new CHDFileSectorDevice(fileReader, umdFilename);
+        } else {
+            sectorDevice = new ISOFileSectorDevice(fileReader);
+        }
+
+        return sectorDevice;
+    }
+
     public UmdIsoReader(ISectorDevice sectorDevice) throws IOException {
         this.sectorDevice = sectorDevice;
         numSectors = sectorDevice.getNumSectors();
@@ -112,9 +130,28 @@ public class UmdIsoReader implements IBrowser {
     }
 
     public void close() throws IOException {
+    	accessProfile.save();
         sectorDevice.close();
     }
 
+    /**
+     * Load the UMD access profile recorded during a previous run of this game,
+     * and start reading ahead of the game based on this profile.
+     * The accesses of this run are recorded and saved into the same file
+     * when closing the reader.
+     *
+     * @param fileName - the file name of the profile
+     */
+    public void startAccessProfile(String fileName) {
+    	accessProfile.load(fileName);
+
+    	if (doUmdPrefetch && accessProfile.getProfileSize() > 0) {
+    		if (sectorDevice instanceof ISOFileSectorDevice || sectorDevice instanceof CSOFileSectorDevice || sectorDevice instanceof CHDFileSectorDevice) {
+    			sectorDevice = new PrefetchSectorDevice(sectorDevice, accessProfile);
+    		}
+    	}
+    }
+
     private boolean hasIsoHeader() throws IOException {
         if (numSectors <= 0) {
             return false;
@@ -167,13 +204,15 @@ public class UmdIsoReader implements IBrowser {
      * @return the number of sectors read
      * @throws IOException
      */
-    public int readSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
+    public synchronized int readSectors(int sectorNumber, int numberSectors, byte[] buffer, int offset) throws IOException {
         if (sectorNumber < 0 || (sectorNumber + numberSectors) > numSectors) {
             Arrays.fill(buffer, offset, offset + numberSectors * sectorLength, (byte) 0);
             Emulator.log.warn(String.format("Sectors start=%d, end=%d out of ISO (numSectors=%d)", sectorNumber, sectorNumber + numberSectors, numSectors));
             return numberSectors;
         }
 
+        accessProfile.record(sectorNumber, numberSectors);
+
         return sectorDevice.readSectors(sectorNumber, numberSectors, buffer, offset);
     }
 
@@ -185,13 +224,15 @@ public class UmdIsoReader implements IBrowser {
      * @param offset - offset into the byte array where to start writing
      * @throws IOException
      */
-    public void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
+    public synchronized void readSector(int sectorNumber, byte[] buffer, int offset) throws IOException {
         if (sectorNumber < 0 || sectorNumber >= numSectors) {
             Arrays.fill(buffer, offset, offset + sectorLength, (byte) 0);
             Emulator.log.warn(String.format("Sector number %d out of ISO (numSectors=%d)", sectorNumber, numSectors));
             return;
         }
 
+        accessProfile.record(sectorNumber, 1);
+
         sectorDevice.readSector(sectorNumber, buffer, offset);
     }
 
@@ -506,6 +547,10 @@ public class UmdIsoReader implements IBrowser {
         out.close();
     }
 
+	public static void setDoUmdPrefetch(boolean doUmdPrefetch) {
+		UmdIsoReader.doUmdPrefetch = doUmdPrefetch;
+	}
+
 	public static void setDoIsoBuffering(boolean doIsoBuffering) {
 		UmdIsoReader.doIsoBuffering = doIsoBuffering;
 	}
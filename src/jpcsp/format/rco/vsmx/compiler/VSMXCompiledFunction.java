@@ -0,0 +1,392 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.format.rco.vsmx.compiler;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.format.rco.vsmx.INativeFunction;
+import jpcsp.format.rco.vsmx.VSMX;
+import jpcsp.format.rco.vsmx.interpreter.VSMXArray;
+import jpcsp.format.rco.vsmx.interpreter.VSMXBaseObject;
+import jpcsp.format.rco.vsmx.interpreter.VSMXCallState;
+import jpcsp.format.rco.vsmx.interpreter.VSMXFunction;
+import jpcsp.format.rco.vsmx.interpreter.VSMXInterpreter;
+import jpcsp.format.rco.vsmx.interpreter.VSMXLocalVarReference;
+import jpcsp.format.rco.vsmx.interpreter.VSMXMethod;
+import jpcsp.format.rco.vsmx.interpreter.VSMXNativeFunction;
+import jpcsp.format.rco.vsmx.interpreter.VSMXNativeObject;
+import jpcsp.format.rco.vsmx.interpreter.VSMXNull;
+import jpcsp.format.rco.vsmx.interpreter.VSMXNumber;
+import jpcsp.format.rco.vsmx.interpreter.VSMXObject;
+import jpcsp.format.rco.vsmx.interpreter.VSMXReference;
+import jpcsp.format.rco.vsmx.interpreter.VSMXString;
+import jpcsp.format.rco.vsmx.interpreter.VSMXUndefined;
+import jpcsp.format.rco.vsmx.objects.NativeFunctionFactory;
+
+/**
+ * Base class of the VSMX functions compiled into Java bytecode by the VSMXCompiler.
+ *
+ * The generated classes are only implementing the call() method,
+ * all the more complex VSMX operations are delegated to the helper
+ * methods of this class. These helper methods are implementing
+ * exactly the same semantic as the corresponding opcodes in the VSMXInterpreter.
+ *
+ * The generated classes are loaded by their own class loader,
+ * the helper methods have therefore to be public or protected.
+ */
+public abstract class VSMXCompiledFunction {
+	protected static final Logger log = VSMX.log;
+	private static final String callName = "call";
+	protected final VSMXInterpreter interpreter;
+
+	/**
+	 * Inline cache for the lookup of a native function at one call site.
+	 * The lookup by reflection done by the NativeFunctionFactory is expensive,
+	 * its result is remembered as long as the call site is
+	 * always called on the same native object.
+	 */
+	public static class InlineCache {
+		private boolean valid;
+		private Object target;
+		private INativeFunction nativeFunction;
+		private int hits;
+		private int misses;
+
+		public INativeFunction getNativeFunction(VSMXNativeObject object, String name, int numberOfArguments) {
+			Object target = object.getObject();
+			if (!valid || this.target != target) {
+				nativeFunction = NativeFunctionFactory.getInstance().getNativeFunction(object, name, numberOfArguments);
+				this.target = target;
+				valid = true;
+				misses++;
+			} else {
+				hits++;
+			}
+
+			return nativeFunction;
+		}
+
+		public INativeFunction getNativeFunction(VSMXBaseObject object, String name, int numberOfArguments) {
+			if (!valid || target != object) {
+				nativeFunction = NativeFunctionFactory.getInstance().getNativeFunction(object, name, numberOfArguments);
+				target = object;
+				valid = true;
+				misses++;
+			} else {
+				hits++;
+			}
+
+			return nativeFunction;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("InlineCache[hits=%d, misses=%d, %s]", hits, misses, nativeFunction);
+		}
+	}
+
+	public VSMXCompiledFunction(VSMXInterpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Execute the compiled function.
+	 *
+	 * @param callState  the call state holding the "this" object and the local variables
+	 * @return           the value returned by the function
+	 */
+	public abstract VSMXBaseObject call(VSMXCallState callState);
+
+	protected VSMXBaseObject number(float value) {
+		return new VSMXNumber(interpreter, value);
+	}
+
+	protected VSMXBaseObject string(String value) {
+		return new VSMXString(interpreter, value);
+	}
+
+	protected VSMXBaseObject array() {
+		return new VSMXArray(interpreter);
+	}
+
+	protected VSMXBaseObject function(int args, int localVars, int startLine) {
+		return new VSMXFunction(interpreter, args, localVars, startLine);
+	}
+
+	protected VSMXBaseObject localVarReference(VSMXCallState callState, int index) {
+		return new VSMXLocalVarReference(interpreter, callState, index);
+	}
+
+	protected VSMXBaseObject globalReference(String name) {
+		return new VSMXReference(interpreter, interpreter.getGlobalVariables(), name);
+	}
+
+	protected VSMXBaseObject globalValue(String name, int numberOfArguments, InlineCache inlineCache) {
+		return getReferenceValue(interpreter.getGlobalVariables(), name, numberOfArguments, inlineCache);
+	}
+
+	protected void assignGlobal(String name, VSMXBaseObject value) {
+		interpreter.getGlobalVariables().setPropertyValue(name, value.getValue());
+	}
+
+	protected VSMXBaseObject propertyReference(VSMXBaseObject object, String name) {
+		if (object instanceof VSMXObject) {
+			return new VSMXReference(interpreter, (VSMXObject) object, name);
+		}
+		return object.getPropertyValue(name);
+	}
+
+	protected VSMXBaseObject propertyValue(VSMXBaseObject object, String name, int numberOfArguments, InlineCache inlineCache) {
+		if (object instanceof VSMXObject) {
+			return getReferenceValue((VSMXObject) object, name, numberOfArguments, inlineCache);
+		}
+		return object.getPropertyValue(name);
+	}
+
+	protected void assignProperty(VSMXBaseObject object, String name, VSMXBaseObject value, int line) {
+		if (object instanceof VSMXObject) {
+			((VSMXObject) object).setPropertyValue(name, value.getValue());
+		} else {
+			log.warn(String.format("Line#%d non-ref assignment", line));
+		}
+	}
+
+	protected VSMXBaseObject method(VSMXBaseObject object, String name) {
+		return new VSMXMethod(interpreter, object, name);
+	}
+
+	/**
+	 * Same as VSMXReference.getRef(numberOfArguments),
+	 * but using an inline cache for the native function lookup.
+	 */
+	private VSMXBaseObject getReferenceValue(VSMXObject refObject, String name, int numberOfArguments, InlineCache inlineCache) {
+		if (!refObject.hasPropertyValue(name) && refObject instanceof VSMXNativeObject) {
+			INativeFunction nativeFunction = inlineCache.getNativeFunction((VSMXNativeObject) refObject, name, numberOfArguments);
+			if (nativeFunction != null) {
+				return new VSMXNativeFunction(interpreter, nativeFunction);
+			}
+		}
+		return refObject.getPropertyValue(name);
+	}
+
+	protected VSMXBaseObject assign(VSMXBaseObject reference, VSMXBaseObject value, int line) {
+		if (reference instanceof VSMXReference) {
+			((VSMXReference) reference).assign(value);
+		} else {
+			log.warn(String.format("Line#%d non-ref assignment", line));
+		}
+		return value;
+	}
+
+	protected void assignIncrement(VSMXBaseObject reference, float value, int line) {
+		if (reference instanceof VSMXReference) {
+			((VSMXReference) reference).assign(number(value));
+		} else {
+			log.warn(String.format("Line#%d non-ref increment", line));
+		}
+	}
+
+	protected VSMXBaseObject add(VSMXBaseObject o1, VSMXBaseObject o2) {
+		if (o1 instanceof VSMXString || o2 instanceof VSMXString) {
+			String s1 = o1.getStringValue();
+			String s2 = o2.getStringValue();
+			return string(s2 + s1);
+		}
+
+		float f1 = o1.getFloatValue();
+		float f2 = o2.getFloatValue();
+		return number(f2 + f1);
+	}
+
+	protected VSMXBaseObject typeOf(VSMXBaseObject o) {
+		return string(o.typeOf());
+	}
+
+	protected VSMXBaseObject arrayIndex(VSMXBaseObject o2, VSMXBaseObject o1) {
+		if (o2 instanceof VSMXArray) {
+			return new VSMXReference(interpreter, (VSMXObject) o2, o1.getIntValue());
+		}
+		if (o2 instanceof VSMXObject) {
+			return new VSMXReference(interpreter, (VSMXObject) o2, o1.getStringValue());
+		}
+		return o2.getPropertyValue(o1.getStringValue());
+	}
+
+	protected VSMXBaseObject arrayIndexKeepObject(VSMXBaseObject o2, VSMXBaseObject o1) {
+		if (o2 instanceof VSMXArray) {
+			return o2.getPropertyValue(o1.getIntValue());
+		}
+		return o2.getPropertyValue(o1.getStringValue());
+	}
+
+	protected void arrayIndexAssign(VSMXBaseObject o3, VSMXBaseObject o2, VSMXBaseObject o1, int line) {
+		if (o3 instanceof VSMXArray) {
+			o3.setPropertyValue(o2.getIntValue(), o1);
+		} else {
+			log.warn(String.format("Line#%d non-array index assignment", line));
+		}
+	}
+
+	protected void arrayDelete(VSMXBaseObject o2, VSMXBaseObject o1, int line) {
+		if (o2 instanceof VSMXArray) {
+			o2.deletePropertyValue(o1.getIntValue());
+		} else {
+			log.warn(String.format("Line#%d non-array delete", line));
+		}
+	}
+
+	protected VSMXBaseObject arrayPush(VSMXBaseObject o2, VSMXBaseObject o1, int line) {
+		if (o2 instanceof VSMXArray) {
+			int length = ((VSMXArray) o2).getLength();
+			o2.setPropertyValue(length, o1);
+		} else {
+			log.warn(String.format("Line#%d non-array push", line));
+		}
+		return o2;
+	}
+
+	protected VSMXBaseObject callFunction(VSMXBaseObject o, VSMXBaseObject[] arguments, int line) {
+		if (o instanceof VSMXFunction) {
+			return interpreter.invokeFunction((VSMXFunction) o, VSMXNull.singleton, arguments, arguments.length, false);
+		}
+
+		log.warn(String.format("Line#%d non-function call", line));
+		return VSMXNull.singleton;
+	}
+
+	/**
+	 * Call of a method where the object and the method name are known at compile time.
+	 * Same as VSMXMethod.getFunction(), but using an inline cache for the native function lookup
+	 * and without allocating a VSMXMethod object.
+	 */
+	protected VSMXBaseObject callMethod(VSMXBaseObject object, String name, VSMXBaseObject[] arguments, InlineCache inlineCache, int line) {
+		int numberOfArguments = arguments.length;
+		VSMXBaseObject thisObject = object.getValue();
+
+		if (object.hasPropertyValue(name)) {
+			VSMXBaseObject function = object.getPropertyValue(name).getValue();
+			if (function instanceof VSMXFunction) {
+				return interpreter.invokeFunction((VSMXFunction) function, thisObject, arguments, numberOfArguments, false);
+			}
+		}
+
+		if (object instanceof VSMXFunction && callName.equals(name)) {
+			// The first argument of the "call()" function call is the "this" object.
+			if (numberOfArguments > 0) {
+				thisObject = arguments[0];
+				numberOfArguments--;
+				VSMXBaseObject[] callArguments = new VSMXBaseObject[numberOfArguments];
+				System.arraycopy(arguments, 1, callArguments, 0, numberOfArguments);
+				arguments = callArguments;
+			}
+			return interpreter.invokeFunction((VSMXFunction) object, thisObject, arguments, numberOfArguments, false);
+		}
+
+		INativeFunction nativeFunction;
+		if (object instanceof VSMXNativeObject) {
+			nativeFunction = inlineCache.getNativeFunction((VSMXNativeObject) object, name, numberOfArguments);
+		} else {
+			nativeFunction = inlineCache.getNativeFunction(object, name, numberOfArguments);
+		}
+		if (nativeFunction != null) {
+			return interpreter.invokeFunction(new VSMXNativeFunction(interpreter, nativeFunction), thisObject, arguments, numberOfArguments, false);
+		}
+
+		log.warn(String.format("Line#%d non existing method %s()", line, name));
+		return VSMXNull.singleton;
+	}
+
+	/**
+	 * Call of a method object not known at compile time,
+	 * i.e. when the method object has been passed across a jump.
+	 */
+	protected VSMXBaseObject callMethod(VSMXBaseObject o, VSMXBaseObject[] arguments, int line) {
+		if (o instanceof VSMXMethod) {
+			VSMXMethod method = (VSMXMethod) o;
+			VSMXFunction function = method.getFunction(arguments.length, arguments);
+			if (function == null) {
+				log.warn(String.format("Line#%d non existing method %s()", line, method.getName()));
+				return VSMXNull.singleton;
+			}
+			return interpreter.invokeFunction(function, method.getThisObject(), method.getArguments(), method.getNumberOfArguments(), false);
+		}
+
+		log.warn(String.format("Line#%d non-method call", line));
+		return VSMXNull.singleton;
+	}
+
+	/**
+	 * Call of a function retrieved by VID_ARRAY_INDEX_KEEP_OBJ, the "this" object
+	 * being the object kept on the stack.
+	 */
+	protected VSMXBaseObject callMethod(VSMXBaseObject o, VSMXBaseObject thisObject, VSMXBaseObject[] arguments, int line) {
+		if (o instanceof VSMXMethod) {
+			return callMethod(o, arguments, line);
+		}
+		if (o instanceof VSMXFunction) {
+			return interpreter.invokeFunction((VSMXFunction) o, thisObject, arguments, arguments.length, false);
+		}
+
+		log.warn(String.format("Line#%d non-method call", line));
+		return VSMXNull.singleton;
+	}
+
+	protected VSMXBaseObject callNew(VSMXBaseObject r, VSMXBaseObject[] arguments, int line) {
+		int numberOfArguments = arguments.length;
+		VSMXBaseObject o = r.getValue();
+		if (o instanceof VSMXArray) {
+			if (numberOfArguments == 0) {
+				// No arguments: create an empty array
+				return new VSMXArray(interpreter);
+			}
+			if (numberOfArguments == 1) {
+				// One argument: create an array of the given size
+				return new VSMXArray(interpreter, arguments[0].getIntValue());
+			}
+			// More than 1 arguments: create an array containing the given values
+			VSMXArray array = new VSMXArray(interpreter, numberOfArguments);
+			for (int i = 0; i < numberOfArguments; i++) {
+				array.setPropertyValue(i, arguments[i]);
+			}
+			return array;
+		}
+
+		if (o instanceof VSMXFunction) {
+			String className = null;
+			if (r instanceof VSMXReference) {
+				className = ((VSMXReference) r).getRefProperty();
+			}
+			VSMXObject thisObject = new VSMXObject(interpreter, className);
+			return interpreter.invokeFunction((VSMXFunction) o, thisObject, arguments, numberOfArguments, true);
+		}
+
+		if (o instanceof VSMXObject) {
+			if (numberOfArguments == 0) {
+				return new VSMXObject(interpreter, null);
+			}
+			log.warn(String.format("Line#%d wrong number of arguments for new Object", line));
+			return VSMXUndefined.singleton;
+		}
+
+		log.warn(String.format("Line#%d unimplemented new", line));
+		return new VSMXArray(interpreter);
+	}
+
+	protected void unimplemented(int line, String opcode) {
+		log.warn(String.format("Line#%d unimplemented %s", line, opcode));
+	}
+}
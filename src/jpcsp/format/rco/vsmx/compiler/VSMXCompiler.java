@@ -0,0 +1,1324 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.format.rco.vsmx.compiler;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.util.CheckClassAdapter;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import jpcsp.Allegrex.compiler.CompilerClassLoader;
+import jpcsp.format.rco.vsmx.VSMX;
+import jpcsp.format.rco.vsmx.VSMXCode;
+import jpcsp.format.rco.vsmx.VSMXGroup;
+import jpcsp.format.rco.vsmx.VSMXMem;
+import jpcsp.format.rco.vsmx.interpreter.VSMXBaseObject;
+import jpcsp.format.rco.vsmx.interpreter.VSMXBoolean;
+import jpcsp.format.rco.vsmx.interpreter.VSMXCallState;
+import jpcsp.format.rco.vsmx.interpreter.VSMXFunction;
+import jpcsp.format.rco.vsmx.interpreter.VSMXInterpreter;
+import jpcsp.format.rco.vsmx.interpreter.VSMXNull;
+
+/**
+ * Compiler of the VSMX functions into Java bytecode.
+ *
+ * A VSMX function is compiled the first time it is called.
+ * The VSMX stack is mapped at compile time to local variables of the
+ * generated method, so that no Stack object is used and no VSMXReference
+ * is allocated to access a variable or a property.
+ * Numbers and booleans are kept unboxed as long as possible.
+ *
+ * Each VSMX stack position is using 3 local variables of the generated method:
+ * - a VSMXBaseObject (KIND_OBJECT, or the object of KIND_PROPERTY and KIND_METHOD)
+ * - a float (KIND_FLOAT)
+ * - an int (KIND_BOOLEAN)
+ * References to local variables and global variables (KIND_LOCAL_VAR, KIND_GLOBAL)
+ * are only known at compile time and don't use any local variable.
+ * At each jump, all the stack values are converted to KIND_OBJECT so that the
+ * stack layout is the same for all the branches reaching a given line.
+ *
+ * A function is not compiled, and will be interpreted instead, when
+ * it is leaving the function by running into VID_END,
+ * when the stack height is not consistent across jumps, or when
+ * a VID_CALL_METHOD cannot be resolved at compile time.
+ */
+public class VSMXCompiler {
+	private static final Logger log = VSMX.log;
+	// Kinds of values on the VSMX stack
+	private static final int KIND_OBJECT = 0;
+	private static final int KIND_FLOAT = 1;
+	private static final int KIND_BOOLEAN = 2;
+	private static final int KIND_LOCAL_VAR = 3;
+	private static final int KIND_GLOBAL = 4;
+	private static final int KIND_PROPERTY = 5;
+	private static final int KIND_METHOD = 6;
+	// Origin of a value on the VSMX stack, required to compile VID_CALL_METHOD
+	private static final int ORIGIN_NONE = 0;
+	private static final int ORIGIN_METHOD = 1;
+	private static final int ORIGIN_KEEP_OBJ = 2;
+	// Local variables of the generated call() method
+	private static final int LOCAL_THIS = 0;
+	private static final int LOCAL_CALL_STATE = 1;
+	private static final int LOCAL_TMP_OBJECT1 = 2;
+	private static final int LOCAL_TMP_OBJECT2 = 3;
+	private static final int LOCAL_TMP_ARGUMENTS = 4;
+	private static final int LOCAL_TMP_FLOAT = 5;
+	private static final int LOCAL_TMP_INT = 6;
+	private static final int LOCAL_FIRST_STACK = 7;
+	// Maximum Java stack size used by the generated code
+	private static final int MAX_STACK = 16;
+	private static final String compiledFunctionInternalName = Type.getInternalName(VSMXCompiledFunction.class);
+	private static final String inlineCacheInternalName = Type.getInternalName(VSMXCompiledFunction.InlineCache.class);
+	private static final String inlineCacheDescriptor = Type.getDescriptor(VSMXCompiledFunction.InlineCache.class);
+	private static final String baseObjectInternalName = Type.getInternalName(VSMXBaseObject.class);
+	private static final String baseObjectDescriptor = Type.getDescriptor(VSMXBaseObject.class);
+	private static final String baseObjectArrayDescriptor = Type.getDescriptor(VSMXBaseObject[].class);
+	private static final String callStateInternalName = Type.getInternalName(VSMXCallState.class);
+	private static final String callStateDescriptor = Type.getDescriptor(VSMXCallState.class);
+	private static final String interpreterDescriptor = Type.getDescriptor(VSMXInterpreter.class);
+	private static final String stringDescriptor = Type.getDescriptor(String.class);
+	private static final String callMethodName = "call";
+	private static final String callMethodDescriptor = "(" + callStateDescriptor + ")" + baseObjectDescriptor;
+	private static int classNumber;
+	private final VSMXInterpreter interpreter;
+	private final VSMXMem mem;
+	private final CompilerClassLoader classLoader = new CompilerClassLoader(null);
+	private final Map<Integer, VSMXCompiledFunction> compiledFunctions = new HashMap<Integer, VSMXCompiledFunction>();
+	private final Set<Integer> notCompiledFunctions = new HashSet<Integer>();
+	// State while compiling a function
+	private String className;
+	private MethodVisitor mv;
+	private final Set<Integer> blockStarts = new HashSet<Integer>();
+	private final Map<Integer, BlockState> blockStates = new HashMap<Integer, BlockState>();
+	private final LinkedList<Integer> pendingBlocks = new LinkedList<Integer>();
+	private final Map<Integer, Label> labels = new HashMap<Integer, Label>();
+	private final Set<String> inlineCaches = new TreeSet<String>();
+	private int height;
+	private int maxHeight;
+	private int[] kinds = new int[16];
+	private int[] values = new int[16];
+	private int[] origins = new int[16];
+	private int[] lines = new int[16];
+
+	private static class CompilerException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public CompilerException(String message) {
+			super(message);
+		}
+	}
+
+	private static class BlockState {
+		private final int[] origins;
+
+		public BlockState(int[] origins, int height) {
+			this.origins = Arrays.copyOf(origins, height);
+		}
+
+		public boolean isSame(int[] origins, int height) {
+			return this.origins.length == height && Arrays.equals(this.origins, Arrays.copyOf(origins, height));
+		}
+	}
+
+	public VSMXCompiler(VSMXInterpreter interpreter, VSMXMem mem) {
+		this.interpreter = interpreter;
+		this.mem = mem;
+	}
+
+	/**
+	 * Retrieve the compiled version of a function, compiling it on its first call.
+	 *
+	 * @param function  the function
+	 * @return          the compiled function, or null if the function has to be interpreted
+	 */
+	public VSMXCompiledFunction getCompiledFunction(VSMXFunction function) {
+		int startLine = function.getStartLine();
+		VSMXCompiledFunction compiledFunction = compiledFunctions.get(startLine);
+		if (compiledFunction == null && !notCompiledFunctions.contains(startLine)) {
+			compiledFunction = compile(startLine);
+			if (compiledFunction == null) {
+				notCompiledFunctions.add(startLine);
+			} else {
+				compiledFunctions.put(startLine, compiledFunction);
+			}
+		}
+
+		return compiledFunction;
+	}
+
+	private VSMXCompiledFunction compile(int startLine) {
+		VSMXCompiledFunction compiledFunction = null;
+
+		try {
+			TreeSet<Integer> functionLines = analyze(startLine);
+			byte[] bytes = generate(functionLines);
+			Class<?> compiledClass = classLoader.defineClass(className.replace('/', '.'), bytes);
+			compiledFunction = (VSMXCompiledFunction) compiledClass.getConstructor(VSMXInterpreter.class).newInstance(interpreter);
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("VSMXCompiler compiled function at line#%d (%d lines) into %s", startLine, functionLines.size(), className));
+			}
+		} catch (CompilerException e) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("VSMXCompiler not compiling function at line#%d: %s", startLine, e.getMessage()));
+			}
+		} catch (Exception e) {
+			log.error(String.format("VSMXCompiler error while compiling function at line#%d", startLine), e);
+		} catch (LinkageError e) {
+			log.error(String.format("VSMXCompiler error while compiling function at line#%d", startLine), e);
+		} finally {
+			mv = null;
+			blockStarts.clear();
+			blockStates.clear();
+			pendingBlocks.clear();
+			labels.clear();
+			inlineCaches.clear();
+			height = 0;
+			maxHeight = 0;
+		}
+
+		return compiledFunction;
+	}
+
+	private static boolean isFallThrough(int opcode) {
+		switch (opcode) {
+			case VSMXCode.VID_JUMP:
+			case VSMXCode.VID_RETURN:
+			case VSMXCode.VID_END:
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find all the lines of the function and
+	 * the stack state at the start of each basic block.
+	 */
+	private TreeSet<Integer> analyze(int startLine) throws CompilerException {
+		TreeSet<Integer> functionLines = new TreeSet<Integer>();
+		LinkedList<Integer> pendingLines = new LinkedList<Integer>();
+		pendingLines.add(startLine);
+		blockStarts.add(startLine);
+		while (!pendingLines.isEmpty()) {
+			int line = pendingLines.removeFirst();
+			if (functionLines.contains(line)) {
+				continue;
+			}
+			if (line < 0 || line >= mem.codes.length) {
+				throw new CompilerException(String.format("line#%d out of range", line));
+			}
+			functionLines.add(line);
+
+			VSMXGroup code = mem.codes[line];
+			switch (code.getOpcode()) {
+				case VSMXCode.VID_END:
+					throw new CompilerException(String.format("line#%d %s", line, code));
+				case VSMXCode.VID_JUMP_TRUE:
+				case VSMXCode.VID_JUMP_FALSE:
+					// Continuing either at the next line or at the jump target
+					pendingLines.add(line + 1);
+					pendingLines.add(code.value);
+					blockStarts.add(code.value);
+					break;
+				case VSMXCode.VID_JUMP:
+					pendingLines.add(code.value);
+					blockStarts.add(code.value);
+					break;
+				case VSMXCode.VID_RETURN:
+					break;
+				default:
+					pendingLines.add(line + 1);
+					break;
+			}
+		}
+
+		// Simulate the compilation of each basic block, without generating any code,
+		// to compute the stack state at the start of each basic block.
+		mv = new MethodVisitor(Opcodes.ASM9) {};
+		height = 0;
+		mergeBlockState(startLine);
+		while (!pendingBlocks.isEmpty()) {
+			int line = pendingBlocks.removeFirst();
+			setBlockState(line);
+			while (true) {
+				compileLine(line);
+				if (!isFallThrough(mem.codes[line].getOpcode())) {
+					break;
+				}
+				line++;
+				if (blockStarts.contains(line)) {
+					materialize();
+					mergeBlockState(line);
+					break;
+				}
+			}
+		}
+
+		return functionLines;
+	}
+
+	private byte[] generate(TreeSet<Integer> functionLines) throws CompilerException {
+		className = String.format("%s/VSMXFunction_%d_%d", compiledFunctionInternalName.substring(0, compiledFunctionInternalName.lastIndexOf('/')), functionLines.first(), classNumber++);
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		ClassVisitor cv = cw;
+		if (log.isDebugEnabled()) {
+			cv = new CheckClassAdapter(cv);
+		}
+		StringWriter debugOutput = null;
+		if (log.isTraceEnabled()) {
+			debugOutput = new StringWriter();
+			cv = new TraceClassVisitor(cv, new PrintWriter(debugOutput));
+		}
+		cv.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, compiledFunctionInternalName, null);
+
+		mv = cv.visitMethod(Opcodes.ACC_PUBLIC, callMethodName, callMethodDescriptor, null, null);
+		mv.visitCode();
+		for (int line : functionLines) {
+			if (blockStarts.contains(line)) {
+				mv.visitLabel(getLabel(line));
+				setBlockState(line);
+			}
+			compileLine(line);
+			if (isFallThrough(mem.codes[line].getOpcode()) && blockStarts.contains(line + 1)) {
+				materialize();
+			}
+		}
+		mv.visitMaxs(MAX_STACK, objectSlot(maxHeight));
+		mv.visitEnd();
+
+		for (String inlineCache : inlineCaches) {
+			FieldVisitor fv = cv.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, inlineCache, inlineCacheDescriptor, null, null);
+			fv.visitEnd();
+		}
+
+		mv = cv.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(" + interpreterDescriptor + ")V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, compiledFunctionInternalName, "<init>", "(" + interpreterDescriptor + ")V", false);
+		for (String inlineCache : inlineCaches) {
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitTypeInsn(Opcodes.NEW, inlineCacheInternalName);
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitMethodInsn(Opcodes.INVOKESPECIAL, inlineCacheInternalName, "<init>", "()V", false);
+			mv.visitFieldInsn(Opcodes.PUTFIELD, className, inlineCache, inlineCacheDescriptor);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(4, 2);
+		mv.visitEnd();
+
+		cv.visitEnd();
+
+		if (debugOutput != null) {
+			log.trace(debugOutput.toString());
+		}
+
+		return cw.toByteArray();
+	}
+
+	private Label getLabel(int line) {
+		Label label = labels.get(line);
+		if (label == null) {
+			label = new Label();
+			labels.put(line, label);
+		}
+		return label;
+	}
+
+	private void mergeBlockState(int line) throws CompilerException {
+		BlockState blockState = blockStates.get(line);
+		if (blockState == null) {
+			blockStates.put(line, new BlockState(origins, height));
+			pendingBlocks.add(line);
+		} else if (!blockState.isSame(origins, height)) {
+			throw new CompilerException(String.format("inconsistent stack at line#%d", line));
+		}
+	}
+
+	private void setBlockState(int line) {
+		BlockState blockState = blockStates.get(line);
+		height = 0;
+		for (int i = 0; i < blockState.origins.length; i++) {
+			push(KIND_OBJECT, 0, blockState.origins[i], -1);
+		}
+	}
+
+	private String getString(String[] strings, int index, int line) throws CompilerException {
+		if (strings == null || index < 0 || index >= strings.length) {
+			throw new CompilerException(String.format("line#%d invalid string index %d", line, index));
+		}
+		return strings[index];
+	}
+
+	private String getInlineCacheName(int line, int numberOfArguments) {
+		return String.format("inlineCache%d_%d", line, numberOfArguments);
+	}
+
+	private static int objectSlot(int i) {
+		return LOCAL_FIRST_STACK + i * 3;
+	}
+
+	private static int floatSlot(int i) {
+		return LOCAL_FIRST_STACK + i * 3 + 1;
+	}
+
+	private static int intSlot(int i) {
+		return LOCAL_FIRST_STACK + i * 3 + 2;
+	}
+
+	private void push(int kind, int value, int origin, int line) {
+		if (height >= kinds.length) {
+			int length = kinds.length * 2;
+			kinds = Arrays.copyOf(kinds, length);
+			values = Arrays.copyOf(values, length);
+			origins = Arrays.copyOf(origins, length);
+			lines = Arrays.copyOf(lines, length);
+		}
+		kinds[height] = kind;
+		values[height] = value;
+		origins[height] = origin;
+		lines[height] = line;
+		height++;
+		maxHeight = Math.max(maxHeight, height);
+	}
+
+	private void checkStack(int n, int line) throws CompilerException {
+		if (height < n) {
+			throw new CompilerException(String.format("line#%d stack underflow", line));
+		}
+	}
+
+	private void pop(int n) {
+		height -= n;
+	}
+
+	/**
+	 * Pop n values and push the VSMXBaseObject available on the Java stack.
+	 */
+	private void popPushObject(int n, int origin) {
+		pop(n);
+		mv.visitVarInsn(Opcodes.ASTORE, objectSlot(height));
+		push(KIND_OBJECT, 0, origin, -1);
+	}
+
+	/**
+	 * Pop n values and push the float available on the Java stack.
+	 */
+	private void popPushFloat(int n) {
+		pop(n);
+		mv.visitVarInsn(Opcodes.FSTORE, floatSlot(height));
+		push(KIND_FLOAT, 0, ORIGIN_NONE, -1);
+	}
+
+	/**
+	 * Pop n values and push the boolean available on the Java stack.
+	 */
+	private void popPushBoolean(int n) {
+		pop(n);
+		mv.visitVarInsn(Opcodes.ISTORE, intSlot(height));
+		push(KIND_BOOLEAN, 0, ORIGIN_NONE, -1);
+	}
+
+	private void loadImm(int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+
+	private void loadString(String value) {
+		if (value == null) {
+			mv.visitInsn(Opcodes.ACONST_NULL);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+
+	private void loadThis() {
+		mv.visitVarInsn(Opcodes.ALOAD, LOCAL_THIS);
+	}
+
+	private void loadCallState() {
+		mv.visitVarInsn(Opcodes.ALOAD, LOCAL_CALL_STATE);
+	}
+
+	private void loadInlineCache(int line, int numberOfArguments) {
+		String name = getInlineCacheName(line, numberOfArguments);
+		inlineCaches.add(name);
+		loadThis();
+		mv.visitFieldInsn(Opcodes.GETFIELD, className, name, inlineCacheDescriptor);
+	}
+
+	private void invokeHelper(String name, String descriptor) {
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, compiledFunctionInternalName, name, descriptor, false);
+	}
+
+	private void invokeBaseObject(String name, String descriptor) {
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, baseObjectInternalName, name, descriptor, false);
+	}
+
+	private void storeTmp(int opcode, int local) {
+		mv.visitVarInsn(opcode, local);
+	}
+
+	private void loadTmp(int opcode, int local) {
+		mv.visitVarInsn(opcode, local);
+	}
+
+	private String getName(int i) throws CompilerException {
+		if (kinds[i] == KIND_GLOBAL) {
+			return getString(mem.names, values[i], lines[i]);
+		}
+		return getString(mem.properties, values[i], lines[i]);
+	}
+
+	/**
+	 * Load on the Java stack the value of the VSMX stack entry i,
+	 * i.e. the equivalent of "getValueWithArguments(numberOfArguments)".
+	 */
+	private void loadValue(int i, int numberOfArguments) throws CompilerException {
+		switch (kinds[i]) {
+			case KIND_OBJECT:
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				if (numberOfArguments == 0) {
+					invokeBaseObject("getValue", "()" + baseObjectDescriptor);
+				} else {
+					loadImm(numberOfArguments);
+					invokeBaseObject("getValueWithArguments", "(I)" + baseObjectDescriptor);
+				}
+				break;
+			case KIND_FLOAT:
+				loadThis();
+				mv.visitVarInsn(Opcodes.FLOAD, floatSlot(i));
+				invokeHelper("number", "(F)" + baseObjectDescriptor);
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ILOAD, intSlot(i));
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(VSMXBoolean.class), "getValue", "(Z)" + Type.getDescriptor(VSMXBoolean.class), false);
+				break;
+			case KIND_LOCAL_VAR:
+				loadCallState();
+				loadImm(values[i]);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, callStateInternalName, "getLocalVar", "(I)" + baseObjectDescriptor, false);
+				break;
+			case KIND_GLOBAL:
+				loadThis();
+				loadString(getName(i));
+				loadImm(numberOfArguments);
+				loadInlineCache(lines[i], numberOfArguments);
+				invokeHelper("globalValue", "(" + stringDescriptor + "I" + inlineCacheDescriptor + ")" + baseObjectDescriptor);
+				break;
+			case KIND_PROPERTY:
+				loadThis();
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				loadString(getName(i));
+				loadImm(numberOfArguments);
+				loadInlineCache(lines[i], numberOfArguments);
+				invokeHelper("propertyValue", "(" + baseObjectDescriptor + stringDescriptor + "I" + inlineCacheDescriptor + ")" + baseObjectDescriptor);
+				break;
+			case KIND_METHOD:
+				loadThis();
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				loadString(getName(i));
+				invokeHelper("method", "(" + baseObjectDescriptor + stringDescriptor + ")" + baseObjectDescriptor);
+				break;
+		}
+	}
+
+	private void loadValue(int i) throws CompilerException {
+		loadValue(i, 0);
+	}
+
+	/**
+	 * Load on the Java stack the VSMX stack entry i as the interpreter
+	 * would have it on its stack, i.e. possibly a VSMXReference.
+	 */
+	private void loadReference(int i) throws CompilerException {
+		switch (kinds[i]) {
+			case KIND_OBJECT:
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				break;
+			case KIND_LOCAL_VAR:
+				loadThis();
+				loadCallState();
+				loadImm(values[i]);
+				invokeHelper("localVarReference", "(" + callStateDescriptor + "I)" + baseObjectDescriptor);
+				break;
+			case KIND_GLOBAL:
+				loadThis();
+				loadString(getName(i));
+				invokeHelper("globalReference", "(" + stringDescriptor + ")" + baseObjectDescriptor);
+				break;
+			case KIND_PROPERTY:
+				loadThis();
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				loadString(getName(i));
+				invokeHelper("propertyReference", "(" + baseObjectDescriptor + stringDescriptor + ")" + baseObjectDescriptor);
+				break;
+			default:
+				loadValue(i);
+				break;
+		}
+	}
+
+	/**
+	 * Load the VSMX stack entry i on the Java stack,
+	 * the entry being used as the target of getPropertyValue(), setPropertyValue()...
+	 */
+	private void loadTarget(int i) throws CompilerException {
+		if (kinds[i] == KIND_OBJECT) {
+			mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+		} else {
+			loadValue(i);
+		}
+	}
+
+	private void loadFloat(int i) throws CompilerException {
+		switch (kinds[i]) {
+			case KIND_FLOAT:
+				mv.visitVarInsn(Opcodes.FLOAD, floatSlot(i));
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ILOAD, intSlot(i));
+				mv.visitInsn(Opcodes.I2F);
+				break;
+			default:
+				loadTarget(i);
+				invokeBaseObject("getFloatValue", "()F");
+				break;
+		}
+	}
+
+	private void loadInt(int i) throws CompilerException {
+		switch (kinds[i]) {
+			case KIND_FLOAT:
+				mv.visitVarInsn(Opcodes.FLOAD, floatSlot(i));
+				mv.visitInsn(Opcodes.F2I);
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ILOAD, intSlot(i));
+				break;
+			default:
+				loadTarget(i);
+				invokeBaseObject("getIntValue", "()I");
+				break;
+		}
+	}
+
+	private void loadBoolean(int i) throws CompilerException {
+		switch (kinds[i]) {
+			case KIND_FLOAT:
+				// value != 0f, also true for NaN
+				mv.visitVarInsn(Opcodes.FLOAD, floatSlot(i));
+				mv.visitInsn(Opcodes.FCONST_0);
+				mv.visitInsn(Opcodes.FCMPL);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "abs", "(I)I", false);
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ILOAD, intSlot(i));
+				break;
+			default:
+				loadTarget(i);
+				invokeBaseObject("getBooleanValue", "()Z");
+				break;
+		}
+	}
+
+	private boolean isNumber(int i) {
+		return kinds[i] == KIND_FLOAT || kinds[i] == KIND_BOOLEAN;
+	}
+
+	/**
+	 * Store the VSMX stack entry i as a VSMXBaseObject.
+	 */
+	private void materialize(int i) throws CompilerException {
+		if (kinds[i] != KIND_OBJECT) {
+			loadReference(i);
+			mv.visitVarInsn(Opcodes.ASTORE, objectSlot(i));
+			kinds[i] = KIND_OBJECT;
+		}
+	}
+
+	/**
+	 * Store all the VSMX stack entries as VSMXBaseObject,
+	 * as required at the start of a basic block.
+	 */
+	private void materialize() throws CompilerException {
+		for (int i = 0; i < height; i++) {
+			materialize(i);
+		}
+	}
+
+	private void loadSlot(int i) {
+		switch (kinds[i]) {
+			case KIND_OBJECT:
+			case KIND_PROPERTY:
+			case KIND_METHOD:
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				break;
+			case KIND_FLOAT:
+				mv.visitVarInsn(Opcodes.FLOAD, floatSlot(i));
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ILOAD, intSlot(i));
+				break;
+		}
+	}
+
+	private void storeSlot(int i) {
+		switch (kinds[i]) {
+			case KIND_OBJECT:
+			case KIND_PROPERTY:
+			case KIND_METHOD:
+				mv.visitVarInsn(Opcodes.ASTORE, objectSlot(i));
+				break;
+			case KIND_FLOAT:
+				mv.visitVarInsn(Opcodes.FSTORE, floatSlot(i));
+				break;
+			case KIND_BOOLEAN:
+				mv.visitVarInsn(Opcodes.ISTORE, intSlot(i));
+				break;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int kind = kinds[i];
+		int value = values[i];
+		int origin = origins[i];
+		int line = lines[i];
+		kinds[i] = kinds[j];
+		values[i] = values[j];
+		origins[i] = origins[j];
+		lines[i] = lines[j];
+		kinds[j] = kind;
+		values[j] = value;
+		origins[j] = origin;
+		lines[j] = line;
+	}
+
+	/**
+	 * Push on the Java stack 1 if the given condition is true, 0 otherwise.
+	 */
+	private void loadCondition(int jumpOpcode) {
+		Label trueLabel = new Label();
+		Label endLabel = new Label();
+		mv.visitJumpInsn(jumpOpcode, trueLabel);
+		mv.visitInsn(Opcodes.ICONST_0);
+		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+		mv.visitLabel(trueLabel);
+		mv.visitInsn(Opcodes.ICONST_1);
+		mv.visitLabel(endLabel);
+	}
+
+	/**
+	 * Load on the Java stack the 2 operands of a float operation, in the interpreter order:
+	 * the top of the stack is evaluated first, but is the second operand.
+	 */
+	private void loadFloatOperands(int line) throws CompilerException {
+		checkStack(2, line);
+		loadFloat(height - 1);
+		storeTmp(Opcodes.FSTORE, LOCAL_TMP_FLOAT);
+		loadFloat(height - 2);
+		loadTmp(Opcodes.FLOAD, LOCAL_TMP_FLOAT);
+	}
+
+	private void loadIntOperands(int line) throws CompilerException {
+		checkStack(2, line);
+		loadInt(height - 1);
+		storeTmp(Opcodes.ISTORE, LOCAL_TMP_INT);
+		loadInt(height - 2);
+		loadTmp(Opcodes.ILOAD, LOCAL_TMP_INT);
+	}
+
+	private void compileFloatOperation(int opcode, int line) throws CompilerException {
+		loadFloatOperands(line);
+		mv.visitInsn(opcode);
+		popPushFloat(2);
+	}
+
+	private void compileFloatCompare(int compareOpcode, int jumpOpcode, int line) throws CompilerException {
+		loadFloatOperands(line);
+		mv.visitInsn(compareOpcode);
+		loadCondition(jumpOpcode);
+		popPushBoolean(2);
+	}
+
+	private void compileIntOperation(int opcode, int line) throws CompilerException {
+		loadIntOperands(line);
+		mv.visitInsn(opcode);
+		mv.visitInsn(Opcodes.I2F);
+		popPushFloat(2);
+	}
+
+	/**
+	 * Evaluate the 2 top values of the stack, in the interpreter order,
+	 * into LOCAL_TMP_OBJECT1 (top of the stack) and LOCAL_TMP_OBJECT2.
+	 */
+	private void storeObjectOperands(int line) throws CompilerException {
+		checkStack(2, line);
+		loadValue(height - 1);
+		storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+		loadValue(height - 2);
+		storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT2);
+	}
+
+	private void compileEqual(boolean not, int line) throws CompilerException {
+		checkStack(2, line);
+		if (isNumber(height - 1)) {
+			// VSMXBaseObject.equals() is comparing the float values
+			loadFloatOperands(line);
+			mv.visitInsn(Opcodes.FCMPL);
+			loadCondition(not ? Opcodes.IFNE : Opcodes.IFEQ);
+		} else {
+			storeObjectOperands(line);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT2);
+			invokeBaseObject("equals", "(" + baseObjectDescriptor + ")Z");
+			if (not) {
+				mv.visitInsn(Opcodes.ICONST_1);
+				mv.visitInsn(Opcodes.IXOR);
+			}
+		}
+		popPushBoolean(2);
+	}
+
+	private void compileIdentity(boolean not, int line) throws CompilerException {
+		checkStack(2, line);
+		if (kinds[height - 1] == KIND_FLOAT && kinds[height - 2] == KIND_FLOAT) {
+			loadFloatOperands(line);
+			mv.visitInsn(Opcodes.FCMPL);
+			loadCondition(not ? Opcodes.IFNE : Opcodes.IFEQ);
+		} else if (kinds[height - 1] == KIND_BOOLEAN && kinds[height - 2] == KIND_BOOLEAN) {
+			// Booleans are singletons
+			loadIntOperands(line);
+			loadCondition(not ? Opcodes.IF_ICMPNE : Opcodes.IF_ICMPEQ);
+		} else {
+			storeObjectOperands(line);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT2);
+			invokeBaseObject("identity", "(" + baseObjectDescriptor + ")Z");
+			if (not) {
+				mv.visitInsn(Opcodes.ICONST_1);
+				mv.visitInsn(Opcodes.IXOR);
+			}
+		}
+		popPushBoolean(2);
+	}
+
+	private void compileAssign(int line) throws CompilerException {
+		checkStack(2, line);
+		int i = height - 2;
+		loadValue(height - 1);
+		storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+		switch (kinds[i]) {
+			case KIND_LOCAL_VAR:
+				loadCallState();
+				loadImm(values[i]);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, callStateInternalName, "setLocalVar", "(I" + baseObjectDescriptor + ")V", false);
+				break;
+			case KIND_GLOBAL:
+				loadThis();
+				loadString(getName(i));
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				invokeHelper("assignGlobal", "(" + stringDescriptor + baseObjectDescriptor + ")V");
+				break;
+			case KIND_PROPERTY:
+				loadThis();
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				loadString(getName(i));
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				loadImm(line);
+				invokeHelper("assignProperty", "(" + baseObjectDescriptor + stringDescriptor + baseObjectDescriptor + "I)V");
+				break;
+			default:
+				loadThis();
+				loadReference(i);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				loadImm(line);
+				invokeHelper("assign", "(" + baseObjectDescriptor + baseObjectDescriptor + "I)" + baseObjectDescriptor);
+				mv.visitInsn(Opcodes.POP);
+				break;
+		}
+		loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+		popPushObject(2, ORIGIN_NONE);
+	}
+
+	private void compileIncrement(float increment, boolean postIncrement, int line) throws CompilerException {
+		checkStack(1, line);
+		int i = height - 1;
+		loadFloat(i);
+		storeTmp(Opcodes.FSTORE, LOCAL_TMP_FLOAT);
+
+		switch (kinds[i]) {
+			case KIND_LOCAL_VAR:
+				loadCallState();
+				loadImm(values[i]);
+				loadIncrementedNumber(increment);
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, callStateInternalName, "setLocalVar", "(I" + baseObjectDescriptor + ")V", false);
+				break;
+			case KIND_GLOBAL:
+				loadThis();
+				loadString(getName(i));
+				loadIncrementedNumber(increment);
+				invokeHelper("assignGlobal", "(" + stringDescriptor + baseObjectDescriptor + ")V");
+				break;
+			case KIND_PROPERTY:
+				loadThis();
+				mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+				loadString(getName(i));
+				loadIncrementedNumber(increment);
+				loadImm(line);
+				invokeHelper("assignProperty", "(" + baseObjectDescriptor + stringDescriptor + baseObjectDescriptor + "I)V");
+				break;
+			default:
+				loadThis();
+				loadReference(i);
+				loadTmp(Opcodes.FLOAD, LOCAL_TMP_FLOAT);
+				mv.visitLdcInsn(increment);
+				mv.visitInsn(Opcodes.FADD);
+				loadImm(line);
+				invokeHelper("assignIncrement", "(" + baseObjectDescriptor + "FI)V");
+				break;
+		}
+
+		loadTmp(Opcodes.FLOAD, LOCAL_TMP_FLOAT);
+		if (!postIncrement) {
+			mv.visitLdcInsn(increment);
+			mv.visitInsn(Opcodes.FADD);
+		}
+		popPushFloat(1);
+	}
+
+	private void loadIncrementedNumber(float increment) {
+		loadThis();
+		loadTmp(Opcodes.FLOAD, LOCAL_TMP_FLOAT);
+		mv.visitLdcInsn(increment);
+		mv.visitInsn(Opcodes.FADD);
+		invokeHelper("number", "(F)" + baseObjectDescriptor);
+	}
+
+	/**
+	 * Evaluate the n arguments of a call into LOCAL_TMP_ARGUMENTS,
+	 * in the interpreter order (last argument first).
+	 */
+	private void storeArguments(int n, int line) throws CompilerException {
+		checkStack(n + 1, line);
+		loadImm(n);
+		mv.visitTypeInsn(Opcodes.ANEWARRAY, baseObjectInternalName);
+		storeTmp(Opcodes.ASTORE, LOCAL_TMP_ARGUMENTS);
+		for (int i = n - 1; i >= 0; i--) {
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+			loadImm(i);
+			loadValue(height - n + i);
+			mv.visitInsn(Opcodes.AASTORE);
+		}
+	}
+
+	private void compileCallMethod(int n, int line) throws CompilerException {
+		storeArguments(n, line);
+		int i = height - n - 1;
+		if (kinds[i] == KIND_METHOD) {
+			loadThis();
+			mv.visitVarInsn(Opcodes.ALOAD, objectSlot(i));
+			loadString(getName(i));
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+			loadInlineCache(lines[i], n);
+			loadImm(line);
+			invokeHelper("callMethod", "(" + baseObjectDescriptor + stringDescriptor + baseObjectArrayDescriptor + inlineCacheDescriptor + "I)" + baseObjectDescriptor);
+			popPushObject(n + 1, ORIGIN_NONE);
+		} else if (origins[i] == ORIGIN_METHOD) {
+			loadThis();
+			loadValue(i, n);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+			loadImm(line);
+			invokeHelper("callMethod", "(" + baseObjectDescriptor + baseObjectArrayDescriptor + "I)" + baseObjectDescriptor);
+			popPushObject(n + 1, ORIGIN_NONE);
+		} else if (origins[i] == ORIGIN_KEEP_OBJ && i > 0) {
+			// The function has been retrieved by VID_ARRAY_INDEX_KEEP_OBJ,
+			// the "this" object is the next entry on the stack.
+			loadValue(i, n);
+			storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+			loadValue(i - 1);
+			storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT2);
+			loadThis();
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT2);
+			loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+			loadImm(line);
+			invokeHelper("callMethod", "(" + baseObjectDescriptor + baseObjectDescriptor + baseObjectArrayDescriptor + "I)" + baseObjectDescriptor);
+			popPushObject(n + 2, ORIGIN_NONE);
+		} else {
+			throw new CompilerException(String.format("line#%d unknown method called", line));
+		}
+	}
+
+	private void compileLine(int line) throws CompilerException {
+		VSMXGroup code = mem.codes[line];
+		int i;
+		switch (code.getOpcode()) {
+			case VSMXCode.VID_NOTHING:
+			case VSMXCode.VID_CONST_OBJECT:
+			case VSMXCode.VID_DEBUG_FILE:
+			case VSMXCode.VID_DEBUG_LINE:
+				break;
+			case VSMXCode.VID_OPERATOR_ASSIGN:
+				compileAssign(line);
+				break;
+			case VSMXCode.VID_OPERATOR_ADD:
+				checkStack(2, line);
+				if (isNumber(height - 1) && isNumber(height - 2)) {
+					compileFloatOperation(Opcodes.FADD, line);
+				} else {
+					storeObjectOperands(line);
+					loadThis();
+					loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+					loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT2);
+					invokeHelper("add", "(" + baseObjectDescriptor + baseObjectDescriptor + ")" + baseObjectDescriptor);
+					popPushObject(2, ORIGIN_NONE);
+				}
+				break;
+			case VSMXCode.VID_OPERATOR_SUBTRACT:
+				compileFloatOperation(Opcodes.FSUB, line);
+				break;
+			case VSMXCode.VID_OPERATOR_MULTIPLY:
+				compileFloatOperation(Opcodes.FMUL, line);
+				break;
+			case VSMXCode.VID_OPERATOR_DIVIDE:
+				compileFloatOperation(Opcodes.FDIV, line);
+				break;
+			case VSMXCode.VID_OPERATOR_MOD:
+				compileFloatOperation(Opcodes.FREM, line);
+				break;
+			case VSMXCode.VID_OPERATOR_POSITIVE:
+				checkStack(1, line);
+				loadFloat(height - 1);
+				popPushFloat(1);
+				break;
+			case VSMXCode.VID_OPERATOR_NEGATE:
+				checkStack(1, line);
+				loadFloat(height - 1);
+				mv.visitInsn(Opcodes.FNEG);
+				popPushFloat(1);
+				break;
+			case VSMXCode.VID_OPERATOR_NOT:
+				checkStack(1, line);
+				loadBoolean(height - 1);
+				mv.visitInsn(Opcodes.ICONST_1);
+				mv.visitInsn(Opcodes.IXOR);
+				popPushBoolean(1);
+				break;
+			case VSMXCode.VID_P_INCREMENT:
+				compileIncrement(1f, false, line);
+				break;
+			case VSMXCode.VID_P_DECREMENT:
+				compileIncrement(-1f, false, line);
+				break;
+			case VSMXCode.VID_INCREMENT:
+				compileIncrement(1f, true, line);
+				break;
+			case VSMXCode.VID_DECREMENT:
+				compileIncrement(-1f, true, line);
+				break;
+			case VSMXCode.VID_OPERATOR_EQUAL:
+				compileEqual(false, line);
+				break;
+			case VSMXCode.VID_OPERATOR_NOT_EQUAL:
+				compileEqual(true, line);
+				break;
+			case VSMXCode.VID_OPERATOR_IDENTITY:
+				compileIdentity(false, line);
+				break;
+			case VSMXCode.VID_OPERATOR_NON_IDENTITY:
+				compileIdentity(true, line);
+				break;
+			case VSMXCode.VID_OPERATOR_LT:
+				compileFloatCompare(Opcodes.FCMPG, Opcodes.IFLT, line);
+				break;
+			case VSMXCode.VID_OPERATOR_LTE:
+				compileFloatCompare(Opcodes.FCMPG, Opcodes.IFLE, line);
+				break;
+			case VSMXCode.VID_OPERATOR_GTE:
+				compileFloatCompare(Opcodes.FCMPL, Opcodes.IFGE, line);
+				break;
+			case VSMXCode.VID_OPERATOR_GT:
+				compileFloatCompare(Opcodes.FCMPL, Opcodes.IFGT, line);
+				break;
+			case VSMXCode.VID_OPERATOR_TYPEOF:
+				checkStack(1, line);
+				loadThis();
+				loadValue(height - 1);
+				invokeHelper("typeOf", "(" + baseObjectDescriptor + ")" + baseObjectDescriptor);
+				popPushObject(1, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_OPERATOR_B_AND:
+				compileIntOperation(Opcodes.IAND, line);
+				break;
+			case VSMXCode.VID_OPERATOR_B_XOR:
+				compileIntOperation(Opcodes.IXOR, line);
+				break;
+			case VSMXCode.VID_OPERATOR_B_OR:
+				compileIntOperation(Opcodes.IOR, line);
+				break;
+			case VSMXCode.VID_OPERATOR_B_NOT:
+				checkStack(1, line);
+				loadInt(height - 1);
+				mv.visitInsn(Opcodes.ICONST_M1);
+				mv.visitInsn(Opcodes.IXOR);
+				mv.visitInsn(Opcodes.I2F);
+				popPushFloat(1);
+				break;
+			case VSMXCode.VID_OPERATOR_LSHIFT:
+				compileIntOperation(Opcodes.ISHL, line);
+				break;
+			case VSMXCode.VID_OPERATOR_RSHIFT:
+				compileIntOperation(Opcodes.ISHR, line);
+				break;
+			case VSMXCode.VID_OPERATOR_URSHIFT:
+				compileIntOperation(Opcodes.IUSHR, line);
+				break;
+			case VSMXCode.VID_STACK_COPY:
+				checkStack(1, line);
+				i = height - 1;
+				// Both copies have to share the same VSMXNumber object
+				if (kinds[i] == KIND_FLOAT) {
+					materialize(i);
+				}
+				loadSlot(i);
+				push(kinds[i], values[i], origins[i], lines[i]);
+				storeSlot(height - 1);
+				break;
+			case VSMXCode.VID_STACK_SWAP:
+				checkStack(2, line);
+				loadSlot(height - 2);
+				loadSlot(height - 1);
+				swap(height - 2, height - 1);
+				storeSlot(height - 2);
+				storeSlot(height - 1);
+				break;
+			case VSMXCode.VID_END_STMT:
+				height = 0;
+				break;
+			case VSMXCode.VID_CONST_NULL:
+				mv.visitFieldInsn(Opcodes.GETSTATIC, Type.getInternalName(VSMXNull.class), "singleton", Type.getDescriptor(VSMXNull.class));
+				popPushObject(0, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_CONST_EMPTYARRAY:
+			case VSMXCode.VID_ARRAY:
+				loadThis();
+				invokeHelper("array", "()" + baseObjectDescriptor);
+				popPushObject(0, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_CONST_BOOL:
+				loadImm(code.value != 0 ? 1 : 0);
+				popPushBoolean(0);
+				break;
+			case VSMXCode.VID_CONST_INT:
+				mv.visitLdcInsn((float) code.value);
+				popPushFloat(0);
+				break;
+			case VSMXCode.VID_CONST_FLOAT:
+				mv.visitLdcInsn(code.getFloatValue());
+				popPushFloat(0);
+				break;
+			case VSMXCode.VID_CONST_STRING:
+				loadThis();
+				loadString(getString(mem.texts, code.value, line));
+				invokeHelper("string", "(" + stringDescriptor + ")" + baseObjectDescriptor);
+				popPushObject(0, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_FUNCTION:
+				loadThis();
+				loadImm((code.id >> 8) & 0xFF);
+				loadImm((code.id >> 24) & 0xFF);
+				loadImm(code.value);
+				invokeHelper("function", "(III)" + baseObjectDescriptor);
+				popPushObject(0, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_THIS:
+				loadCallState();
+				mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, callStateInternalName, "getThisObject", "()" + baseObjectDescriptor, false);
+				popPushObject(0, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_UNNAMED_VAR:
+				push(KIND_LOCAL_VAR, code.value, ORIGIN_NONE, line);
+				break;
+			case VSMXCode.VID_VARIABLE:
+				getString(mem.names, code.value, line);
+				push(KIND_GLOBAL, code.value, ORIGIN_NONE, line);
+				break;
+			case VSMXCode.VID_PROPERTY:
+			case VSMXCode.VID_METHOD:
+				checkStack(1, line);
+				getString(mem.properties, code.value, line);
+				i = height - 1;
+				loadValue(i);
+				mv.visitVarInsn(Opcodes.ASTORE, objectSlot(i));
+				pop(1);
+				if (code.getOpcode() == VSMXCode.VID_PROPERTY) {
+					push(KIND_PROPERTY, code.value, ORIGIN_NONE, line);
+				} else {
+					push(KIND_METHOD, code.value, ORIGIN_METHOD, line);
+				}
+				break;
+			case VSMXCode.VID_SET_ATTR:
+				checkStack(2, line);
+				loadValue(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadTarget(height - 2);
+				loadString(getString(mem.properties, code.value, line));
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				invokeBaseObject("setPropertyValue", "(" + stringDescriptor + baseObjectDescriptor + ")V");
+				pop(2);
+				break;
+			case VSMXCode.VID_UNSET:
+				checkStack(1, line);
+				loadTarget(height - 1);
+				loadString(getString(mem.properties, code.value, line));
+				invokeBaseObject("deletePropertyValue", "(" + stringDescriptor + ")V");
+				pop(1);
+				break;
+			case VSMXCode.VID_ARRAY_INDEX:
+				checkStack(2, line);
+				loadReference(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadThis();
+				loadValue(height - 2);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				invokeHelper("arrayIndex", "(" + baseObjectDescriptor + baseObjectDescriptor + ")" + baseObjectDescriptor);
+				popPushObject(2, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_ARRAY_INDEX_KEEP_OBJ:
+				checkStack(2, line);
+				loadReference(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadThis();
+				loadValue(height - 2);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				invokeHelper("arrayIndexKeepObject", "(" + baseObjectDescriptor + baseObjectDescriptor + ")" + baseObjectDescriptor);
+				popPushObject(1, ORIGIN_KEEP_OBJ);
+				break;
+			case VSMXCode.VID_ARRAY_INDEX_ASSIGN:
+				checkStack(3, line);
+				loadValue(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadReference(height - 2);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT2);
+				loadThis();
+				loadValue(height - 3);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT2);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				loadImm(line);
+				invokeHelper("arrayIndexAssign", "(" + baseObjectDescriptor + baseObjectDescriptor + baseObjectDescriptor + "I)V");
+				pop(3);
+				break;
+			case VSMXCode.VID_ARRAY_DELETE:
+				checkStack(2, line);
+				loadReference(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadThis();
+				loadValue(height - 2);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				loadImm(line);
+				invokeHelper("arrayDelete", "(" + baseObjectDescriptor + baseObjectDescriptor + "I)V");
+				pop(2);
+				break;
+			case VSMXCode.VID_ARRAY_PUSH:
+				checkStack(2, line);
+				loadValue(height - 1);
+				storeTmp(Opcodes.ASTORE, LOCAL_TMP_OBJECT1);
+				loadThis();
+				loadValue(height - 2);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_OBJECT1);
+				loadImm(line);
+				invokeHelper("arrayPush", "(" + baseObjectDescriptor + baseObjectDescriptor + "I)" + baseObjectDescriptor);
+				popPushObject(2, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_JUMP:
+				materialize();
+				mergeBlockState(code.value);
+				mv.visitJumpInsn(Opcodes.GOTO, getLabel(code.value));
+				break;
+			case VSMXCode.VID_JUMP_TRUE:
+			case VSMXCode.VID_JUMP_FALSE:
+				checkStack(1, line);
+				loadBoolean(height - 1);
+				pop(1);
+				materialize();
+				mergeBlockState(code.value);
+				mv.visitJumpInsn(code.getOpcode() == VSMXCode.VID_JUMP_TRUE ? Opcodes.IFNE : Opcodes.IFEQ, getLabel(code.value));
+				break;
+			case VSMXCode.VID_CALL_FUNC:
+				storeArguments(code.value, line);
+				loadThis();
+				loadValue(height - code.value - 1, code.value);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+				loadImm(line);
+				invokeHelper("callFunction", "(" + baseObjectDescriptor + baseObjectArrayDescriptor + "I)" + baseObjectDescriptor);
+				popPushObject(code.value + 1, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_CALL_METHOD:
+				compileCallMethod(code.value, line);
+				break;
+			case VSMXCode.VID_CALL_NEW:
+				storeArguments(code.value, line);
+				loadThis();
+				loadReference(height - code.value - 1);
+				loadTmp(Opcodes.ALOAD, LOCAL_TMP_ARGUMENTS);
+				loadImm(line);
+				invokeHelper("callNew", "(" + baseObjectDescriptor + baseObjectArrayDescriptor + "I)" + baseObjectDescriptor);
+				popPushObject(code.value + 1, ORIGIN_NONE);
+				break;
+			case VSMXCode.VID_RETURN:
+				checkStack(1, line);
+				loadValue(height - 1);
+				mv.visitInsn(Opcodes.ARETURN);
+				pop(1);
+				break;
+			case VSMXCode.VID_END:
+				throw new CompilerException(String.format("line#%d %s", line, code));
+			default:
+				// Same as the interpreter: only log a warning
+				loadThis();
+				loadImm(line);
+				loadString(code.toString());
+				invokeHelper("unimplemented", "(I" + stringDescriptor + ")V");
+				break;
+		}
+	}
+}
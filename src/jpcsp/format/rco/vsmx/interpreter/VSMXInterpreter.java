@@ -26,10 +26,14 @@ import jpcsp.format.rco.vsmx.VSMX;
 import jpcsp.format.rco.vsmx.VSMXCode;
 import jpcsp.format.rco.vsmx.VSMXGroup;
 import jpcsp.format.rco.vsmx.VSMXMem;
+import jpcsp.format.rco.vsmx.compiler.VSMXCompiledFunction;
+import jpcsp.format.rco.vsmx.compiler.VSMXCompiler;
 
 public class VSMXInterpreter {
 	private static final Logger log = VSMX.log;
+	public static boolean enableCompiler = true;
 	private VSMXMem mem;
+	private VSMXCompiler compiler;
 	private int pc;
 	private boolean exit;
 	private Stack<VSMXBaseObject> stack;
@@ -62,6 +66,7 @@ public class VSMXInterpreter {
 	public void setVSMX(VSMX vsmx) {
 		mem = vsmx.getMem();
 		name = vsmx.getName();
+		compiler = new VSMXCompiler(this, mem);
 	}
 
 	public VSMXObject getGlobalVariables() {
@@ -492,7 +497,7 @@ public class VSMXInterpreter {
 				if (o instanceof VSMXFunction) {
 					VSMXFunction function = (VSMXFunction) o;
 
-					callFunction(function, VSMXNull.singleton, arguments, code.value, false);
+					callFunction(function, VSMXNull.singleton, arguments, code.value, false, false);
 				} else {
 					stack.push(VSMXNull.singleton);
 					log.warn(String.format("Line#%d non-function call %s", pc - 1, code));
@@ -509,12 +514,12 @@ public class VSMXInterpreter {
 						stack.push(VSMXNull.singleton);
 						log.warn(String.format("Line#%d non existing method %s()", pc - 1, method.getName()));
 					} else {
-						callFunction(function, method.getThisObject(), method.getArguments(), method.getNumberOfArguments(), false);
+						callFunction(function, method.getThisObject(), method.getArguments(), method.getNumberOfArguments(), false, false);
 					}
 				} else if (o instanceof VSMXFunction) {
 					VSMXFunction function = (VSMXFunction) o;
 					o = stack.pop().getValue();
-					callFunction(function, o, arguments, code.value, false);
+					callFunction(function, o, arguments, code.value, false, false);
 				} else {
 					stack.push(VSMXNull.singleton);
 					log.warn(String.format("Line#%d non-method call %s", pc - 1, code));
@@ -547,7 +552,7 @@ public class VSMXInterpreter {
 						className = ((VSMXReference) r).getRefProperty();
 					}
 					VSMXObject thisObject = new VSMXObject(this, className);
-					callFunction(function, thisObject, arguments, code.value, true);
+					callFunction(function, thisObject, arguments, code.value, true, false);
 				} else if (o instanceof VSMXObject) {
 					if (code.value == 0) {
 						stack.push(new VSMXObject(this, null));
@@ -648,8 +653,22 @@ public class VSMXInterpreter {
 		}
 	}
 
-	private void callFunction(VSMXFunction function, VSMXBaseObject thisObject, VSMXBaseObject[] arguments, int numberArguments, boolean returnThis) {
-		pushCallState(thisObject, function.getLocalVars() + function.getArgs(), returnThis, false);
+	private VSMXCompiledFunction getCompiledFunction(VSMXFunction function) {
+		// Compiled functions cannot be traced
+		if (!enableCompiler || compiler == null || log.isTraceEnabled()) {
+			return null;
+		}
+
+		int startLine = function.getStartLine();
+		if (startLine < 0 || startLine >= mem.codes.length) {
+			return null;
+		}
+
+		return compiler.getCompiledFunction(function);
+	}
+
+	private void callFunction(VSMXFunction function, VSMXBaseObject thisObject, VSMXBaseObject[] arguments, int numberArguments, boolean returnThis, boolean exitAfterCall) {
+		pushCallState(thisObject, function.getLocalVars() + function.getArgs(), returnThis, exitAfterCall);
 		for (int i = 1; i <= function.getArgs() && i <= numberArguments; i++) {
 			callState.setLocalVar(i, arguments[i - 1]);
 		}
@@ -657,7 +676,12 @@ public class VSMXInterpreter {
 		function.call(callState);
 
 		int startLine = function.getStartLine();
-		if (startLine >= 0 && startLine < mem.codes.length) {
+		VSMXCompiledFunction compiledFunction = getCompiledFunction(function);
+		if (compiledFunction != null) {
+			VSMXBaseObject returnValue = compiledFunction.call(callState);
+			popCallState();
+			stack.push(returnThis ? thisObject : returnValue);
+		} else if (startLine >= 0 && startLine < mem.codes.length) {
 			pc = startLine;
 		} else {
 			popCallState();
@@ -680,11 +704,57 @@ public class VSMXInterpreter {
 				callState.setLocalVar(i, arguments[i - 1]);
 			}
 		}
+
+		VSMXCompiledFunction compiledFunction = getCompiledFunction(function);
+		if (compiledFunction != null) {
+			VSMXBaseObject returnValue = compiledFunction.call(callState);
+			popCallState();
+			if (callState != null) {
+				stack.push(returnValue);
+			}
+			return;
+		}
+
 		pc = function.getStartLine();
 
 		interpret();
 	}
 
+	/**
+	 * Call a function from a compiled function.
+	 * The called function is itself either compiled, native or interpreted.
+	 *
+	 * @param function        the function to be called
+	 * @param thisObject      the "this" object
+	 * @param arguments       the function arguments
+	 * @param numberArguments the number of arguments
+	 * @param returnThis      return the "this" object instead of the function return value (for "new")
+	 * @return                the value returned by the function
+	 */
+	public synchronized VSMXBaseObject invokeFunction(VSMXFunction function, VSMXBaseObject thisObject, VSMXBaseObject[] arguments, int numberArguments, boolean returnThis) {
+		int savedPc = pc;
+
+		// The call state receiving the value returned by the function
+		pushCallState(VSMXNull.singleton, 0, false, false);
+		VSMXCallState resultCallState = callState;
+
+		callFunction(function, thisObject, arguments, numberArguments, returnThis, true);
+		if (callState != resultCallState) {
+			interpret();
+
+			// The function might have been left through VID_END
+			while (callState != null && callState != resultCallState) {
+				popCallState();
+			}
+		}
+
+		VSMXBaseObject returnValue = stack.isEmpty() ? VSMXUndefined.singleton : stack.pop();
+		popCallState();
+		pc = savedPc;
+
+		return returnValue;
+	}
+
 	public synchronized void delayInterpretFunction(VSMXFunction function, VSMXBaseObject object, VSMXBaseObject[] arguments) {
 		IAction action = new InterpretFunctionAction(function, object, arguments);
 		Emulator.getScheduler().addAction(action);
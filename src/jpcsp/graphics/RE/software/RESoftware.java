@@ -62,6 +62,9 @@ public class RESoftware extends NullRenderingEngine {
     protected boolean boundingBoxVisible;
     protected BufferVertexReader bufferVertexReader;
     protected boolean useVertexTexture;
+    protected VertexBatch vertexBatch = new VertexBatch();
+    protected boolean useVertexBatch;
+    protected int vertexBatchFirst;
 
     public RESoftware() {
     	log.info("Using SoftwareRenderer");
@@ -77,6 +80,7 @@ public class RESoftware extends NullRenderingEngine {
 			log.info(cachedTextureStatistics);
 			log.info(textureResamplingStatistics);
 		}
+		VertexBatch.exit();
 	}
 
 	@Override
@@ -203,7 +207,24 @@ public class RESoftware extends NullRenderingEngine {
 		bufferVertexReader = null;
 	}
 
+	protected void prepareVertexBatch(int first, int count) {
+		// The vertices computed by the VideoEngine for spline and bezier curves
+		// are already in a buffer and do not need to be batched.
+		useVertexBatch = bufferVertexReader == null && count >= VertexBatch.MIN_BATCH_VERTICES;
+		if (useVertexBatch) {
+			boolean readTexture = context.textureFlag.isEnabled() && !context.clearMode;
+			vertexBatchFirst = first;
+			vertexBatch.prepare(Memory.getInstance(), context.vinfo, context.bone_uploaded_matrix, first, count, readTexture, VideoEngine.getInstance().isDoubleTexture2DCoords());
+		}
+	}
+
 	protected void readVertex(Memory mem, int index, VertexState v, boolean readTexture) {
+		if (useVertexBatch && vertexBatch.isInBatch(index - vertexBatchFirst)) {
+			// The vertex has already been decoded and skinned
+			vertexBatch.readVertex(index - vertexBatchFirst, v);
+			return;
+		}
+
 		if (bufferVertexReader == null) {
 			int addr = context.vinfo.getAddress(mem, index);
 			context.vinfo.readVertex(mem, addr, v, readTexture, VideoEngine.getInstance().isDoubleTexture2DCoords());
@@ -314,20 +335,25 @@ public class RESoftware extends NullRenderingEngine {
 	@Override
 	public void drawArrays(int primitive, int first, int count) {
 		drawArraysStatistics.start();
+		useVertexBatch = false;
 		switch (primitive) {
 			case IRenderingEngine.GU_SPRITES:
 				drawArraysSprites(first, count);
 				break;
 			case IRenderingEngine.GU_TRIANGLE_STRIP:
+				prepareVertexBatch(first, count);
 				drawArraysTriangleStrips(first, count);
 				break;
 			case IRenderingEngine.GU_TRIANGLES:
+				prepareVertexBatch(first, count);
 				drawArraysTriangles(first, count);
 				break;
 			case IRenderingEngine.GU_TRIANGLE_FAN:
+				prepareVertexBatch(first, count);
 				drawArraysTriangleFan(first, count);
 				break;
 		}
+		useVertexBatch = false;
 		drawArraysStatistics.end();
 	}
 
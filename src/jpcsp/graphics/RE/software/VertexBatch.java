@@ -0,0 +1,349 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.graphics.RE.software;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.Memory;
+import jpcsp.graphics.VertexInfo;
+import jpcsp.graphics.VertexState;
+import jpcsp.graphics.VideoEngine;
+import jpcsp.util.DurationStatistics;
+
+/**
+ * Batched vertex stage for the software renderer.
+ *
+ * All the vertices of one drawArrays call are decoded once into
+ * structure-of-arrays float buffers (position, normal, texture, color, weights)
+ * and the skinning is then applied in tight loops over these arrays,
+ * instead of decoding and skinning each vertex individually
+ * into a VertexState object.
+ *
+ * When the vertices are indexed, each distinct vertex is only decoded
+ * and skinned once, even if it is referenced by several primitives.
+ * Large batches are skinned in parallel on several cores.
+ */
+public class VertexBatch {
+	private static Logger log = VideoEngine.log;
+	// Minimum number of vertices to use a batch (smaller draws are faster without)
+	public static final int MIN_BATCH_VERTICES = 12;
+	// Minimum number of distinct vertices to split the skinning across several cores
+	private static final int MIN_PARALLEL_VERTICES = 2048;
+	private static final int numberThreads = Math.max(0, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+	private static VertexBatchExecutor executor;
+	public static DurationStatistics vertexBatchStatistics = new DurationStatistics("RESoftware VertexBatch");
+	private final VertexState v = new VertexState();
+	private int count;
+	private int numberVertices;
+	private boolean hasNormal;
+	private int skinningWeightCount;
+	// Mapping from the primitive vertex number to the decoded vertex slot
+	private int[] slots = new int[0];
+	// Open-addressing hash table: vertex address -> slot
+	private int[] hashAddresses = new int[0];
+	private int[] hashSlots = new int[0];
+	private float[] px = new float[0];
+	private float[] py = new float[0];
+	private float[] pz = new float[0];
+	private float[] nx = new float[0];
+	private float[] ny = new float[0];
+	private float[] nz = new float[0];
+	private float[] tu = new float[0];
+	private float[] tv = new float[0];
+	private float[] cr = new float[0];
+	private float[] cg = new float[0];
+	private float[] cb = new float[0];
+	private float[] ca = new float[0];
+	private float[] weights = new float[0];
+
+	/**
+	 * Decode and skin all the vertices of a drawArrays call.
+	 *
+	 * @param mem           the memory
+	 * @param vinfo         the current vertex information
+	 * @param boneMatrix    the bone matrices used for the skinning
+	 * @param first         the first vertex number
+	 * @param count         the number of vertices
+	 * @param readTexture   if the texture coordinates have to be read
+	 * @param doubleTexture2DCoords if the 2D texture coordinates have to be doubled
+	 */
+	public void prepare(Memory mem, VertexInfo vinfo, float[][] boneMatrix, int first, int count, boolean readTexture, boolean doubleTexture2DCoords) {
+		vertexBatchStatistics.start();
+
+		this.count = count;
+		hasNormal = vinfo.normal != 0;
+		skinningWeightCount = vinfo.weight != 0 ? vinfo.skinningWeightCount : 0;
+		ensureCapacity(count);
+
+		numberVertices = 0;
+		int hashMask = hashAddresses.length - 1;
+		Arrays.fill(hashSlots, -1);
+		for (int i = 0; i < count; i++) {
+			int addr = vinfo.getAddress(mem, first + i);
+
+			// Was this vertex already decoded?
+			int hash = mix(addr) & hashMask;
+			while (hashSlots[hash] >= 0 && hashAddresses[hash] != addr) {
+				hash = (hash + 1) & hashMask;
+			}
+
+			int slot = hashSlots[hash];
+			if (slot < 0) {
+				slot = numberVertices++;
+				hashAddresses[hash] = addr;
+				hashSlots[hash] = slot;
+				decodeVertex(mem, vinfo, addr, slot, readTexture, doubleTexture2DCoords);
+			}
+			slots[i] = slot;
+		}
+
+		if (skinningWeightCount > 0) {
+			skin(boneMatrix);
+		}
+
+		if (log.isTraceEnabled()) {
+			log.trace(String.format("VertexBatch: %d vertices, %d distinct, skinning %d weights", count, numberVertices, skinningWeightCount));
+		}
+
+		vertexBatchStatistics.end();
+	}
+
+	private static int mix(int addr) {
+		// Vertex addresses are multiple of the vertex size, spread them
+		int h = addr * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void ensureCapacity(int count) {
+		if (slots.length < count) {
+			slots = new int[count];
+			px = new float[count];
+			py = new float[count];
+			pz = new float[count];
+			nx = new float[count];
+			ny = new float[count];
+			nz = new float[count];
+			tu = new float[count];
+			tv = new float[count];
+			cr = new float[count];
+			cg = new float[count];
+			cb = new float[count];
+			ca = new float[count];
+			weights = new float[count * 8];
+
+			int hashSize = Integer.highestOneBit(count * 2 - 1) << 1;
+			hashAddresses = new int[hashSize];
+			hashSlots = new int[hashSize];
+		}
+	}
+
+	private void decodeVertex(Memory mem, VertexInfo vinfo, int addr, int slot, boolean readTexture, boolean doubleTexture2DCoords) {
+		vinfo.readVertex(mem, addr, v, readTexture, doubleTexture2DCoords);
+
+		px[slot] = v.p[0];
+		py[slot] = v.p[1];
+		pz[slot] = v.p[2];
+		nx[slot] = v.n[0];
+		ny[slot] = v.n[1];
+		nz[slot] = v.n[2];
+		tu[slot] = v.t[0];
+		tv[slot] = v.t[1];
+		cr[slot] = v.c[0];
+		cg[slot] = v.c[1];
+		cb[slot] = v.c[2];
+		ca[slot] = v.c[3];
+		if (skinningWeightCount > 0) {
+			System.arraycopy(v.boneWeights, 0, weights, slot * 8, skinningWeightCount);
+		}
+	}
+
+	private void skin(float[][] boneMatrix) {
+		if (numberThreads > 0 && numberVertices >= MIN_PARALLEL_VERTICES) {
+			if (executor == null) {
+				executor = new VertexBatchExecutor();
+			}
+			executor.skin(this, boneMatrix, numberVertices);
+		} else {
+			skin(boneMatrix, 0, numberVertices);
+		}
+	}
+
+	/**
+	 * Apply the skinning to the decoded vertices [start..end[.
+	 * This is equivalent to VideoEngine.doSkinning, but processing
+	 * one bone at a time over the whole range of vertices.
+	 */
+	private void skin(float[][] boneMatrix, int start, int end) {
+		int length = end - start;
+		float[] x = new float[length];
+		float[] y = new float[length];
+		float[] z = new float[length];
+		float[] snx = hasNormal ? new float[length] : null;
+		float[] sny = hasNormal ? new float[length] : null;
+		float[] snz = hasNormal ? new float[length] : null;
+
+		for (int b = 0; b < skinningWeightCount; b++) {
+			final float[] m = boneMatrix[b];
+			final float m0 = m[0], m1 = m[1], m2 = m[2];
+			final float m3 = m[3], m4 = m[4], m5 = m[5];
+			final float m6 = m[6], m7 = m[7], m8 = m[8];
+			final float m9 = m[9], m10 = m[10], m11 = m[11];
+			for (int i = 0, slot = start; i < length; i++, slot++) {
+				float w = weights[slot * 8 + b];
+				if (w != 0f) {
+					float vx = px[slot];
+					float vy = py[slot];
+					float vz = pz[slot];
+					x[i] += (vx * m0 + vy * m3 + vz * m6 + m9) * w;
+					y[i] += (vx * m1 + vy * m4 + vz * m7 + m10) * w;
+					z[i] += (vx * m2 + vy * m5 + vz * m8 + m11) * w;
+				}
+			}
+			if (hasNormal) {
+				for (int i = 0, slot = start; i < length; i++, slot++) {
+					float w = weights[slot * 8 + b];
+					if (w != 0f) {
+						float vx = nx[slot];
+						float vy = ny[slot];
+						float vz = nz[slot];
+						// Normals shouldn't be translated
+						snx[i] += (vx * m0 + vy * m3 + vz * m6) * w;
+						sny[i] += (vx * m1 + vy * m4 + vz * m7) * w;
+						snz[i] += (vx * m2 + vy * m5 + vz * m8) * w;
+					}
+				}
+			}
+		}
+
+		System.arraycopy(x, 0, px, start, length);
+		System.arraycopy(y, 0, py, start, length);
+		System.arraycopy(z, 0, pz, start, length);
+		if (hasNormal) {
+			System.arraycopy(snx, 0, nx, start, length);
+			System.arraycopy(sny, 0, ny, start, length);
+			System.arraycopy(snz, 0, nz, start, length);
+		}
+	}
+
+	/**
+	 * Retrieve a vertex from the batch.
+	 *
+	 * @param n   the vertex number, relative to the first vertex of the batch
+	 * @param v   the vertex to be filled
+	 */
+	public void readVertex(int n, VertexState v) {
+		int slot = slots[n];
+		v.p[0] = px[slot];
+		v.p[1] = py[slot];
+		v.p[2] = pz[slot];
+		v.n[0] = nx[slot];
+		v.n[1] = ny[slot];
+		v.n[2] = nz[slot];
+		v.t[0] = tu[slot];
+		v.t[1] = tv[slot];
+		v.c[0] = cr[slot];
+		v.c[1] = cg[slot];
+		v.c[2] = cb[slot];
+		v.c[3] = ca[slot];
+		if (skinningWeightCount > 0) {
+			System.arraycopy(weights, slot * 8, v.boneWeights, 0, skinningWeightCount);
+		}
+	}
+
+	public boolean isInBatch(int n) {
+		return n >= 0 && n < count;
+	}
+
+	public static void exit() {
+		if (executor != null) {
+			executor.ended = true;
+		}
+		if (DurationStatistics.collectStatistics) {
+			log.info(vertexBatchStatistics);
+		}
+	}
+
+	private static class SkinningTask {
+		public VertexBatch batch;
+		public float[][] boneMatrix;
+		public int start;
+		public int end;
+		public CountDownLatch done;
+	}
+
+	private static class VertexBatchExecutor {
+		private final LinkedBlockingQueue<SkinningTask> tasks = new LinkedBlockingQueue<SkinningTask>();
+		private volatile boolean ended;
+
+		public VertexBatchExecutor() {
+			for (int i = 0; i < numberThreads; i++) {
+				Thread thread = new VertexBatchThread();
+				thread.setName(String.format("Thread VertexBatch #%d", i + 1));
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		public void skin(VertexBatch batch, float[][] boneMatrix, int numberVertices) {
+			int numberParts = numberThreads + 1;
+			int partSize = (numberVertices + numberParts - 1) / numberParts;
+			CountDownLatch done = new CountDownLatch(numberParts - 1);
+			for (int i = 1; i < numberParts; i++) {
+				SkinningTask task = new SkinningTask();
+				task.batch = batch;
+				task.boneMatrix = boneMatrix;
+				task.start = Math.min(i * partSize, numberVertices);
+				task.end = Math.min(task.start + partSize, numberVertices);
+				task.done = done;
+				tasks.add(task);
+			}
+
+			// The calling thread is processing the first part
+			batch.skin(boneMatrix, 0, Math.min(partSize, numberVertices));
+
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				// Ignore Exception
+			}
+		}
+
+		private class VertexBatchThread extends Thread {
+			@Override
+			public void run() {
+				while (!ended) {
+					try {
+						SkinningTask task = tasks.take();
+						try {
+							task.batch.skin(task.boneMatrix, task.start, task.end);
+						} finally {
+							task.done.countDown();
+						}
+					} catch (InterruptedException e) {
+						// Ignore Exception
+					} catch (Exception e) {
+						log.error("VertexBatch", e);
+					}
+				}
+			}
+		}
+	}
+}
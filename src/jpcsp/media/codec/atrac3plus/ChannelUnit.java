@@ -62,6 +62,7 @@ public class ChannelUnit {
 	private static final VLC spec_vlc_tabs[] = new VLC[112];
 	private static final VLC gain_vlc_tabs[] = new VLC[11];
 	private static final VLC tone_vlc_tabs[] = new VLC[7];
+	private static boolean staticInitDone = false;
 
     private static final int wl_nb_bits[]  = { 2, 3, 5, 5 };
     private static final int wl_nb_codes[] = { 3, 5, 8, 8 };
@@ -136,7 +137,13 @@ public class ChannelUnit {
         Atrac3plusData2.atrac3p_huff_freq_xlat
     };
 
-	public static void init() {
+	public static synchronized void init() {
+		// The tables are shared by all the decoders, they must not be rebuilt
+		// while another decoder is running (e.g. in the decode-ahead thread)
+		if (staticInitDone) {
+			return;
+		}
+
 		for (int i = 0; i < 4; i++) {
 			wl_vlc_tabs[i] = new VLC();
 			wl_vlc_tabs[i].initVLCSparse(wl_nb_bits[i], wl_nb_codes[i], wl_bits[i], wl_codes[i], wl_xlats[i]);
@@ -167,6 +174,8 @@ public class ChannelUnit {
 	    	tone_vlc_tabs[i] = new VLC();
 	    	buildCanonicalHuff(tone_cbs[i], tone_xlats[i], tone_vlc_tabs[i]);
 	    }
+
+	    staticInitDone = true;
 	}
 
 	private static int buildCanonicalHuff(int[] cb, int[] xlat, VLC vlc) {
@@ -0,0 +1,298 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.media.codec.util;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.media.codec.CodecFactory;
+import jpcsp.media.codec.ICodec;
+import jpcsp.memory.ByteArrayMemory;
+import jpcsp.util.Utilities;
+
+/**
+ * Decode-ahead of a frame-based audio stream.
+ *
+ * While the application is consuming the decoded samples of one frame,
+ * the next frames available in the input buffer are already decoded
+ * by a dedicated thread into a ring of PCM buffers.
+ * The application decode call then only has to copy the samples.
+ *
+ * The codec is only used by the decode-ahead thread, the frames are
+ * always decoded in the order they have been submitted.
+ * A speculatively decoded frame is only used when the application is
+ * requesting the same file position and the input data is unchanged.
+ * Otherwise, e.g. after a change of the play position, the speculative
+ * frames are discarded and the requested frame is decoded synchronously.
+ *
+ * When a content hash is given (track completely stored in memory),
+ * the decoded frames are also stored in the PcmCache and reused
+ * when the track is looping.
+ */
+public class DecodeAhead {
+	private static Logger log = CodecFactory.log;
+	// Number of frames decoded ahead
+	public static final int RING_SIZE = 4;
+	private final ICodec codec;
+	private final int bytesPerFrame;
+	private final int firstFramePosition;
+	private final int samplesSize;
+	private final long contentHash;
+	private final LinkedList<Frame> ring = new LinkedList<Frame>();
+	private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+	private final byte[] inputCheck;
+	private volatile boolean ended;
+	// Only accessed by the decode-ahead thread
+	private final byte[] inputBuffer;
+	private final byte[] samplesBuffer;
+	private final ByteArrayMemory inputMemory;
+	private final ByteArrayMemory samplesMemory;
+	private int lastDecodedPosition;
+
+	private static class Frame {
+		public final int position;
+		public final byte[] input;
+		public final byte[] previousInput;
+		public final CountDownLatch done = new CountDownLatch(1);
+		public volatile boolean cancelled;
+		public byte[] samples;
+		public int result;
+
+		public Frame(int position, byte[] input, byte[] previousInput) {
+			this.position = position;
+			this.input = input;
+			this.previousInput = previousInput;
+		}
+
+		public void waitForCompletion() {
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					// Ignore exception and retry
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start the decode-ahead of a stream.
+	 *
+	 * @param codec              the codec, already initialized, to be used
+	 *                           exclusively by the decode-ahead
+	 * @param bytesPerFrame      the size of one input frame
+	 * @param firstFramePosition the file position of the first frame
+	 * @param outputChannels     the number of output channels
+	 * @param contentHash        the content hash of the complete track
+	 *                           or 0 if the decoded frames should not be cached
+	 */
+	public DecodeAhead(ICodec codec, int bytesPerFrame, int firstFramePosition, int outputChannels, long contentHash) {
+		this.codec = codec;
+		this.bytesPerFrame = bytesPerFrame;
+		this.firstFramePosition = firstFramePosition;
+		this.contentHash = contentHash;
+		samplesSize = codec.getNumberOfSamples() * 2 * outputChannels;
+		inputCheck = new byte[bytesPerFrame];
+		inputBuffer = new byte[bytesPerFrame];
+		samplesBuffer = new byte[samplesSize];
+		inputMemory = new ByteArrayMemory(inputBuffer);
+		samplesMemory = new ByteArrayMemory(samplesBuffer);
+		// The codec state is the one after the frame preceding the first frame
+		lastDecodedPosition = firstFramePosition - bytesPerFrame;
+
+		Thread thread = new DecodeAheadThread();
+		thread.setName("Decode Ahead Thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Decode the frame at the given file position.
+	 * The samples are taken from the ring when the frame has already been
+	 * decoded ahead, otherwise the frame is decoded synchronously.
+	 *
+	 * @param inputAddr    the address of the input frame
+	 * @param position     the file position of the input frame
+	 * @param previousAddr the address of the previous input frame,
+	 *                     or 0 when not available
+	 * @param outputAddr   the address where to store the decoded samples
+	 * @return             the codec decode result
+	 */
+	public int decode(int inputAddr, int position, int previousAddr, int outputAddr) {
+		Frame frame = ring.peekFirst();
+		if (frame != null && frame.position == position) {
+			Utilities.readBytes(inputAddr, bytesPerFrame, inputCheck, 0);
+			if (!Arrays.equals(inputCheck, frame.input)) {
+				frame = null;
+			}
+		} else {
+			frame = null;
+		}
+
+		if (frame != null) {
+			ring.removeFirst();
+		} else {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("DecodeAhead miss at position 0x%X", position));
+			}
+			cancel();
+
+			byte[] input = new byte[bytesPerFrame];
+			Utilities.readBytes(inputAddr, bytesPerFrame, input, 0);
+			frame = new Frame(position, input, readPreviousInput(previousAddr));
+			frames.add(frame);
+		}
+
+		frame.waitForCompletion();
+
+		if (frame.result > 0) {
+			Utilities.writeBytes(outputAddr, samplesSize, frame.samples, 0);
+		}
+
+		return frame.result;
+	}
+
+	/**
+	 * @param readPosition  the file position of the next frame to be decoded
+	 * @return              the file position of the next frame to be submitted
+	 *                      or -1 if the ring is full
+	 */
+	public int getNextPosition(int readPosition) {
+		Frame first = ring.peekFirst();
+		if (first != null && first.position != readPosition) {
+			// The play position has been changed
+			cancel();
+		}
+
+		if (ring.size() >= RING_SIZE) {
+			return -1;
+		}
+
+		return readPosition + ring.size() * bytesPerFrame;
+	}
+
+	/**
+	 * Submit a frame to be decoded ahead.
+	 *
+	 * @param inputAddr    the address of the input frame
+	 * @param position     the file position of the input frame,
+	 *                     as returned by getNextPosition()
+	 * @param previousAddr the address of the previous input frame,
+	 *                     or 0 when not available
+	 */
+	public void submit(int inputAddr, int position, int previousAddr) {
+		byte[] input = new byte[bytesPerFrame];
+		Utilities.readBytes(inputAddr, bytesPerFrame, input, 0);
+		Frame frame = new Frame(position, input, readPreviousInput(previousAddr));
+		ring.add(frame);
+		frames.add(frame);
+	}
+
+	private byte[] readPreviousInput(int previousAddr) {
+		if (previousAddr == 0) {
+			return null;
+		}
+
+		byte[] previousInput = new byte[bytesPerFrame];
+		Utilities.readBytes(previousAddr, bytesPerFrame, previousInput, 0);
+
+		return previousInput;
+	}
+
+	public void cancel() {
+		for (Frame frame : ring) {
+			frame.cancelled = true;
+		}
+		ring.clear();
+	}
+
+	public void release() {
+		cancel();
+		ended = true;
+		// Wake up the decode-ahead thread
+		Frame frame = new Frame(-1, null, null);
+		frame.cancelled = true;
+		frames.add(frame);
+	}
+
+	private int decodeFrame(byte[] input) {
+		System.arraycopy(input, 0, inputBuffer, 0, bytesPerFrame);
+		return codec.decode(inputMemory, 0, bytesPerFrame, samplesMemory, 0);
+	}
+
+	private void decode(Frame frame) {
+		int frameIndex = (frame.position - firstFramePosition) / bytesPerFrame;
+		if (contentHash != 0L) {
+			PcmCache.Entry entry = PcmCache.get(contentHash, frameIndex);
+			if (entry != null) {
+				frame.samples = entry.samples;
+				frame.result = entry.result;
+				// The codec state is no longer matching the decoded frames
+				lastDecodedPosition = -1;
+				return;
+			}
+		}
+
+		boolean continuous = lastDecodedPosition == frame.position - bytesPerFrame;
+		if (!continuous && frame.previousInput != null) {
+			// Decode the previous frame to restore the codec state
+			// (overlapping windows) before decoding the requested frame
+			if (decodeFrame(frame.previousInput) > 0) {
+				continuous = true;
+			}
+		}
+
+		frame.result = decodeFrame(frame.input);
+		if (frame.result > 0) {
+			frame.samples = Arrays.copyOf(samplesBuffer, samplesSize);
+			lastDecodedPosition = frame.position;
+			if (contentHash != 0L && continuous) {
+				PcmCache.put(contentHash, frameIndex, new PcmCache.Entry(frame.samples, frame.result));
+			}
+		} else {
+			lastDecodedPosition = -1;
+		}
+	}
+
+	private class DecodeAheadThread extends Thread {
+		@Override
+		public void run() {
+			while (!ended) {
+				try {
+					Frame frame = frames.take();
+					try {
+						if (!frame.cancelled) {
+							decode(frame);
+						}
+					} catch (Exception e) {
+						log.error("DecodeAhead", e);
+						frame.result = -1;
+					} finally {
+						frame.done.countDown();
+					}
+				} catch (InterruptedException e) {
+					// Ignore Exception
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.media.codec.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.media.codec.CodecFactory;
+import jpcsp.util.Utilities;
+
+/**
+ * Bounded cache of decoded PCM frames.
+ *
+ * A looping background music whose data is completely stored in memory
+ * is decoding the same frames again and again. The decoded samples of
+ * each frame are kept here, keyed by a hash of the complete input data
+ * and by the frame index, so that the following loops do not need
+ * to decode them again.
+ *
+ * The least recently used frames are evicted when the cache is full.
+ * The frames of the track being stored are never evicting each other:
+ * when a track is larger than the cache, only its first frames are cached
+ * instead of having each loop evicting the frames needed by the next loop.
+ */
+public class PcmCache {
+	private static Logger log = CodecFactory.log;
+	public static int maxCacheSize = 64 * 1024 * 1024;
+	private static final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+	private static int cacheSize;
+	private static int hits;
+	private static int misses;
+
+	private static class Key {
+		private final long contentHash;
+		private final int frameIndex;
+
+		public Key(long contentHash, int frameIndex) {
+			this.contentHash = contentHash;
+			this.frameIndex = frameIndex;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (contentHash ^ (contentHash >>> 32)) * 31 + frameIndex;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) obj;
+			return contentHash == key.contentHash && frameIndex == key.frameIndex;
+		}
+	}
+
+	public static class Entry {
+		public final byte[] samples;
+		public final int result;
+
+		public Entry(byte[] samples, int result) {
+			this.samples = samples;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Compute the content hash of a track completely stored in memory.
+	 *
+	 * @param address     the address of the track data
+	 * @param length      the length of the track data
+	 * @param parameters  the decoding parameters having an influence
+	 *                    on the decoded samples (e.g. the number of output channels)
+	 * @return            the content hash
+	 */
+	public static long getContentHash(int address, int length, int... parameters) {
+		CRC32 crc32 = new CRC32();
+		byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+		for (int i = 0; i < length; i += buffer.length) {
+			int size = Math.min(buffer.length, length - i);
+			Utilities.readBytes(address + i, size, buffer, 0);
+			crc32.update(buffer, 0, size);
+		}
+		for (int parameter : parameters) {
+			crc32.update(parameter);
+		}
+
+		return (((long) length) << 32) | crc32.getValue();
+	}
+
+	public static synchronized Entry get(long contentHash, int frameIndex) {
+		Entry entry = cache.get(new Key(contentHash, frameIndex));
+		if (entry == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+
+		return entry;
+	}
+
+	public static synchronized void put(long contentHash, int frameIndex, Entry entry) {
+		int size = entry.samples.length;
+		if (size > maxCacheSize) {
+			return;
+		}
+
+		Iterator<Map.Entry<Key, Entry>> lit = cache.entrySet().iterator();
+		while (cacheSize + size > maxCacheSize && lit.hasNext()) {
+			Map.Entry<Key, Entry> lru = lit.next();
+			if (lru.getKey().contentHash == contentHash) {
+				// Do not evict frames of the same track
+				return;
+			}
+			cacheSize -= lru.getValue().samples.length;
+			lit.remove();
+		}
+
+		Entry previous = cache.put(new Key(contentHash, frameIndex), entry);
+		cacheSize += size;
+		if (previous != null) {
+			cacheSize -= previous.samples.length;
+		}
+	}
+
+	public static synchronized void exit() {
+		if (log.isDebugEnabled() && hits + misses > 0) {
+			log.debug(String.format("PcmCache: %d hits, %d misses, %d frames using %d bytes", hits, misses, cache.size(), cacheSize));
+		}
+		cache.clear();
+		cacheSize = 0;
+	}
+}
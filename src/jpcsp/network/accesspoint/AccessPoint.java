@@ -42,19 +42,21 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -92,7 +94,10 @@ public class AccessPoint implements IProcessHTTPRequest {
     private pspNetMacAddress apMacAddress;
     private byte[] apIpAddress;
     private byte[] localIpAddress;
-	private DatagramSocket apSocket;
+	private Selector selector;
+	private DatagramChannel apChannel;
+	private final ByteBuffer apReceiveBuffer = ByteBuffer.allocate(10000);
+	private final BufferPool bufferPool = new BufferPool();
 	private AccessPointThread apThread;
 	private String apSsid;
 	private List<TcpConnection> tcpConnections;
@@ -101,7 +106,140 @@ public class AccessPoint implements IProcessHTTPRequest {
 	private String baseUri;
 	private UPnP upnp;
 
-	private static class TcpConnection {
+	private static class PendingWrite {
+		public ByteBuffer buffer;
+		public long queuedNanos;
+	}
+
+	/**
+	 * Pool of direct buffers used for the channel I/O.
+	 * Only used by the AccessPointThread.
+	 */
+	private static class BufferPool {
+		private static final int POOLED_BUFFER_SIZE = 4096;
+		private static final int MAX_POOLED_BUFFERS = 64;
+		private final LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+
+		public ByteBuffer get(int size) {
+			if (size > POOLED_BUFFER_SIZE) {
+				return ByteBuffer.allocateDirect(size);
+			}
+
+			ByteBuffer buffer = buffers.poll();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+			}
+			buffer.clear();
+			buffer.limit(size);
+
+			return buffer;
+		}
+
+		public void release(ByteBuffer buffer) {
+			if (buffer.capacity() == POOLED_BUFFER_SIZE && buffers.size() < MAX_POOLED_BUFFERS) {
+				buffers.add(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Common part of the TCP and UDP connections:
+	 * the data received from the PSP is queued and written to the channel
+	 * as soon as the channel is ready for writing.
+	 */
+	private abstract class Connection {
+		public SelectionKey selectionKey;
+		public boolean pendingConnection;
+		private final LinkedList<PendingWrite> pendingWrites = new LinkedList<PendingWrite>();
+		// Statistics
+		public long bytesSent;
+		public long packetsSent;
+		public long bytesReceived;
+		public long packetsReceived;
+		public long totalWriteLatencyNanos;
+		public long maxWriteLatencyNanos;
+
+		protected abstract int write(ByteBuffer buffer) throws IOException;
+		protected abstract int getReadInterestOps();
+		protected abstract void closeChannel() throws IOException;
+
+		public void addPendingWriteData(byte[] data) {
+			if (data != null && data.length > 0) {
+				PendingWrite pendingWrite = new PendingWrite();
+				pendingWrite.buffer = bufferPool.get(data.length);
+				pendingWrite.buffer.put(data);
+				pendingWrite.buffer.flip();
+				pendingWrite.queuedNanos = System.nanoTime();
+				pendingWrites.add(pendingWrite);
+			}
+		}
+
+		public boolean hasPendingWrites() {
+			return !pendingWrites.isEmpty();
+		}
+
+		/**
+		 * Write as much pending data as the channel can accept.
+		 * The remaining data will be written when the channel is ready for writing.
+		 */
+		public void writePendingData() throws IOException {
+			while (!pendingConnection && !pendingWrites.isEmpty()) {
+				PendingWrite pendingWrite = pendingWrites.getFirst();
+				int length = write(pendingWrite.buffer);
+				bytesSent += length;
+				if (pendingWrite.buffer.hasRemaining()) {
+					break;
+				}
+
+				pendingWrites.removeFirst();
+				bufferPool.release(pendingWrite.buffer);
+				packetsSent++;
+				long latencyNanos = System.nanoTime() - pendingWrite.queuedNanos;
+				totalWriteLatencyNanos += latencyNanos;
+				maxWriteLatencyNanos = Math.max(maxWriteLatencyNanos, latencyNanos);
+			}
+
+			updateInterestOps();
+		}
+
+		public void received(int length) {
+			bytesReceived += length;
+			packetsReceived++;
+		}
+
+		public void updateInterestOps() {
+			if (selectionKey != null && selectionKey.isValid()) {
+				int ops = getReadInterestOps();
+				if (!pendingConnection && !pendingWrites.isEmpty()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				selectionKey.interestOps(ops);
+			}
+		}
+
+		public void close() throws IOException {
+			for (PendingWrite pendingWrite : pendingWrites) {
+				bufferPool.release(pendingWrite.buffer);
+			}
+			pendingWrites.clear();
+			if (selectionKey != null) {
+				selectionKey.cancel();
+				selectionKey = null;
+			}
+			closeChannel();
+
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Closed connection %s: %s", this, getStatistics()));
+			}
+		}
+
+		public String getStatistics() {
+			long averageWriteLatencyMicros = packetsSent == 0 ? 0L : totalWriteLatencyNanos / packetsSent / 1000L;
+			return String.format("sent %d bytes in %d packets, received %d bytes in %d packets, write latency average %d us, max %d us", bytesSent, packetsSent, bytesReceived, packetsReceived, averageWriteLatencyMicros, maxWriteLatencyNanos / 1000L);
+		}
+	}
+
+	private class TcpConnection extends Connection {
 		public pspNetMacAddress sourceMacAddress;
 		public byte[] sourceIPAddress;
 		public int sourcePort;
@@ -113,8 +251,7 @@ public class AccessPoint implements IProcessHTTPRequest {
 		public int proxyDestinationPort;
 		public int destinationSequenceNumber;
 		public SocketChannel socketChannel;
-		public byte[] pendingWriteData;
-		public boolean pendingConnection;
+		public boolean endOfStream;
 
 		public TcpConnection(EtherFrame frame, IPv4 ipv4, TCP tcp, Random random) {
 			sourceMacAddress = frame.srcMac;
@@ -133,66 +270,43 @@ public class AccessPoint implements IProcessHTTPRequest {
 		private void openChannel() throws IOException {
 			if (socketChannel == null) {
 				socketChannel = SocketChannel.open();
-				// Use a non-blocking channel as we are polling for data
+				// Use a non-blocking channel, the channel is registered to the selector
 				socketChannel.configureBlocking(false);
-				// Connect has no timeout
-				socketChannel.socket().setSoTimeout(0);
+				selectionKey = socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
 			}
 		}
 
-		public void connect() throws IOException {
+		/**
+		 * Start the connection.
+		 *
+		 * @return true if the connection has been completed immediately
+		 * @throws IOException
+		 */
+		public boolean connect() throws IOException {
 			openChannel();
-			if (!socketChannel.isConnected() && !socketChannel.isConnectionPending()) {
-				SocketAddress socketAddress = new InetSocketAddress(InetAddress.getByAddress(proxyDestinationIPAddress), proxyDestinationPort);
-				socketChannel.connect(socketAddress);
-			}
+			SocketAddress socketAddress = new InetSocketAddress(InetAddress.getByAddress(proxyDestinationIPAddress), proxyDestinationPort);
+			return socketChannel.connect(socketAddress);
 		}
 
-		public void close() throws IOException {
+		@Override
+		protected void closeChannel() throws IOException {
 			if (socketChannel != null) {
 				socketChannel.close();
 				socketChannel = null;
 			}
 		}
 
-		public void write(byte[] buffer) throws IOException {
-			if (buffer != null) {
-				write(buffer, 0, buffer.length);
-			}
-		}
-
-		public void write(byte[] buffer, int offset, int length) throws IOException {
-			if (socketChannel != null) {
-				int n = socketChannel.write(ByteBuffer.wrap(buffer, 0, length));
-				if (n != length) {
-					log.error(String.format("TcpConnection.write could not write 0x%X bytes, only 0x%X bytes written", length, n));
-				}
-			} else {
-				log.error(String.format("TcpConnection.write socketChannel not created"));
-			}
-		}
-
-		public byte[] read() throws IOException {
-			if (socketChannel == null) {
-				return null;
-			}
-
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int length = socketChannel.read(ByteBuffer.wrap(buffer));
-			if (length <= 0) {
-				return null;
-			}
-
-			byte[] readBuffer = new byte[length];
-			System.arraycopy(buffer, 0, readBuffer, 0, length);
-
-			return readBuffer;
+		@Override
+		protected int write(ByteBuffer buffer) throws IOException {
+			return socketChannel.write(buffer);
 		}
 
-		public void addPendingWriteData(byte[] data) {
-			if (data != null && data.length > 0) {
-				pendingWriteData = Utilities.extendArray(pendingWriteData, data);
+		@Override
+		protected int getReadInterestOps() {
+			if (pendingConnection) {
+				return SelectionKey.OP_CONNECT;
 			}
+			return endOfStream ? 0 : SelectionKey.OP_READ;
 		}
 
 		@Override
@@ -201,7 +315,7 @@ public class AccessPoint implements IProcessHTTPRequest {
 		}
 	}
 
-	private static class UdpConnection {
+	private class UdpConnection extends Connection {
 		private static final long INACTIVITY_MILLIS_AUTO_CLOSE = 5 * 1000; // 5 seconds
 		public pspNetMacAddress sourceMacAddress;
 		public byte[] sourceIPAddress;
@@ -210,35 +324,24 @@ public class AccessPoint implements IProcessHTTPRequest {
 		public byte[] destinationIPAddress;
 		public int destinationPort;
 		public DatagramChannel datagramChannel;
-		public byte[] pendingWriteData;
-		public boolean pendingConnection;
 		private long lastUsed;
 
-		private void openChannel() throws IOException {
+		public void connect() throws IOException {
 			if (datagramChannel == null) {
 				datagramChannel = DatagramChannel.open();
-				// Use a non-blocking channel as we are polling for data
+				// Use a non-blocking channel, the channel is registered to the selector
 				datagramChannel.configureBlocking(false);
-				// Connect has no timeout
-				datagramChannel.socket().setSoTimeout(0);
-			}
-		}
-
-		public void connect() throws IOException {
-			openChannel();
-			if (!datagramChannel.isConnected()) {
 				SocketAddress socketAddress = new InetSocketAddress(InetAddress.getByAddress(destinationIPAddress), destinationPort);
 				datagramChannel.connect(socketAddress);
+				selectionKey = datagramChannel.register(selector, SelectionKey.OP_READ, this);
+				pendingConnection = false;
 
 				lastUsed = now();
 			}
 		}
 
-		public boolean isConnected() {
-			return datagramChannel != null && datagramChannel.isConnected();
-		}
-
-		public void close() throws IOException {
+		@Override
+		protected void closeChannel() throws IOException {
 			if (datagramChannel != null) {
 				datagramChannel.close();
 				datagramChannel = null;
@@ -251,52 +354,34 @@ public class AccessPoint implements IProcessHTTPRequest {
 			return Emulator.getClock().currentTimeMillis();
 		}
 
-		public void closeIfNoLongerUsed() throws IOException {
-			if (!isConnected() || pendingWriteData != null) {
-				return;
+		public boolean isNoLongerUsed() {
+			if (hasPendingWrites()) {
+				return false;
 			}
 
 			long inactivityMillis = now() - lastUsed;
-			if (inactivityMillis > INACTIVITY_MILLIS_AUTO_CLOSE) {
-				close();
-			}
+			return inactivityMillis > INACTIVITY_MILLIS_AUTO_CLOSE;
 		}
 
-		public void write(byte[] buffer) throws IOException {
-			if (buffer != null) {
-				write(buffer, 0, buffer.length);
+		@Override
+		protected int write(ByteBuffer buffer) throws IOException {
+			int length = datagramChannel.write(buffer);
+			if (length > 0) {
+				lastUsed = now();
 			}
-		}
-
-		public void write(byte[] buffer, int offset, int length) throws IOException {
-			datagramChannel.write(ByteBuffer.wrap(buffer, 0, length));
 
-			lastUsed = now();
+			return length;
 		}
 
-		public byte[] read() throws IOException {
-			if (datagramChannel == null) {
-				return null;
-			}
-
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int length = datagramChannel.read(ByteBuffer.wrap(buffer));
-			if (length <= 0) {
-				return null;
-			}
-
-			byte[] readBuffer = new byte[length];
-			System.arraycopy(buffer, 0, readBuffer, 0, length);
-
+		@Override
+		public void received(int length) {
+			super.received(length);
 			lastUsed = now();
-
-			return readBuffer;
 		}
 
-		public void addPendingWriteData(byte[] data) {
-			if (data != null && data.length > 0) {
-				pendingWriteData = Utilities.extendArray(pendingWriteData, data);
-			}
+		@Override
+		protected int getReadInterestOps() {
+			return SelectionKey.OP_READ;
 		}
 
 		@Override
@@ -306,24 +391,44 @@ public class AccessPoint implements IProcessHTTPRequest {
 	}
 
 	private class AccessPointThread extends Thread {
-		private boolean exit = false;
+		private volatile boolean exit = false;
 
 		@Override
 		public void run() {
 			setLog4jMDC();
 
 			while (!exit) {
-				boolean receivedAccessPointMessage = receiveAccessPointMessage();
-				boolean receivedTcpMessage = receiveTcpMessages();
-				boolean receivedUdpMessage = receiveUdpMessages();
-				if (!exit && !receivedAccessPointMessage && !receivedTcpMessage && !receivedUdpMessage) {
-					Utilities.sleep(10, 0);
+				// Retry to create the access point socket if it failed previously
+				createAccessPointSocket();
+
+				try {
+					// Wake up at least once per second to close the unused UDP connections
+					// and to retry the creation of the access point socket
+					selector.select(1000);
+				} catch (IOException e) {
+					log.error("AccessPointThread", e);
+					break;
+				}
+
+				if (exit) {
+					break;
+				}
+
+				for (Iterator<SelectionKey> lit = selector.selectedKeys().iterator(); lit.hasNext(); ) {
+					SelectionKey key = lit.next();
+					lit.remove();
+					processSelectedKey(key);
 				}
+
+				closeUnusedUdpConnections();
 			}
+
+			closeAll();
 		}
 
 		public void exit() {
 			exit = true;
+			selector.wakeup();
 		}
 	}
 
@@ -341,8 +446,16 @@ public class AccessPoint implements IProcessHTTPRequest {
 
 		random = new Random();
 
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			// The access point cannot run without its selector
+			log.error("Cannot create access point selector", e);
+			return;
+		}
+
 		if (!createAccessPointSocket()) {
-			log.error(String.format("Cannot create access point socket"));
+			log.error(String.format("Cannot create access point socket, retrying later"));
 		}
 
 		baseUri = String.format("/AccessPoint/%d/", getPort());
@@ -425,62 +538,85 @@ public class AccessPoint implements IProcessHTTPRequest {
 	}
 
 	private boolean createAccessPointSocket() {
-    	if (apSocket == null) {
+    	if (apChannel == null && selector != null) {
 			boolean retry;
 			do {
 				retry = false;
+				DatagramChannel channel = null;
 	    		try {
-	    			apSocket = new DatagramSocket(apSocketPort, getLocalInetAddress());
+	    			channel = DatagramChannel.open();
 		    		// For broadcast
-	    			apSocket.setBroadcast(true);
-		    		// Non-blocking (timeout = 0 would mean blocking)
-	    			apSocket.setSoTimeout(1);
+	    			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+	    			channel.bind(new InetSocketAddress(getLocalInetAddress(), apSocketPort));
+	    			channel.configureBlocking(false);
+	    			channel.register(selector, SelectionKey.OP_READ);
+	    			apChannel = channel;
 	    		} catch (BindException e) {
 	    			if (log.isDebugEnabled()) {
 	    				log.debug(String.format("createAccessPointSocket port %d already in use (%s) - retrying with port %d", apSocketPort, e, apSocketPort + 1));
 	    			}
+	    			closeChannel(channel);
 	    			// The port is already busy, retrying with another port
 	    			apSocketPort++;
 	    			retry = true;
-				} catch (SocketException e) {
+				} catch (IOException e) {
 					log.error("createWlanSocket", e);
+	    			closeChannel(channel);
 				}
 			} while (retry);
     	}
 
-    	return apSocket != null;
+    	return apChannel != null;
     }
 
-	private boolean receiveAccessPointMessage() {
-    	boolean packetReceived = false;
-
-    	if (!createAccessPointSocket()) {
-			return packetReceived;
+	private static void closeChannel(Channel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore exception
+			}
 		}
+	}
 
-    	byte[] bytes = new byte[10000];
-		DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+	private void processSelectedKey(SelectionKey key) {
 		try {
-			apSocket.receive(packet);
-			if (log.isDebugEnabled()) {
-				log.debug(String.format("receiveMessage message: %s", Utilities.getMemoryDump(packet.getData(), packet.getOffset(), packet.getLength())));
+			Object attachment = key.attachment();
+			if (attachment instanceof TcpConnection) {
+				processSelectedTcpConnection(key, (TcpConnection) attachment);
+			} else if (attachment instanceof UdpConnection) {
+				processSelectedUdpConnection(key, (UdpConnection) attachment);
+			} else if (key.isValid() && key.isReadable()) {
+				receiveAccessPointMessages();
 			}
+		} catch (CancelledKeyException e) {
+			// The connection has been closed in the meantime
+		}
+	}
 
-			packetReceived = true;
+	private void receiveAccessPointMessages() {
+		// Receive all the available messages
+		while (true) {
+			try {
+				apReceiveBuffer.clear();
+				SocketAddress socketAddress = apChannel.receive(apReceiveBuffer);
+				if (socketAddress == null) {
+					break;
+				}
 
-			byte[] dataBytes = packet.getData();
-			int dataOffset = packet.getOffset();
-			int dataLength = packet.getLength();
-			NetPacket netPacket = new NetPacket(dataBytes, dataOffset, dataLength);
+				byte[] dataBytes = apReceiveBuffer.array();
+				int dataLength = apReceiveBuffer.position();
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("receiveMessage message: %s", Utilities.getMemoryDump(dataBytes, 0, dataLength)));
+				}
 
-			processMessage(netPacket);
-		} catch (SocketTimeoutException e) {
-			// Timeout can be ignored as we are polling
-		} catch (IOException e) {
-			log.error("receiveMessage", e);
+				NetPacket netPacket = new NetPacket(dataBytes, 0, dataLength);
+				processMessage(netPacket);
+			} catch (IOException e) {
+				log.error("receiveMessage", e);
+				break;
+			}
 		}
-
-		return packetReceived;
 	}
 
     private void sendPacket(NetPacket packet, EtherFrame etherFrame) {
@@ -658,14 +794,33 @@ public class AccessPoint implements IProcessHTTPRequest {
 					udpConnection.destinationIPAddress = ipv4.destinationIPAddress;
 					udpConnection.sourcePort = udp.sourcePort;
 					udpConnection.destinationPort = udp.destinationPort;
-					udpConnection.pendingConnection = true;
+					try {
+						udpConnection.connect();
+					} catch (IOException e) {
+						// connect failed, forget the connection state
+						closeConnection(udpConnection);
+						if (log.isDebugEnabled()) {
+							log.debug(String.format("UDP connection %s failed: %s", udpConnection, e.toString()));
+						}
+						break;
+					}
 					udpConnections.add(udpConnection);
 				}
 
 				byte[] data = new byte[udp.length - udp.sizeOf()];
 				packet.readBytes(data);
 
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("processMessageUDP sending data %s: %s", udpConnection, Utilities.getMemoryDump(data)));
+				}
+
+				// Write the data immediately if possible, otherwise as soon as the channel is ready
 				udpConnection.addPendingWriteData(data);
+				try {
+					udpConnection.writePendingData();
+				} catch (IOException e) {
+					log.error("processMessageUDP", e);
+				}
 				break;
 		}
 	}
@@ -841,13 +996,7 @@ public class AccessPoint implements IProcessHTTPRequest {
 					log.debug(String.format("processMessageTCP SYN received for a connection still pending (%s), retrying the connection", tcpConnection));
 				}
 
-				try {
-					tcpConnection.close();
-				} catch (IOException e) {
-					if (log.isDebugEnabled()) {
-						log.debug("error while closing connection", e);
-					}
-				}
+				closeConnection(tcpConnection);
 				tcpConnections.remove(tcpConnection);
 			}
 
@@ -857,6 +1006,14 @@ public class AccessPoint implements IProcessHTTPRequest {
 				tcpConnection.proxyDestinationPort = HTTPServer.getInstance().getProxyPort();
 			}
 			tcpConnections.add(tcpConnection);
+
+			try {
+				if (tcpConnection.connect()) {
+					connectedTcp(tcpConnection);
+				}
+			} catch (IOException e) {
+				connectTcpFailed(tcpConnection, e);
+			}
 		} else if (tcp.flagACK) {
 			if (tcpConnection == null) {
 				// Acknowledge to an unknown connection, ignore
@@ -880,8 +1037,9 @@ public class AccessPoint implements IProcessHTTPRequest {
 						log.debug(String.format("processMessageTCP sending data %s: %s", tcpConnection, Utilities.getMemoryDump(tcp.data)));
 					}
 
-					// Queue the received data for the destination
+					// Write the data immediately if possible, otherwise as soon as the channel is ready
 					tcpConnection.addPendingWriteData(tcp.data);
+					tcpConnection.writePendingData();
 				}
 			} catch (IOException e) {
 				log.error("processMessageTCP", e);
@@ -969,60 +1127,75 @@ public class AccessPoint implements IProcessHTTPRequest {
 		sendPacket(answerPacket, answerFrame);
 	}
 
-	private boolean receiveTcpMessages() {
-		boolean received = false;
-		List<TcpConnection> tcpConnectionsToBeDeleted = new LinkedList<TcpConnection>();
+	private void connectedTcp(TcpConnection tcpConnection) throws IOException {
+		tcpConnection.sourceSequenceNumber++;
+		// Send SYN-ACK acknowledge
+		sendAcknowledgeTCP(tcpConnection, true);
+		tcpConnection.destinationSequenceNumber++;
+		tcpConnection.pendingConnection = false;
 
-		for (TcpConnection tcpConnection : tcpConnections) {
-			if (tcpConnection.pendingConnection) {
-				try {
-					tcpConnection.connect();
-					SocketChannel socketChannel = tcpConnection.socketChannel;
-					if (socketChannel != null && socketChannel.finishConnect()) {
-						tcpConnection.sourceSequenceNumber++;
-						// Send SYN-ACK acknowledge
-						sendAcknowledgeTCP(tcpConnection, true);
-						tcpConnection.destinationSequenceNumber++;
-						tcpConnection.pendingConnection = false;
-					}
-				} catch (IOException e) {
-					// connect failed, do not send any TCP SYN-ACK, forget the connection state
-					tcpConnectionsToBeDeleted.add(tcpConnection);
-					if (log.isDebugEnabled()) {
-						log.debug(String.format("Pending TCP connection %s failed: %s", tcpConnection, e.toString()));
-					}
+		// Write any data received while connecting
+		tcpConnection.writePendingData();
+	}
+
+	private void connectTcpFailed(TcpConnection tcpConnection, IOException e) {
+		// connect failed, do not send any TCP SYN-ACK, forget the connection state
+		closeConnection(tcpConnection);
+		tcpConnections.remove(tcpConnection);
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Pending TCP connection %s failed: %s", tcpConnection, e.toString()));
+		}
+	}
+
+	private void processSelectedTcpConnection(SelectionKey key, TcpConnection tcpConnection) {
+		if (key.isValid() && key.isConnectable()) {
+			try {
+				if (tcpConnection.socketChannel.finishConnect()) {
+					connectedTcp(tcpConnection);
 				}
+			} catch (IOException e) {
+				connectTcpFailed(tcpConnection, e);
+				return;
 			}
+		}
 
-			try {
-				if (!tcpConnection.pendingConnection) {
-					// Write any pending data
-					byte[] pendingWriteData = tcpConnection.pendingWriteData;
-					if (pendingWriteData != null) {
-						tcpConnection.pendingWriteData = null;
+		try {
+			if (key.isValid() && key.isWritable()) {
+				tcpConnection.writePendingData();
+			}
 
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("receiveTcpMessages sending pending write data: %s", Utilities.getMemoryDump(pendingWriteData)));
+			if (key.isValid() && key.isReadable()) {
+				ByteBuffer buffer = bufferPool.get(BUFFER_SIZE);
+				try {
+					// Receive all the available data
+					while (true) {
+						buffer.clear();
+						buffer.limit(BUFFER_SIZE);
+						int length = tcpConnection.socketChannel.read(buffer);
+						if (length < 0) {
+							// No more data will be received
+							tcpConnection.endOfStream = true;
+							tcpConnection.updateInterestOps();
+							break;
+						}
+						if (length == 0) {
+							break;
 						}
-						tcpConnection.write(pendingWriteData);
-					}
 
-					// Receive any available data
-					byte[] receivedData = tcpConnection.read();
-					if (receivedData != null) {
-						received = true;
+						byte[] receivedData = new byte[length];
+						buffer.flip();
+						buffer.get(receivedData);
+						tcpConnection.received(length);
 						sendTcpData(tcpConnection, receivedData);
 					}
+				} finally {
+					bufferPool.release(buffer);
 				}
-			} catch (IOException e) {
-				// Ignore exceptions
-				log.error("receiveTcpMessages", e);
 			}
+		} catch (IOException e) {
+			// Ignore exceptions
+			log.error("processSelectedTcpConnection", e);
 		}
-
-		tcpConnections.removeAll(tcpConnectionsToBeDeleted);
-
-		return received;
 	}
 
 	private void sendUdpData(UdpConnection udpConnection, byte[] data) throws EOFException {
@@ -1065,61 +1238,78 @@ public class AccessPoint implements IProcessHTTPRequest {
 		sendPacket(answerPacket, answerFrame);
 	}
 
-	private boolean receiveUdpMessages() {
-		boolean received = false;
-		List<UdpConnection> udpConnectionsToBeDeleted = new LinkedList<UdpConnection>();
-
-		for (UdpConnection udpConnection : udpConnections) {
-			if (log.isTraceEnabled()) {
-				log.trace(String.format("receiveUdpMessages polling %s", udpConnection));
+	private void processSelectedUdpConnection(SelectionKey key, UdpConnection udpConnection) {
+		try {
+			if (key.isValid() && key.isWritable()) {
+				udpConnection.writePendingData();
 			}
 
-			if (udpConnection.pendingConnection) {
+			if (key.isValid() && key.isReadable()) {
+				ByteBuffer buffer = bufferPool.get(BUFFER_SIZE);
 				try {
-					udpConnection.connect();
-					if (udpConnection.isConnected()) {
-						udpConnection.pendingConnection = false;
-					}
-				} catch (IOException e) {
-					// connect failed, forget the connection state
-					udpConnectionsToBeDeleted.add(udpConnection);
-					if (log.isDebugEnabled()) {
-						log.debug(String.format("Pending UDP connection %s failed: %s", udpConnection, e.toString()));
-					}
-				}
-			}
-
-			try {
-				if (!udpConnection.pendingConnection) {
-					// Write any pending data
-					byte[] pendingWriteData = udpConnection.pendingWriteData;
-					if (pendingWriteData != null) {
-						udpConnection.pendingWriteData = null;
-
-						if (log.isDebugEnabled()) {
-							log.debug(String.format("receiveUdpMessages sending pending write data: %s", Utilities.getMemoryDump(pendingWriteData)));
+					// Receive all the available datagrams
+					while (true) {
+						buffer.clear();
+						buffer.limit(BUFFER_SIZE);
+						int length = udpConnection.datagramChannel.read(buffer);
+						if (length <= 0) {
+							break;
 						}
-						udpConnection.write(pendingWriteData);
-					}
 
-					// Receive any available data
-					byte[] receivedData = udpConnection.read();
-					if (receivedData != null) {
-						received = true;
+						byte[] receivedData = new byte[length];
+						buffer.flip();
+						buffer.get(receivedData);
+						udpConnection.received(length);
 						sendUdpData(udpConnection, receivedData);
 					}
+				} finally {
+					bufferPool.release(buffer);
 				}
+			}
+		} catch (IOException e) {
+			// Ignore exceptions
+			log.error("processSelectedUdpConnection", e);
+		}
+	}
 
-				udpConnection.closeIfNoLongerUsed();
-			} catch (IOException e) {
-				// Ignore exceptions
-				log.error("receiveUdpMessages", e);
+	private void closeUnusedUdpConnections() {
+		for (Iterator<UdpConnection> lit = udpConnections.iterator(); lit.hasNext(); ) {
+			UdpConnection udpConnection = lit.next();
+			if (udpConnection.isNoLongerUsed()) {
+				closeConnection(udpConnection);
+				lit.remove();
+			}
+		}
+	}
+
+	private void closeConnection(Connection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("error while closing connection", e);
 			}
 		}
+	}
 
-		udpConnections.removeAll(udpConnectionsToBeDeleted);
+	private void closeAll() {
+		for (TcpConnection tcpConnection : tcpConnections) {
+			closeConnection(tcpConnection);
+		}
+		tcpConnections.clear();
 
-		return received;
+		for (UdpConnection udpConnection : udpConnections) {
+			closeConnection(udpConnection);
+		}
+		udpConnections.clear();
+
+		closeChannel(apChannel);
+		apChannel = null;
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore exception
+		}
 	}
 
 	private void sendDHCPReply(EtherFrame frame, IPv4 ipv4, UDP udp, DHCP dhcp, int messageType) throws EOFException {
@@ -19,66 +19,138 @@ package jpcsp.network.adhoc;
 import static jpcsp.hardware.Wlan.getLocalInetAddress;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author gid15
  *
  */
 public class AdhocDatagramSocket extends AdhocSocket {
-	private DatagramSocket socket;
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+	// Received datagrams are discarded when the socket is not being polled
+	private static final int MAX_RECEIVED_DATAGRAMS = 1024;
+	private DatagramChannel channel;
+	// Filled by the AdhocSelector thread
+	private final ConcurrentLinkedQueue<ReceivedDatagram> receivedDatagrams = new ConcurrentLinkedQueue<ReceivedDatagram>();
+	private final AtomicInteger numberReceivedDatagrams = new AtomicInteger();
+	private ByteBuffer receiveBuffer;
+
+	private static class ReceivedDatagram {
+		public byte[] data;
+		public InetSocketAddress address;
+	}
 
 	@Override
-	public int bind(int port) throws SocketException {
-		if (port == 0) {
-			socket = new DatagramSocket();
-			if (log.isDebugEnabled()) {
-				log.debug(String.format("Opening socket on free local port %d", socket.getLocalPort()));
+	public int bind(int port) throws IOException {
+		channel = DatagramChannel.open();
+		try {
+			// For broadcast
+			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			if (port == 0) {
+				channel.bind(null);
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Opening socket on free local port %d", channel.socket().getLocalPort()));
+				}
+			} else {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Opening socket on real port %d", port));
+				}
+				channel.bind(new InetSocketAddress(getLocalInetAddress(), port));
 			}
-		} else {
-			if (log.isDebugEnabled()) {
-				log.debug(String.format("Opening socket on real port %d", port));
-			}
-			socket = new DatagramSocket(port, getLocalInetAddress());
+			// Non-blocking, the datagrams are received by the AdhocSelector thread
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			channel = null;
+			throw e;
 		}
-		// For broadcast
-		socket.setBroadcast(true);
-		// Non-blocking (timeout = 0 would mean blocking)
-		socket.setSoTimeout(1);
+		getSelector().register(channel, SelectionKey.OP_READ, this);
 
-		return socket.getLocalPort();
+		return channel.socket().getLocalPort();
 	}
 
 	@Override
-	public void close() {
-		if (socket != null) {
-			socket.close();
-			socket = null;
+	public void close() throws IOException {
+		if (channel != null) {
+			getSelector().close(channel);
+			channel = null;
 		}
+		receivedDatagrams.clear();
+		numberReceivedDatagrams.set(0);
 	}
 
 	@Override
 	public void setTimeout(int millis) throws SocketException {
-		socket.setSoTimeout(millis);
+		// Nothing to do, the receive is never blocking
 	}
 
 	@Override
 	public void send(SocketAddress socketAddress, AdhocMessage adhocMessage) throws IOException {
-		DatagramPacket packet = new DatagramPacket(adhocMessage.getMessage(), adhocMessage.getMessageLength(), socketAddress);
-		socket.send(packet);
+		ByteBuffer buffer = ByteBuffer.wrap(adhocMessage.getMessage(), 0, adhocMessage.getMessageLength());
+		if (channel.send(buffer, socketAddress) == 0) {
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("Datagram to %s not sent, send buffer full", socketAddress));
+			}
+		}
 	}
 
 	@Override
 	public int receive(byte[] buffer, int size) throws IOException {
-		DatagramPacket packet = new DatagramPacket(buffer, size);
-		socket.receive(packet);
-		setReceivedPort(packet.getPort());
-		setReceivedAddress(packet.getAddress());
+		checkError();
+
+		ReceivedDatagram receivedDatagram = receivedDatagrams.poll();
+		if (receivedDatagram == null) {
+			// No datagram available
+			throw new SocketTimeoutException();
+		}
+		numberReceivedDatagrams.decrementAndGet();
+
+		int length = Math.min(size, receivedDatagram.data.length);
+		System.arraycopy(receivedDatagram.data, 0, buffer, 0, length);
+		setReceivedPort(receivedDatagram.address.getPort());
+		setReceivedAddress(receivedDatagram.address.getAddress());
 
-		return packet.getLength();
+		return length;
+	}
+
+	@Override
+	protected void processSelectedKey(SelectionKey key) throws IOException {
+		DatagramChannel channel = (DatagramChannel) key.channel();
+		if (receiveBuffer == null) {
+			receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+		}
+
+		// Receive all the available datagrams
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress address = channel.receive(receiveBuffer);
+			if (address == null) {
+				break;
+			}
+
+			if (numberReceivedDatagrams.get() >= MAX_RECEIVED_DATAGRAMS) {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Discarded datagram from %s, too many datagrams received", address));
+				}
+				continue;
+			}
+
+			ReceivedDatagram receivedDatagram = new ReceivedDatagram();
+			receivedDatagram.data = Arrays.copyOf(receiveBuffer.array(), receiveBuffer.position());
+			receivedDatagram.address = (InetSocketAddress) address;
+			numberReceivedDatagrams.incrementAndGet();
+			receivedDatagrams.add(receivedDatagram);
+		}
 	}
 
 	@Override
@@ -0,0 +1,238 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.network.adhoc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.HLE.modules.sceNetAdhoc;
+
+/**
+ * Network I/O thread for the Adhoc sockets.
+ *
+ * All the Adhoc sockets are non-blocking channels registered to a single
+ * selector. This thread is receiving the incoming data as soon as it is
+ * available and is storing it into a receive queue of the socket.
+ * Polling an Adhoc socket from the emulator is then only checking this queue
+ * and is never blocking.
+ */
+public class AdhocSelector extends Thread {
+	private static Logger log = sceNetAdhoc.log;
+	private static AdhocSelector instance;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+	private final ConcurrentLinkedQueue<SelectionKey> resumedReads = new ConcurrentLinkedQueue<SelectionKey>();
+	private final ConcurrentLinkedQueue<CloseRequest> closeRequests = new ConcurrentLinkedQueue<CloseRequest>();
+	private static final int CLOSE_TIMEOUT_MILLIS = 1000;
+
+	private static class Registration {
+		public SelectableChannel channel;
+		public int ops;
+		public AdhocSocket socket;
+	}
+
+	private static class CloseRequest {
+		public SelectableChannel channel;
+		public IOException error;
+		public final CountDownLatch done = new CountDownLatch(1);
+	}
+
+	public static synchronized AdhocSelector getInstance() throws IOException {
+		if (instance == null) {
+			instance = new AdhocSelector();
+			instance.start();
+		}
+		return instance;
+	}
+
+	private AdhocSelector() throws IOException {
+		selector = Selector.open();
+		setName("Adhoc Selector");
+		setDaemon(true);
+	}
+
+	/**
+	 * Register a non-blocking channel.
+	 * The registration is performed asynchronously by the selector thread.
+	 *
+	 * @param channel   the channel
+	 * @param ops       the interest set
+	 * @param socket    the socket processing the selected channel
+	 */
+	public void register(SelectableChannel channel, int ops, AdhocSocket socket) {
+		Registration registration = new Registration();
+		registration.channel = channel;
+		registration.ops = ops;
+		registration.socket = socket;
+		registrations.add(registration);
+		selector.wakeup();
+	}
+
+	/**
+	 * Resume the reading of a channel whose OP_READ interest
+	 * has been removed by its socket, e.g. when its receive queue was full.
+	 * The interest set is updated asynchronously by the selector thread.
+	 *
+	 * @param key   the selection key of the channel
+	 */
+	public void resumeRead(SelectionKey key) {
+		resumedReads.add(key);
+		selector.wakeup();
+	}
+
+	/**
+	 * Close a channel registered to the selector.
+	 * A closed channel is only released by the selector at its next select operation.
+	 * The channel is closed and released by the selector thread,
+	 * wait for it so that its port can be immediately reused.
+	 *
+	 * @param channel   the channel to be closed
+	 * @throws IOException
+	 */
+	public void close(SelectableChannel channel) throws IOException {
+		if (Thread.currentThread() == this) {
+			// The channel will be released at the next select operation
+			channel.close();
+			return;
+		}
+
+		CloseRequest closeRequest = new CloseRequest();
+		closeRequest.channel = channel;
+		closeRequests.add(closeRequest);
+		selector.wakeup();
+
+		try {
+			if (!closeRequest.done.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				log.warn(String.format("AdhocSelector timeout while closing %s", channel));
+			}
+		} catch (InterruptedException e) {
+			// Ignore exception
+		}
+
+		if (closeRequest.error != null) {
+			throw closeRequest.error;
+		}
+	}
+
+	private void processRegistrations() {
+		while (true) {
+			Registration registration = registrations.poll();
+			if (registration == null) {
+				break;
+			}
+
+			try {
+				registration.channel.register(selector, registration.ops, registration.socket);
+			} catch (IOException e) {
+				// The channel has already been closed
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("AdhocSelector cannot register %s", registration.channel), e);
+				}
+			}
+		}
+	}
+
+	private void processResumedReads() {
+		while (true) {
+			SelectionKey key = resumedReads.poll();
+			if (key == null) {
+				break;
+			}
+
+			try {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			} catch (CancelledKeyException e) {
+				// The channel has been closed in the meantime
+			}
+		}
+	}
+
+	private void processCloseRequests() {
+		CloseRequest closeRequest = closeRequests.poll();
+		if (closeRequest == null) {
+			return;
+		}
+
+		List<CloseRequest> closedRequests = new LinkedList<CloseRequest>();
+		while (closeRequest != null) {
+			try {
+				closeRequest.channel.close();
+			} catch (IOException e) {
+				closeRequest.error = e;
+			}
+			closedRequests.add(closeRequest);
+			closeRequest = closeRequests.poll();
+		}
+
+		// Release the closed channels
+		try {
+			selector.selectNow();
+		} catch (IOException e) {
+			log.error("AdhocSelector", e);
+		}
+
+		for (CloseRequest closedRequest : closedRequests) {
+			closedRequest.done.countDown();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				processRegistrations();
+				processResumedReads();
+				processCloseRequests();
+
+				for (Iterator<SelectionKey> lit = selector.selectedKeys().iterator(); lit.hasNext(); ) {
+					SelectionKey key = lit.next();
+					lit.remove();
+					AdhocSocket socket = (AdhocSocket) key.attachment();
+					try {
+						if (key.isValid()) {
+							socket.processSelectedKey(key);
+						}
+					} catch (CancelledKeyException e) {
+						// The socket has been closed in the meantime
+					} catch (IOException e) {
+						key.cancel();
+						socket.setError(e);
+					} catch (RuntimeException e) {
+						// Do not stop the selector thread, only this socket
+						log.error(String.format("AdhocSelector %s", socket), e);
+						key.cancel();
+						socket.setError(new IOException(e));
+					}
+				}
+			} catch (IOException e) {
+				log.error("AdhocSelector", e);
+			}
+		}
+	}
+}
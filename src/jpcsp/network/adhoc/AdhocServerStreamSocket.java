@@ -19,24 +19,39 @@ package jpcsp.network.adhoc;
 import static jpcsp.hardware.Wlan.getLocalInetAddress;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author gid15
  *
  */
 public class AdhocServerStreamSocket extends AdhocSocket {
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	// Filled by the AdhocSelector thread
+	private final ConcurrentLinkedQueue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<SocketChannel>();
 
 	@Override
 	public int bind(int port) throws IOException {
-		serverSocket = new ServerSocket(port, 50, getLocalInetAddress());
-		serverSocket.setSoTimeout(1);
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(getLocalInetAddress(), port), 50);
+			// Non-blocking, the connections are accepted by the AdhocSelector thread
+			serverChannel.configureBlocking(false);
+		} catch (IOException e) {
+			serverChannel.close();
+			serverChannel = null;
+			throw e;
+		}
+		getSelector().register(serverChannel, SelectionKey.OP_ACCEPT, this);
 
-		return serverSocket.getLocalPort();
+		return serverChannel.socket().getLocalPort();
 	}
 
 	@Override
@@ -46,15 +61,24 @@ public class AdhocServerStreamSocket extends AdhocSocket {
 
 	@Override
 	public void close() throws IOException {
-		if (serverSocket != null) {
-			serverSocket.close();
-			serverSocket = null;
+		if (serverChannel != null) {
+			getSelector().close(serverChannel);
+			serverChannel = null;
+		}
+
+		// Close the connections accepted but never retrieved
+		while (true) {
+			SocketChannel channel = acceptedChannels.poll();
+			if (channel == null) {
+				break;
+			}
+			channel.close();
 		}
 	}
 
 	@Override
 	public void setTimeout(int millis) throws SocketException {
-		serverSocket.setSoTimeout(millis);
+		// Nothing to do, the accept is never blocking
 	}
 
 	@Override
@@ -68,18 +92,32 @@ public class AdhocServerStreamSocket extends AdhocSocket {
 		return -1;
 	}
 
+	@Override
+	protected void processSelectedKey(SelectionKey key) throws IOException {
+		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			if (channel == null) {
+				break;
+			}
+			acceptedChannels.add(channel);
+		}
+	}
+
 	@Override
 	public AdhocSocket accept() throws IOException {
-		Socket socket = serverSocket.accept();
+		checkError();
 
-		if (socket == null) {
-			return null;
+		SocketChannel channel = acceptedChannels.poll();
+		if (channel == null) {
+			// No connection available
+			throw new SocketTimeoutException();
 		}
 
-		AdhocSocket adhocSocket = new AdhocStreamSocket(socket);
+		AdhocSocket adhocSocket = new AdhocStreamSocket(channel);
 		// Provide information about the accepted socket
-		adhocSocket.setReceivedAddress(socket.getInetAddress());
-		adhocSocket.setReceivedPort(socket.getPort());
+		adhocSocket.setReceivedAddress(channel.socket().getInetAddress());
+		adhocSocket.setReceivedPort(channel.socket().getPort());
 
 		return adhocSocket;
 	}
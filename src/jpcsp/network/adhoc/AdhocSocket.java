@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.SelectionKey;
 
 import jpcsp.HLE.modules.sceNetAdhoc;
 
@@ -33,6 +34,7 @@ public abstract class AdhocSocket {
 	protected static Logger log = sceNetAdhoc.log;
 	private int receivedPort;
 	private InetAddress receivedAddress;
+	private volatile IOException error;
 
 	public abstract int bind(int port) throws IOException;
 	public abstract void connect(SocketAddress socketAddress, int port) throws IOException;
@@ -57,4 +59,35 @@ public abstract class AdhocSocket {
 	public void setReceivedAddress(InetAddress receivedAddress) {
 		this.receivedAddress = receivedAddress;
 	}
+
+	protected static AdhocSelector getSelector() throws IOException {
+		return AdhocSelector.getInstance();
+	}
+
+	/**
+	 * Called by the AdhocSelector thread when the channel of this socket
+	 * has been selected.
+	 *
+	 * @param key  the selected key
+	 * @throws IOException
+	 */
+	protected void processSelectedKey(SelectionKey key) throws IOException {
+	}
+
+	protected void setError(IOException error) {
+		this.error = error;
+	}
+
+	/**
+	 * Report an error raised while receiving on the AdhocSelector thread.
+	 *
+	 * @throws IOException the error raised while receiving
+	 */
+	protected void checkError() throws IOException {
+		IOException error = this.error;
+		if (error != null) {
+			this.error = null;
+			throw error;
+		}
+	}
 }
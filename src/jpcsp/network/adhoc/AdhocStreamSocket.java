@@ -20,65 +20,169 @@ import static jpcsp.hardware.Wlan.getLocalInetAddress;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author gid15
  *
  */
 public class AdhocStreamSocket extends AdhocSocket {
-	private Socket socket;
+	private static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_RECEIVED_DATA_SIZE = 256 * 1024;
+	private SocketChannel channel;
+	// Filled by the AdhocSelector thread
+	private final ConcurrentLinkedQueue<byte[]> receivedData = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger receivedDataSize = new AtomicInteger();
+	// Key of the channel while its reading is paused because receivedData is full
+	private final AtomicReference<SelectionKey> pausedKey = new AtomicReference<SelectionKey>();
+	private volatile boolean endOfStream;
+	private ByteBuffer receiveBuffer;
+	// Received data only partially returned by receive()
+	private byte[] currentData;
+	private int currentOffset;
 
 	public AdhocStreamSocket() {
 	}
 
-	protected AdhocStreamSocket(Socket socket) {
-		this.socket = socket;
+	protected AdhocStreamSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		startReceiving();
+	}
 
-		try {
-			socket.setSoTimeout(1);
-		} catch (SocketException e) {
-			// Ignore error
-		}
+	private void startReceiving() throws IOException {
+		// Non-blocking, the data is received by the AdhocSelector thread
+		channel.configureBlocking(false);
+		getSelector().register(channel, SelectionKey.OP_READ, this);
 	}
 
 	@Override
 	public int bind(int port) throws IOException {
-		socket = new Socket();
-		socket.bind(new InetSocketAddress(getLocalInetAddress(), port));
-		socket.setSoTimeout(1);
+		channel = SocketChannel.open();
+		channel.bind(new InetSocketAddress(getLocalInetAddress(), port));
 
-		return socket.getLocalPort();
+		return channel.socket().getLocalPort();
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (socket != null) {
-			socket.close();
-			socket = null;
+		if (channel != null) {
+			getSelector().close(channel);
+			channel = null;
 		}
+		receivedData.clear();
+		receivedDataSize.set(0);
+		pausedKey.set(null);
+		currentData = null;
 	}
 
 	@Override
 	public void setTimeout(int millis) throws SocketException {
-		socket.setSoTimeout(millis);
+		// Nothing to do, the receive is never blocking
 	}
 
 	@Override
 	public void send(SocketAddress socketAddress, AdhocMessage adhocMessage) throws IOException {
-		socket.getOutputStream().write(adhocMessage.getMessage());
+		ByteBuffer buffer = ByteBuffer.wrap(adhocMessage.getMessage());
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) {
+				// The send buffer is full, wait for the peer
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					// Ignore exception
+				}
+			}
+		}
 	}
 
 	@Override
 	public int receive(byte[] buffer, int size) throws IOException {
-		return socket.getInputStream().read(buffer, 0, size);
+		if (currentData == null) {
+			// Check the end of stream before polling, the selector thread
+			// is setting it only after having queued all the received data.
+			boolean isEndOfStream = endOfStream;
+			currentData = receivedData.poll();
+			currentOffset = 0;
+			if (currentData == null) {
+				checkError();
+				if (isEndOfStream) {
+					return -1;
+				}
+				// No data available
+				throw new SocketTimeoutException();
+			}
+
+			if (receivedDataSize.addAndGet(-currentData.length) < MAX_RECEIVED_DATA_SIZE && pausedKey.get() != null) {
+				resumeReceiving();
+			}
+		}
+
+		int length = Math.min(size, currentData.length - currentOffset);
+		System.arraycopy(currentData, currentOffset, buffer, 0, length);
+		currentOffset += length;
+		if (currentOffset >= currentData.length) {
+			currentData = null;
+		}
+
+		return length;
+	}
+
+	@Override
+	protected void processSelectedKey(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (receiveBuffer == null) {
+			receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+		}
+
+		// Receive all the available data
+		while (true) {
+			if (receivedDataSize.get() >= MAX_RECEIVED_DATA_SIZE) {
+				// Stop reading until receive() has consumed the queued data,
+				// the peer is then slowed down by the TCP flow control.
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				pausedKey.set(key);
+				// The queue might have been consumed in the meantime
+				if (receivedDataSize.get() < MAX_RECEIVED_DATA_SIZE) {
+					resumeReceiving();
+				}
+				break;
+			}
+
+			receiveBuffer.clear();
+			int length = channel.read(receiveBuffer);
+			if (length < 0) {
+				key.cancel();
+				endOfStream = true;
+				break;
+			}
+			if (length == 0) {
+				break;
+			}
+			receivedData.add(Arrays.copyOf(receiveBuffer.array(), length));
+			receivedDataSize.addAndGet(length);
+		}
+	}
+
+	private void resumeReceiving() throws IOException {
+		SelectionKey key = pausedKey.getAndSet(null);
+		if (key != null) {
+			getSelector().resumeRead(key);
+		}
 	}
 
 	@Override
 	public void connect(SocketAddress socketAddress, int port) throws IOException {
-		socket.connect(socketAddress);
+		channel.connect(socketAddress);
+		startReceiving();
 	}
 
 	@Override
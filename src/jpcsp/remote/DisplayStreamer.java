@@ -0,0 +1,549 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.remote;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+
+import jpcsp.HLE.Modules;
+import jpcsp.HLE.kernel.types.IAction;
+import jpcsp.HLE.modules.sceDisplay;
+import jpcsp.memory.IMemoryReader;
+import jpcsp.memory.ImageReader;
+
+/**
+ * Streaming of the PSP display to the remote HTTP clients.
+ *
+ * The frames are grabbed once per vblank directly from the sceDisplay
+ * framebuffer and handed over to a single encoder thread.
+ * Each frame is encoded only once per subscribed format, whatever
+ * the number of connected clients, and is then queued to each client.
+ * A client too slow to consume its queue is skipping frames
+ * instead of delaying the display or the other clients.
+ */
+public class DisplayStreamer {
+	private static Logger log = Logger.getLogger("http");
+	/** RGB pixels, 3 bytes per pixel, without header */
+	public static final int FORMAT_RAW = 0;
+	/** RLE and delta compressed pixels, with a 12 bytes header */
+	public static final int FORMAT_COMPRESSED_RAW = 1;
+	/** Deflate compressed RGB pixels, with a 12 bytes header */
+	public static final int FORMAT_DEFLATE_RAW = 2;
+	/** One JPEG image per frame */
+	public static final int FORMAT_MJPEG = 3;
+	private static final int NUMBER_FORMATS = 4;
+	private static final int MAX_COMPRESSED_COUNT = 0x7F;
+	private static final int HEADER_LENGTH = 12;
+	// Number of encoded frames waiting to be sent to one client
+	private static final int MAX_QUEUED_FRAMES = 2;
+	// A color never present in a grabbed frame (these are masked to 0x00FFFFFF)
+	private static final int KEY_FRAME_COLOR = 0xFF000000;
+	private static DisplayStreamer instance;
+	private final List<Subscriber> subscribers = new LinkedList<Subscriber>();
+	private FrameGrabber frameGrabber;
+	private EncoderThread encoderThread;
+	// Frame grabbed at the last vblank, not yet processed by the encoder
+	private final Object frameLock = new Object();
+	private int[] grabbedFrame = new int[0];
+	private int grabbedWidth;
+	private int grabbedHeight;
+	private boolean frameAvailable;
+	private int droppedFrames;
+
+	public static class Subscriber {
+		private final int format;
+		private final ArrayBlockingQueue<byte[]> frames = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_FRAMES);
+		private volatile boolean needKeyFrame = true;
+		private int droppedFrames;
+
+		private Subscriber(int format) {
+			this.format = format;
+		}
+
+		public int getFormat() {
+			return format;
+		}
+
+		/**
+		 * Wait for the next encoded frame.
+		 *
+		 * @param timeoutMillis  maximum time to wait
+		 * @return               the encoded frame or null if none was available in time
+		 * @throws InterruptedException
+		 */
+		public byte[] takeFrame(long timeoutMillis) throws InterruptedException {
+			return frames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private void offerFrame(byte[] frame) {
+			if (frames.offer(frame)) {
+				return;
+			}
+
+			droppedFrames++;
+			if (format == FORMAT_COMPRESSED_RAW) {
+				// The delta frames only make sense in sequence:
+				// drop all the queued frames and restart with a key frame
+				frames.clear();
+				needKeyFrame = true;
+			} else {
+				// Drop the oldest frame
+				frames.poll();
+				frames.offer(frame);
+			}
+		}
+	}
+
+	private class FrameGrabber implements IAction {
+		@Override
+		public void execute() {
+			grabFrame();
+		}
+	}
+
+	private class EncoderThread extends Thread {
+		private volatile boolean exit;
+		private int[] frame = new int[0];
+		private int[] previousFrame = new int[0];
+		private int[] keyFrame = new int[0];
+		private byte[] compressBuffer = new byte[0];
+		private byte[] rgbBuffer = new byte[0];
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final byte[][] encodedFrames = new byte[NUMBER_FORMATS][];
+		private byte[] encodedKeyFrame;
+		private final List<Subscriber> currentSubscribers = new LinkedList<Subscriber>();
+
+		@Override
+		public void run() {
+			while (!exit) {
+				int width;
+				int height;
+				synchronized (frameLock) {
+					while (!frameAvailable && !exit) {
+						try {
+							frameLock.wait(100);
+						} catch (InterruptedException e) {
+							// Ignore exception
+						}
+					}
+					if (exit) {
+						break;
+					}
+
+					// Swap the grabbed frame with our own buffer
+					int[] swap = frame;
+					frame = grabbedFrame;
+					grabbedFrame = swap;
+					width = grabbedWidth;
+					height = grabbedHeight;
+					frameAvailable = false;
+				}
+
+				try {
+					encode(width, height);
+				} catch (Exception e) {
+					log.error("DisplayStreamer", e);
+				}
+			}
+
+			deflater.end();
+		}
+
+		private void encode(int width, int height) {
+			synchronized (subscribers) {
+				currentSubscribers.clear();
+				currentSubscribers.addAll(subscribers);
+			}
+
+			int imageSize = width * height;
+			if (previousFrame.length != imageSize) {
+				// The display size has changed, restart the delta compression
+				previousFrame = new int[imageSize];
+				keyFrame = new int[imageSize];
+				Arrays.fill(keyFrame, KEY_FRAME_COLOR);
+				Arrays.fill(previousFrame, KEY_FRAME_COLOR);
+			}
+
+			Arrays.fill(encodedFrames, null);
+			encodedKeyFrame = null;
+			for (Subscriber subscriber : currentSubscribers) {
+				byte[] encodedFrame;
+				if (subscriber.format == FORMAT_COMPRESSED_RAW && subscriber.needKeyFrame) {
+					if (encodedKeyFrame == null) {
+						encodedKeyFrame = encodeCompressedRaw(width, height, keyFrame);
+					}
+					subscriber.needKeyFrame = false;
+					encodedFrame = encodedKeyFrame;
+				} else {
+					encodedFrame = encodedFrames[subscriber.format];
+					if (encodedFrame == null) {
+						encodedFrame = encode(subscriber.format, width, height);
+						encodedFrames[subscriber.format] = encodedFrame;
+					}
+				}
+
+				if (encodedFrame != null) {
+					subscriber.offerFrame(encodedFrame);
+				}
+			}
+
+			// The next delta frame is relative to this frame
+			System.arraycopy(frame, 0, previousFrame, 0, imageSize);
+		}
+
+		private byte[] encode(int format, int width, int height) {
+			switch (format) {
+				case FORMAT_RAW:
+					return Arrays.copyOf(toRGB(width, height), width * height * 3);
+				case FORMAT_COMPRESSED_RAW:
+					return encodeCompressedRaw(width, height, previousFrame);
+				case FORMAT_DEFLATE_RAW:
+					return encodeDeflateRaw(width, height);
+				case FORMAT_MJPEG:
+					return encodeJPEG(width, height);
+			}
+
+			return null;
+		}
+
+		private byte[] toRGB(int width, int height) {
+			int imageSize = width * height;
+			if (rgbBuffer.length < imageSize * 3) {
+				rgbBuffer = new byte[imageSize * 3];
+			}
+
+			for (int i = 0, j = 0; i < imageSize; i++, j += 3) {
+				int color = frame[i];
+				rgbBuffer[j + 0] = (byte) ((color >> 16) & 0xFF);
+				rgbBuffer[j + 1] = (byte) ((color >>  8) & 0xFF);
+				rgbBuffer[j + 2] = (byte) ((color >>  0) & 0xFF);
+			}
+
+			return rgbBuffer;
+		}
+
+		private byte[] encodeCompressedRaw(int width, int height, int[] previousImage) {
+			int imageSize = width * height;
+			if (compressBuffer.length < imageSize * 4 + HEADER_LENGTH) {
+				compressBuffer = new byte[imageSize * 4 + HEADER_LENGTH];
+			}
+
+			// The first 12 bytes of the buffer will contain
+			// - the length of the compressed image (including the 12 bytes header)
+			// - the image width in pixels
+			// - the image height in pixels
+			int compressedLength = compressImage(width, height, frame, previousImage, compressBuffer, HEADER_LENGTH);
+			write32(compressBuffer, 0, compressedLength);
+			write32(compressBuffer, 4, width);
+			write32(compressBuffer, 8, height);
+
+			if (log.isTraceEnabled()) {
+				log.trace(String.format("DisplayStreamer compressed %dx%d image (%d bytes, compression rate %.1f%%)", width, height, compressedLength, 100f * compressedLength / (imageSize * 3)));
+			}
+
+			return Arrays.copyOf(compressBuffer, compressedLength);
+		}
+
+		private byte[] encodeDeflateRaw(int width, int height) {
+			int length = width * height * 3;
+			byte[] rgb = toRGB(width, height);
+			if (compressBuffer.length < length + HEADER_LENGTH) {
+				compressBuffer = new byte[length + HEADER_LENGTH];
+			}
+
+			// Same 12 bytes header as the compressed raw format
+			deflater.reset();
+			deflater.setInput(rgb, 0, length);
+			deflater.finish();
+			ByteArrayOutputStream os = new ByteArrayOutputStream(length / 4 + HEADER_LENGTH);
+			os.write(compressBuffer, 0, HEADER_LENGTH);
+			while (!deflater.finished()) {
+				int deflatedLength = deflater.deflate(compressBuffer, 0, compressBuffer.length);
+				os.write(compressBuffer, 0, deflatedLength);
+			}
+
+			byte[] buffer = os.toByteArray();
+			write32(buffer, 0, buffer.length);
+			write32(buffer, 4, width);
+			write32(buffer, 8, height);
+
+			return buffer;
+		}
+
+		private byte[] encodeJPEG(int width, int height) {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			image.setRGB(0, 0, width, height, frame, 0, width);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(64 * 1024);
+			try {
+				ImageIO.write(image, "jpg", os);
+			} catch (IOException e) {
+				log.error("DisplayStreamer encoding JPEG", e);
+				return null;
+			}
+
+			return os.toByteArray();
+		}
+	}
+
+	public static synchronized DisplayStreamer getInstance() {
+		if (instance == null) {
+			instance = new DisplayStreamer();
+		}
+		return instance;
+	}
+
+	private DisplayStreamer() {
+	}
+
+	public Subscriber subscribe(int format) {
+		Subscriber subscriber = new Subscriber(format);
+
+		synchronized (subscribers) {
+			subscribers.add(subscriber);
+
+			if (encoderThread == null) {
+				encoderThread = new EncoderThread();
+				encoderThread.setName("Display Streamer Encoder");
+				encoderThread.setDaemon(true);
+				encoderThread.start();
+			}
+
+			if (frameGrabber == null) {
+				frameGrabber = new FrameGrabber();
+				Modules.sceDisplayModule.addDisplayAction(frameGrabber);
+			}
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("DisplayStreamer subscribe format=%d", format));
+		}
+
+		return subscriber;
+	}
+
+	public void unsubscribe(Subscriber subscriber) {
+		synchronized (subscribers) {
+			subscribers.remove(subscriber);
+
+			if (subscribers.isEmpty()) {
+				if (frameGrabber != null) {
+					Modules.sceDisplayModule.removeDisplayAction(frameGrabber);
+					frameGrabber = null;
+				}
+
+				if (encoderThread != null) {
+					encoderThread.exit = true;
+					encoderThread = null;
+					synchronized (frameLock) {
+						frameLock.notifyAll();
+					}
+				}
+			}
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("DisplayStreamer unsubscribe format=%d, dropped %d frames (%d frames dropped by the encoder)", subscriber.format, subscriber.droppedFrames, droppedFrames));
+		}
+	}
+
+	/**
+	 * Grab the currently displayed frame, called at each vblank.
+	 *
+	 * With the software renderer, the frame is read directly from the
+	 * framebuffer in the emulated VRAM. Otherwise, the rendering is only
+	 * available from the graphics card and has to be read back.
+	 */
+	private void grabFrame() {
+		sceDisplay display = Modules.sceDisplayModule;
+
+		synchronized (frameLock) {
+			if (frameAvailable) {
+				// The encoder is still busy with the previous frame, this one is replacing it
+				droppedFrames++;
+			}
+
+			if (display.isUsingSoftwareRenderer()) {
+				int topAddr = display.getTopAddrFb();
+				int bufferWidth = display.getBufferWidthFb();
+				int width = Math.min(display.getWidthFb(), bufferWidth);
+				int height = display.getHeightFb();
+				if (topAddr == 0 || width <= 0 || height <= 0) {
+					return;
+				}
+
+				int imageSize = width * height;
+				if (grabbedFrame.length < imageSize) {
+					grabbedFrame = new int[imageSize];
+				}
+
+				IMemoryReader imageReader = ImageReader.getImageReader(topAddr, width, height, bufferWidth, display.getPixelFormatFb(), false, 0, 0, 0, 0, 0, 0, null, null);
+				for (int i = 0; i < imageSize; i++) {
+					grabbedFrame[i] = ImageReader.colorABGRtoARGB(imageReader.readNext()) & 0x00FFFFFF;
+				}
+				grabbedWidth = width;
+				grabbedHeight = height;
+			} else {
+				BufferedImage image = display.getCurrentDisplayAsBufferedImage(false);
+				if (image == null) {
+					return;
+				}
+
+				int width = image.getWidth();
+				int height = image.getHeight();
+				int imageSize = width * height;
+				if (grabbedFrame.length < imageSize) {
+					grabbedFrame = new int[imageSize];
+				}
+
+				image.getRGB(0, 0, width, height, grabbedFrame, 0, width);
+				for (int i = 0; i < imageSize; i++) {
+					grabbedFrame[i] &= 0x00FFFFFF;
+				}
+				grabbedWidth = width;
+				grabbedHeight = height;
+			}
+
+			frameAvailable = true;
+			frameLock.notify();
+		}
+	}
+
+	private static int storeCompressedPixel(int color, byte[] buffer, int compressedLength, boolean rle, int count) {
+		if (!rle) {
+			count |= 0x80;
+		}
+
+		buffer[compressedLength++] = (byte) count;
+		buffer[compressedLength++] = (byte) ((color >> 16) & 0xFF);
+		buffer[compressedLength++] = (byte) ((color >>  8) & 0xFF);
+		buffer[compressedLength++] = (byte) ((color >>  0) & 0xFF);
+
+		return compressedLength;
+	}
+
+	private static int compressImage(int width, int height, int[] image, int[] previousImage, byte[] buffer, int compressedLength) {
+		int i = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; ) {
+				int color = image[i];
+				int previousColor = previousImage[i];
+				i++;
+				x++;
+
+				// RLE?
+				if (x < width && color == image[i]) {
+					if (color == previousColor) {
+						// Both methods apply: RLE and matching previous video.
+						// Choose the one matching the most pixels.
+						boolean rleFailed = false;
+						boolean previousFailed = false;
+						int count;
+						for (count = 0; x < width && count < MAX_COMPRESSED_COUNT; count++) {
+							boolean rleMatch = !rleFailed && image[i] == color;
+							boolean previousMatch = !previousFailed && image[i] == previousImage[i];
+
+							if (rleMatch) {
+								if (previousMatch) {
+									// OK, both still matching
+								} else {
+									// Continue RLE, previous image no longer matching
+									previousFailed = true;
+								}
+							} else {
+								if (previousMatch) {
+									// Continue testing previous image, RLE no longer matching
+									rleFailed = true;
+								} else {
+									// Both tests failed, abort
+									break;
+								}
+							}
+							i++;
+							x++;
+						}
+
+						// If none failed, prefer RLE encoding (because faster decoding)
+						if (!rleFailed) {
+							compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, count);
+						} else {
+							// Encode to match the previous image
+							if (x < width) {
+								color = image[i++];
+								x++;
+							} else if (count > 0) {
+								// Past screen width, take previous pixel
+								color = image[i - 1];
+								count--;
+							}
+							compressedLength = storeCompressedPixel(color, buffer, compressedLength, false, count);
+						}
+					} else {
+						// Only RLE, not matching previous image
+						i++;
+						x++;
+						int count;
+						for (count = 1; x < width; count++) {
+							if (color != image[i] || count >= MAX_COMPRESSED_COUNT) {
+								break;
+							}
+							i++;
+							x++;
+						}
+						compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, count);
+					}
+				} else if (x < width && color == previousColor) {
+					// No RLE, only matching previous image
+					int count;
+					for (count = 0; x < width; count++) {
+						color = image[i];
+						previousColor = previousImage[i];
+						i++;
+						x++;
+						if (color != previousColor || count >= MAX_COMPRESSED_COUNT || x >= width) {
+							break;
+						}
+					}
+					compressedLength = storeCompressedPixel(color, buffer, compressedLength, false, count);
+				} else {
+					// No RLE, not matching previous image
+					compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, 0);
+				}
+			}
+		}
+
+		return compressedLength;
+	}
+
+	private static void write32(byte[] buffer, int offset, int value) {
+        buffer[offset + 0] = (byte) ((value >>  0) & 0xFF);
+        buffer[offset + 1] = (byte) ((value >>  8) & 0xFF);
+        buffer[offset + 2] = (byte) ((value >> 16) & 0xFF);
+        buffer[offset + 3] = (byte) ((value >> 24) & 0xFF);
+	}
+}
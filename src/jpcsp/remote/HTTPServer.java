@@ -77,7 +77,6 @@ import jpcsp.Emulator;
 import jpcsp.MainGUI;
 import jpcsp.State;
 import jpcsp.HLE.Modules;
-import jpcsp.HLE.kernel.types.IAction;
 import jpcsp.HLE.kernel.types.SceNpTicket;
 import jpcsp.HLE.kernel.types.SceNpTicket.TicketParam;
 import jpcsp.HLE.modules.sceNp;
@@ -123,11 +122,6 @@ public class HTTPServer {
 	private int runMapping = -1;
 	private int pauseMapping = -1;
 	private int resetMapping = -1;
-	private static final int MAX_COMPRESSED_COUNT = 0x7F;
-	private DisplayAction displayAction;
-	private int displayActionUsageCount = 0;
-	private BufferedImage currentDisplayImage;
-	private boolean currentDisplayImageHasAlpha = false;
 	private Proxy proxy;
 	private int proxyPort;
 	private int proxyAddress;
@@ -282,14 +276,6 @@ public class HTTPServer {
 		}
 	}
 
-	private class DisplayAction implements IAction {
-		@Override
-		public void execute() {
-			currentDisplayImage = Modules.sceDisplayModule.getCurrentDisplayAsBufferedImage(false);
-			currentDisplayImageHasAlpha = false;
-		}
-	}
-
 	private HTTPServer() {
 		keyMapping = new HashMap<Integer, keyCode>();
 		processors = new HashMap<String, IProcessHTTPRequest>();
@@ -742,11 +728,13 @@ public class HTTPServer {
 				} else if ("/screen.jpg".equals(pathValue)) {
 					sendScreenImage(os, "jpg");
 				} else if ("/screen.mjpg".equals(pathValue)) {
-					sendVideoMJPG(os);
+					sendVideoStream(os, DisplayStreamer.FORMAT_MJPEG, String.format("multipart/x-mixed-replace; boundary=%s", boundary));
 				} else if ("/screen.raw".equals(pathValue)) {
-					sendVideoRAW(os);
+					sendVideoStream(os, DisplayStreamer.FORMAT_RAW, "video/raw");
 				} else if ("/screen.craw".equals(pathValue)) {
-					sendVideoCompressedRAW(os);
+					sendVideoStream(os, DisplayStreamer.FORMAT_COMPRESSED_RAW, "video/compressed-raw");
+				} else if ("/screen.zraw".equals(pathValue)) {
+					sendVideoStream(os, DisplayStreamer.FORMAT_DEFLATE_RAW, "video/deflate-raw");
 				} else if ("/audio.wav".equals(pathValue)) {
 					sendAudioWAV(os);
 				} else if ("/audio.raw".equals(pathValue)) {
@@ -969,62 +957,47 @@ public class HTTPServer {
     	}
 	}
 
-	private void sendVideoMJPG(OutputStream os) throws IOException {
-		String fileFormat = "jpg";
-        String fileName = String.format("%s%cscreen.%s", Settings.getInstance().readString("emu.tmppath"), File.separatorChar, fileFormat);
-		File file = new File(fileName);
-		file.deleteOnExit();
-		Rectangle rect = Emulator.getMainGUI().getCaptureRectangle();
-    	if (log.isDebugEnabled()) {
-    		log.debug(String.format("Capturing screen from %s to %s", rect, fileName));
-    	}
+	private void sendVideoStream(OutputStream os, int format, String contentType) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("sendVideoStream format=%d, contentType='%s'", format, contentType));
+		}
 
-    	startDisplayAction();
+		DisplayStreamer displayStreamer = DisplayStreamer.getInstance();
+		DisplayStreamer.Subscriber subscriber = displayStreamer.subscribe(format);
+		try {
+			sendOK(os);
+			sendNoCache(os);
+			sendResponseHeader(os, "Content-Type", contentType);
+			sendEndOfHeaders(os);
+			os.flush();
 
-    	try {
-	    	sendOK(os);
-	    	sendNoCache(os);
-	        sendResponseHeader(os, "Content-Type", String.format("multipart/x-mixed-replace; boundary=%s", boundary));
-	        sendEndOfHeaders(os);
+			while (true) {
+				// The frames are already encoded by the DisplayStreamer,
+				// only send them to the client
+				byte[] frame;
+				try {
+					frame = subscriber.takeFrame(1000);
+				} catch (InterruptedException e) {
+					break;
+				}
 
-	        while (true) {
-		        BufferedImage img = getScreenImage(rect);
-		    	try {
-		    		file.delete();
-		            ImageIO.write(img, fileFormat, file);
-		            img.flush();
-		        } catch (IOException e) {
-		            log.error("Error saving screenshot", e);
-		        }
-
-		    	if (file.canRead()) {
-			        int length = (int) file.length();
-			        if (log.isDebugEnabled()) {
-			        	log.debug(String.format("Sending video image length=%d", length));
-			        }
-			        byte[] buffer = new byte[length];
-			        InputStream is = new FileInputStream(file);
-			        length = is.read(buffer);
-			        is.close();
-
-			        sendResponseLine(os, boundary);
-			        sendResponseHeader(os, "Content-Type", "image/jpeg");
-			        sendResponseHeader(os, "Content-Length", length);
-			        sendEndOfHeaders(os);
-			        os.write(buffer, 0, length);
-			        sendEndOfHeaders(os);
-			        os.flush();
-		    	} else {
-		    		if (log.isDebugEnabled()) {
-		    			log.debug(String.format("Cannot read capture file %s", file));
-		    		}
-		    		break;
-		    	}
-	    	}
-    	} finally {
-    		stopDisplayAction();
-    		file.delete();
-    	}
+				if (frame != null) {
+					if (format == DisplayStreamer.FORMAT_MJPEG) {
+						sendResponseLine(os, boundary);
+						sendResponseHeader(os, "Content-Type", "image/jpeg");
+						sendResponseHeader(os, "Content-Length", frame.length);
+						sendEndOfHeaders(os);
+						os.write(frame);
+						sendEndOfHeaders(os);
+					} else {
+						os.write(frame);
+					}
+					os.flush();
+				}
+			}
+		} finally {
+			displayStreamer.unsubscribe(subscriber);
+		}
 	}
 
 	private void sendAudioWAV(OutputStream os) throws IOException {
@@ -1154,237 +1127,6 @@ public class HTTPServer {
         }
 	}
 
-	private BufferedImage getScreenImage(Rectangle rect) {
-		if (currentDisplayImage != null) {
-			return currentDisplayImage;
-		}
-
-		currentDisplayImageHasAlpha = true;
-        return captureRobot.createScreenCapture(rect);
-	}
-
-	private void sendVideoRAW(OutputStream os) throws IOException {
-		Rectangle rect = Emulator.getMainGUI().getCaptureRectangle();
-    	if (log.isDebugEnabled()) {
-    		log.debug(String.format("Capturing RAW screen from %s", rect));
-    	}
-
-    	startDisplayAction();
-
-    	try {
-	    	sendOK(os);
-	    	sendNoCache(os);
-	        sendResponseHeader(os, "Content-Type", "video/raw");
-	        sendEndOfHeaders(os);
-
-	        byte[] pixels = new byte[rect.width * rect.height * 3];
-	        while (true) {
-	            BufferedImage img = getScreenImage(rect);
-
-		        int i = 0;
-		        for (int y = 0; y < img.getHeight(); y++) {
-		        	for (int x = 0; x < img.getWidth(); x++, i+= 3) {
-		        		int color = img.getRGB(x, y);
-		        		pixels[i + 0] = (byte) ((color >> 16) & 0xFF);
-		        		pixels[i + 1] = (byte) ((color >>  8) & 0xFF);
-		        		pixels[i + 2] = (byte) ((color >>  0) & 0xFF);
-		        	}
-		        }
-		        os.write(pixels);
-	        	if (log.isDebugEnabled()) {
-	        		log.debug(String.format("sendVideoRAW sent %dx%d image (%d bytes)", rect.width, rect.height, pixels.length));
-	        	}
-		        os.flush();
-	    	}
-    	} finally {
-    		stopDisplayAction();
-    	}
-	}
-
-	private int storeCompressedPixel(int color, byte[] buffer, int compressedLength, boolean rle, int count) {
-		if (!rle) {
-			count |= 0x80;
-		}
-
-		buffer[compressedLength++] = (byte) count;
-		buffer[compressedLength++] = (byte) ((color >> 16) & 0xFF);
-		buffer[compressedLength++] = (byte) ((color >>  8) & 0xFF);
-		buffer[compressedLength++] = (byte) ((color >>  0) & 0xFF);
-
-		return compressedLength;
-	}
-
-	private int compressImage(int width, int height, int[] image, int[] previousImage, byte[] buffer, int compressedLength) {
-		int i = 0;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; ) {
-				int color = image[i];
-				int previousColor = previousImage[i];
-				i++;
-				x++;
-
-				// RLE?
-				if (x < width && color == image[i]) {
-					if (color == previousColor) {
-						// Both methods apply: RLE and matching previous video.
-						// Choose the one matching the most pixels.
-						boolean rleFailed = false;
-						boolean previousFailed = false;
-						int count;
-						for (count = 0; x < width && count < MAX_COMPRESSED_COUNT; count++) {
-							boolean rleMatch = !rleFailed && image[i] == color;
-							boolean previousMatch = !previousFailed && image[i] == previousImage[i];
-
-							if (rleMatch) {
-								if (previousMatch) {
-									// OK, both still matching
-								} else {
-									// Continue RLE, previous image no longer matching
-									previousFailed = true;
-								}
-							} else {
-								if (previousMatch) {
-									// Continue testing previous image, RLE no longer matching
-									rleFailed = true;
-								} else {
-									// Both tests failed, abort
-									break;
-								}
-							}
-							i++;
-							x++;
-						}
-
-						// If none failed, prefer RLE encoding (because faster decoding)
-						if (!rleFailed) {
-							compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, count);
-						} else {
-							// Encode to match the previous image
-							if (x < width) {
-								color = image[i++];
-								x++;
-							} else if (count > 0) {
-								// Past screen width, take previous pixel
-								color = image[i - 1];
-								count--;
-							}
-							compressedLength = storeCompressedPixel(color, buffer, compressedLength, false, count);
-						}
-					} else {
-						// Only RLE, not matching previous image
-						i++;
-						x++;
-						int count;
-						for (count = 1; x < width; count++) {
-							if (color != image[i] || count >= MAX_COMPRESSED_COUNT) {
-								break;
-							}
-							i++;
-							x++;
-						}
-						compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, count);
-					}
-				} else if (x < width && color == previousColor) {
-					// No RLE, only matching previous image
-					int count;
-					for (count = 0; x < width; count++) {
-						color = image[i];
-						previousColor = previousImage[i];
-						i++;
-						x++;
-						if (color != previousColor || count >= MAX_COMPRESSED_COUNT || x >= width) {
-							break;
-						}
-					}
-					compressedLength = storeCompressedPixel(color, buffer, compressedLength, false, count);
-				} else {
-					// No RLE, not matching previous image
-					compressedLength = storeCompressedPixel(color, buffer, compressedLength, true, 0);
-				}
-			}
-		}
-
-		return compressedLength;
-	}
-
-	private static void write32(byte[] buffer, int offset, int value) {
-        buffer[offset + 0] = (byte) ((value >>  0) & 0xFF);
-        buffer[offset + 1] = (byte) ((value >>  8) & 0xFF);
-        buffer[offset + 2] = (byte) ((value >> 16) & 0xFF);
-        buffer[offset + 3] = (byte) ((value >> 24) & 0xFF);
-	}
-
-	private void sendVideoCompressedRAW(OutputStream os) throws IOException {
-		Rectangle rect = Emulator.getMainGUI().getCaptureRectangle();
-    	if (log.isDebugEnabled()) {
-    		log.debug(String.format("Capturing compressed RAW screen from %s", rect));
-    	}
-
-    	startDisplayAction();
-
-    	try {
-	    	sendOK(os);
-	    	sendNoCache(os);
-	        sendResponseHeader(os, "Content-Type", "video/compressed-raw");
-	        sendEndOfHeaders(os);
-
-	        int[] image = new int[0];
-	        int[] previousImage = null;
-	        byte[] buffer = null;
-
-	        while (true) {
-	            BufferedImage img = getScreenImage(rect);
-
-	            if (img != null) {
-			        int width = img.getWidth();
-			        int height = img.getHeight();
-			        int imageSize = width * height;
-
-			        // Is the image now larger?
-			        if (image.length < imageSize) {
-			        	// Resize the buffers
-			        	image = new int[imageSize];
-			        	previousImage = new int[imageSize];
-			        	buffer = new byte[imageSize * 4 + 12];
-			        }
-
-			        img.getRGB(0, 0, width, height, image, 0, width);
-
-	            	if (currentDisplayImageHasAlpha) {
-	            		for (int i = 0; i < imageSize; i++) {
-	            			image[i] &= 0x00FFFFFF;
-	            		}
-	            	}
-
-			        // The first 12 bytes of the buffer will contain
-	            	// - the length of the compressed image (including the 12 bytes header)
-	            	// - the image width in pixels
-	            	// - the image height in pixels
-			        int compressedLength = compressImage(width, height, image, previousImage, buffer, 12);
-			        // Store the length of the compressed image and its size
-			        write32(buffer, 0, compressedLength);
-	            	write32(buffer, 4, width);
-	            	write32(buffer, 8, height);
-
-			        os.write(buffer, 0, compressedLength);
-		        	if (log.isDebugEnabled()) {
-		        		log.debug(String.format("sendVideoCompressedRAW sent %dx%d image (%d bytes, compression rate %.1f%%)", width, height, compressedLength, 100f * compressedLength / (image.length * 3)));
-		        	}
-			        os.flush();
-
-			        // Swap previous and current image buffers
-			        int[] swapImage = image;
-			        image = previousImage;
-			        previousImage = swapImage;
-	            } else {
-	            	Utilities.sleep(10, 0);
-	            }
-	        }
-    	} finally {
-    		stopDisplayAction();
-    	}
-	}
-
 	private void sendIso(HashMap<String, String> request, OutputStream os, String pathValue, boolean sendContent) throws IOException {
 		String isoFileName = pathValue.substring(isoDirectory.length());
 		if (log.isDebugEnabled()) {
@@ -1688,24 +1430,6 @@ public class HTTPServer {
 		}
 	}
 
-	private void startDisplayAction() {
-		displayActionUsageCount++;
-
-		if (displayAction == null) {
-			displayAction = new DisplayAction();
-			Modules.sceDisplayModule.addDisplayAction(displayAction);
-		}
-	}
-
-	private void stopDisplayAction() {
-		displayActionUsageCount--;
-
-		if (displayAction != null && displayActionUsageCount <= 0) {
-			Modules.sceDisplayModule.removeDisplayAction(displayAction);
-			displayAction = null;
-		}
-	}
-
 	private static String getBaseUrl(HTTPServerDescriptor descriptor, HashMap<String, String> request, int forcedPort) {
 		String hostName = request.get(host);
 		int port = forcedPort > 0 ? forcedPort : descriptor.getPort();
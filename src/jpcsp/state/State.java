@@ -17,12 +17,9 @@ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
 package jpcsp.state;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -32,30 +29,43 @@ import jpcsp.HLE.HLEModuleManager;
 import jpcsp.hardware.Battery;
 import jpcsp.hardware.Wlan;
 
-public class State implements IState {
+public class State {
 	public static Logger log = Logger.getLogger("state");
 	private static final int STATE_VERSION = 0;
+	// Sections of a state file
+	public static final String SECTION_STATE = "state";
+	public static final String SECTION_CLOCK = "clock";
+	public static final String SECTION_WLAN = "wlan";
+	public static final String SECTION_BATTERY = "battery";
+	public static final String SECTION_PROCESSOR = "processor";
+	public static final String SECTION_MEMORY = "memory";
+	public static final String SECTION_LLE = "lle";
+	public static final String SECTION_MMIO = "mmio";
+	public static final String SECTION_ME_PROCESSOR = "meProcessor";
+	public static final String SECTION_ME_MEMORY = "meMemory";
 
 	public State() {
 	}
 
 	public void read(String fileName) throws IOException {
-		FileInputStream fileInputStream = new FileInputStream(fileName);
-		GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
-		BufferedInputStream bufferedInputStream = new BufferedInputStream(gzipInputStream);
-		StateInputStream stream = new StateInputStream(bufferedInputStream);
+		if (!StateContainer.isStateContainer(fileName)) {
+			// State file written by a previous version, as a single compressed stream
+			readStream(fileName);
+			return;
+		}
 
 		if (log.isInfoEnabled()) {
 			log.info(String.format("Reading state from file '%s'", fileName));
 		}
 
+		StateContainer container = new StateContainer();
 		try {
-			read(stream);
-			if (stream.read() >= 0) {
-				log.error(String.format("State file '%s' containing too much data", fileName));
-			}
+			container.open(fileName);
+			// Decompress all the sections in parallel
+			container.readAllSections();
+			read(container);
 		} finally {
-			stream.close();
+			container.close();
 		}
 
 		if (log.isDebugEnabled()) {
@@ -64,68 +74,117 @@ public class State implements IState {
 	}
 
 	public void write(String fileName) throws IOException {
-		FileOutputStream fileOutputStream = new FileOutputStream(fileName);
-		GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream);
-		BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(gzipOutputStream);
-		StateOutputStream stream = new StateOutputStream(bufferedOutputStream);
-
 		if (log.isInfoEnabled()) {
 			log.info(String.format("Writing state to file '%s'", fileName));
 		}
 
+		StateContainer container = new StateContainer();
+		write(container);
+		container.write(fileName);
+
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Done writing state to file '%s'", fileName));
+		}
+	}
+
+	private void readStream(String fileName) throws IOException {
+		FileInputStream fileInputStream = new FileInputStream(fileName);
+		GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
+		BufferedInputStream bufferedInputStream = new BufferedInputStream(gzipInputStream);
+		StateInputStream stream = new StateInputStream(bufferedInputStream);
+
+		if (log.isInfoEnabled()) {
+			log.info(String.format("Reading state from file '%s'", fileName));
+		}
+
 		try {
-			write(stream);
+			read(stream);
+			if (stream.read() >= 0) {
+				log.error(String.format("State file '%s' containing too much data", fileName));
+			}
 		} finally {
 			stream.close();
 		}
 
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Done writing state to file '%s'", fileName));
+			log.debug(String.format("Done reading state from file '%s'", fileName));
 		}
 	}
 
-	@Override
-	public void read(StateInputStream stream) throws IOException {
-		stream.readVersion(STATE_VERSION);
-		if (stream.readBoolean()) {
+	public void read(StateContainer container) throws IOException {
+		read(container, null);
+	}
+
+	private void read(StateInputStream stream) throws IOException {
+		read(null, stream);
+	}
+
+	/**
+	 * Read the state either from a sectioned state file
+	 * or from a single stream written by a previous version.
+	 *
+	 * @param container  the sectioned state file, or null
+	 * @param stream     the single stream when container is null
+	 * @throws IOException
+	 */
+	private void read(StateContainer container, StateInputStream stream) throws IOException {
+		StateInputStream stateStream = getSectionInputStream(container, stream, SECTION_STATE);
+		stateStream.readVersion(STATE_VERSION);
+		boolean isRunningReboot = stateStream.readBoolean();
+		boolean isLLEActive = false;
+		if (container != null) {
+			isLLEActive = stateStream.readBoolean();
+		}
+		if (isRunningReboot) {
 			Emulator.getMainGUI().doReboot();
 		}
-    	Emulator.getClock().read(stream);
-		Wlan.read(stream);
-		Battery.read(stream);
-		Emulator.getProcessor().read(stream);
-		Emulator.getMemory().read(stream);
-		HLEModuleManager.getInstance().read(stream);
-		boolean isLLEActive = stream.readBoolean();
+		Emulator.getClock().read(getSectionInputStream(container, stream, SECTION_CLOCK));
+		Wlan.read(getSectionInputStream(container, stream, SECTION_WLAN));
+		Battery.read(getSectionInputStream(container, stream, SECTION_BATTERY));
+		Emulator.getProcessor().read(getSectionInputStream(container, stream, SECTION_PROCESSOR));
+		Emulator.getMemory().read(getSectionInputStream(container, stream, SECTION_MEMORY));
+		if (container != null) {
+			HLEModuleManager.getInstance().read(container);
+		} else {
+			HLEModuleManager.getInstance().read(stream);
+			// The single stream is storing the LLE flag after the HLE modules
+			isLLEActive = stream.readBoolean();
+		}
 		if (isLLEActive) {
 			RuntimeContextLLE.enableLLE();
-			RuntimeContextLLE.read(stream);
+			RuntimeContextLLE.read(getSectionInputStream(container, stream, SECTION_LLE));
 			RuntimeContextLLE.createMMIO();
-			RuntimeContextLLE.getMMIO().read(stream);
-			RuntimeContextLLE.getMediaEngineProcessor().read(stream);
-			RuntimeContextLLE.getMediaEngineProcessor().getMEMemory().read(stream);
+			RuntimeContextLLE.getMMIO().read(getSectionInputStream(container, stream, SECTION_MMIO));
+			RuntimeContextLLE.getMediaEngineProcessor().read(getSectionInputStream(container, stream, SECTION_ME_PROCESSOR));
+			RuntimeContextLLE.getMediaEngineProcessor().getMEMemory().read(getSectionInputStream(container, stream, SECTION_ME_MEMORY));
 		}
 	}
 
-	@Override
-	public void write(StateOutputStream stream) throws IOException {
+	private static StateInputStream getSectionInputStream(StateContainer container, StateInputStream stream, String sectionName) throws IOException {
+		if (container == null) {
+			// All the sections are following each other in the single stream
+			return stream;
+		}
+		return container.getSectionInputStream(sectionName);
+	}
+
+	public void write(StateContainer container) throws IOException {
+		StateOutputStream stream = container.addSection(SECTION_STATE);
 		stream.writeVersion(STATE_VERSION);
 		stream.writeBoolean(Emulator.getMainGUI().isRunningReboot());
-		Emulator.getClock().write(stream);
-		Wlan.write(stream);
-		Battery.write(stream);
-		Emulator.getProcessor().write(stream);
-		Emulator.getMemory().write(stream);
-		HLEModuleManager.getInstance().write(stream);
+		stream.writeBoolean(RuntimeContextLLE.isLLEActive());
+		Emulator.getClock().write(container.addSection(SECTION_CLOCK));
+		Wlan.write(container.addSection(SECTION_WLAN));
+		Battery.write(container.addSection(SECTION_BATTERY));
+		Emulator.getProcessor().write(container.addSection(SECTION_PROCESSOR));
+		Emulator.getMemory().write(container.addSection(SECTION_MEMORY));
+		HLEModuleManager.getInstance().write(container);
 		if (RuntimeContextLLE.isLLEActive()) {
-			stream.writeBoolean(true);
-			RuntimeContextLLE.write(stream);
+			RuntimeContextLLE.write(container.addSection(SECTION_LLE));
 			RuntimeContextLLE.createMMIO();
-			RuntimeContextLLE.getMMIO().write(stream);
-			RuntimeContextLLE.getMediaEngineProcessor().write(stream);
-			RuntimeContextLLE.getMediaEngineProcessor().getMEMemory().write(stream);
-		} else {
-			stream.writeBoolean(false);
+			RuntimeContextLLE.getMMIO().write(container.addSection(SECTION_MMIO));
+			RuntimeContextLLE.getMediaEngineProcessor().write(container.addSection(SECTION_ME_PROCESSOR));
+			RuntimeContextLLE.getMediaEngineProcessor().getMEMemory().write(container.addSection(SECTION_ME_MEMORY));
 		}
 	}
 }
@@ -0,0 +1,456 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.state;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sectioned state file.
+ *
+ * A state file is made of independent sections, one for each subsystem
+ * (clock, processor, memory, each HLE module...), listed in a table of contents.
+ * The data of each section is split into blocks compressed independently,
+ * so that the compression and the decompression can be performed in parallel.
+ * A single section can also be read without decompressing the whole state,
+ * e.g. by a tool only interested in the memory or in the thread list.
+ *
+ * File layout:
+ *   int   magic "JPST"
+ *   int   container version
+ *   int   block size
+ *   int   number of sections
+ *   for each section:
+ *     UTF   section name
+ *     int   uncompressed length
+ *     int   number of blocks
+ *     int   compressed length of each block
+ *   followed by the compressed blocks, in the order of the table of contents.
+ */
+public class StateContainer {
+	private static Logger log = State.log;
+	public static final int MAGIC = 0x5453504A; // "JPST"
+	private static final int CONTAINER_VERSION = 0;
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	// Largest block size accepted when reading a state file
+	private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+	private static final int numberThreads = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+	private static BlockExecutor executor;
+	private final Map<String, Section> sections = new LinkedHashMap<String, Section>();
+	private String fileName;
+	private RandomAccessFile file;
+
+	private static class Section {
+		public String name;
+		public ByteArrayOutputStream output;
+		public StateOutputStream stream;
+		// The uncompressed data, null when not yet decompressed
+		public byte[] data;
+		public int length;
+		public Block[] blocks;
+		// Offset in the file of the first compressed block
+		public long offset;
+	}
+
+	private static class Block {
+		public boolean compress;
+		public byte[] data;
+		public int offset;
+		public int length;
+		public byte[] compressed;
+		public int compressedLength;
+		public IOException exception;
+		public CountDownLatch done;
+
+		public void run() {
+			try {
+				if (compress) {
+					compress();
+				} else {
+					decompress();
+				}
+			} catch (IOException e) {
+				exception = e;
+			} catch (RuntimeException e) {
+				exception = new IOException(e);
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private void compress() {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			compressed = new byte[length + (length >> 8) + 64];
+			compressedLength = 0;
+			while (!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			deflater.end();
+		}
+
+		private void decompress() throws IOException {
+			Inflater inflater = new Inflater();
+			inflater.setInput(compressed, 0, compressedLength);
+			int decompressedLength = 0;
+			try {
+				while (decompressedLength < length && !inflater.finished()) {
+					int n = inflater.inflate(data, offset + decompressedLength, length - decompressedLength);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					decompressedLength += n;
+				}
+			} catch (DataFormatException e) {
+				throw new InvalidStateException(String.format("Invalid compressed state data: %s", e.getMessage()));
+			} finally {
+				inflater.end();
+			}
+
+			if (decompressedLength != length) {
+				throw new InvalidStateException(String.format("Truncated compressed state data: 0x%X bytes instead of 0x%X", decompressedLength, length));
+			}
+
+			// The compressed data is no longer needed
+			compressed = null;
+		}
+	}
+
+	private static class BlockExecutor {
+		private final LinkedBlockingQueue<Block> blocks = new LinkedBlockingQueue<Block>();
+
+		public BlockExecutor() {
+			for (int i = 0; i < numberThreads; i++) {
+				Thread thread = new BlockThread();
+				thread.setName(String.format("Thread State Compression #%d", i + 1));
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		public void run(List<Block> list) throws IOException {
+			CountDownLatch done = new CountDownLatch(list.size());
+			for (Block block : list) {
+				block.done = done;
+				blocks.add(block);
+			}
+
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					// Ignore Exception
+				}
+			}
+
+			for (Block block : list) {
+				if (block.exception != null) {
+					throw block.exception;
+				}
+			}
+		}
+
+		private class BlockThread extends Thread {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						blocks.take().run();
+					} catch (InterruptedException e) {
+						// Ignore Exception
+					} catch (Exception e) {
+						log.error("StateContainer", e);
+					}
+				}
+			}
+		}
+	}
+
+	private static void runBlocks(List<Block> blocks) throws IOException {
+		if (blocks.isEmpty()) {
+			return;
+		}
+
+		synchronized (StateContainer.class) {
+			if (executor == null) {
+				executor = new BlockExecutor();
+			}
+		}
+		executor.run(blocks);
+	}
+
+	/**
+	 * Check if the given file is a sectioned state file.
+	 * State files written by previous versions are a single GZIP stream.
+	 *
+	 * @param fileName  the state file name
+	 * @return          true if the file is using the sectioned format
+	 * @throws IOException
+	 */
+	public static boolean isStateContainer(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+		try {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Add a new section to be written.
+	 * The section data is compressed only when calling write(fileName).
+	 *
+	 * @param name  the unique section name
+	 * @return      the stream where the section data has to be written
+	 * @throws IOException
+	 */
+	public StateOutputStream addSection(String name) throws IOException {
+		if (sections.containsKey(name)) {
+			throw new IllegalArgumentException(String.format("Duplicate state section '%s'", name));
+		}
+
+		Section section = new Section();
+		section.name = name;
+		section.output = new ByteArrayOutputStream();
+		section.stream = new StateOutputStream(section.output);
+		sections.put(name, section);
+
+		return section.stream;
+	}
+
+	/**
+	 * Compress all the added sections in parallel and write them to a file.
+	 *
+	 * @param fileName  the state file name
+	 * @throws IOException
+	 */
+	public void write(String fileName) throws IOException {
+		List<Block> blocks = new LinkedList<Block>();
+		for (Section section : sections.values()) {
+			section.stream.close();
+			section.data = section.output.toByteArray();
+			section.length = section.data.length;
+			section.output = null;
+			section.stream = null;
+
+			section.blocks = new Block[(section.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			for (int i = 0; i < section.blocks.length; i++) {
+				Block block = new Block();
+				block.compress = true;
+				block.data = section.data;
+				block.offset = i * BLOCK_SIZE;
+				block.length = Math.min(BLOCK_SIZE, section.length - block.offset);
+				section.blocks[i] = block;
+				blocks.add(block);
+			}
+		}
+
+		runBlocks(blocks);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(CONTAINER_VERSION);
+			out.writeInt(BLOCK_SIZE);
+			out.writeInt(sections.size());
+			for (Section section : sections.values()) {
+				out.writeUTF(section.name);
+				out.writeInt(section.length);
+				out.writeInt(section.blocks.length);
+				for (Block block : section.blocks) {
+					out.writeInt(block.compressedLength);
+				}
+			}
+
+			for (Section section : sections.values()) {
+				for (Block block : section.blocks) {
+					out.write(block.compressed, 0, block.compressedLength);
+					block.compressed = null;
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (log.isDebugEnabled()) {
+			for (Section section : sections.values()) {
+				int compressedLength = 0;
+				for (Block block : section.blocks) {
+					compressedLength += block.compressedLength;
+				}
+				log.debug(String.format("State section '%s': 0x%X bytes, compressed 0x%X bytes", section.name, section.length, compressedLength));
+			}
+		}
+	}
+
+	/**
+	 * Open a state file and read its table of contents.
+	 * The sections are only decompressed when accessed.
+	 *
+	 * @param fileName  the state file name
+	 * @throws IOException
+	 */
+	public void open(String fileName) throws IOException {
+		this.fileName = fileName;
+		file = new RandomAccessFile(fileName, "r");
+		sections.clear();
+
+		if (file.readInt() != MAGIC) {
+			throw new InvalidStateException(String.format("File '%s' is not a state file", fileName));
+		}
+		int version = file.readInt();
+		if (version > CONTAINER_VERSION) {
+			throw new InvalidStateException(String.format("Unsupported state container version %d(maxVersion=%d)", version, CONTAINER_VERSION));
+		}
+		int blockSize = file.readInt();
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+			throw new InvalidStateException(String.format("Invalid block size 0x%X in state file '%s'", blockSize, fileName));
+		}
+		int numberSections = file.readInt();
+		for (int i = 0; i < numberSections; i++) {
+			Section section = new Section();
+			section.name = file.readUTF();
+			section.length = file.readInt();
+			int numberBlocks = file.readInt();
+			if (section.length < 0 || numberBlocks != (int) ((section.length + (long) blockSize - 1) / blockSize)) {
+				throw new InvalidStateException(String.format("Invalid state section '%s' in file '%s'", section.name, fileName));
+			}
+			section.blocks = new Block[numberBlocks];
+			for (int j = 0; j < numberBlocks; j++) {
+				Block block = new Block();
+				block.offset = j * blockSize;
+				block.length = Math.min(blockSize, section.length - block.offset);
+				block.compressedLength = file.readInt();
+				section.blocks[j] = block;
+			}
+			sections.put(section.name, section);
+		}
+
+		long offset = file.getFilePointer();
+		for (Section section : sections.values()) {
+			section.offset = offset;
+			for (Block block : section.blocks) {
+				offset += block.compressedLength;
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+		}
+	}
+
+	public List<String> getSectionNames() {
+		return new ArrayList<String>(sections.keySet());
+	}
+
+	public boolean hasSection(String name) {
+		return sections.containsKey(name);
+	}
+
+	/**
+	 * Decompress in parallel all the sections of the opened state file.
+	 *
+	 * @throws IOException
+	 */
+	public void readAllSections() throws IOException {
+		decompress(sections.values());
+	}
+
+	/**
+	 * Retrieve the data of one section of the opened state file.
+	 * Only this section is decompressed, if not yet done.
+	 *
+	 * @param name  the section name
+	 * @return      the stream where the section data can be read
+	 * @throws IOException
+	 */
+	public StateInputStream getSectionInputStream(String name) throws IOException {
+		Section section = sections.get(name);
+		if (section == null) {
+			throw new InvalidStateException(String.format("Missing state section '%s' in file '%s'", name, fileName));
+		}
+
+		if (section.data == null) {
+			List<Section> list = new LinkedList<Section>();
+			list.add(section);
+			decompress(list);
+		}
+
+		return new StateInputStream(new ByteArrayInputStream(section.data, 0, section.length));
+	}
+
+	private void decompress(Iterable<Section> list) throws IOException {
+		List<Block> blocks = new LinkedList<Block>();
+		List<Section> decompressedSections = new LinkedList<Section>();
+		for (Section section : list) {
+			if (section.data != null) {
+				continue;
+			}
+
+			decompressedSections.add(section);
+			section.data = new byte[section.length];
+			file.seek(section.offset);
+			for (Block block : section.blocks) {
+				block.compress = false;
+				block.data = section.data;
+				block.compressed = new byte[block.compressedLength];
+				file.readFully(block.compressed);
+				blocks.add(block);
+			}
+		}
+
+		try {
+			runBlocks(blocks);
+		} catch (IOException e) {
+			// Do not keep partially decompressed sections
+			for (Section section : decompressedSections) {
+				section.data = null;
+			}
+			throw e;
+		}
+	}
+}
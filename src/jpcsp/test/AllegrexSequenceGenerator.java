@@ -0,0 +1,933 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.Allegrex.Common.Instruction.FLAG_HAS_DELAY_SLOT;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_IS_BRANCHING;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXD;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXS;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_USES_VFPU_PFXT;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_WRITES_RD;
+import static jpcsp.Allegrex.Common.Instruction.FLAG_WRITES_RT;
+import static jpcsp.util.HLEUtilities.ADDIU;
+import static jpcsp.util.HLEUtilities.J;
+import static jpcsp.util.HLEUtilities.JAL;
+import static jpcsp.util.HLEUtilities.JR;
+import static jpcsp.util.HLEUtilities.LUI;
+import static jpcsp.util.HLEUtilities.MOVE;
+import static jpcsp.util.HLEUtilities.NOP;
+import static jpcsp.util.HLEUtilities.ORI;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jpcsp.Allegrex.Common;
+import jpcsp.Allegrex.Common.Instruction;
+import jpcsp.Allegrex.Decoder;
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.compiler.Compiler;
+
+/**
+ * Generator of random, but valid, Allegrex instruction sequences
+ * for the CompilerFuzzer.
+ *
+ * The instruction encodings are taken from Allegrex.def.
+ * A sequence is a list of units, a unit being either
+ * - one instruction (a VFPU instruction can be preceded by its prefixes),
+ * - a forward branch or jump with its delay slot,
+ * - a loop: a few instructions repeated by a backward branch,
+ *   the trip count being bounded by a counter in $fp,
+ * - a call (jal, jalr, bgezal...) to a generated leaf function,
+ *   returning with "jr $ra".
+ * A loop can also contain a call. The branches are only targeting
+ * the start of a unit, so that a loop is always entered through
+ * the initialization of its counter.
+ * A sequence is always ending with "jr $ra" and a delay slot,
+ * followed by its leaf functions. When the sequence is calling functions,
+ * $ra is restored from $k1 before the final "jr $ra".
+ *
+ * All the memory accesses are relative to $k0, which is pointing
+ * to the middle of a scratch data region, and no generated instruction
+ * is writing to $k0, $k1, $fp, $gp or $ra, $gp being only used to
+ * load the target address of a "jalr".
+ *
+ * The generation is guided by the coverage of simple features:
+ * instruction in a delay slot, with active prefixes, with aliased registers,
+ * and pairs of consecutive instructions.
+ * Rarely generated instructions are preferred and the sequences
+ * having reached new features are kept in a corpus to be mutated.
+ */
+public class AllegrexSequenceGenerator {
+	public static final int REG_DATA = Common._k0;
+	public static final int REG_RETURN = Common._ra;
+	// Return address of the sequence, $ra being overwritten by the calls
+	public static final int REG_SAVED_RETURN = Common._k1;
+	public static final int REG_LOOP_COUNTER = Common._fp;
+	public static final int REG_CALL_TARGET = Common._gp;
+	// The memory accesses are in the range [$k0 - DATA_RANGE, $k0 + DATA_RANGE[
+	public static final int DATA_RANGE = 0x800;
+	private static final int KIND_NORMAL = 0;
+	private static final int KIND_MEMORY = 1;
+	private static final int KIND_VFPU_MEMORY = 2;
+	private static final int KIND_BRANCH = 3;
+	private static final int KIND_PREFIX_SOURCE = 4;
+	private static final int KIND_PREFIX_DESTINATION = 5;
+	private static final int KIND_CALL = 6;
+	private static final int UNIT_INSTRUCTION = 0;
+	private static final int UNIT_BRANCH = 1;
+	private static final int UNIT_LOOP = 2;
+	private static final int UNIT_CALL = 3;
+	private static final int MAX_LOOP_COUNT = 8;
+	private static final int MAX_LOOP_INSTRUCTIONS = 6;
+	private static final int MAX_FUNCTION_INSTRUCTIONS = 4;
+	private static final int MAX_CORPUS_SIZE = 1000;
+	private static final int FEATURE_BITS = 6;
+	// Instructions having side effects outside of the CPU state or
+	// leaving the sequence: they are not generated.
+	private static final Set<String> excludedInstructions = new HashSet<String>();
+	// Instructions only generated as part of a loop or of a call
+	private static final String[] controlInstructions = { "ADDIU", "BGTZ", "LUI", "ORI", "ADDU", "JR" };
+	private final List<Template> templates = new ArrayList<Template>();
+	private final List<Template> branchTemplates = new ArrayList<Template>();
+	private final List<Template> nonBranchTemplates = new ArrayList<Template>();
+	private final List<Template> callTemplates = new ArrayList<Template>();
+	private final Map<String, Template> templatesByName = new HashMap<String, Template>();
+	private final Template[] prefixTemplates = new Template[3];
+	private final int maxUnits;
+	private final Set<String> userExcludedInstructions;
+	private final BitSet features = new BitSet();
+	private final List<Sequence> corpus = new ArrayList<Sequence>();
+
+	static {
+		String[] names = {
+				"SYSCALL", "ERET", "BREAK", "HALT", "MFIC", "MTIC",
+				"LL", "SC", "SWB", "MFC0", "CFC0", "MTC0", "CTC0",
+				"MTVC", "VMTVC", "VRNDS", "VRNDI", "VRNDF1", "VRNDF2"
+		};
+		for (String name : names) {
+			excludedInstructions.add(name);
+		}
+	}
+
+	private static class Template {
+		public final int id;
+		public final String name;
+		public final int mask;
+		public final int value;
+		public final Instruction insn;
+		public final int kind;
+		public final int alignment;
+		public int count;
+
+		public Template(int id, String name, int mask, int value, Instruction insn, int kind, int alignment) {
+			this.id = id;
+			this.name = name;
+			this.mask = mask;
+			this.value = value;
+			this.insn = insn;
+			this.kind = kind;
+			this.alignment = alignment;
+		}
+
+		public boolean usesPrefix(int index) {
+			switch (index) {
+				case 0: return insn.hasFlags(FLAG_USES_VFPU_PFXS);
+				case 1: return insn.hasFlags(FLAG_USES_VFPU_PFXT);
+				case 2: return insn.hasFlags(FLAG_USES_VFPU_PFXD);
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * A unit of a sequence: the prefixes and the instruction,
+	 * followed by the delay slot for a branch,
+	 * or the complete instructions of a loop or of a call.
+	 * Units are never modified once created.
+	 */
+	private static class Unit {
+		public final int kind;
+		public final Template[] templates;
+		public final int[] opcodes;
+		// For a branch, the index of the unit being the branch target.
+		// The index is clamped to the next units when assembling,
+		// the number of units being the final "jr $ra".
+		public final int target;
+		// For a call, the index of the call instruction in the opcodes
+		// and the called function, assembled after the sequence.
+		public final int callIndex;
+		public final Unit function;
+
+		public Unit(Template[] templates, int[] opcodes, int target) {
+			this(target >= 0 ? UNIT_BRANCH : UNIT_INSTRUCTION, templates, opcodes, target, -1, null);
+		}
+
+		public Unit(int kind, Template[] templates, int[] opcodes, int target, int callIndex, Unit function) {
+			this.kind = kind;
+			this.templates = templates;
+			this.opcodes = opcodes;
+			this.target = target;
+			this.callIndex = callIndex;
+			this.function = function;
+		}
+
+		public boolean isBranch() {
+			return target >= 0;
+		}
+
+		public boolean isCall() {
+			return function != null;
+		}
+
+		public boolean isDelaySlot(int index) {
+			return index > 0 && templates[index - 1].insn.hasFlags(FLAG_HAS_DELAY_SLOT);
+		}
+	}
+
+	public static class Sequence {
+		private final List<Unit> units;
+		private Unit returnDelaySlot;
+
+		private Sequence() {
+			units = new ArrayList<Unit>();
+		}
+
+		private Sequence(Sequence that) {
+			units = new ArrayList<Unit>(that.units);
+			returnDelaySlot = that.returnDelaySlot;
+		}
+
+		private boolean isCalling() {
+			for (Unit unit : units) {
+				if (unit.isCall()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Assemble the sequence at the given address.
+		 *
+		 * @param address   the address of the first instruction
+		 * @return          the opcodes, including the final "jr $ra"
+		 *                  followed by the called functions
+		 */
+		public int[] assemble(int address) {
+			int numberUnits = units.size();
+			int[] unitAddresses = new int[numberUnits + 1];
+			int length = 0;
+			for (int i = 0; i < numberUnits; i++) {
+				unitAddresses[i] = address + (length << 2);
+				length += units.get(i).opcodes.length;
+			}
+			unitAddresses[numberUnits] = address + (length << 2);
+
+			boolean calling = isCalling();
+			if (calling) {
+				// Restore $ra before the final "jr $ra"
+				length++;
+			}
+			length += 2;
+
+			int[] functionAddresses = new int[numberUnits];
+			for (int i = 0; i < numberUnits; i++) {
+				Unit unit = units.get(i);
+				if (unit.isCall()) {
+					functionAddresses[i] = address + (length << 2);
+					length += unit.function.opcodes.length;
+				}
+			}
+
+			int[] opcodes = new int[length];
+			int index = 0;
+			for (int i = 0; i < numberUnits; i++) {
+				Unit unit = units.get(i);
+				System.arraycopy(unit.opcodes, 0, opcodes, index, unit.opcodes.length);
+				if (unit.isBranch()) {
+					int branchIndex = index + unit.opcodes.length - 2;
+					int target = Math.max(i + 1, Math.min(numberUnits, unit.target));
+					int branchAddress = address + (branchIndex << 2);
+					if (unit.templates[unit.opcodes.length - 2].insn.hasFlags(FLAG_IS_BRANCHING)) {
+						int offset = (unitAddresses[target] - (branchAddress + 4)) >> 2;
+						opcodes[branchIndex] = (opcodes[branchIndex] & 0xFFFF0000) | (offset & 0xFFFF);
+					} else {
+						opcodes[branchIndex] = J(unitAddresses[target]);
+					}
+				}
+				if (unit.isCall()) {
+					int callIndex = index + unit.callIndex;
+					assembleCall(opcodes, callIndex, address + (callIndex << 2), unit.templates[unit.callIndex], functionAddresses[i]);
+				}
+				index += unit.opcodes.length;
+			}
+			if (calling) {
+				opcodes[index++] = MOVE(REG_RETURN, REG_SAVED_RETURN);
+			}
+			opcodes[index++] = JR();
+			opcodes[index++] = returnDelaySlot.opcodes[0];
+
+			for (Unit unit : units) {
+				if (unit.isCall()) {
+					System.arraycopy(unit.function.opcodes, 0, opcodes, index, unit.function.opcodes.length);
+					index += unit.function.opcodes.length;
+				}
+			}
+
+			return opcodes;
+		}
+
+		private static void assembleCall(int[] opcodes, int index, int callAddress, Template template, int functionAddress) {
+			if (template.name.equals("JAL")) {
+				opcodes[index] = JAL(functionAddress);
+			} else if (template.name.equals("JALR")) {
+				// The function address is loaded by the "lui" and "ori" in front of the "jalr"
+				opcodes[index - 2] = LUI(REG_CALL_TARGET, functionAddress >>> 16);
+				opcodes[index - 1] = ORI(REG_CALL_TARGET, REG_CALL_TARGET, functionAddress);
+			} else {
+				int offset = (functionAddress - (callAddress + 4)) >> 2;
+				opcodes[index] = (opcodes[index] & 0xFFFF0000) | (offset & 0xFFFF);
+			}
+		}
+
+		public int getNumberUnits() {
+			return units.size();
+		}
+	}
+
+	/**
+	 * @param maxUnits              the maximum number of units in a sequence
+	 * @param excludedInstructions  the names from Allegrex.def of additional
+	 *                              instructions not to be generated,
+	 *                              e.g. to ignore an already known divergence
+	 */
+	public AllegrexSequenceGenerator(int maxUnits, Set<String> excludedInstructions) throws IOException {
+		this.maxUnits = maxUnits;
+		this.userExcludedInstructions = excludedInstructions;
+		readTemplates();
+	}
+
+	private void readTemplates() throws IOException {
+		InputStream is = AllegrexSequenceGenerator.class.getResourceAsStream("/jpcsp/Allegrex/Allegrex.def");
+		if (is == null) {
+			throw new IOException("Allegrex.def not found in the classpath");
+		}
+
+		Pattern pattern = Pattern.compile("IDEF\\((\\w+),\\s*0x([0-9A-Fa-f]+),\\s*0x([0-9A-Fa-f]+)");
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		try {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				Matcher matcher = pattern.matcher(line);
+				if (matcher.find()) {
+					addTemplate(matcher.group(1), (int) Long.parseLong(matcher.group(2), 16), (int) Long.parseLong(matcher.group(3), 16));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void addTemplate(String name, int mask, int value) {
+		if (excludedInstructions.contains(name) || userExcludedInstructions.contains(name) || name.startsWith("ICACHE") || name.startsWith("DCACHE")) {
+			return;
+		}
+
+		Instruction insn = Decoder.instruction(value);
+		if (insn == Common.UNK) {
+			return;
+		}
+
+		int kind = KIND_NORMAL;
+		int alignment = 1;
+		if (name.equals("LB") || name.equals("LBU") || name.equals("SB") || name.equals("LWL") || name.equals("LWR") || name.equals("SWL") || name.equals("SWR")) {
+			kind = KIND_MEMORY;
+		} else if (name.equals("LH") || name.equals("LHU") || name.equals("SH")) {
+			kind = KIND_MEMORY;
+			alignment = 2;
+		} else if (name.equals("LW") || name.equals("SW") || name.equals("LWC1") || name.equals("SWC1")) {
+			kind = KIND_MEMORY;
+			alignment = 4;
+		} else if (name.equals("LVS") || name.equals("SVS") || name.equals("LVLQ") || name.equals("LVRQ") || name.equals("SVLQ") || name.equals("SVRQ")) {
+			kind = KIND_VFPU_MEMORY;
+			alignment = 4;
+		} else if (name.equals("LVQ") || name.equals("SVQ")) {
+			kind = KIND_VFPU_MEMORY;
+			alignment = 16;
+		} else if (name.equals("VPFXS") || name.equals("VPFXT")) {
+			kind = KIND_PREFIX_SOURCE;
+		} else if (name.equals("VPFXD")) {
+			kind = KIND_PREFIX_DESTINATION;
+		} else if (name.equals("JAL") || name.equals("JALR") || name.equals("BGEZAL") || name.equals("BGEZALL") || name.equals("BLTZAL") || name.equals("BLTZALL")) {
+			kind = KIND_CALL;
+		} else if (insn.hasFlags(FLAG_IS_BRANCHING) || name.equals("J")) {
+			kind = KIND_BRANCH;
+		}
+
+		Template template = new Template(templates.size(), name, mask, value, insn, kind, alignment);
+		templates.add(template);
+		templatesByName.put(name, template);
+		if (kind == KIND_BRANCH) {
+			branchTemplates.add(template);
+		} else if (kind == KIND_CALL) {
+			callTemplates.add(template);
+		} else if (name.equals("JR")) {
+			// Only generated as "jr $ra" at the end of a called function
+		} else if (kind != KIND_PREFIX_SOURCE && kind != KIND_PREFIX_DESTINATION) {
+			// The prefixes are only generated in front of an instruction using them
+			nonBranchTemplates.add(template);
+		}
+
+		if (name.equals("VPFXS")) {
+			prefixTemplates[0] = template;
+		} else if (name.equals("VPFXT")) {
+			prefixTemplates[1] = template;
+		} else if (name.equals("VPFXD")) {
+			prefixTemplates[2] = template;
+		}
+	}
+
+	public int getNumberTemplates() {
+		return templates.size();
+	}
+
+	/**
+	 * Select a template, preferring the ones which have been
+	 * generated less often.
+	 */
+	private static Template select(Random random, List<Template> list) {
+		Template template1 = list.get(random.nextInt(list.size()));
+		Template template2 = list.get(random.nextInt(list.size()));
+
+		return template1.count <= template2.count ? template1 : template2;
+	}
+
+	private static boolean isReserved(int reg) {
+		return reg == REG_DATA || reg == REG_RETURN || reg == REG_SAVED_RETURN || reg == REG_LOOP_COUNTER || reg == REG_CALL_TARGET;
+	}
+
+	private boolean hasControlTemplates() {
+		for (String name : controlInstructions) {
+			if (!templatesByName.containsKey(name)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean isLoopPossible() {
+		return hasControlTemplates();
+	}
+
+	private boolean isCallPossible() {
+		return hasControlTemplates() && !callTemplates.isEmpty();
+	}
+
+	private static int randomOffset(Random random, int alignment) {
+		// Leave space for a 16 bytes access at the end of the range
+		int offset = random.nextInt(2 * DATA_RANGE - 16) - DATA_RANGE;
+
+		return offset & ~(alignment - 1);
+	}
+
+	private static boolean isValid(int opcode) {
+		String disassembly;
+		try {
+			disassembly = disassemble(0, opcode).trim();
+		} catch (RuntimeException e) {
+			return false;
+		}
+
+		// An invalid VFPU matrix register is disassembled as an empty operand
+		if (disassembly.endsWith(",") || disassembly.contains(" ,")) {
+			return false;
+		}
+
+		return true;
+	}
+
+	private int instantiate(Random random, Template template) {
+		template.count++;
+
+		if (template.kind == KIND_CALL) {
+			// The call target is set when assembling the sequence
+			if (template.name.equals("JALR")) {
+				// jalr $ra, $gp
+				return template.value | (REG_CALL_TARGET << 21) | (REG_RETURN << 11);
+			}
+			if (template.name.equals("JAL")) {
+				return template.value;
+			}
+			return template.value | (random.nextInt(32) << 21);
+		}
+
+		for (int retry = 0; retry < 32; retry++) {
+			int opcode = template.value | (random.nextInt() & ~template.mask);
+
+			switch (template.kind) {
+				case KIND_MEMORY:
+					opcode = (opcode & 0xFC1F0000) | (REG_DATA << 21) | (randomOffset(random, template.alignment) & 0xFFFF);
+					break;
+				case KIND_VFPU_MEMORY:
+					opcode = (opcode & 0xFC1F0003) | (REG_DATA << 21) | (randomOffset(random, template.alignment) & 0xFFFC);
+					break;
+				case KIND_BRANCH:
+					// The offset is set when assembling the sequence
+					opcode &= 0xFFFF0000;
+					break;
+				case KIND_PREFIX_SOURCE:
+					// swz, abs, cst and neg
+					opcode = template.value | (random.nextInt() & 0x000FFFFF);
+					break;
+				case KIND_PREFIX_DESTINATION:
+					// sat and msk
+					opcode = template.value | (random.nextInt() & 0x00000FFF);
+					break;
+			}
+
+			if (Decoder.instruction(opcode) != template.insn) {
+				continue;
+			}
+
+			int rt = (opcode >> 16) & 31;
+			int rd = (opcode >> 11) & 31;
+			if ((template.insn.hasFlags(FLAG_WRITES_RT) || template.name.equals("CFC1")) && isReserved(rt)) {
+				continue;
+			}
+			if (template.insn.hasFlags(FLAG_WRITES_RD) && isReserved(rd)) {
+				continue;
+			}
+			// Reject invalid operand combinations, e.g. a matrix instruction with a single size
+			if (!isValid(opcode)) {
+				continue;
+			}
+
+			return opcode;
+		}
+
+		return template.kind == KIND_BRANCH ? template.value : NOP();
+	}
+
+	private Unit newUnit(Random random, int index) {
+		switch (random.nextInt(16)) {
+			case 0:
+			case 1: {
+				Template template = select(random, branchTemplates);
+				Template delaySlotTemplate = select(random, nonBranchTemplates);
+				int target = index + 1 + random.nextInt(Math.max(1, maxUnits - index));
+
+				return instantiateUnit(random, new Template[] { template, delaySlotTemplate }, target);
+			}
+			case 2:
+				if (isLoopPossible()) {
+					return newLoopUnit(random);
+				}
+				break;
+			case 3:
+				if (isCallPossible()) {
+					return newCallUnit(random);
+				}
+				break;
+		}
+
+		return newInstructionUnit(random);
+	}
+
+	private Unit newInstructionUnit(Random random) {
+		Template template = select(random, nonBranchTemplates);
+		List<Template> unitTemplates = new ArrayList<Template>();
+		for (int i = 0; i < prefixTemplates.length; i++) {
+			if (prefixTemplates[i] != null && template.usesPrefix(i) && random.nextInt(3) == 0) {
+				unitTemplates.add(prefixTemplates[i]);
+			}
+		}
+		unitTemplates.add(template);
+
+		return instantiateUnit(random, unitTemplates.toArray(new Template[unitTemplates.size()]), -1);
+	}
+
+	private Unit newInstructionUnit(Random random, Template template, int opcode) {
+		template.count++;
+
+		return new Unit(new Template[] { template }, new int[] { opcode }, -1);
+	}
+
+	/**
+	 * Concatenate units, keeping the call of the last calling unit.
+	 */
+	private static Unit concat(int kind, List<Unit> units) {
+		int length = 0;
+		for (Unit unit : units) {
+			length += unit.opcodes.length;
+		}
+
+		Template[] templates = new Template[length];
+		int[] opcodes = new int[length];
+		int callIndex = -1;
+		Unit function = null;
+		int index = 0;
+		for (Unit unit : units) {
+			System.arraycopy(unit.templates, 0, templates, index, unit.opcodes.length);
+			System.arraycopy(unit.opcodes, 0, opcodes, index, unit.opcodes.length);
+			if (unit.isCall()) {
+				callIndex = index + unit.callIndex;
+				function = unit.function;
+			}
+			index += unit.opcodes.length;
+		}
+
+		return new Unit(kind, templates, opcodes, -1, callIndex, function);
+	}
+
+	/**
+	 * A loop executed between 1 and MAX_LOOP_COUNT times:
+	 *         li    $fp, count
+	 *     loop:
+	 *         instructions, possibly including one call
+	 *         addiu $fp, $fp, -1
+	 *         bgtz  $fp, loop
+	 *         delay slot
+	 */
+	private Unit newLoopUnit(Random random) {
+		Template addiu = templatesByName.get("ADDIU");
+		List<Unit> units = new ArrayList<Unit>();
+		units.add(newInstructionUnit(random, addiu, ADDIU(REG_LOOP_COUNTER, Common._zr, 1 + random.nextInt(MAX_LOOP_COUNT))));
+
+		int numberInstructions = 1 + random.nextInt(MAX_LOOP_INSTRUCTIONS);
+		int callPosition = isCallPossible() && random.nextBoolean() ? random.nextInt(numberInstructions) : -1;
+		int loopLength = 0;
+		for (int i = 0; i < numberInstructions; i++) {
+			Unit unit = i == callPosition ? newCallUnit(random) : newInstructionUnit(random);
+			units.add(unit);
+			loopLength += unit.opcodes.length;
+		}
+
+		units.add(newInstructionUnit(random, addiu, ADDIU(REG_LOOP_COUNTER, REG_LOOP_COUNTER, -1)));
+		loopLength++;
+		Template bgtz = templatesByName.get("BGTZ");
+		// Branching back to the first instruction after the "li"
+		int offset = -(loopLength + 1);
+		units.add(newInstructionUnit(random, bgtz, bgtz.value | (REG_LOOP_COUNTER << 21) | (offset & 0xFFFF)));
+		units.add(newReturnDelaySlot(random));
+
+		return concat(UNIT_LOOP, units);
+	}
+
+	/**
+	 * A call to a leaf function:
+	 *         jal   function    (or jalr, bgezal...)
+	 *         delay slot
+	 * The function is assembled after the sequence:
+	 *     function:
+	 *         instructions
+	 *         jr    $ra
+	 *         delay slot
+	 */
+	private Unit newCallUnit(Random random) {
+		List<Unit> units = new ArrayList<Unit>();
+		int numberInstructions = random.nextInt(MAX_FUNCTION_INSTRUCTIONS + 1);
+		for (int i = 0; i < numberInstructions; i++) {
+			units.add(newInstructionUnit(random));
+		}
+		units.add(newInstructionUnit(random, templatesByName.get("JR"), JR()));
+		units.add(newReturnDelaySlot(random));
+		Unit function = concat(UNIT_INSTRUCTION, units);
+
+		units.clear();
+		Template template = select(random, callTemplates);
+		if (template.name.equals("JALR")) {
+			// The function address is set when assembling the sequence
+			units.add(newInstructionUnit(random, templatesByName.get("LUI"), NOP()));
+			units.add(newInstructionUnit(random, templatesByName.get("ORI"), NOP()));
+		}
+		int callIndex = units.size();
+		units.add(newInstructionUnit(random, template, instantiate(random, template)));
+		units.add(newReturnDelaySlot(random));
+		Unit unit = concat(UNIT_CALL, units);
+
+		return new Unit(UNIT_CALL, unit.templates, unit.opcodes, -1, callIndex, function);
+	}
+
+	private static int getVectorSize(int opcode) {
+		return 1 + ((opcode >> 7) & 1) + ((opcode >> 14) & 2);
+	}
+
+	/**
+	 * A source prefix selecting a component beyond the vector size
+	 * is reading a stale value in the interpreter.
+	 * Select only existing components to keep the cases reproducible.
+	 */
+	private static int restrictSwizzle(int opcode, int vsize) {
+		for (int i = 0; i < 4; i++) {
+			int swz = (opcode >> (i * 2)) & 3;
+			boolean cst = ((opcode >> (12 + i)) & 1) != 0;
+			if (!cst && swz >= vsize) {
+				opcode = (opcode & ~(3 << (i * 2))) | ((swz % vsize) << (i * 2));
+			}
+		}
+
+		return opcode;
+	}
+
+	private Unit instantiateUnit(Random random, Template[] unitTemplates, int target) {
+		int[] opcodes = new int[unitTemplates.length];
+		// Backwards, a prefix depends on the vector size of the following instruction
+		int vsize = 4;
+		for (int i = opcodes.length - 1; i >= 0; i--) {
+			Template template = unitTemplates[i];
+			opcodes[i] = instantiate(random, template);
+			if (template.kind == KIND_PREFIX_SOURCE) {
+				opcodes[i] = restrictSwizzle(opcodes[i], vsize);
+			} else {
+				vsize = getVectorSize(opcodes[i]);
+			}
+		}
+
+		return new Unit(unitTemplates, opcodes, target);
+	}
+
+	private Unit newReturnDelaySlot(Random random) {
+		Template template = select(random, nonBranchTemplates);
+
+		return new Unit(new Template[] { template }, new int[] { instantiate(random, template) }, -1);
+	}
+
+	private Sequence generate(Random random) {
+		Sequence sequence = new Sequence();
+		int numberUnits = 1 + random.nextInt(maxUnits);
+		for (int i = 0; i < numberUnits; i++) {
+			sequence.units.add(newUnit(random, i));
+		}
+		sequence.returnDelaySlot = newReturnDelaySlot(random);
+
+		return sequence;
+	}
+
+	private Sequence mutate(Random random, Sequence original) {
+		Sequence sequence = new Sequence(original);
+		int numberMutations = 1 + random.nextInt(3);
+		for (int n = 0; n < numberMutations; n++) {
+			List<Unit> units = sequence.units;
+			int index = random.nextInt(units.size());
+			switch (random.nextInt(5)) {
+				case 0:
+					// Replace one unit
+					units.set(index, newUnit(random, index));
+					break;
+				case 1:
+					// Insert one unit
+					if (units.size() < maxUnits) {
+						units.add(index, newUnit(random, index));
+					}
+					break;
+				case 2:
+					// Delete one unit
+					if (units.size() > 1) {
+						units.remove(index);
+					}
+					break;
+				case 3: {
+					// New operands for the same instructions
+					Unit unit = units.get(index);
+					if (unit.kind == UNIT_LOOP) {
+						units.set(index, newLoopUnit(random));
+					} else if (unit.kind == UNIT_CALL) {
+						units.set(index, newCallUnit(random));
+					} else {
+						units.set(index, instantiateUnit(random, unit.templates, unit.target));
+					}
+					break;
+				}
+				case 4:
+					sequence.returnDelaySlot = newReturnDelaySlot(random);
+					break;
+			}
+		}
+
+		return sequence;
+	}
+
+	/**
+	 * Generate the next sequence: either a new random sequence
+	 * or a mutation of a sequence from the corpus.
+	 */
+	public Sequence next(Random random) {
+		if (!corpus.isEmpty() && random.nextBoolean()) {
+			return mutate(random, corpus.get(random.nextInt(corpus.size())));
+		}
+
+		return generate(random);
+	}
+
+	private static int getFeatureBits(Template template, int opcode, boolean delaySlot, boolean[] activePrefixes) {
+		int rs = (opcode >> 21) & 31;
+		int rt = (opcode >> 16) & 31;
+		int rd = (opcode >> 11) & 31;
+
+		int bits = 0;
+		if (delaySlot) {
+			bits |= 1 << 0;
+		}
+		for (int i = 0; i < activePrefixes.length; i++) {
+			if (activePrefixes[i] && template.usesPrefix(i)) {
+				bits |= 1 << (1 + i);
+			}
+		}
+		if (rs == rt) {
+			bits |= 1 << 4;
+		}
+		if (rd == rt || rd == rs) {
+			bits |= 1 << 5;
+		}
+
+		return bits;
+	}
+
+	/**
+	 * Record the features reached by a sequence.
+	 * A sequence reaching new features is added to the corpus.
+	 *
+	 * @param sequence  the sequence having been executed
+	 * @param random    used to select the corpus entry to be replaced
+	 * @return          the number of new features
+	 */
+	public int addCoverage(Sequence sequence, Random random) {
+		int numberTemplates = templates.size();
+		int pairsBase = numberTemplates << FEATURE_BITS;
+		int newFeatures = 0;
+		int previousId = -1;
+		boolean[] activePrefixes = new boolean[prefixTemplates.length];
+
+		List<Unit> units = new ArrayList<Unit>(sequence.units);
+		units.add(sequence.returnDelaySlot);
+		for (Unit unit : sequence.units) {
+			if (unit.isCall()) {
+				units.add(unit.function);
+			}
+		}
+		for (Unit unit : units) {
+			for (int i = 0; i < unit.opcodes.length; i++) {
+				Template template = unit.templates[i];
+				boolean delaySlot = unit.isDelaySlot(i) || unit == sequence.returnDelaySlot;
+
+				int feature = (template.id << FEATURE_BITS) | getFeatureBits(template, unit.opcodes[i], delaySlot, activePrefixes);
+				if (!features.get(feature)) {
+					features.set(feature);
+					newFeatures++;
+				}
+				if (previousId >= 0) {
+					feature = pairsBase + previousId * numberTemplates + template.id;
+					if (!features.get(feature)) {
+						features.set(feature);
+						newFeatures++;
+					}
+				}
+				previousId = template.id;
+
+				for (int j = 0; j < prefixTemplates.length; j++) {
+					if (template == prefixTemplates[j]) {
+						activePrefixes[j] = true;
+					} else if (template.usesPrefix(j) || template.insn.hasFlags(FLAG_HAS_DELAY_SLOT)) {
+						activePrefixes[j] = false;
+					}
+				}
+			}
+		}
+
+		if (newFeatures > 0) {
+			if (corpus.size() < MAX_CORPUS_SIZE) {
+				corpus.add(sequence);
+			} else {
+				corpus.set(random.nextInt(corpus.size()), sequence);
+			}
+		}
+
+		return newFeatures;
+	}
+
+	public int getNumberFeatures() {
+		return features.cardinality();
+	}
+
+	public int getCorpusSize() {
+		return corpus.size();
+	}
+
+	/**
+	 * Check if an opcode is controlling the flow of a sequence:
+	 * the "jr $ra", the restore of $ra, the loop counter and the load
+	 * of a "jalr" target address.
+	 * Replacing such an opcode by a "nop" could produce an endless loop
+	 * or a call to an unknown address.
+	 *
+	 * @param opcode  the opcode
+	 * @return        true if the opcode has to be kept when reducing a sequence
+	 */
+	public static boolean isControlOpcode(int opcode) {
+		if (opcode == JR() || opcode == MOVE(REG_RETURN, REG_SAVED_RETURN)) {
+			return true;
+		}
+
+		int rs = (opcode >> 21) & 31;
+		int rt = (opcode >> 16) & 31;
+		Instruction insn = Decoder.instruction(opcode);
+		if (insn == Instructions.ADDIU && rt == REG_LOOP_COUNTER) {
+			return true;
+		}
+		if (insn == Instructions.BGTZ && rs == REG_LOOP_COUNTER) {
+			return true;
+		}
+		if ((insn == Instructions.LUI || insn == Instructions.ORI) && rt == REG_CALL_TARGET) {
+			return true;
+		}
+
+		return false;
+	}
+
+	public static String disassemble(int address, int opcode) {
+		Instruction insn = Decoder.instruction(opcode);
+		// The disassembly of j and jal looks up the HLE function names,
+		// which would load all the HLE modules
+		if (insn == Instructions.J || insn == Instructions.JAL) {
+			return String.format("%1$-10s 0x%2$08X", insn.name(), Compiler.jumpTarget(address, opcode));
+		}
+
+		return insn.disasm(address, opcode);
+	}
+}
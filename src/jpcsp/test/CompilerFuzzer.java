@@ -0,0 +1,830 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.test;
+
+import static jpcsp.test.AllegrexSequenceGenerator.DATA_RANGE;
+import static jpcsp.test.AllegrexSequenceGenerator.disassemble;
+import static jpcsp.test.AllegrexSequenceGenerator.isControlOpcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import jpcsp.Emulator;
+import jpcsp.Memory;
+import jpcsp.Processor;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.Allegrex.Decoder;
+import jpcsp.Allegrex.Instructions;
+import jpcsp.Allegrex.Common.Instruction;
+import jpcsp.Allegrex.VfpuState.Vcr.PfxDst;
+import jpcsp.Allegrex.VfpuState.Vcr.PfxSrc;
+import jpcsp.Allegrex.compiler.Compiler;
+import jpcsp.Allegrex.compiler.CompilerContext;
+import jpcsp.Allegrex.compiler.IExecutable;
+import jpcsp.Allegrex.compiler.RuntimeContext;
+import jpcsp.autotests.AutoTestsRunner;
+import jpcsp.memory.FastMemory;
+import jpcsp.memory.SafeFastMemory;
+import jpcsp.test.AllegrexSequenceGenerator.Sequence;
+import jpcsp.util.LWJGLFixer;
+
+/**
+ * Differential fuzzing of the Allegrex compiler against the interpreter.
+ *
+ * Random instruction sequences are generated by the AllegrexSequenceGenerator
+ * and executed twice from the same random CPU state and data memory:
+ * once through the interpreter and once through the code generated
+ * by the compiler. The registers and the data memory are then compared.
+ * A sequence calling functions is compiled and executed a second time
+ * with the called functions marked as hot, i.e. inlined at the call sites.
+ * Each divergence is reduced (instructions replaced by "nop" as long as
+ * the divergence remains) and written to a report file which can be replayed.
+ *
+ * The compiler and the RuntimeContext are using global state,
+ * so the parallelism is achieved by running one worker JVM per core,
+ * each with its own seed.
+ *
+ * The options are passed as system properties:
+ *     -Dfuzz.workers=N       number of worker processes (default: number of cores)
+ *     -Dfuzz.seed=N          initial seed (default: random)
+ *     -Dfuzz.time=N          duration in seconds (default: 60, 0 for unlimited)
+ *     -Dfuzz.cases=N         maximum number of cases per worker (default: 0, unlimited)
+ *     -Dfuzz.length=N        maximum number of units per sequence (default: 24)
+ *     -Dfuzz.maxFailures=N   stop a worker after N divergences (default: 10)
+ *     -Dfuzz.strictNaN=true  compare also the bits of NaN values
+ *     -Dfuzz.ulps=N          accepted difference in ulps between float values (default: 0)
+ *     -Dfuzz.exclude=A,B     names from Allegrex.def of instructions not to be generated
+ *     -Dfuzz.registerCache=true  compile the loops with the register cache
+ *     -Dfuzz.output=dir      directory for the reports (default: fuzz)
+ *     -Dfuzz.replay=file     replay the case from a report file,
+ *                            or all the report files from a directory
+ */
+public class CompilerFuzzer {
+	private static final String PROPERTY_PREFIX = "fuzz.";
+	public static final int CODE_ADDRESS = 0x08800000;
+	private static final int RETURN_ADDRESS = 0x08900000;
+	private static final int DATA_ADDRESS = 0x08A00000;
+	private static final int DATA_SIZE = 2 * DATA_RANGE;
+	private static final int DATA_BASE = DATA_ADDRESS + DATA_RANGE;
+	// Upper limit of interpreted instructions, the loops of the sequences are bounded
+	private static final int MAX_INTERPRETED_INSTRUCTIONS = 100000;
+	// The class loader of the compiler is reset after this number of compilations
+	private static final int MAX_COMPILATIONS_PER_RESET = 10000;
+	private static final int MAX_DIFFERENCES = 20;
+	private static final int STATUS_INTERVAL_MILLIS = 5000;
+	private final boolean strictNaN;
+	private final int ulps;
+	private Processor processor;
+	private CpuState cpu;
+	private Memory mem;
+	private final CpuState initialState = new CpuState();
+	private final CpuState interpretedState = new CpuState();
+	private final CpuState compiledState = new CpuState();
+	private final int[] initialData = new int[DATA_SIZE >> 2];
+	private final int[] interpretedData = new int[DATA_SIZE >> 2];
+	private final int[] compiledData = new int[DATA_SIZE >> 2];
+	private int instanceIndex;
+	private static FuzzerMemory fuzzerMemory;
+
+	/**
+	 * The memory writes are not notified to sceDisplay:
+	 * this would load all the HLE modules, which require a display.
+	 */
+	private static class FuzzerMemory extends SafeFastMemory {
+		private int[] all;
+
+		@Override
+		public boolean allocate() {
+			boolean result = super.allocate();
+			all = getMemoryInt(0);
+
+			return result;
+		}
+
+		@Override
+		public void write8(int address, byte data) {
+			int rawAddress = normalizeAddress(address);
+			if (!isRawAddressGood(rawAddress)) {
+				// Report the invalid address
+				super.write8(address, data);
+				return;
+			}
+
+			int index = rawAddress & 0x03;
+			all[rawAddress >> 2] = (all[rawAddress >> 2] & FastMemory.memory8Mask[index]) | ((data & 0xFF) << FastMemory.memory8Shift[index]);
+		}
+
+		@Override
+		public void write16(int address, short data) {
+			int rawAddress = normalizeAddress(address);
+			if (!isRawAddressGood(rawAddress)) {
+				// Report the invalid address
+				super.write16(address, data);
+				return;
+			}
+
+			int index = rawAddress & 0x02;
+			all[rawAddress >> 2] = (all[rawAddress >> 2] & FastMemory.memory16Mask[index]) | ((data & 0xFFFF) << FastMemory.memory16Shift[index]);
+		}
+
+		@Override
+		public void write32(int address, int data) {
+			int rawAddress = normalizeAddress(address);
+			if (!isRawAddressGood(rawAddress)) {
+				// Report the invalid address
+				super.write32(address, data);
+				return;
+			}
+
+			all[rawAddress >> 2] = data;
+		}
+	}
+
+	public CompilerFuzzer(boolean strictNaN, int ulps) {
+		this.strictNaN = strictNaN;
+		this.ulps = ulps;
+	}
+
+	public static void main(String[] args) {
+        LWJGLFixer.fixOnce();
+        DOMConfigurator.configure("LogSettings.xml");
+		RuntimeContext.setLog4jMDC();
+
+		String replay = System.getProperty(PROPERTY_PREFIX + "replay");
+		int workers = Integer.getInteger(PROPERTY_PREFIX + "workers", Runtime.getRuntime().availableProcessors());
+		String worker = System.getProperty(PROPERTY_PREFIX + "worker");
+
+		int exitCode;
+		try {
+			if (replay != null) {
+				exitCode = replay(new File(replay));
+			} else if (worker == null && workers > 1) {
+				exitCode = runWorkerProcesses(workers);
+			} else {
+				exitCode = runWorker(worker == null ? 0 : Integer.parseInt(worker));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			exitCode = 2;
+		}
+
+		System.exit(exitCode);
+	}
+
+	private static long getSeed() {
+		return Long.decode(System.getProperty(PROPERTY_PREFIX + "seed", Long.toString(System.nanoTime())));
+	}
+
+	private static long getWorkerSeed(long seed, int worker) {
+		return seed + worker * 0x9E3779B97F4A7C15L;
+	}
+
+	private static int runWorkerProcesses(int workers) throws IOException, InterruptedException {
+		long seed = getSeed();
+		System.out.println(String.format("Starting %d fuzzing workers, seed=%d", workers, seed));
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		List<Process> processes = new ArrayList<Process>();
+		for (int i = 0; i < workers; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			for (String name : System.getProperties().stringPropertyNames()) {
+				if (name.startsWith(PROPERTY_PREFIX) && !name.equals(PROPERTY_PREFIX + "seed")) {
+					command.add(String.format("-D%s=%s", name, System.getProperty(name)));
+				}
+			}
+			command.add(String.format("-D%sworker=%d", PROPERTY_PREFIX, i));
+			command.add(String.format("-D%sseed=%d", PROPERTY_PREFIX, getWorkerSeed(seed, i)));
+			command.add(CompilerFuzzer.class.getName());
+
+			ProcessBuilder processBuilder = new ProcessBuilder(command);
+			processBuilder.inheritIO();
+			processes.add(processBuilder.start());
+		}
+
+		int exitCode = 0;
+		for (Process process : processes) {
+			exitCode = Math.max(exitCode, process.waitFor());
+		}
+
+		return exitCode;
+	}
+
+	private static CompilerFuzzer newCompilerFuzzer() {
+		CompilerFuzzer fuzzer = new CompilerFuzzer(Boolean.getBoolean(PROPERTY_PREFIX + "strictNaN"), Integer.getInteger(PROPERTY_PREFIX + "ulps", 0));
+		fuzzer.init();
+		CompilerContext.enableRegisterCache = Boolean.getBoolean(PROPERTY_PREFIX + "registerCache");
+
+		return fuzzer;
+	}
+
+	private static int runWorker(int worker) throws IOException {
+		long seed = getSeed();
+		long time = Long.getLong(PROPERTY_PREFIX + "time", 60L);
+		long maxCases = Long.getLong(PROPERTY_PREFIX + "cases", 0L);
+		int maxUnits = Integer.getInteger(PROPERTY_PREFIX + "length", 24);
+		int maxFailures = Integer.getInteger(PROPERTY_PREFIX + "maxFailures", 10);
+		File outputDirectory = new File(System.getProperty(PROPERTY_PREFIX + "output", "fuzz"));
+		CompilerFuzzer fuzzer = newCompilerFuzzer();
+
+		Set<String> excludedInstructions = new HashSet<String>();
+		for (String name : System.getProperty(PROPERTY_PREFIX + "exclude", "").split(",")) {
+			if (name.trim().length() > 0) {
+				excludedInstructions.add(name.trim().toUpperCase());
+			}
+		}
+		AllegrexSequenceGenerator generator = new AllegrexSequenceGenerator(maxUnits, excludedInstructions);
+		Random random = new Random(seed);
+		long start = System.currentTimeMillis();
+		long end = time > 0 ? start + time * 1000L : Long.MAX_VALUE;
+		long nextStatus = start + STATUS_INTERVAL_MILLIS;
+		long cases = 0;
+		int failures = 0;
+		while ((maxCases <= 0 || cases < maxCases) && failures < maxFailures) {
+			long now = System.currentTimeMillis();
+			if (now >= end) {
+				break;
+			}
+			if (now >= nextStatus) {
+				System.out.println(String.format("Worker %d: %d cases (%d/s), %d features, corpus %d, %d failures", worker, cases, cases * 1000L / (now - start), generator.getNumberFeatures(), generator.getCorpusSize(), failures));
+				nextStatus = now + STATUS_INTERVAL_MILLIS;
+			}
+
+			Sequence sequence = generator.next(random);
+			int[] opcodes = sequence.assemble(CODE_ADDRESS);
+			long stateSeed = random.nextLong();
+			List<String> differences = fuzzer.runCase(opcodes, stateSeed);
+			cases++;
+
+			if (differences == null) {
+				generator.addCoverage(sequence, random);
+			} else {
+				failures++;
+				int[] reducedOpcodes = fuzzer.reduce(opcodes, stateSeed);
+				differences = fuzzer.runCase(reducedOpcodes, stateSeed);
+				File report = new File(outputDirectory, String.format("worker%d-case%d.txt", worker, cases));
+				writeReport(report, reducedOpcodes, stateSeed, differences);
+				System.out.println(String.format("Worker %d: divergence found in case %d, reduced from %d to %d instructions, see %s", worker, cases, countInstructions(opcodes), countInstructions(reducedOpcodes), report));
+			}
+		}
+
+		long duration = Math.max(1L, System.currentTimeMillis() - start);
+		System.out.println(String.format("Worker %d: end after %d cases (%d/s), %d features, %d failures", worker, cases, cases * 1000L / duration, generator.getNumberFeatures(), failures));
+
+		return failures > 0 ? 1 : 0;
+	}
+
+	private static int countInstructions(int[] opcodes) {
+		int count = 0;
+		for (int opcode : opcodes) {
+			if (opcode != 0) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Set up the memory, the processor and the compiler,
+	 * without the HLE modules. To be called once before running cases.
+	 */
+	public void init() {
+		// The memory has to be installed before the Processor is loaded
+		if (fuzzerMemory == null) {
+			fuzzerMemory = new FuzzerMemory();
+			fuzzerMemory.allocate();
+			Memory.setInstance(fuzzerMemory);
+		}
+		// The native code sequences are not compiled from the instructions,
+		// and their implementation can require the HLE modules.
+		Compiler.enableNativeCodeSequences = false;
+        new Emulator(new AutoTestsRunner.DummyGUI());
+        processor = Emulator.getProcessor();
+        cpu = processor.cpu;
+        mem = Memory.getInstance();
+        RuntimeContext.initialiseStandalone();
+        instanceIndex = Compiler.maxInliningInstanceIndex;
+	}
+
+	private static int randomInt(Random random) {
+		switch (random.nextInt(8)) {
+			case 0: return 0;
+			case 1: return random.nextInt(33) - 16;
+			case 2: return random.nextBoolean() ? 0x80000000 : 0x7FFFFFFF;
+			case 3: return random.nextInt(0x10000) - 0x8000;
+			default: return random.nextInt();
+		}
+	}
+
+	private static int randomFloatBits(Random random) {
+		switch (random.nextInt(12)) {
+			case 0: return random.nextBoolean() ? 0x00000000 : 0x80000000; // +0.0, -0.0
+			case 1: return random.nextBoolean() ? 0x3F800000 : 0xBF800000; // 1.0, -1.0
+			case 2: return random.nextBoolean() ? 0x7F800000 : 0xFF800000; // +Inf, -Inf
+			case 3: return 0x7FC00000; // NaN
+			case 4: return random.nextInt(0x00800000); // Denormal
+			case 5: return random.nextInt(33) - 16; // Small integer values
+			case 6: return random.nextInt();
+			default: return Float.floatToRawIntBits((random.nextFloat() - 0.5f) * (1 << random.nextInt(16)));
+		}
+	}
+
+	private void randomState(Random random, CpuState state) {
+		state.pc = CODE_ADDRESS;
+		state.npc = CODE_ADDRESS + 4;
+		for (int i = 1; i < 32; i++) {
+			state.setRegister(i, randomInt(random));
+		}
+		state.setRegister(AllegrexSequenceGenerator.REG_DATA, DATA_BASE);
+		state.setRegister(AllegrexSequenceGenerator.REG_RETURN, RETURN_ADDRESS);
+		state.setRegister(AllegrexSequenceGenerator.REG_SAVED_RETURN, RETURN_ADDRESS);
+		state.hilo = random.nextLong();
+
+		for (int i = 0; i < state.fpr.length; i++) {
+			state.fpr[i] = Float.intBitsToFloat(randomFloatBits(random));
+		}
+		state.fcr31.rm = random.nextInt(4) == 0 ? random.nextInt(4) : 0;
+		state.fcr31.c = random.nextBoolean();
+		state.fcr31.fs = false;
+
+		for (int i = 0; i < state.vprInt.length; i++) {
+			int value = randomFloatBits(random);
+			state.vprInt[i] = value;
+			state.vprFloat[i] = Float.intBitsToFloat(value);
+		}
+		state.vcr.reset();
+		for (int i = 0; i < state.vcr.cc.length; i++) {
+			state.vcr.cc[i] = random.nextBoolean();
+		}
+	}
+
+	private void writeCode(int[] opcodes) {
+		for (int i = 0; i < opcodes.length; i++) {
+			mem.write32(CODE_ADDRESS + (i << 2), opcodes[i]);
+		}
+		// Terminate the last code block after the delay slot of "jr $ra"
+		mem.write32(CODE_ADDRESS + (opcodes.length << 2), 0);
+	}
+
+	/**
+	 * @return the addresses of the functions called by the opcodes,
+	 *         or null when the opcodes are not calling any function
+	 */
+	private static List<Integer> getCallTargets(int[] opcodes) {
+		List<Integer> callTargets = null;
+		// The target address of a "jalr" is loaded in $gp by "lui" and "ori"
+		int callTargetRegister = 0;
+		for (int i = 0; i < opcodes.length; i++) {
+			int address = CODE_ADDRESS + (i << 2);
+			int opcode = opcodes[i];
+			Instruction insn = Decoder.instruction(opcode);
+			int callTarget;
+			if (insn == Instructions.JAL) {
+				callTarget = Compiler.jumpTarget(address, opcode);
+			} else if (insn == Instructions.JALR) {
+				callTarget = callTargetRegister;
+			} else if (insn == Instructions.BGEZAL || insn == Instructions.BGEZALL || insn == Instructions.BLTZAL || insn == Instructions.BLTZALL) {
+				callTarget = Compiler.branchTarget(address, opcode);
+			} else {
+				if (((opcode >> 16) & 31) == AllegrexSequenceGenerator.REG_CALL_TARGET) {
+					if (insn == Instructions.LUI) {
+						callTargetRegister = opcode << 16;
+					} else if (insn == Instructions.ORI) {
+						callTargetRegister |= opcode & 0xFFFF;
+					}
+				}
+				continue;
+			}
+
+			if (callTargets == null) {
+				callTargets = new ArrayList<Integer>();
+			}
+			if (!callTargets.contains(callTarget)) {
+				callTargets.add(callTarget);
+			}
+		}
+
+		return callTargets;
+	}
+
+	private void writeData(int[] data) {
+		for (int i = 0; i < data.length; i++) {
+			mem.write32(DATA_ADDRESS + (i << 2), data[i]);
+		}
+	}
+
+	private void readData(int[] data) {
+		for (int i = 0; i < data.length; i++) {
+			data[i] = mem.read32(DATA_ADDRESS + (i << 2));
+		}
+	}
+
+	private String interpret() {
+		int count = 0;
+		while (cpu.pc != RETURN_ADDRESS) {
+			if (count++ >= MAX_INTERPRETED_INSTRUCTIONS) {
+				return String.format("Interpreter not returning, pc=0x%08X", cpu.pc);
+			}
+			processor.interpret();
+		}
+
+		return null;
+	}
+
+	private void resetCompiler() {
+		Compiler.getInstance().reset();
+		instanceIndex = Compiler.maxInliningInstanceIndex;
+	}
+
+	private int nextInstanceIndex() {
+		if (++instanceIndex >= Compiler.maxInliningInstanceIndex + MAX_COMPILATIONS_PER_RESET) {
+			// Release the classes generated so far
+			resetCompiler();
+			instanceIndex++;
+		}
+
+		// The instance indexes below Compiler.maxInliningInstanceIndex are
+		// only used with the inlining of hot calls
+		return instanceIndex;
+	}
+
+	private String execute(int instanceIndex, List<Integer> callTargets) throws Exception {
+		Compiler compiler = Compiler.getInstance();
+		if (callTargets != null) {
+			// The code blocks of the called functions are cached by address:
+			// replace those of the previous cases
+			for (int callTarget : callTargets) {
+				if (compiler.compile(callTarget, instanceIndex) == null || compiler.isInterpretedAddress(callTarget)) {
+					resetCompiler();
+					return "Compilation failed";
+				}
+			}
+		}
+
+		IExecutable executable = compiler.compile(CODE_ADDRESS, instanceIndex);
+		if (executable == null || compiler.isInterpretedAddress(CODE_ADDRESS)) {
+			// Do not fall back to the interpreter for the next cases
+			resetCompiler();
+			return "Compilation failed";
+		}
+
+		int returnAddress = executable.exec();
+		if (returnAddress != RETURN_ADDRESS) {
+			return String.format("Compiled code returning to 0x%08X", returnAddress);
+		}
+
+		return null;
+	}
+
+	private static String getMessage(Throwable e) {
+		// Keep only the first line, the message of a VerifyError includes the complete bytecode
+		String message = e.toString();
+		int endOfLine = message.indexOf('\n');
+
+		return endOfLine < 0 ? message : message.substring(0, endOfLine);
+	}
+
+	/**
+	 * Execute the opcodes through the interpreter and the compiler
+	 * and compare the results.
+	 *
+	 * @param opcodes     the sequence to be executed at CODE_ADDRESS
+	 * @param stateSeed   the seed for the initial CPU state and data memory
+	 * @return            null if both executions are matching,
+	 *                    the list of differences otherwise
+	 */
+	public List<String> runCase(int[] opcodes, long stateSeed) {
+		writeCode(opcodes);
+
+		Random random = new Random(stateSeed);
+		randomState(random, initialState);
+		for (int i = 0; i < initialData.length; i++) {
+			initialData[i] = randomInt(random);
+		}
+
+		String interpreterError;
+		cpu.copy(initialState);
+		writeData(initialData);
+		try {
+			interpreterError = interpret();
+		} catch (Exception e) {
+			interpreterError = String.format("Interpreter exception %s", getMessage(e));
+		}
+		interpretedState.copy(cpu);
+		readData(interpretedData);
+
+		List<Integer> callTargets = getCallTargets(opcodes);
+		String compilerError = executeCompiled(nextInstanceIndex(), callTargets);
+		List<String> differences = getDifferences(interpreterError, compilerError);
+
+		if (differences == null && callTargets != null) {
+			// Compile again, with the called functions inlined.
+			// The class names of the instance index 0 have to be released first.
+			resetCompiler();
+			for (int callTarget : callTargets) {
+				Compiler.getInstance().hotCall(CODE_ADDRESS, callTarget);
+			}
+			compilerError = executeCompiled(0, callTargets);
+			differences = getDifferences(interpreterError, compilerError);
+			if (differences != null) {
+				differences.add(0, "With the called functions inlined");
+			}
+		}
+
+		return differences;
+	}
+
+	private String executeCompiled(int instanceIndex, List<Integer> callTargets) {
+		String compilerError;
+		cpu.copy(initialState);
+		writeData(initialData);
+		try {
+			compilerError = execute(instanceIndex, callTargets);
+		} catch (Exception e) {
+			compilerError = String.format("Compiled code exception %s", getMessage(e));
+		} catch (LinkageError e) {
+			// E.g. VerifyError on the generated class
+			compilerError = String.format("Compiled code error %s", getMessage(e));
+			resetCompiler();
+		}
+		compiledState.copy(cpu);
+		readData(compiledData);
+
+		return compilerError;
+	}
+
+	private List<String> getDifferences(String interpreterError, String compilerError) {
+		List<String> differences = new ArrayList<String>();
+		if (interpreterError != null || compilerError != null) {
+			if (interpreterError != null && compilerError != null) {
+				// Both executions failed, nothing to compare
+				return null;
+			}
+			differences.add(String.format("Interpreter: %s", interpreterError == null ? "OK" : interpreterError));
+			differences.add(String.format("Compiler: %s", compilerError == null ? "OK" : compilerError));
+		}
+		compare(differences);
+
+		return differences.isEmpty() ? null : differences;
+	}
+
+	/**
+	 * Replace as many instructions as possible by "nop"
+	 * while the executions are still diverging.
+	 */
+	public int[] reduce(int[] opcodes, long stateSeed) {
+		int[] reduced = opcodes.clone();
+		// Keep the "jr $ra" and the loop counters, but not necessarily the delay slots
+		for (int i = 0; i < reduced.length; i++) {
+			if (reduced[i] == 0 || isControlOpcode(reduced[i])) {
+				continue;
+			}
+			int opcode = reduced[i];
+			reduced[i] = 0;
+			if (runCase(reduced, stateSeed) == null) {
+				reduced[i] = opcode;
+			}
+		}
+
+		return reduced;
+	}
+
+	private boolean isEqualFloat(int bits1, int bits2) {
+		if (bits1 == bits2) {
+			return true;
+		}
+		if (!strictNaN && Float.isNaN(Float.intBitsToFloat(bits1)) && Float.isNaN(Float.intBitsToFloat(bits2))) {
+			return true;
+		}
+		// Values with the same sign are ordered like their bits
+		if (ulps > 0 && (bits1 ^ bits2) >= 0 && Math.abs(bits1 - bits2) <= ulps) {
+			return true;
+		}
+
+		return false;
+	}
+
+	private static void addDifference(List<String> differences, String name, Object interpreted, Object compiled) {
+		if (differences.size() < MAX_DIFFERENCES) {
+			differences.add(String.format("%s: interpreter=%s, compiler=%s", name, interpreted, compiled));
+		}
+	}
+
+	private static String hex(int value) {
+		return String.format("0x%08X", value);
+	}
+
+	private static void comparePfxSrc(List<String> differences, String name, PfxSrc interpreted, PfxSrc compiled) {
+		if (interpreted.enabled != compiled.enabled) {
+			addDifference(differences, name + ".enabled", interpreted.enabled, compiled.enabled);
+		} else if (interpreted.enabled) {
+			for (int i = 0; i < 4; i++) {
+				if (interpreted.swz[i] != compiled.swz[i] || interpreted.abs[i] != compiled.abs[i] || interpreted.cst[i] != compiled.cst[i] || interpreted.neg[i] != compiled.neg[i]) {
+					addDifference(differences, String.format("%s[%d]", name, i), String.format("swz=%d abs=%b cst=%b neg=%b", interpreted.swz[i], interpreted.abs[i], interpreted.cst[i], interpreted.neg[i]), String.format("swz=%d abs=%b cst=%b neg=%b", compiled.swz[i], compiled.abs[i], compiled.cst[i], compiled.neg[i]));
+				}
+			}
+		}
+	}
+
+	private static void comparePfxDst(List<String> differences, String name, PfxDst interpreted, PfxDst compiled) {
+		if (interpreted.enabled != compiled.enabled) {
+			addDifference(differences, name + ".enabled", interpreted.enabled, compiled.enabled);
+		} else if (interpreted.enabled) {
+			for (int i = 0; i < 4; i++) {
+				if (interpreted.sat[i] != compiled.sat[i] || interpreted.msk[i] != compiled.msk[i]) {
+					addDifference(differences, String.format("%s[%d]", name, i), String.format("sat=%d msk=%b", interpreted.sat[i], interpreted.msk[i]), String.format("sat=%d msk=%b", compiled.sat[i], compiled.msk[i]));
+				}
+			}
+		}
+	}
+
+	private void compare(List<String> differences) {
+		CpuState s1 = interpretedState;
+		CpuState s2 = compiledState;
+
+		for (int i = 1; i < 32; i++) {
+			if (s1.getRegister(i) != s2.getRegister(i)) {
+				addDifference(differences, String.format("gpr[%d]", i), hex(s1.getRegister(i)), hex(s2.getRegister(i)));
+			}
+		}
+		if (s1.hilo != s2.hilo) {
+			addDifference(differences, "hilo", String.format("0x%016X", s1.hilo), String.format("0x%016X", s2.hilo));
+		}
+
+		for (int i = 0; i < s1.fpr.length; i++) {
+			int bits1 = Float.floatToRawIntBits(s1.fpr[i]);
+			int bits2 = Float.floatToRawIntBits(s2.fpr[i]);
+			if (!isEqualFloat(bits1, bits2)) {
+				addDifference(differences, String.format("fpr[%d]", i), hex(bits1), hex(bits2));
+			}
+		}
+		if (s1.fcr31.rm != s2.fcr31.rm) {
+			addDifference(differences, "fcr31.rm", s1.fcr31.rm, s2.fcr31.rm);
+		}
+		if (s1.fcr31.c != s2.fcr31.c) {
+			addDifference(differences, "fcr31.c", s1.fcr31.c, s2.fcr31.c);
+		}
+		if (s1.fcr31.fs != s2.fcr31.fs) {
+			addDifference(differences, "fcr31.fs", s1.fcr31.fs, s2.fcr31.fs);
+		}
+
+		for (int i = 0; i < s1.vprInt.length; i++) {
+			if (!isEqualFloat(s1.vprInt[i], s2.vprInt[i])) {
+				addDifference(differences, String.format("vprInt[%d]", i), hex(s1.vprInt[i]), hex(s2.vprInt[i]));
+			}
+			int bits1 = Float.floatToRawIntBits(s1.vprFloat[i]);
+			int bits2 = Float.floatToRawIntBits(s2.vprFloat[i]);
+			if (!isEqualFloat(bits1, bits2)) {
+				addDifference(differences, String.format("vprFloat[%d]", i), hex(bits1), hex(bits2));
+			}
+		}
+		for (int i = 0; i < s1.vcr.cc.length; i++) {
+			if (s1.vcr.cc[i] != s2.vcr.cc[i]) {
+				addDifference(differences, String.format("vcr.cc[%d]", i), s1.vcr.cc[i], s2.vcr.cc[i]);
+			}
+		}
+		comparePfxSrc(differences, "vcr.pfxs", s1.vcr.pfxs, s2.vcr.pfxs);
+		comparePfxSrc(differences, "vcr.pfxt", s1.vcr.pfxt, s2.vcr.pfxt);
+		comparePfxDst(differences, "vcr.pfxd", s1.vcr.pfxd, s2.vcr.pfxd);
+
+		for (int i = 0; i < interpretedData.length; i++) {
+			if (interpretedData[i] != compiledData[i]) {
+				addDifference(differences, String.format("mem[0x%08X]", DATA_ADDRESS + (i << 2)), hex(interpretedData[i]), hex(compiledData[i]));
+			}
+		}
+	}
+
+	private static void writeReport(File file, int[] opcodes, long stateSeed, List<String> differences) throws IOException {
+		File directory = file.getParentFile();
+		if (directory != null) {
+			directory.mkdirs();
+		}
+
+		PrintWriter writer = new PrintWriter(file);
+		try {
+			writer.println("# Divergence between the interpreter and the compiler");
+			writer.println(String.format("# Replay with -D%sreplay=%s", PROPERTY_PREFIX, file.getPath()));
+			writer.println(String.format("seed=%d", stateSeed));
+			for (int i = 0; i < opcodes.length; i++) {
+				int address = CODE_ADDRESS + (i << 2);
+				writer.println(String.format("0x%08X: 0x%08X %s", address, opcodes[i], disassemble(address, opcodes[i])));
+			}
+			if (differences != null) {
+				for (String difference : differences) {
+					writer.println(String.format("# %s", difference));
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static class Case {
+		public long stateSeed;
+		public int[] opcodes;
+	}
+
+	private static Case readCase(File file) throws IOException {
+		Case c = new Case();
+		List<Integer> opcodeList = new ArrayList<Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				if (line.startsWith("seed=")) {
+					c.stateSeed = Long.parseLong(line.substring(5).trim());
+				} else if (line.startsWith("0x")) {
+					String[] words = line.split("\\s+");
+					opcodeList.add((int) Long.parseLong(words[1].substring(2), 16));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		c.opcodes = new int[opcodeList.size()];
+		for (int i = 0; i < c.opcodes.length; i++) {
+			c.opcodes[i] = opcodeList.get(i);
+		}
+
+		return c;
+	}
+
+	/**
+	 * Replay one report file, or all the report files of a directory,
+	 * e.g. to check that known divergences have been fixed.
+	 */
+	private static int replay(File file) throws IOException {
+		CompilerFuzzer fuzzer = newCompilerFuzzer();
+
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			int count = 0;
+			int failures = 0;
+			for (File caseFile : files) {
+				if (caseFile.isFile() && caseFile.getName().endsWith(".txt")) {
+					Case c = readCase(caseFile);
+					List<String> differences = fuzzer.runCase(c.opcodes, c.stateSeed);
+					count++;
+					if (differences != null) {
+						failures++;
+						System.out.println(String.format("%s: %s", caseFile, differences.get(0)));
+					}
+				}
+			}
+			System.out.println(String.format("%d cases replayed, %d still diverging", count, failures));
+
+			return failures > 0 ? 1 : 0;
+		}
+
+		Case c = readCase(file);
+		for (int i = 0; i < c.opcodes.length; i++) {
+			int address = CODE_ADDRESS + (i << 2);
+			System.out.println(String.format("0x%08X: 0x%08X %s", address, c.opcodes[i], disassemble(address, c.opcodes[i])));
+		}
+
+		List<String> differences = fuzzer.runCase(c.opcodes, c.stateSeed);
+		if (differences == null) {
+			System.out.println("No divergence");
+			return 0;
+		}
+
+		for (String difference : differences) {
+			System.out.println(difference);
+		}
+
+		return 1;
+	}
+}
@@ -0,0 +1,489 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.util;
+
+import static jpcsp.filesystems.umdiso.ISectorDevice.sectorLength;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import jpcsp.filesystems.umdiso.ISectorDevice;
+import jpcsp.filesystems.umdiso.UmdIsoReader;
+
+/**
+ * Command-line tool converting UMD images (ISO, CSO, CHD or PBP) into CSO images.
+ *
+ * The blocks are compressed in parallel on several cores. The image is processed
+ * in chunks of consecutive sectors and only a limited number of chunks is in
+ * flight at the same time, so that the memory usage does not depend on the image size.
+ *
+ * The blocks have the size of one sector, as CSOFileSectorDevice is reading
+ * and uncompressing the image sector by sector. A block is stored uncompressed
+ * when the compression is not saving any space, which also spares its uncompression.
+ *
+ * After the conversion, the CSO image is read back through the ISectorDevice
+ * implementation used by the emulator and compared with the source image.
+ * The compression ratio and the random-read throughput of both images
+ * are reported for each converted image.
+ *
+ * Usage: CSOConverter [options] image...
+ *   -o directory   directory of the CSO images (default: the directory of each image)
+ *   -v1, -v2       CSO version to be written (default: version 1)
+ *   -level n       deflate compression level, from 1 to 9 (default: 9)
+ *   -threads n     number of compression threads (default: number of cores)
+ *   -shift n       offset shift of the index table (default: the smallest possible)
+ *   -noverify      do not verify the CSO images
+ */
+public class CSOConverter {
+	private static final int headerSize = 24;
+	private static final int blockSize = sectorLength;
+	private static final int sectorsPerChunk = 256;
+	private static final long maxIndexOffset = 0x7FFFFFFFL;
+	private static final int indexUncompressedFlag = 0x80000000;
+	private static final int randomReadsMaxDuration = 2000; // milliseconds
+	private static final int randomReadsMaxCount = 100000;
+	private int version = 1;
+	private int level = Deflater.BEST_COMPRESSION;
+	private int numberThreads = Runtime.getRuntime().availableProcessors();
+	private int offsetShift = -1;
+	private boolean verify = true;
+	private File outputDirectory;
+	private final LinkedBlockingQueue<Chunk> chunksToCompress = new LinkedBlockingQueue<Chunk>();
+	private final ArrayDeque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean ended;
+
+	private static class Chunk {
+		public int firstSector;
+		public int numberSectors;
+		public final byte[] data = new byte[sectorsPerChunk * sectorLength];
+		// Compressed blocks, each one starting at a multiple of the block size
+		public final byte[] compressedData = new byte[sectorsPerChunk * blockSize];
+		// Length of each compressed block, or -1 when stored uncompressed
+		public final int[] compressedLengths = new int[sectorsPerChunk];
+		public int offsetShift;
+		public CountDownLatch compressed;
+	}
+
+	private static class Result {
+		public int numSectors;
+		public long sourceLength;
+		public long csoLength;
+		public int uncompressedBlocks;
+		public long conversionMillis;
+		public boolean verified;
+		// Reason of the verification failure, or null
+		public String verificationError;
+		public double csoReadsPerSecond;
+		public double sourceReadsPerSecond;
+	}
+
+	public static void main(String[] args) {
+		DOMConfigurator.configure("LogSettings.xml");
+
+		CSOConverter converter = new CSOConverter();
+		List<File> sources = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("-o".equals(arg) && i + 1 < args.length) {
+				converter.outputDirectory = new File(args[++i]);
+			} else if ("-v1".equals(arg)) {
+				converter.version = 1;
+			} else if ("-v2".equals(arg)) {
+				converter.version = 2;
+			} else if ("-level".equals(arg) && i + 1 < args.length) {
+				converter.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, Integer.parseInt(args[++i])));
+			} else if ("-threads".equals(arg) && i + 1 < args.length) {
+				converter.numberThreads = Math.max(1, Integer.parseInt(args[++i]));
+			} else if ("-shift".equals(arg) && i + 1 < args.length) {
+				converter.offsetShift = Math.max(0, Math.min(31, Integer.parseInt(args[++i])));
+			} else if ("-noverify".equals(arg)) {
+				converter.verify = false;
+			} else if (arg.startsWith("-")) {
+				System.out.println(String.format("Unknown option '%s'", arg));
+				usage();
+				return;
+			} else {
+				sources.add(new File(arg));
+			}
+		}
+
+		if (sources.isEmpty()) {
+			usage();
+			return;
+		}
+
+		converter.startThreads();
+
+		int failures = 0;
+		long totalSourceLength = 0;
+		long totalCsoLength = 0;
+		for (File source : sources) {
+			File cso = converter.getCsoFile(source);
+			try {
+				Result result = converter.convert(source, cso);
+				totalSourceLength += result.sourceLength;
+				totalCsoLength += result.csoLength;
+				report(source, result);
+				if (result.verificationError != null) {
+					failures++;
+				}
+			} catch (IOException e) {
+				System.out.println(String.format("%s: conversion failed: %s", source, e.getMessage()));
+				cso.delete();
+				failures++;
+			}
+		}
+
+		converter.stopThreads();
+
+		System.out.println(String.format("%d images converted, %d failed, %d MB -> %d MB (%.1f%%)", sources.size() - failures, failures, totalSourceLength >> 20, totalCsoLength >> 20, getRatio(totalCsoLength, totalSourceLength)));
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage: CSOConverter [-o directory] [-v1|-v2] [-level n] [-threads n] [-shift n] [-noverify] image...");
+	}
+
+	private static double getRatio(long csoLength, long sourceLength) {
+		return sourceLength == 0 ? 0.0 : csoLength * 100.0 / sourceLength;
+	}
+
+	private static void report(File source, Result result) {
+		double seconds = Math.max(result.conversionMillis, 1L) / 1000.0;
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("%s: %d sectors, %d KB -> %d KB (%.1f%%, %d blocks uncompressed) in %.1f s (%.1f MB/s)", source, result.numSectors, result.sourceLength >> 10, result.csoLength >> 10, getRatio(result.csoLength, result.sourceLength), result.uncompressedBlocks, seconds, result.sourceLength / seconds / (1024 * 1024)));
+		if (result.verificationError != null) {
+			s.append(String.format(", verification failed: %s", result.verificationError));
+		} else if (result.verified) {
+			s.append(String.format(", verified, random reads %.0f sectors/s (source %.0f sectors/s)", result.csoReadsPerSecond, result.sourceReadsPerSecond));
+		}
+		System.out.println(s.toString());
+	}
+
+	private File getCsoFile(File source) {
+		String name = source.getName();
+		int extension = name.lastIndexOf('.');
+		if (extension > 0) {
+			name = name.substring(0, extension);
+		}
+		name += ".cso";
+
+		File directory = outputDirectory != null ? outputDirectory : source.getAbsoluteFile().getParentFile();
+		return new File(directory, name);
+	}
+
+	private void startThreads() {
+		for (int i = 0; i < numberThreads; i++) {
+			Thread thread = new CompressionThread();
+			thread.setName(String.format("Thread CSOConverter #%d", i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+	}
+
+	private void stopThreads() {
+		ended = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		threads.clear();
+	}
+
+	private int getOffsetShift(int numSectors) {
+		if (offsetShift >= 0) {
+			return offsetShift;
+		}
+
+		// Worst case: all the blocks are stored uncompressed
+		long maxLength = headerSize + (numSectors + 1) * 4L + numSectors * (long) blockSize + blockSize;
+		int shift = 0;
+		while ((maxLength >> shift) > maxIndexOffset) {
+			shift++;
+		}
+
+		return shift;
+	}
+
+	private static long align(long position, int shift) {
+		long alignment = (1L << shift) - 1;
+		return (position + alignment) & ~alignment;
+	}
+
+	public Result convert(File source, File cso) throws IOException {
+		if (source.getCanonicalFile().equals(cso.getCanonicalFile())) {
+			throw new IOException(String.format("the CSO image '%s' would overwrite the source image", cso));
+		}
+
+		Result result = new Result();
+		ISectorDevice sourceDevice = UmdIsoReader.openSectorDevice(source.getPath());
+		try {
+			long start = System.currentTimeMillis();
+			int numSectors = sourceDevice.getNumSectors();
+			result.numSectors = numSectors;
+			result.sourceLength = numSectors * (long) sectorLength;
+
+			write(sourceDevice, numSectors, cso, result);
+			result.conversionMillis = System.currentTimeMillis() - start;
+			result.csoLength = cso.length();
+
+			if (verify) {
+				result.verificationError = verify(sourceDevice, numSectors, cso, result);
+				result.verified = result.verificationError == null;
+			}
+		} finally {
+			sourceDevice.close();
+		}
+
+		if (result.verificationError != null) {
+			cso.delete();
+		}
+
+		return result;
+	}
+
+	private Chunk getFreeChunk() {
+		Chunk chunk = freeChunks.pollFirst();
+		if (chunk == null) {
+			chunk = new Chunk();
+		}
+
+		return chunk;
+	}
+
+	private void write(ISectorDevice sourceDevice, int numSectors, File cso, Result result) throws IOException {
+		int shift = getOffsetShift(numSectors);
+		int[] index = new int[numSectors + 1];
+		byte[] padding = new byte[1 << Math.min(shift, 16)];
+
+		if (cso.getParentFile() != null) {
+			cso.getParentFile().mkdirs();
+		}
+		RandomAccessFile out = new RandomAccessFile(cso, "rw");
+		try {
+			out.setLength(0L);
+
+			// The header and index table are written at the end, when the offsets are known
+			long position = align(headerSize + index.length * 4L, shift);
+			out.seek(position);
+
+			// Keep enough chunks in flight to have all the threads busy
+			// while one chunk is being written
+			int maxPendingChunks = numberThreads * 2;
+			ArrayDeque<Chunk> pendingChunks = new ArrayDeque<Chunk>();
+			byte[] writeBuffer = new byte[sectorsPerChunk * (blockSize + padding.length)];
+			int nextSector = 0;
+			while (nextSector < numSectors || !pendingChunks.isEmpty()) {
+				if (nextSector < numSectors && pendingChunks.size() < maxPendingChunks) {
+					Chunk chunk = getFreeChunk();
+					chunk.firstSector = nextSector;
+					chunk.numberSectors = Math.min(sectorsPerChunk, numSectors - nextSector);
+					chunk.offsetShift = shift;
+					chunk.compressed = new CountDownLatch(1);
+					sourceDevice.readSectors(chunk.firstSector, chunk.numberSectors, chunk.data, 0);
+					nextSector += chunk.numberSectors;
+					pendingChunks.addLast(chunk);
+					chunksToCompress.add(chunk);
+					continue;
+				}
+
+				// Write the oldest chunk
+				Chunk chunk = pendingChunks.pollFirst();
+				try {
+					chunk.compressed.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+
+				int writeLength = 0;
+				for (int i = 0; i < chunk.numberSectors; i++) {
+					int sectorNumber = chunk.firstSector + i;
+					int length = chunk.compressedLengths[i];
+					int offsetFlag = 0;
+					if (length < 0) {
+						// Version 2 detects uncompressed blocks from their length
+						if (version < 2) {
+							offsetFlag = indexUncompressedFlag;
+						}
+						System.arraycopy(chunk.data, i * sectorLength, writeBuffer, writeLength, blockSize);
+						length = blockSize;
+						result.uncompressedBlocks++;
+					} else {
+						System.arraycopy(chunk.compressedData, i * blockSize, writeBuffer, writeLength, length);
+					}
+
+					long alignedPosition = align(position + length, shift);
+					int paddingLength = (int) (alignedPosition - position - length);
+					System.arraycopy(padding, 0, writeBuffer, writeLength + length, paddingLength);
+
+					index[sectorNumber] = getIndexOffset(position, shift) | offsetFlag;
+					writeLength += length + paddingLength;
+					position = alignedPosition;
+				}
+				out.write(writeBuffer, 0, writeLength);
+
+				freeChunks.addLast(chunk);
+			}
+			index[numSectors] = getIndexOffset(position, shift);
+
+			ByteBuffer header = ByteBuffer.allocate(headerSize + index.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte) 'C');
+			header.put((byte) 'I');
+			header.put((byte) 'S');
+			header.put((byte) 'O');
+			header.putInt(headerSize);
+			header.putLong(numSectors * (long) sectorLength);
+			header.putInt(blockSize);
+			header.put((byte) version);
+			header.put((byte) shift);
+			header.put((byte) 0);
+			header.put((byte) 0);
+			for (int i = 0; i < index.length; i++) {
+				header.putInt(index[i]);
+			}
+			out.seek(0L);
+			out.write(header.array());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int getIndexOffset(long position, int shift) throws IOException {
+		long offset = position >> shift;
+		if (offset > maxIndexOffset) {
+			throw new IOException(String.format("image too large for the offset shift %d", shift));
+		}
+
+		return (int) offset;
+	}
+
+	/**
+	 * Compress the blocks of a chunk.
+	 * A block is only stored compressed when it is still smaller
+	 * than the block size once aligned on the offset shift.
+	 * CSO version 2 requires this to detect the uncompressed blocks,
+	 * and it is also used for version 1 to keep both layouts identical.
+	 */
+	private static void compress(Chunk chunk, Deflater deflater) {
+		for (int i = 0; i < chunk.numberSectors; i++) {
+			deflater.reset();
+			deflater.setInput(chunk.data, i * sectorLength, sectorLength);
+			deflater.finish();
+			int length = deflater.deflate(chunk.compressedData, i * blockSize, blockSize);
+			if (!deflater.finished() || align(length, chunk.offsetShift) >= blockSize) {
+				length = -1;
+			}
+			chunk.compressedLengths[i] = length;
+		}
+	}
+
+	private String verify(ISectorDevice sourceDevice, int numSectors, File cso, Result result) throws IOException {
+		ISectorDevice csoDevice = UmdIsoReader.openSectorDevice(cso.getPath());
+		try {
+			if (csoDevice.getNumSectors() != numSectors) {
+				return String.format("%d sectors instead of %d", csoDevice.getNumSectors(), numSectors);
+			}
+
+			byte[] sourceData = new byte[sectorsPerChunk * sectorLength];
+			byte[] csoData = new byte[sectorsPerChunk * sectorLength];
+			for (int sectorNumber = 0; sectorNumber < numSectors; sectorNumber += sectorsPerChunk) {
+				int numberSectors = Math.min(sectorsPerChunk, numSectors - sectorNumber);
+				sourceDevice.readSectors(sectorNumber, numberSectors, sourceData, 0);
+				csoDevice.readSectors(sectorNumber, numberSectors, csoData, 0);
+				if (!Arrays.equals(sourceData, csoData)) {
+					for (int i = 0; i < numberSectors; i++) {
+						int offset = i * sectorLength;
+						if (!Arrays.equals(Arrays.copyOfRange(sourceData, offset, offset + sectorLength), Arrays.copyOfRange(csoData, offset, offset + sectorLength))) {
+							return String.format("sector %d is different", sectorNumber + i);
+						}
+					}
+				}
+			}
+
+			result.csoReadsPerSecond = measureRandomReads(csoDevice, numSectors);
+			result.sourceReadsPerSecond = measureRandomReads(sourceDevice, numSectors);
+		} finally {
+			csoDevice.close();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Measure the number of single-sector reads per second at random positions.
+	 * This is the access pattern of a game reading small files from the UMD.
+	 * Repeated measures of the same image are benefiting from the file system cache.
+	 */
+	private static double measureRandomReads(ISectorDevice sectorDevice, int numSectors) throws IOException {
+		if (numSectors <= 0) {
+			return 0.0;
+		}
+
+		// Use the same sectors for the source and the CSO images
+		Random random = new Random(numSectors);
+		byte[] buffer = new byte[sectorLength];
+		long start = System.nanoTime();
+		long end = start + randomReadsMaxDuration * 1000000L;
+		int count = 0;
+		long now;
+		do {
+			for (int i = 0; i < 100; i++) {
+				sectorDevice.readSector(random.nextInt(numSectors), buffer, 0);
+			}
+			count += 100;
+			now = System.nanoTime();
+		} while (now < end && count < randomReadsMaxCount);
+
+		return count * 1000000000.0 / Math.max(now - start, 1L);
+	}
+
+	private class CompressionThread extends Thread {
+		@Override
+		public void run() {
+			Deflater deflater = new Deflater(level, true);
+			while (!ended) {
+				try {
+					Chunk chunk = chunksToCompress.take();
+					try {
+						compress(chunk, deflater);
+					} finally {
+						chunk.compressed.countDown();
+					}
+				} catch (InterruptedException e) {
+					// Ignore Exception
+				}
+			}
+			deflater.end();
+		}
+	}
+}
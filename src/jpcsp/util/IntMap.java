@@ -0,0 +1,195 @@
+/*
+This file is part of jpcsp.
+
+Jpcsp is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Jpcsp is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jpcsp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map using primitive int keys (open addressing with linear probing).
+ * Compared to a HashMap<Integer, V>, no Integer objects are created
+ * and no Entry objects are allocated.
+ *
+ * @param <V> the type of the values
+ */
+public class IntMap<V> {
+	private static final int DEFAULT_CAPACITY = 16;
+	private int[] keys;
+	private Object[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	public IntMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntMap(int capacity) {
+		allocate(Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1));
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int key) {
+		for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = indexOf(key);
+		return i < 0 ? null : (V) values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		int i = hash(key) & mask;
+		for (; used[i]; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+
+		used[i] = true;
+		keys[i] = key;
+		values[i] = value;
+		size++;
+
+		// Keep the load factor below 0.5
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+
+		V previous = (V) values[i];
+		used[i] = false;
+		values[i] = null;
+		size--;
+
+		// Re-insert the following entries of the same cluster
+		for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+			int k = keys[j];
+			Object v = values[j];
+			used[j] = false;
+			values[j] = null;
+			int n = hash(k) & mask;
+			while (used[n]) {
+				n = (n + 1) & mask;
+			}
+			used[n] = true;
+			keys[n] = k;
+			values[n] = v;
+		}
+
+		return previous;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int n = hash(oldKeys[i]) & mask;
+				while (used[n]) {
+					n = (n + 1) & mask;
+				}
+				used[n] = true;
+				keys[n] = oldKeys[i];
+				values[n] = oldValues[i];
+				size++;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return a copy of all the keys present in the map
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		for (int i = 0, n = 0; i < keys.length; i++) {
+			if (used[i]) {
+				result[n++] = keys[i];
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return a copy of all the values present in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				result.add((V) values[i]);
+			}
+		}
+
+		return result;
+	}
+}
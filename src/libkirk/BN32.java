@@ -0,0 +1,238 @@
+/*
+ This file is part of jpcsp.
+
+ Jpcsp is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Jpcsp is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Jpcsp.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package libkirk;
+
+import static libkirk.BN.bn_to_mon;
+
+/**
+ * Modular arithmetic on 32-bit limbs, as a faster alternative
+ * to the byte-oriented functions of BN.
+ *
+ * For a modulus of n bytes (n being a multiple of 4), the Montgomery radix
+ * is 2^(8*n) in both implementations: numbers in Montgomery form
+ * can be exchanged between BN and BN32 without any conversion.
+ *
+ * The limbs are stored with the least significant limb first.
+ */
+public class BN32 {
+	private static final long MASK = 0xFFFFFFFFL;
+
+	public static class Modulus {
+		// Number of bytes
+		public final int n;
+		// Number of 32-bit limbs
+		public final int k;
+		private final int[] N;
+		// -N^-1 mod 2^32
+		private final int n0;
+		// The value 1 in Montgomery form
+		private final int[] one;
+		// N - 2, the exponent used for the inversion
+		private final int[] e;
+
+		public Modulus(byte[] N, int offset, int n) {
+			this.n = n;
+			k = n >> 2;
+			this.N = new int[k];
+			bn32_from_bytes(this.N, N, offset, n);
+
+			int inv = 1;
+			for (int i = 0; i < 5; i++) {
+				inv *= 2 - this.N[0] * inv;
+			}
+			n0 = -inv;
+
+			final byte[] oneBytes = new byte[n];
+			oneBytes[n - 1] = (byte) 1;
+			bn_to_mon(oneBytes, 0, N, offset, n);
+			one = new int[k];
+			bn32_from_bytes(one, oneBytes, 0, n);
+
+			e = new int[k];
+			long c = -2L;
+			for (int i = 0; i < k; i++) {
+				c += this.N[i] & MASK;
+				e[i] = (int) c;
+				c >>= 32;
+			}
+		}
+
+		public int[] newNumber() {
+			return new int[k];
+		}
+
+		public int[] getOne() {
+			return one;
+		}
+	}
+
+	public static boolean isSupported(int n) {
+		return n > 0 && (n & 3) == 0;
+	}
+
+	public static void bn32_from_bytes(int[] d, byte[] a, int offset, int n) {
+		for (int i = 0, j = offset + n - 4; i < d.length; i++, j -= 4) {
+			d[i] = ((a[j] & 0xFF) << 24) | ((a[j + 1] & 0xFF) << 16) | ((a[j + 2] & 0xFF) << 8) | (a[j + 3] & 0xFF);
+		}
+	}
+
+	public static void bn32_to_bytes(byte[] d, int offset, int[] a, int n) {
+		for (int i = 0, j = offset + n - 4; i < a.length; i++, j -= 4) {
+			int value = a[i];
+			d[j    ] = (byte) (value >>> 24);
+			d[j + 1] = (byte) (value >>> 16);
+			d[j + 2] = (byte) (value >>> 8);
+			d[j + 3] = (byte) value;
+		}
+	}
+
+	public static void bn32_copy(int[] d, int[] a) {
+		System.arraycopy(a, 0, d, 0, d.length);
+	}
+
+	public static boolean bn32_is_zero(int[] a) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public static boolean bn32_equals(int[] a, int[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int bn32_compare(int[] a, int[] b, int k) {
+		for (int i = k - 1; i >= 0; i--) {
+			if (a[i] != b[i]) {
+				return (a[i] & MASK) < (b[i] & MASK) ? -1 : 1;
+			}
+		}
+
+		return 0;
+	}
+
+	private static void bn32_sub_1(int[] d, int[] a, int[] b, int k) {
+		long c = 0L;
+		for (int i = 0; i < k; i++) {
+			c += (a[i] & MASK) - (b[i] & MASK);
+			d[i] = (int) c;
+			c >>= 32;
+		}
+	}
+
+	// d = a + b (mod N)
+	public static void bn32_add(int[] d, int[] a, int[] b, Modulus N) {
+		final int k = N.k;
+		long c = 0L;
+		for (int i = 0; i < k; i++) {
+			c += (a[i] & MASK) + (b[i] & MASK);
+			d[i] = (int) c;
+			c >>>= 32;
+		}
+
+		if (c != 0L || bn32_compare(d, N.N, k) >= 0) {
+			bn32_sub_1(d, d, N.N, k);
+		}
+	}
+
+	// d = a - b (mod N)
+	public static void bn32_sub(int[] d, int[] a, int[] b, Modulus N) {
+		final int k = N.k;
+		long c = 0L;
+		for (int i = 0; i < k; i++) {
+			c += (a[i] & MASK) - (b[i] & MASK);
+			d[i] = (int) c;
+			c >>= 32;
+		}
+
+		if (c != 0L) {
+			c = 0L;
+			for (int i = 0; i < k; i++) {
+				c += (d[i] & MASK) + (N.N[i] & MASK);
+				d[i] = (int) c;
+				c >>>= 32;
+			}
+		}
+	}
+
+	// d = a * b / R (mod N), using the "Coarsely Integrated Operand Scanning" method
+	public static void bn32_mon_mul(int[] d, int[] a, int[] b, Modulus N) {
+		final int k = N.k;
+		final int[] n = N.N;
+		final int[] t = new int[k + 2];
+
+		for (int i = 0; i < k; i++) {
+			final long bi = b[i] & MASK;
+			long c = 0L;
+			for (int j = 0; j < k; j++) {
+				long s = (t[j] & MASK) + (a[j] & MASK) * bi + c;
+				t[j] = (int) s;
+				c = s >>> 32;
+			}
+			long s = (t[k] & MASK) + c;
+			t[k] = (int) s;
+			t[k + 1] = (int) (s >>> 32);
+
+			final long m = (t[0] * N.n0) & MASK;
+			s = (t[0] & MASK) + m * (n[0] & MASK);
+			c = s >>> 32;
+			for (int j = 1; j < k; j++) {
+				s = (t[j] & MASK) + m * (n[j] & MASK) + c;
+				t[j - 1] = (int) s;
+				c = s >>> 32;
+			}
+			s = (t[k] & MASK) + c;
+			t[k - 1] = (int) s;
+			t[k] = t[k + 1] + (int) (s >>> 32);
+		}
+
+		if (t[k] != 0 || bn32_compare(t, n, k) >= 0) {
+			bn32_sub_1(d, t, n, k);
+		} else {
+			System.arraycopy(t, 0, d, 0, k);
+		}
+	}
+
+	// d = 1 / a (mod N), N being prime, in Montgomery form
+	public static void bn32_mon_inv(int[] d, int[] a, Modulus N) {
+		final int k = N.k;
+		final int[] t = new int[k];
+		final int[] s = new int[k];
+
+		bn32_copy(s, a);
+		bn32_copy(t, N.one);
+		for (int i = k - 1; i >= 0; i--) {
+			for (int mask = 0x80000000; mask != 0; mask >>>= 1) {
+				bn32_mon_mul(t, t, t, N);
+				if ((N.e[i] & mask) != 0) {
+					bn32_mon_mul(t, t, s, N);
+				}
+			}
+		}
+
+		bn32_copy(d, t);
+	}
+}
@@ -33,11 +33,24 @@ import static libkirk.BN.bn_mon_mul;
 import static libkirk.BN.bn_reduce;
 import static libkirk.BN.bn_sub;
 import static libkirk.BN.bn_to_mon;
+import static libkirk.BN32.bn32_add;
+import static libkirk.BN32.bn32_copy;
+import static libkirk.BN32.bn32_equals;
+import static libkirk.BN32.bn32_from_bytes;
+import static libkirk.BN32.bn32_is_zero;
+import static libkirk.BN32.bn32_mon_inv;
+import static libkirk.BN32.bn32_mon_mul;
+import static libkirk.BN32.bn32_sub;
+import static libkirk.BN32.bn32_to_bytes;
 import static libkirk.Utilities.log;
 import static libkirk.Utilities.memcpy;
 import static libkirk.Utilities.u8;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import libkirk.KirkEngine.ECDSA_POINT;
 
@@ -70,6 +83,118 @@ public class EC {
 	static private final ECPoint ec_G = new ECPoint(); // mon
 	static private final ECPoint ec_Q = new ECPoint(); // mon
 	static private final byte[] ec_k = new byte[BIGNUMBER_SIZE];
+	// Point multiplications using Jacobian coordinates on 32-bit limbs,
+	// instead of affine coordinates requiring one inversion per point addition
+	public static boolean enableFastPointMul = true;
+	private static final int WINDOW_BITS = 4;
+	private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+	private static final int NUMBER_WINDOWS = BIGNUMBER_SIZE * 8 / WINDOW_BITS;
+	private static final int MAX_PUBLIC_KEY_TABLES = 16;
+	private static final Map<ByteBuffer, Curve> curves = new HashMap<ByteBuffer, Curve>();
+	static private Curve ec_curve;
+
+	/**
+	 * A point in Jacobian coordinates (X, Y, Z), representing
+	 * the affine point (X/Z^2, Y/Z^3).
+	 * All the coordinates are in Montgomery form.
+	 * Z == 0 represents the point at infinity.
+	 */
+	private static class JacobianPoint {
+		public final int[] x;
+		public final int[] y;
+		public final int[] z;
+
+		public JacobianPoint(BN32.Modulus p) {
+			x = p.newNumber();
+			y = p.newNumber();
+			z = p.newNumber();
+		}
+
+		public boolean isInfinity() {
+			return bn32_is_zero(z);
+		}
+
+		public void set(JacobianPoint q) {
+			bn32_copy(x, q.x);
+			bn32_copy(y, q.y);
+			bn32_copy(z, q.z);
+		}
+	}
+
+	/**
+	 * Precomputed values for the current curve.
+	 * The curves are cached as the Kirk commands are switching between 2 curves.
+	 */
+	private static class Curve {
+		public final BN32.Modulus p;
+		public final int[] a;
+		public final JacobianPoint G;
+		// generatorTable[i][j] = j * 2^(WINDOW_BITS*i) * G, with Z == 1
+		private JacobianPoint[][] generatorTable;
+		private boolean generatorTableInvalid;
+		private final LinkedHashMap<ByteBuffer, JacobianPoint[]> publicKeyTables = new LinkedHashMap<ByteBuffer, JacobianPoint[]>(MAX_PUBLIC_KEY_TABLES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, JacobianPoint[]> eldest) {
+				return size() > MAX_PUBLIC_KEY_TABLES;
+			}
+		};
+
+		public Curve(byte[] p, byte[] a, ECPoint G) {
+			this.p = new BN32.Modulus(p, 0, ELT_SIZE);
+			this.a = this.p.newNumber();
+			bn32_from_bytes(this.a, a, 0, ELT_SIZE);
+			this.G = toJacobian(this, G);
+		}
+
+		public synchronized JacobianPoint[][] getGeneratorTable() {
+			if (generatorTable == null && !generatorTableInvalid) {
+				JacobianPoint[] points = new JacobianPoint[NUMBER_WINDOWS * (WINDOW_SIZE - 1)];
+				JacobianPoint base = G;
+				for (int i = 0, n = 0; i < NUMBER_WINDOWS; i++) {
+					points[n++] = base;
+					for (int j = 2; j < WINDOW_SIZE; j++, n++) {
+						points[n] = new JacobianPoint(p);
+						jacobian_add(this, points[n], points[n - 1], base);
+					}
+					JacobianPoint nextBase = new JacobianPoint(p);
+					jacobian_add(this, nextBase, points[n - 1], base);
+					base = nextBase;
+				}
+
+				if (jacobian_normalize(this, points)) {
+					generatorTable = new JacobianPoint[NUMBER_WINDOWS][WINDOW_SIZE];
+					for (int i = 0, n = 0; i < NUMBER_WINDOWS; i++) {
+						for (int j = 1; j < WINDOW_SIZE; j++) {
+							generatorTable[i][j] = points[n++];
+						}
+					}
+				} else {
+					generatorTableInvalid = true;
+				}
+			}
+
+			return generatorTable;
+		}
+
+		public synchronized JacobianPoint[] getPublicKeyTable(ECPoint Q) {
+			final byte[] key = new byte[ELT_SIZE * 2];
+			arraycopy(Q.x, 0, key, 0, ELT_SIZE);
+			arraycopy(Q.y, 0, key, ELT_SIZE, ELT_SIZE);
+			ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+
+			JacobianPoint[] table = publicKeyTables.get(keyBuffer);
+			if (table == null) {
+				table = getWindowTable(this, toJacobian(this, Q));
+				if (table != null) {
+					publicKeyTables.put(keyBuffer, table);
+				}
+			}
+
+			return table;
+		}
+	}
 
 	public static void hex_dump(String str, byte[] buf, int size) {
 		hex_dump(str, buf, 0, size);
@@ -258,6 +383,41 @@ public class EC {
 	}
 
 	public static void point_mul(ECPoint d, byte[] a, int offset, ECPoint b) { // a is bignum
+		final Curve curve = ec_curve;
+		if (enableFastPointMul && curve != null) {
+			JacobianPoint r = new JacobianPoint(curve.p);
+			if (point_mul(curve, r, a, offset, b)) {
+				toAffine(curve, d, r);
+				return;
+			}
+		}
+
+		point_mul_reference(d, a, offset, b);
+	}
+
+	// d = a1 * b1 + a2 * b2
+	public static void point_mul_add(ECPoint d, byte[] a1, ECPoint b1, byte[] a2, ECPoint b2) {
+		final Curve curve = ec_curve;
+		if (enableFastPointMul && curve != null) {
+			JacobianPoint r1 = new JacobianPoint(curve.p);
+			JacobianPoint r2 = new JacobianPoint(curve.p);
+			if (point_mul(curve, r1, a1, 0, b1) && point_mul(curve, r2, a2, 0, b2)) {
+				jacobian_add(curve, r1, r1, r2);
+				toAffine(curve, d, r1);
+				return;
+			}
+		}
+
+		final ECPoint r2 = new ECPoint();
+		point_mul_reference(d, a1, 0, b1);
+		point_mul_reference(r2, a2, 0, b2);
+		point_add(d, d, r2);
+	}
+
+	/**
+	 * The original double-and-add implementation using affine coordinates.
+	 */
+	public static void point_mul_reference(ECPoint d, byte[] a, int offset, ECPoint b) { // a is bignum
 		point_zero(d);
 
 		for (int i = 0; i < BIGNUMBER_SIZE; i++) {
@@ -270,6 +430,255 @@ public class EC {
 		}
 	}
 
+	private static int getWindow(byte[] a, int offset, int window) {
+		int value = u8(a, offset + BIGNUMBER_SIZE - 1 - (window >> 1));
+		return (window & 1) == 0 ? value & 0xF : value >> 4;
+	}
+
+	private static boolean point_mul(Curve curve, JacobianPoint r, byte[] a, int offset, ECPoint b) {
+		if (point_is_zero(b)) {
+			r.set(new JacobianPoint(curve.p));
+			return true;
+		}
+
+		if (b == ec_G) {
+			// Fixed-base multiplication: only additions, no doubling
+			JacobianPoint[][] table = curve.getGeneratorTable();
+			if (table == null) {
+				return false;
+			}
+
+			r.set(new JacobianPoint(curve.p));
+			for (int i = 0; i < NUMBER_WINDOWS; i++) {
+				int window = getWindow(a, offset, i);
+				if (window != 0) {
+					jacobian_add(curve, r, r, table[i][window]);
+				}
+			}
+
+			return true;
+		}
+
+		final JacobianPoint[] table;
+		if (b == ec_Q) {
+			table = curve.getPublicKeyTable(b);
+		} else {
+			table = getWindowTable(curve, toJacobian(curve, b));
+		}
+		if (table == null) {
+			return false;
+		}
+
+		// Fixed-window multiplication
+		r.set(new JacobianPoint(curve.p));
+		for (int i = NUMBER_WINDOWS - 1; i >= 0; i--) {
+			for (int j = 0; j < WINDOW_BITS; j++) {
+				jacobian_double(curve, r, r);
+			}
+			int window = getWindow(a, offset, i);
+			if (window != 0) {
+				jacobian_add(curve, r, r, table[window]);
+			}
+		}
+
+		return true;
+	}
+
+	// Build the table j * b for j=1..WINDOW_SIZE-1, with Z == 1
+	private static JacobianPoint[] getWindowTable(Curve curve, JacobianPoint b) {
+		JacobianPoint[] points = new JacobianPoint[WINDOW_SIZE - 1];
+		points[0] = b;
+		for (int j = 1; j < points.length; j++) {
+			points[j] = new JacobianPoint(curve.p);
+			jacobian_add(curve, points[j], points[j - 1], b);
+		}
+
+		if (!jacobian_normalize(curve, points)) {
+			return null;
+		}
+
+		JacobianPoint[] table = new JacobianPoint[WINDOW_SIZE];
+		arraycopy(points, 0, table, 1, points.length);
+
+		return table;
+	}
+
+	private static JacobianPoint toJacobian(Curve curve, ECPoint p) {
+		JacobianPoint r = new JacobianPoint(curve.p);
+		bn32_from_bytes(r.x, p.x, 0, ELT_SIZE);
+		bn32_from_bytes(r.y, p.y, 0, ELT_SIZE);
+		bn32_copy(r.z, curve.p.getOne());
+
+		return r;
+	}
+
+	private static void toAffine(Curve curve, ECPoint d, JacobianPoint r) {
+		if (r.isInfinity()) {
+			point_zero(d);
+			return;
+		}
+
+		final int[] t = curve.p.newNumber();
+		final int[] u = curve.p.newNumber();
+		bn32_mon_inv(t, r.z, curve.p);       // t = 1/Z
+		bn32_mon_mul(u, t, t, curve.p);      // u = 1/Z^2
+		bn32_mon_mul(t, t, u, curve.p);      // t = 1/Z^3
+		bn32_mon_mul(u, r.x, u, curve.p);    // u = X/Z^2
+		bn32_to_bytes(d.x, 0, u, ELT_SIZE);
+		bn32_mon_mul(u, r.y, t, curve.p);    // u = Y/Z^3
+		bn32_to_bytes(d.y, 0, u, ELT_SIZE);
+	}
+
+	/**
+	 * Convert the points to Z == 1, using a single inversion.
+	 *
+	 * @return false if one of the points is the point at infinity
+	 */
+	private static boolean jacobian_normalize(Curve curve, JacobianPoint[] points) {
+		final BN32.Modulus p = curve.p;
+		final int[][] products = new int[points.length][];
+		int[] product = p.getOne();
+		for (int i = 0; i < points.length; i++) {
+			if (points[i].isInfinity()) {
+				return false;
+			}
+			products[i] = p.newNumber();
+			bn32_mon_mul(products[i], product, points[i].z, p);
+			product = products[i];
+		}
+
+		final int[] inv = p.newNumber();
+		final int[] zinv = p.newNumber();
+		final int[] t = p.newNumber();
+		bn32_mon_inv(inv, product, p);
+		for (int i = points.length - 1; i >= 0; i--) {
+			JacobianPoint point = points[i];
+			if (i > 0) {
+				bn32_mon_mul(zinv, inv, products[i - 1], p);
+				bn32_mon_mul(inv, inv, point.z, p);
+			} else {
+				bn32_copy(zinv, inv);
+			}
+			bn32_mon_mul(t, zinv, zinv, p);         // t = 1/Z^2
+			bn32_mon_mul(point.x, point.x, t, p);
+			bn32_mon_mul(t, t, zinv, p);            // t = 1/Z^3
+			bn32_mon_mul(point.y, point.y, t, p);
+			bn32_copy(point.z, p.getOne());
+		}
+
+		return true;
+	}
+
+	// r = 2 * q
+	private static void jacobian_double(Curve curve, JacobianPoint r, JacobianPoint q) {
+		final BN32.Modulus p = curve.p;
+		if (q.isInfinity() || bn32_is_zero(q.y)) {
+			r.set(new JacobianPoint(p));
+			return;
+		}
+
+		final int[] xx = p.newNumber();
+		final int[] yy = p.newNumber();
+		final int[] s = p.newNumber();
+		final int[] m = p.newNumber();
+		final int[] t = p.newNumber();
+
+		bn32_mon_mul(xx, q.x, q.x, p);  // xx = X^2
+		bn32_mon_mul(yy, q.y, q.y, p);  // yy = Y^2
+		bn32_mon_mul(s, q.x, yy, p);
+		bn32_add(s, s, s, p);
+		bn32_add(s, s, s, p);           // s = 4*X*Y^2
+		bn32_mon_mul(t, q.z, q.z, p);
+		bn32_mon_mul(t, t, t, p);
+		bn32_mon_mul(t, t, curve.a, p); // t = a*Z^4
+		bn32_add(m, xx, xx, p);
+		bn32_add(m, m, xx, p);
+		bn32_add(m, m, t, p);           // m = 3*X^2 + a*Z^4
+
+		bn32_mon_mul(r.z, q.y, q.z, p);
+		bn32_add(r.z, r.z, r.z, p);     // Z3 = 2*Y*Z
+
+		bn32_mon_mul(r.x, m, m, p);
+		bn32_sub(r.x, r.x, s, p);
+		bn32_sub(r.x, r.x, s, p);       // X3 = m^2 - 2*s
+
+		bn32_mon_mul(yy, yy, yy, p);
+		bn32_add(yy, yy, yy, p);
+		bn32_add(yy, yy, yy, p);
+		bn32_add(yy, yy, yy, p);        // yy = 8*Y^4
+		bn32_sub(t, s, r.x, p);
+		bn32_mon_mul(r.y, m, t, p);
+		bn32_sub(r.y, r.y, yy, p);      // Y3 = m*(s - X3) - 8*Y^4
+	}
+
+	// r = q1 + q2
+	private static void jacobian_add(Curve curve, JacobianPoint r, JacobianPoint q1, JacobianPoint q2) {
+		final BN32.Modulus p = curve.p;
+		if (q1.isInfinity()) {
+			r.set(q2);
+			return;
+		}
+		if (q2.isInfinity()) {
+			r.set(q1);
+			return;
+		}
+
+		final int[] u1 = p.newNumber();
+		final int[] u2 = p.newNumber();
+		final int[] s1 = p.newNumber();
+		final int[] s2 = p.newNumber();
+		final int[] t = p.newNumber();
+		final boolean q2Normalized = bn32_equals(q2.z, p.getOne());
+
+		bn32_mon_mul(t, q1.z, q1.z, p);
+		bn32_mon_mul(u2, q2.x, t, p);   // u2 = X2*Z1^2
+		bn32_mon_mul(t, t, q1.z, p);
+		bn32_mon_mul(s2, q2.y, t, p);   // s2 = Y2*Z1^3
+		if (q2Normalized) {
+			bn32_copy(u1, q1.x);
+			bn32_copy(s1, q1.y);
+		} else {
+			bn32_mon_mul(t, q2.z, q2.z, p);
+			bn32_mon_mul(u1, q1.x, t, p);   // u1 = X1*Z2^2
+			bn32_mon_mul(t, t, q2.z, p);
+			bn32_mon_mul(s1, q1.y, t, p);   // s1 = Y1*Z2^3
+		}
+
+		bn32_sub(u2, u2, u1, p);        // u2 = h = u2 - u1
+		bn32_sub(s2, s2, s1, p);        // s2 = r = s2 - s1
+		if (bn32_is_zero(u2)) {
+			if (bn32_is_zero(s2)) {
+				jacobian_double(curve, r, q1);
+			} else {
+				r.set(new JacobianPoint(p));
+			}
+			return;
+		}
+
+		// Z3 = h*Z1*Z2
+		if (q2Normalized) {
+			bn32_mon_mul(r.z, q1.z, u2, p);
+		} else {
+			bn32_mon_mul(t, q1.z, q2.z, p);
+			bn32_mon_mul(r.z, t, u2, p);
+		}
+
+		final int[] hh = p.newNumber();
+		bn32_mon_mul(hh, u2, u2, p);    // hh = h^2
+		bn32_mon_mul(u2, u2, hh, p);    // u2 = h^3
+		bn32_mon_mul(u1, u1, hh, p);    // u1 = v = u1*h^2
+
+		bn32_mon_mul(t, s2, s2, p);
+		bn32_sub(t, t, u2, p);
+		bn32_sub(t, t, u1, p);
+		bn32_sub(r.x, t, u1, p);        // X3 = r^2 - h^3 - 2*v
+
+		bn32_sub(t, u1, r.x, p);
+		bn32_mon_mul(t, s2, t, p);
+		bn32_mon_mul(s1, s1, u2, p);
+		bn32_sub(r.y, t, s1, p);        // Y3 = r*(v - X3) - s1*h^3
+	}
+
 	public static void generate_ecdsa(byte[] outR, byte[] outS, byte[] k, byte[] hash) {
 		generate_ecdsa(outR, 0, outS, 0, k, 0, hash, 0);
 	}
@@ -327,7 +736,6 @@ public class EC {
 		final byte[] w2 = new byte[BIGNUMBER_SIZE];
 		final byte[] rr = new byte[BIGNUMBER_SIZE];
 		final ECPoint r1 = new ECPoint();
-		final ECPoint r2 = new ECPoint();
 
 		//e[0] = 0;
 		arraycopy(hash, hashoffset, e, 1, ELT_SIZE);
@@ -353,13 +761,8 @@ public class EC {
 		bn_from_mon(w1, ec_N, BIGNUMBER_SIZE);
 		bn_from_mon(w2, ec_N, BIGNUMBER_SIZE);
 
-		// r1 = m/s * G
-		point_mul(r1, w1, ec_G);
-		// r2 = r/s * P
-		point_mul(r2, w2, Q);
-
-		//r1 = r1 + r2
-		point_add(r1, r1, r2);
+		// r1 = m/s * G + r/s * P
+		point_mul_add(r1, w1, ec_G, w2, Q);
 
 		point_from_mon(r1);
 
@@ -422,6 +825,24 @@ public class EC {
 		arraycopy(Gy, Gyoffset, ec_G.y, 0, ELT_SIZE);
 		point_to_mon(ec_G);
 
+		ec_curve = null;
+		if (BN32.isSupported(ELT_SIZE)) {
+			final byte[] key = new byte[ELT_SIZE * 4];
+			arraycopy(ec_p, 0, key, 0, ELT_SIZE);
+			arraycopy(ec_a, 0, key, ELT_SIZE, ELT_SIZE);
+			arraycopy(ec_G.x, 0, key, ELT_SIZE * 2, ELT_SIZE);
+			arraycopy(ec_G.y, 0, key, ELT_SIZE * 3, ELT_SIZE);
+			ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+			synchronized (curves) {
+				Curve curve = curves.get(keyBuffer);
+				if (curve == null) {
+					curve = new Curve(ec_p, ec_a, ec_G);
+					curves.put(keyBuffer, curve);
+				}
+				ec_curve = curve;
+			}
+		}
+
 		return 0;
 	}
 
@@ -0,0 +1,254 @@
+package jpcsp.Allegrex.compiler;
+
+import static jpcsp.util.HLEUtilities.ADDIU;
+import static jpcsp.util.HLEUtilities.JAL;
+import static jpcsp.util.HLEUtilities.JR;
+import static jpcsp.util.HLEUtilities.LI;
+import static jpcsp.util.HLEUtilities.MOVE;
+import static jpcsp.util.HLEUtilities.NOP;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import jpcsp.AllegrexOpcodes;
+import jpcsp.Allegrex.Common;
+import jpcsp.Allegrex.CpuState;
+import jpcsp.test.CompilerFuzzer;
+
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+public class RegisterCacheMethodVisitorTest {
+    private static final String cpuInternalName = Type.getInternalName(CpuState.class);
+    private static final String[] cachedFieldNames = { "_t0", "_t1", "_t2" };
+    private static final int numberStates = 20;
+    private static CompilerFuzzer fuzzer;
+
+    @BeforeClass
+    public static void setUp() {
+        // The default log4j level would disassemble the compiled instructions,
+        // which requires the HLE modules
+        DOMConfigurator.configure("LogSettings.xml");
+        fuzzer = new CompilerFuzzer(false, 0);
+        fuzzer.init();
+    }
+
+    @After
+    public void tearDown() {
+        CompilerContext.enableRegisterCache = false;
+    }
+
+    private static int addu(int rd, int rs, int rt) {
+        return (AllegrexOpcodes.SPECIAL << 26) | (rs << 21) | (rt << 16) | (rd << 11) | AllegrexOpcodes.ADDU;
+    }
+
+    private static int xor(int rd, int rs, int rt) {
+        return (AllegrexOpcodes.SPECIAL << 26) | (rs << 21) | (rt << 16) | (rd << 11) | AllegrexOpcodes.XOR;
+    }
+
+    private static int sll(int rd, int rt, int sa) {
+        return (AllegrexOpcodes.SPECIAL << 26) | (rt << 16) | (rd << 11) | (sa << 6) | AllegrexOpcodes.SLL;
+    }
+
+    private static int bgtz(int rs, int offset) {
+        return (AllegrexOpcodes.BGTZ << 26) | (rs << 21) | (offset & 0xFFFF);
+    }
+
+    /**
+     * Run the opcodes compiled with and without the register cache,
+     * both executions having to match the interpreter.
+     */
+    private void assertSameState(int[] opcodes) {
+        for (int i = 0; i < numberStates; i++) {
+            CompilerContext.enableRegisterCache = false;
+            List<String> differences = fuzzer.runCase(opcodes, i);
+            Assert.assertNull(String.format("Without the register cache, state %d", i), differences);
+
+            CompilerContext.enableRegisterCache = true;
+            differences = fuzzer.runCase(opcodes, i);
+            Assert.assertNull(String.format("With the register cache, state %d", i), differences);
+        }
+    }
+
+    @Test
+    public void testLoop() {
+        int[] opcodes = {
+                LI(Common._t0, 50),
+                // loop:
+                addu(Common._t1, Common._t1, Common._t0),
+                xor(Common._t2, Common._t2, Common._t1),
+                sll(Common._t3, Common._t1, 2),
+                ADDIU(Common._t0, Common._t0, -1),
+                bgtz(Common._t0, -5), // loop
+                addu(Common._t4, Common._t1, Common._t2),
+                JR(),
+                NOP()
+        };
+
+        assertSameState(opcodes);
+    }
+
+    @Test
+    public void testCallInLoop() {
+        int function = CompilerFuzzer.CODE_ADDRESS + (9 << 2);
+        int[] opcodes = {
+                LI(Common._t0, 20),
+                // loop:
+                JAL(function),
+                addu(Common._t1, Common._t1, Common._t0),
+                ADDIU(Common._t0, Common._t0, -1),
+                bgtz(Common._t0, -4), // loop
+                xor(Common._t2, Common._t1, Common._t0),
+                // The return address of the sequence is saved in $k1
+                MOVE(Common._ra, Common._k1),
+                JR(),
+                NOP(),
+                // function: modifying registers cached by the caller
+                ADDIU(Common._t1, Common._t1, 7),
+                sll(Common._t2, Common._t1, 1),
+                JR(),
+                xor(Common._t0, Common._t0, Common._t2)
+        };
+
+        assertSameState(opcodes);
+    }
+
+    /**
+     * Stands for RuntimeContext.syscall(), which cannot be executed
+     * without the HLE modules: modify the registers behind the compiled code.
+     */
+    public static void syscall(CpuState cpu) {
+        cpu._t0 += 3;
+        cpu._t1 ^= cpu._t0;
+        cpu._v0 = cpu._t1;
+    }
+
+    public static void raiseException(CpuState cpu) {
+        cpu._t0 = 0x12345678;
+        throw new RuntimeException();
+    }
+
+    private static void visitAddRegisters(MethodVisitor mv, String rd, String rs, String rt) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, rs, "I");
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, rt, "I");
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, cpuInternalName, rd, "I");
+    }
+
+    private static void visitCall(MethodVisitor mv, String name) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(RegisterCacheMethodVisitorTest.class), name, "(" + Type.getDescriptor(CpuState.class) + ")V", false);
+    }
+
+    /**
+     * Generate the following method, like the compiler is generating
+     * a code block with a loop and a syscall:
+     *     static void exec(CpuState cpu) {
+     *         do {
+     *             cpu._t1 = cpu._t1 + cpu._t0;
+     *             syscall(cpu);
+     *             cpu._t2 = cpu._t2 + cpu._t1;
+     *             cpu._a0 = cpu._a0 + cpu._t0;
+     *         } while (cpu._a0 < 0);
+     *         try {
+     *             raiseException(cpu);
+     *         } catch (RuntimeException e) {
+     *             cpu._v1 = cpu._t0 + cpu._t2;
+     *         }
+     *     }
+     */
+    private static Method generateMethod(boolean withRegisterCache) throws Exception {
+        String className = withRegisterCache ? "RegisterCacheOn" : "RegisterCacheOff";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, Type.getInternalName(Object.class), null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "exec", "(" + Type.getDescriptor(CpuState.class) + ")V", null, null);
+        mv.visitCode();
+
+        RegisterCacheMethodVisitor registerCacheMethodVisitor = null;
+        if (withRegisterCache) {
+            registerCacheMethodVisitor = new RegisterCacheMethodVisitor(mv, cpuInternalName, Type.getInternalName(jpcsp.Memory.class), 0, cachedFieldNames, 1);
+            mv = registerCacheMethodVisitor;
+            registerCacheMethodVisitor.start();
+        }
+
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label handler = new Label();
+        Label end = new Label();
+        mv.visitTryCatchBlock(tryStart, tryEnd, handler, Type.getInternalName(RuntimeException.class));
+
+        Label loop = new Label();
+        mv.visitLabel(loop);
+        visitAddRegisters(mv, "_t1", "_t1", "_t0");
+        visitCall(mv, "syscall");
+        visitAddRegisters(mv, "_t2", "_t2", "_t1");
+        visitAddRegisters(mv, "_a0", "_a0", "_t0");
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, cpuInternalName, "_a0", "I");
+        mv.visitJumpInsn(Opcodes.IFLT, loop);
+
+        mv.visitLabel(tryStart);
+        visitCall(mv, "raiseException");
+        mv.visitLabel(tryEnd);
+        mv.visitJumpInsn(Opcodes.GOTO, end);
+        mv.visitLabel(handler);
+        mv.visitInsn(Opcodes.POP);
+        visitAddRegisters(mv, "_v1", "_t0", "_t2");
+        mv.visitLabel(end);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        if (registerCacheMethodVisitor != null) {
+            Assert.assertEquals(1 + cachedFieldNames.length, registerCacheMethodVisitor.getMaxLocals());
+        }
+
+        final byte[] bytes = cw.toByteArray();
+        ClassLoader classLoader = new ClassLoader(RegisterCacheMethodVisitorTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+
+        return classLoader.loadClass(className).getMethod("exec", CpuState.class);
+    }
+
+    @Test
+    public void testSyscall() throws Exception {
+        Method withoutCache = generateMethod(false);
+        Method withCache = generateMethod(true);
+
+        for (int i = 0; i < numberStates; i++) {
+            CpuState initialState = new CpuState();
+            initialState._t0 = i * 0x01010101;
+            initialState._t1 = ~i;
+            initialState._t2 = i << 16;
+            initialState._a0 = -i * 1000;
+
+            CpuState expectedState = new CpuState();
+            expectedState.copy(initialState);
+            withoutCache.invoke(null, expectedState);
+
+            CpuState cachedState = new CpuState();
+            cachedState.copy(initialState);
+            withCache.invoke(null, cachedState);
+
+            for (int reg = 0; reg < 32; reg++) {
+                Assert.assertEquals(String.format("State %d, %s", i, Common.gprNames[reg]), expectedState.getRegister(reg), cachedState.getRegister(reg));
+            }
+        }
+    }
+}
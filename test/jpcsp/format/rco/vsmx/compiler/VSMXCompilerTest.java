@@ -0,0 +1,373 @@
+package jpcsp.format.rco.vsmx.compiler;
+
+import static jpcsp.format.rco.vsmx.VSMXCode.*;
+
+import jpcsp.format.rco.vsmx.VSMX;
+import jpcsp.format.rco.vsmx.interpreter.VSMXBaseObject;
+import jpcsp.format.rco.vsmx.interpreter.VSMXFunction;
+import jpcsp.format.rco.vsmx.interpreter.VSMXInterpreter;
+import jpcsp.format.rco.vsmx.interpreter.VSMXObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Executes hand-built VSMX scripts through the interpreter and through
+ * the compiler, and compares the global variables left by both executions.
+ * The top-level code is always interpreted, the functions are compiled.
+ */
+public class VSMXCompilerTest {
+    private static class Script {
+        private final List<int[]> codes = new ArrayList<int[]>();
+        private final List<String> texts = new ArrayList<String>();
+        private final List<String> properties = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+        private final List<int[]> functions = new ArrayList<int[]>();
+
+        public int line() {
+            return codes.size();
+        }
+
+        public Script add(int opcode) {
+            return add(opcode, 0);
+        }
+
+        public Script add(int id, int value) {
+            codes.add(new int[] { id, value });
+            return this;
+        }
+
+        public void patch(int line, int value) {
+            codes.get(line)[1] = value;
+        }
+
+        private static int index(List<String> strings, String s) {
+            int index = strings.indexOf(s);
+            if (index < 0) {
+                index = strings.size();
+                strings.add(s);
+            }
+            return index;
+        }
+
+        public Script variable(String name) {
+            return add(VID_VARIABLE, index(names, name));
+        }
+
+        public Script property(String name) {
+            return add(VID_PROPERTY, index(properties, name));
+        }
+
+        public Script method(String name) {
+            return add(VID_METHOD, index(properties, name));
+        }
+
+        public Script setAttr(String name) {
+            return add(VID_SET_ATTR, index(properties, name));
+        }
+
+        public Script string(String s) {
+            return add(VID_CONST_STRING, index(texts, s));
+        }
+
+        public Script integer(int value) {
+            return add(VID_CONST_INT, value);
+        }
+
+        public Script local(int index) {
+            return add(VID_UNNAMED_VAR, index);
+        }
+
+        /**
+         * Push a function, its start line has to be set by body().
+         */
+        public Script function(int args, int localVars) {
+            functions.add(new int[] { line(), args, localVars });
+            return add(VID_FUNCTION | (args << 8) | (localVars << 24), 0);
+        }
+
+        /**
+         * Start the body of the n-th function pushed by function().
+         */
+        public Script body(int n) {
+            patch(functions.get(n)[0], line());
+            return this;
+        }
+
+        /**
+         * Assign the value on top of the stack to the reference below it
+         * and end the statement.
+         */
+        public Script assign() {
+            return add(VID_OPERATOR_ASSIGN).add(VID_END_STMT);
+        }
+
+        public Script call(String result, String function, int... args) {
+            variable(result).variable(function);
+            for (int arg : args) {
+                integer(arg);
+            }
+            return add(VID_CALL_FUNC, args.length).assign();
+        }
+
+        private static byte[] toBytes(List<String> strings, Charset charset, int bytesPerChar) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(charset);
+                out.write(bytes, 0, bytes.length);
+                for (int i = 0; i < bytesPerChar; i++) {
+                    out.write(0);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        public VSMX toVSMX() {
+            byte[] textBytes = toBytes(texts, Charset.forName("UTF-16LE"), 2);
+            byte[] propertyBytes = toBytes(properties, Charset.forName("UTF-16LE"), 2);
+            byte[] nameBytes = toBytes(names, Charset.forName("ISO-8859-1"), 1);
+            int codeOffset = 13 * 4;
+            int codeLength = codes.size() * 8;
+            int textOffset = codeOffset + codeLength;
+            int propertyOffset = textOffset + textBytes.length;
+            int nameOffset = propertyOffset + propertyBytes.length;
+
+            ByteBuffer buffer = ByteBuffer.allocate(nameOffset + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0x584D5356); // "VSMX"
+            buffer.putInt(0x00010000);
+            buffer.putInt(codeOffset).putInt(codeLength);
+            buffer.putInt(textOffset).putInt(textBytes.length).putInt(texts.size());
+            buffer.putInt(propertyOffset).putInt(propertyBytes.length).putInt(properties.size());
+            buffer.putInt(nameOffset).putInt(nameBytes.length).putInt(names.size());
+            for (int[] code : codes) {
+                buffer.putInt(code[0]).putInt(code[1]);
+            }
+            buffer.put(textBytes).put(propertyBytes).put(nameBytes);
+
+            return new VSMX(buffer.array(), "test");
+        }
+    }
+
+    private static Map<String, String> run(Script script, boolean compile) {
+        boolean enableCompiler = VSMXInterpreter.enableCompiler;
+        VSMXInterpreter.enableCompiler = compile;
+        try {
+            VSMX vsmx = script.toVSMX();
+            VSMXInterpreter interpreter = new VSMXInterpreter();
+            interpreter.setVSMX(vsmx);
+
+            if (compile) {
+                // Make sure that the functions are really compiled and not interpreted
+                VSMXCompiler compiler = new VSMXCompiler(interpreter, vsmx.getMem());
+                for (int[] function : script.functions) {
+                    int startLine = vsmx.getMem().codes[function[0]].value;
+                    VSMXFunction vsmxFunction = new VSMXFunction(interpreter, function[1], function[2], startLine);
+                    Assert.assertNotNull(String.format("function at line#%d not compiled", startLine), compiler.getCompiledFunction(vsmxFunction));
+                }
+            }
+
+            VSMXObject globalVariables = new VSMXObject(interpreter, "Global");
+            interpreter.run(globalVariables);
+
+            Map<String, String> result = new TreeMap<String, String>();
+            for (String name : globalVariables.getPropertyNames()) {
+                VSMXBaseObject value = globalVariables.getPropertyValue(name);
+                result.put(name, String.format("%s %s", value.typeOf(), value));
+            }
+            return result;
+        } finally {
+            VSMXInterpreter.enableCompiler = enableCompiler;
+        }
+    }
+
+    private static Map<String, String> assertSameResults(Script script) {
+        Map<String, String> interpreted = run(script, false);
+        Map<String, String> compiled = run(script, true);
+        Assert.assertEquals(interpreted, compiled);
+
+        return compiled;
+    }
+
+    private static Script binaryOperators(int a, int b) {
+        int[] operators = {
+                VID_OPERATOR_ADD, VID_OPERATOR_SUBTRACT, VID_OPERATOR_MULTIPLY, VID_OPERATOR_DIVIDE, VID_OPERATOR_MOD,
+                VID_OPERATOR_EQUAL, VID_OPERATOR_NOT_EQUAL, VID_OPERATOR_IDENTITY, VID_OPERATOR_NON_IDENTITY,
+                VID_OPERATOR_LT, VID_OPERATOR_LTE, VID_OPERATOR_GTE, VID_OPERATOR_GT,
+                VID_OPERATOR_B_AND, VID_OPERATOR_B_XOR, VID_OPERATOR_B_OR,
+                VID_OPERATOR_LSHIFT, VID_OPERATOR_RSHIFT, VID_OPERATOR_URSHIFT
+        };
+        int[] unaryOperators = {
+                VID_OPERATOR_POSITIVE, VID_OPERATOR_NEGATE, VID_OPERATOR_NOT, VID_OPERATOR_B_NOT, VID_OPERATOR_TYPEOF
+        };
+
+        Script script = new Script();
+        script.variable("ops").function(2, 0).assign();
+        script.call("result", "ops", a, b);
+        script.add(VID_END);
+
+        script.body(0);
+        for (int operator : operators) {
+            String global = VsmxDecOps[operator];
+            script.variable(global).local(1).local(2).add(operator).assign();
+        }
+        for (int operator : unaryOperators) {
+            String global = VsmxDecOps[operator];
+            script.variable(global).local(1).add(operator).assign();
+        }
+        // String concatenation
+        script.variable("concat").string("a=").local(1).add(VID_OPERATOR_ADD).assign();
+        // Stack copy and swap: (a - b) computed as -(b - a)
+        script.variable("swap").local(1).local(2).add(VID_STACK_SWAP).add(VID_OPERATOR_SUBTRACT).add(VID_OPERATOR_NEGATE).assign();
+        script.variable("copy").local(1).add(VID_STACK_COPY).add(VID_OPERATOR_MULTIPLY).assign();
+        script.local(1).local(2).add(VID_OPERATOR_ADD).add(VID_RETURN);
+
+        return script;
+    }
+
+    @Test
+    public void testOperators() {
+        int[][] values = { { 7, 3 }, { -5, 2 }, { 0, 0 }, { 0x40000000, 31 }, { -1, 33 } };
+        for (int[] value : values) {
+            assertSameResults(binaryOperators(value[0], value[1]));
+        }
+    }
+
+    @Test
+    public void testIncrements() {
+        Script script = new Script();
+        script.variable("g").integer(10).assign();
+        script.variable("inc").function(1, 0).assign();
+        script.call("result", "inc", 5);
+        script.add(VID_END);
+
+        script.body(0);
+        // Local variables
+        script.variable("postIncrement").local(1).add(VID_INCREMENT).assign();
+        script.variable("preIncrement").local(1).add(VID_P_INCREMENT).assign();
+        script.variable("postDecrement").local(1).add(VID_DECREMENT).assign();
+        script.variable("preDecrement").local(1).add(VID_P_DECREMENT).add(VID_P_DECREMENT).assign();
+        // Global variables
+        script.variable("g").add(VID_INCREMENT).add(VID_END_STMT);
+        script.variable("g").add(VID_P_INCREMENT).add(VID_END_STMT);
+        script.variable("g2").variable("g").add(VID_DECREMENT).assign();
+        script.local(1).add(VID_RETURN);
+
+        assertSameResults(script);
+    }
+
+    @Test
+    public void testAssignments() {
+        Script script = new Script();
+        script.variable("array").add(VID_CONST_EMPTYARRAY).assign();
+        script.variable("assign").function(1, 1).assign();
+        script.call("result", "assign", 3);
+        script.add(VID_END);
+
+        script.body(0);
+        // Local variable: l = a * 2
+        script.local(2).local(1).integer(2).add(VID_OPERATOR_MULTIPLY).assign();
+        // Chained assignment: chained = (l = l + 1)
+        script.variable("chained").local(2).local(2).integer(1).add(VID_OPERATOR_ADD).add(VID_OPERATOR_ASSIGN).assign();
+        // Property: array.x = l
+        script.variable("array").property("x").local(2).assign();
+        // Attribute: array.y = "y"
+        script.variable("array").string("y").setAttr("y").add(VID_END_STMT);
+        // Array index: array[2] = a, array[0] = array[2] + 1
+        script.variable("array").integer(2).local(1).add(VID_ARRAY_INDEX_ASSIGN).add(VID_END_STMT);
+        script.variable("array").integer(0).variable("array").integer(2).add(VID_ARRAY_INDEX).integer(1).add(VID_OPERATOR_ADD).add(VID_ARRAY_INDEX_ASSIGN).add(VID_END_STMT);
+        // Array element reference: array[1] = 5
+        script.variable("array").integer(1).add(VID_ARRAY_INDEX).integer(5).assign();
+        // Array constant: pushed = [a, l]
+        script.variable("pushed").add(VID_ARRAY).local(1).add(VID_ARRAY_PUSH).local(2).add(VID_ARRAY_PUSH).assign();
+        script.variable("x").variable("array").property("x").assign();
+        script.local(2).add(VID_RETURN);
+
+        assertSameResults(script);
+    }
+
+    @Test
+    public void testCalls() {
+        Script script = new Script();
+        script.variable("fact").function(1, 0).assign();
+        script.variable("sum").function(1, 1).assign();
+        script.variable("object").add(VID_CONST_EMPTYARRAY).assign();
+        script.variable("object").property("v").integer(40).assign();
+        script.variable("object").property("m").function(1, 0).assign();
+        script.variable("callMethod").function(0, 0).assign();
+        script.call("fact5", "fact", 5);
+        script.call("sum10", "sum", 10);
+        script.call("method", "callMethod");
+        script.add(VID_END);
+
+        // fact(n): return n <= 1 ? 1 : n * fact(n - 1)
+        script.body(0);
+        script.local(1).integer(1).add(VID_OPERATOR_LTE);
+        int jumpLine = script.line();
+        script.add(VID_JUMP_FALSE);
+        script.integer(1).add(VID_RETURN);
+        script.patch(jumpLine, script.line());
+        script.local(1).variable("fact").local(1).integer(1).add(VID_OPERATOR_SUBTRACT).add(VID_CALL_FUNC, 1).add(VID_OPERATOR_MULTIPLY).add(VID_RETURN);
+
+        // sum(n): s = 0; while (n > 0) { s += n; n--; } return s
+        script.body(1);
+        script.local(2).integer(0).assign();
+        int loopLine = script.line();
+        script.local(1).integer(0).add(VID_OPERATOR_GT);
+        int exitLine = script.line();
+        script.add(VID_JUMP_FALSE);
+        script.local(2).local(2).local(1).add(VID_OPERATOR_ADD).assign();
+        script.local(1).add(VID_DECREMENT).add(VID_END_STMT);
+        script.add(VID_JUMP, loopLine);
+        script.patch(exitLine, script.line());
+        script.local(2).add(VID_RETURN);
+
+        // object.m(x): return this.v + x
+        script.body(2);
+        script.add(VID_THIS).property("v").local(1).add(VID_OPERATOR_ADD).add(VID_RETURN);
+
+        // callMethod(): return object.m(2)
+        script.body(3);
+        script.variable("object").method("m").integer(2).add(VID_CALL_METHOD, 1).add(VID_RETURN);
+
+        Map<String, String> result = assertSameResults(script);
+        Assert.assertEquals("number 120", result.get("fact5"));
+        Assert.assertEquals("number 55", result.get("sum10"));
+        Assert.assertEquals("number 42", result.get("method"));
+    }
+
+    @Test
+    public void testNewReturnsThis() {
+        Script script = new Script();
+        script.variable("Point").function(2, 0).assign();
+        script.variable("make").function(0, 0).assign();
+        // Called from the interpreted code
+        script.variable("p1").variable("Point").integer(1).integer(2).add(VID_CALL_NEW, 2).assign();
+        script.variable("p1x").variable("p1").property("x").assign();
+        // Called from the compiled code
+        script.call("p2", "make");
+        script.variable("p2y").variable("p2").property("y").assign();
+        script.add(VID_END);
+
+        // Point(x, y): this.x = x; this.y = y; return 99 (ignored by new)
+        script.body(0);
+        script.add(VID_THIS).property("x").local(1).assign();
+        script.add(VID_THIS).local(2).setAttr("y").add(VID_END_STMT);
+        script.integer(99).add(VID_RETURN);
+
+        // make(): return new Point(3, 4)
+        script.body(1);
+        script.variable("Point").integer(3).integer(4).add(VID_CALL_NEW, 2).add(VID_RETURN);
+
+        Map<String, String> result = assertSameResults(script);
+        Assert.assertEquals("number 1", result.get("p1x"));
+        Assert.assertEquals("number 4", result.get("p2y"));
+    }
+}
@@ -0,0 +1,70 @@
+package jpcsp.state;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class StateContainerTest {
+    private File writeStateFile(int value) throws IOException {
+        File file = File.createTempFile("state", ".bin");
+        file.deleteOnExit();
+
+        StateContainer container = new StateContainer();
+        container.addSection("test").writeInt(value);
+        container.write(file.getPath());
+
+        return file;
+    }
+
+    private void setBlockSize(File file, int blockSize) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // After the magic and the container version
+            raf.seek(8);
+            raf.writeInt(blockSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertInvalidBlockSize(int blockSize) throws IOException {
+        File file = writeStateFile(0);
+        setBlockSize(file, blockSize);
+
+        StateContainer container = new StateContainer();
+        try {
+            container.open(file.getPath());
+            Assert.fail(String.format("Block size 0x%X accepted", blockSize));
+        } catch (InvalidStateException e) {
+            // Expected exception
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        File file = writeStateFile(0x12345678);
+        Assert.assertTrue(StateContainer.isStateContainer(file.getPath()));
+
+        StateContainer container = new StateContainer();
+        try {
+            container.open(file.getPath());
+            Assert.assertTrue(container.hasSection("test"));
+            Assert.assertEquals(0x12345678, container.getSectionInputStream("test").readInt());
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test
+    public void testInvalidBlockSize() throws Exception {
+        assertInvalidBlockSize(0);
+        assertInvalidBlockSize(-1);
+        assertInvalidBlockSize(Integer.MIN_VALUE);
+        assertInvalidBlockSize(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,115 @@
+package jpcsp.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntMapTest {
+    private static void assertSameContent(Map<Integer, String> expected, IntMap<String> map) {
+        Assert.assertEquals(expected.size(), map.size());
+        Assert.assertEquals(expected.isEmpty(), map.isEmpty());
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        int[] expectedKeys = new int[expected.size()];
+        int n = 0;
+        for (Integer key : expected.keySet()) {
+            expectedKeys[n++] = key;
+        }
+        Arrays.sort(expectedKeys);
+        Assert.assertArrayEquals(expectedKeys, keys);
+        Assert.assertEquals(expected.size(), map.values().size());
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        IntMap<String> map = new IntMap<String>();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.put(1, "one"));
+        Assert.assertNull(map.put(-1, "minus one"));
+        Assert.assertNull(map.put(0, "zero"));
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("one", map.get(1));
+        Assert.assertEquals("minus one", map.get(-1));
+        Assert.assertEquals("zero", map.get(0));
+
+        Assert.assertEquals("one", map.put(1, "ONE"));
+        Assert.assertEquals("ONE", map.get(1));
+        Assert.assertEquals(3, map.size());
+
+        Assert.assertEquals("zero", map.remove(0));
+        Assert.assertNull(map.remove(0));
+        Assert.assertFalse(map.containsKey(0));
+        Assert.assertEquals(2, map.size());
+
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(1));
+    }
+
+    @Test
+    public void testMissingKey() throws Exception {
+        IntMap<String> map = new IntMap<String>();
+        Assert.assertNull(map.get(0x12345678));
+        Assert.assertFalse(map.containsKey(0x12345678));
+
+        map.put(0x12345678, "value");
+        Assert.assertNull(map.get(0x12345679));
+        Assert.assertNull(map.get(0));
+        Assert.assertFalse(map.containsKey(0x12345679));
+    }
+
+    @Test
+    public void testNullValue() throws Exception {
+        IntMap<String> map = new IntMap<String>();
+        map.put(5, null);
+        Assert.assertTrue(map.containsKey(5));
+        Assert.assertNull(map.get(5));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testResize() throws Exception {
+        IntMap<String> map = new IntMap<String>(1);
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (int i = 0; i < 10000; i++) {
+            // Addresses of compiled code blocks are typical keys
+            int key = 0x08804000 + i * 4;
+            map.put(key, Integer.toHexString(key));
+            expected.put(key, Integer.toHexString(key));
+        }
+        assertSameContent(expected, map);
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        // A small key range and many removals produce long probe clusters
+        // and removals inside of these clusters
+        Random random = new Random(0);
+        IntMap<String> map = new IntMap<String>();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(64) << 16;
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = Integer.toString(i);
+                Assert.assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        assertSameContent(expected, map);
+
+        for (int key = 0; key < 64; key++) {
+            Assert.assertEquals(expected.remove(key << 16), map.remove(key << 16));
+        }
+        Assert.assertTrue(map.isEmpty());
+    }
+}
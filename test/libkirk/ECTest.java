@@ -0,0 +1,162 @@
+package libkirk;
+
+import static libkirk.EC.BIGNUMBER_SIZE;
+import static libkirk.EC.ELT_SIZE;
+import static libkirk.EC.ec_priv_to_pub;
+import static libkirk.EC.ec_pub_mult;
+import static libkirk.EC.ecdsa_set_curve;
+import static libkirk.EC.ecdsa_set_priv;
+import static libkirk.EC.ecdsa_set_pub;
+import static libkirk.EC.ecdsa_sign;
+import static libkirk.EC.ecdsa_verify;
+import static libkirk.KirkEngine.Gx1;
+import static libkirk.KirkEngine.Gx2;
+import static libkirk.KirkEngine.Gy1;
+import static libkirk.KirkEngine.Gy2;
+import static libkirk.KirkEngine.ec_N1;
+import static libkirk.KirkEngine.ec_N2;
+import static libkirk.KirkEngine.ec_a;
+import static libkirk.KirkEngine.ec_b1;
+import static libkirk.KirkEngine.ec_b2;
+import static libkirk.KirkEngine.ec_p;
+import static libkirk.KirkEngine.kirk_init;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import libkirk.KirkEngine.ECDSA_POINT;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compare the fast point multiplication with the original
+ * double-and-add implementation.
+ */
+public class ECTest {
+    private final Random random = new Random(0x4B49524BL);
+
+    @After
+    public void tearDown() {
+        EC.enableFastPointMul = true;
+    }
+
+    private static void setCurve(int curve) {
+        if (curve == 1) {
+            ecdsa_set_curve(ec_p, ec_a, ec_b1, ec_N1, Gx1, Gy1);
+        } else {
+            ecdsa_set_curve(ec_p, ec_a, ec_b2, ec_N2, Gx2, Gy2);
+        }
+    }
+
+    private byte[][] getScalars(byte[] N) {
+        byte[][] scalars = new byte[8][];
+        scalars[0] = new byte[BIGNUMBER_SIZE];
+        scalars[1] = new byte[BIGNUMBER_SIZE];
+        scalars[1][BIGNUMBER_SIZE - 1] = 1;
+        scalars[2] = N.clone();
+        scalars[3] = N.clone();
+        scalars[3][BIGNUMBER_SIZE - 1]--;
+        scalars[4] = new byte[BIGNUMBER_SIZE];
+        Arrays.fill(scalars[4], (byte) 0xFF);
+        for (int i = 5; i < scalars.length; i++) {
+            scalars[i] = new byte[BIGNUMBER_SIZE];
+            random.nextBytes(scalars[i]);
+        }
+
+        return scalars;
+    }
+
+    private static ECDSA_POINT privToPub(byte[] k, boolean fast) {
+        ECDSA_POINT Q = new ECDSA_POINT();
+        EC.enableFastPointMul = fast;
+        ec_priv_to_pub(k.clone(), Q);
+
+        return Q;
+    }
+
+    private static byte[] pubMult(byte[] k, boolean fast) {
+        byte[] Q = new byte[ELT_SIZE * 2];
+        EC.enableFastPointMul = fast;
+        ec_pub_mult(k.clone(), Q);
+
+        return Q;
+    }
+
+    private void testCurve(int curve, byte[] N) {
+        setCurve(curve);
+        for (byte[] k : getScalars(N)) {
+            // Multiplication of the generator
+            ECDSA_POINT expected = privToPub(k, false);
+            ECDSA_POINT actual = privToPub(k, true);
+            Assert.assertArrayEquals(expected.x, actual.x);
+            Assert.assertArrayEquals(expected.y, actual.y);
+
+            // Multiplication of a public key
+            byte[] k2 = new byte[BIGNUMBER_SIZE];
+            random.nextBytes(k2);
+            ecdsa_set_pub(privToPub(k2, false));
+            Assert.assertArrayEquals(pubMult(k, false), pubMult(k, true));
+        }
+    }
+
+    @Test
+    public void testPointMulCurve1() {
+        testCurve(1, ec_N1);
+    }
+
+    @Test
+    public void testPointMulCurve2() {
+        testCurve(2, ec_N2);
+    }
+
+    @Test
+    public void testKnownAnswer() {
+        byte[] k = new byte[BIGNUMBER_SIZE];
+        for (int i = 1; i < BIGNUMBER_SIZE; i++) {
+            k[i] = (byte) (i * 17 + 3);
+        }
+
+        setCurve(2);
+        ECDSA_POINT Q = privToPub(k, true);
+        Assert.assertArrayEquals(new byte[] {
+                (byte) 0xF5, (byte) 0xEB, (byte) 0xF4, (byte) 0x36, (byte) 0xE8, (byte) 0xEF, (byte) 0x38, (byte) 0x41, (byte) 0xD7, (byte) 0x66,
+                (byte) 0xFB, (byte) 0xBE, (byte) 0x1C, (byte) 0x66, (byte) 0x35, (byte) 0xC2, (byte) 0x97, (byte) 0x7D, (byte) 0xAE, (byte) 0x1F
+        }, Q.x);
+        Assert.assertArrayEquals(new byte[] {
+                (byte) 0x08, (byte) 0xAB, (byte) 0xF2, (byte) 0x87, (byte) 0x14, (byte) 0x1D, (byte) 0x2D, (byte) 0xDD, (byte) 0x54, (byte) 0xD9,
+                (byte) 0x74, (byte) 0x64, (byte) 0x83, (byte) 0x5F, (byte) 0x4C, (byte) 0x73, (byte) 0x8B, (byte) 0x32, (byte) 0xE7, (byte) 0x92
+        }, Q.y);
+    }
+
+    @Test
+    public void testSignVerify() {
+        kirk_init(0L);
+        setCurve(2);
+
+        // Same key pair generation as KIRK_CMD_ECDSA_GEN_KEYS
+        byte[] k = new byte[BIGNUMBER_SIZE];
+        random.nextBytes(k);
+        k[0] = 0;
+        ECDSA_POINT Q = new ECDSA_POINT();
+        ec_priv_to_pub(k, Q);
+        byte[] privateKey = Arrays.copyOfRange(k, 1, BIGNUMBER_SIZE);
+
+        byte[] hash = new byte[ELT_SIZE];
+        random.nextBytes(hash);
+        byte[] R = new byte[ELT_SIZE];
+        byte[] S = new byte[ELT_SIZE];
+        ecdsa_set_priv(privateKey);
+        ecdsa_sign(hash, R, S);
+
+        ecdsa_set_pub(Q);
+        for (boolean fast : new boolean[] { false, true }) {
+            EC.enableFastPointMul = fast;
+            Assert.assertTrue(ecdsa_verify(hash, R, S));
+            hash[0] ^= 1;
+            Assert.assertFalse(ecdsa_verify(hash, R, S));
+            hash[0] ^= 1;
+        }
+    }
+}